@@ -36,6 +36,14 @@ tasks.register("receiver", JavaExec::class) {
     classpath = sourceSets["main"].runtimeClasspath
 }
 
+tasks.register("receiver-nio", JavaExec::class) {
+    dependsOn(":assemble")
+    group = "tftp-server"
+    description = "Runs the non-blocking TFTP Server"
+    mainClass = "com.capital7software.network.tftp.server.NioTftpServer"
+    classpath = sourceSets["main"].runtimeClasspath
+}
+
 tasks.register("sender", JavaExec::class) {
     dependsOn(":assemble")
     group = "tftp-client"
@@ -0,0 +1,22 @@
+/*
+ * File: CorruptMessageException.java
+ */
+package com.capital7software.network.exception;
+
+/**
+ * Thrown when a message carries a checksum that does not match its contents. The message was
+ * damaged on the way and should be sent again rather than abandoning the transfer.
+ *
+ * @author Vincent Palodichuk
+ */
+public class CorruptMessageException extends TftpException {
+
+    /**
+     * Initializes this exception with the specified message.
+     *
+     * @param msg The message to include with the exception.
+     */
+    public CorruptMessageException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * File: AckPolicy.java
+ */
+package com.capital7software.network.tftp;
+
+/**
+ * When the receiver of a WRQ acknowledges a DATA message. The policy is negotiated with the
+ * ackpolicy option.
+ *
+ * @author Vincent Palodichuk
+ */
+public enum AckPolicy {
+    /**
+     * As soon as the block has been handed to the disk writer
+     */
+    QUEUED("queued"),
+    /**
+     * Once the block has been written to the file
+     */
+    WRITTEN("written"),
+    /**
+     * Once the block has been forced to the storage device
+     */
+    SYNCED("synced");
+
+    private final String value;
+
+    AckPolicy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Get the policy with the specified value, ignoring case
+     *
+     * @param value the value of the policy as it appears in the ackpolicy option
+     * @return the policy or null if there is no policy with that value
+     */
+    public static AckPolicy fromValue(String value) {
+        for (AckPolicy policy : values()) {
+            if (policy.value.equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * File: Durability.java
+ */
+package com.capital7software.network.tftp;
+
+import java.util.Objects;
+
+/**
+ * When the receiver of a WRQ forces the blocks that it has written to the storage device. A
+ * server has a default durability, and a client may ask for another one for a single transfer
+ * with the tsync option.
+ * <p>
+ * Every durability other than {@link Mode#NONE} forces the whole file before it is closed, and
+ * therefore before it is put in place under its real name. The value of an interval is written
+ * after a colon, such as {@code blocks:64} or {@code bytes:8388608}.
+ *
+ * @author Vincent Palodichuk
+ */
+public final class Durability {
+    /**
+     * The ways that the blocks of a file can be forced to the storage device
+     */
+    public enum Mode {
+        /**
+         * Never, the operating system writes the file back whenever it sees fit
+         */
+        NONE("none"),
+        /**
+         * Every time the specified number of blocks has been written
+         */
+        BLOCKS("blocks"),
+        /**
+         * Every time the specified number of bytes has been written
+         */
+        BYTES("bytes"),
+        /**
+         * Once, when the file is closed
+         */
+        EOF("eof"),
+        /**
+         * Once, before the final ACK, so the final ACK means that the file is on the storage
+         * device. The final ACK is only sent once the file is closed, so this is forced like
+         * {@link #EOF}
+         */
+        ACK("ack");
+
+        private final String value;
+
+        Mode(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * The durability of a server when none is specified
+     */
+    public static final Durability NONE = new Durability(Mode.NONE, 0);
+
+    private final Mode mode;
+    private final long interval;
+
+    /**
+     * Initializes a durability with the specified mode.
+     *
+     * @param mode the mode of the durability
+     * @param interval the number of blocks or bytes between two forces, ignored by the modes
+     * that are not intervals
+     * @throws IllegalArgumentException if the mode is an interval and the interval is not
+     * greater than 0
+     */
+    public Durability(Mode mode, long interval) {
+        boolean isInterval = mode == Mode.BLOCKS || mode == Mode.BYTES;
+
+        if (isInterval && interval < 1) {
+            throw new IllegalArgumentException("interval must be greater than 0.");
+        }
+
+        this.mode = mode;
+        this.interval = isInterval ? interval : 0;
+    }
+
+    /**
+     * Get the durability with the specified value, ignoring case
+     *
+     * @param value the value of the durability as it appears in the tsync option
+     * @return the durability or null if the value is not a durability
+     */
+    public static Durability fromValue(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        int index = value.indexOf(':');
+        String name = index >= 0 ? value.substring(0, index) : value;
+
+        for (Mode mode : Mode.values()) {
+            if (mode.value.equalsIgnoreCase(name)) {
+                boolean isInterval = mode == Mode.BLOCKS || mode == Mode.BYTES;
+
+                if (isInterval != index >= 0) {
+                    return null;
+                }
+
+                try {
+                    long interval = isInterval ? Long.parseLong(value.substring(index + 1)) : 0;
+                    return isInterval && interval < 1 ? null : new Durability(mode, interval);
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the value of this durability as it appears in the tsync option
+     *
+     * @return the value of this durability
+     */
+    public String getValue() {
+        return interval > 0 ? mode.value + ":" + interval : mode.value;
+    }
+
+    /**
+     * Get the mode of this durability
+     *
+     * @return the mode of this durability
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of blocks or bytes between two forces
+     *
+     * @return the interval or 0 if the mode is not an interval
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns true if the file is forced to the storage device at all
+     *
+     * @return true if the file is forced before it is closed
+     */
+    public boolean isForced() {
+        return mode != Mode.NONE;
+    }
+
+    /**
+     * Returns true if the blocks that were written since the last force are due to be forced
+     *
+     * @param blocks the number of blocks written since the last force
+     * @param bytes the number of bytes written since the last force
+     * @return true if the interval of this durability has been reached
+     */
+    public boolean isDue(long blocks, long bytes) {
+        return mode == Mode.BLOCKS && blocks >= interval || mode == Mode.BYTES && bytes >= interval;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Durability that)) {
+            return false;
+        }
+        return interval == that.interval && mode == that.mode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mode, interval);
+    }
+
+    @Override
+    public String toString() {
+        return getValue();
+    }
+}
@@ -15,6 +15,8 @@ public enum OpCode {
     ACK(4),
     ERROR(5),
     OACK(6),
+    HOLE(7),
+    KEEP(8),
     UNKNOWN(99);
     
     private final int value;
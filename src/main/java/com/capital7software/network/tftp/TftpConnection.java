@@ -4,9 +4,11 @@
 package com.capital7software.network.tftp;
 
 import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.messages.DataMessage;
 import com.capital7software.network.tftp.messages.MessageOption;
 import com.capital7software.network.tftp.messages.MessageOptionCode;
 import com.capital7software.network.tftp.messages.OptionableMessage;
+import com.capital7software.network.util.DigestAlgorithm;
 import com.capital7software.network.util.FileInfo;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
@@ -39,11 +41,50 @@ public abstract class TftpConnection implements OptionableMessage {
     }
     
     public void addDefaultOptions() {
+        addDefaultOptions(new TransferSettings());
+    }
+
+    /**
+     * Adds the options that every transfer of this client asks for.
+     *
+     * @param settings the settings of the transfer, which decide how the file is validated and
+     * which of the optional features the client asks for
+     */
+    public void addDefaultOptions(TransferSettings settings) {
         try {
             addOption(new TftpOption(MessageOptionCode.BLOCK_COUNT, "" + fileInfo.getNumBlocks()));
             addOption(new TftpOption(MessageOptionCode.BLOCK_SIZE, "" + fileInfo.getBlockSize()));
             addOption(new TftpOption(MessageOptionCode.FILE_SIZE, "" + fileInfo.getSize()));
-            addOption(new TftpOption(MessageOptionCode.FILE_MD5, fileInfo.getMd5()));
+            // MD5 keeps the tmd5 option, so servers that do not know talg still validate the file
+            DigestAlgorithm algorithm = fileInfo.getDigestAlgorithm();
+            MessageOptionCode hashOption = algorithm == DigestAlgorithm.MD5 ? MessageOptionCode.FILE_MD5 : MessageOptionCode.FILE_HASH;
+            if (hashOption == MessageOptionCode.FILE_HASH) {
+                addOption(new TftpOption(MessageOptionCode.DIGEST_ALGORITHM, algorithm.getValue()));
+            }
+            if (settings.isMerkle()) {
+                // The root is sent once the last block is acknowledged, whether it is known or not
+                addOption(new TftpOption(MessageOptionCode.TRAILER, MessageOptionCode.MERKLE_ROOT.getValue()));
+            } else if (fileInfo.getMd5() != null) {
+                addOption(new TftpOption(hashOption, fileInfo.getMd5()));
+                if (hashOption == MessageOptionCode.FILE_MD5) {
+                    // A server that already holds content of this size and MD5 Hash ends the transfer right away
+                    addOption(new TftpOption(MessageOptionCode.STORED, "1"));
+                }
+            } else {
+                // The hash is not known yet, so it is sent in a trailer once the last block is acknowledged
+                addOption(new TftpOption(MessageOptionCode.TRAILER, hashOption.getValue()));
+            }
+            addOption(new TftpOption(MessageOptionCode.CHECKSUM, DataMessage.CHECKSUM_ALGORITHM));
+            addOption(new TftpOption(MessageOptionCode.HOLES, "1"));
+            if (settings.getCompression() != null) {
+                addOption(new TftpOption(MessageOptionCode.COMPRESSION, settings.getCompression().getValue()));
+            }
+            if (settings.isDelta()) {
+                addOption(new TftpOption(MessageOptionCode.DELTA, "1"));
+            }
+            if (settings.getDurability() != null) {
+                addOption(new TftpOption(MessageOptionCode.DURABILITY, settings.getDurability().getValue()));
+            }
             addOption(new TftpOption(MessageOptionCode.RETRY_COUNT, Tftp.DEFAULT_RETRY_COUNT));
             addOption(new TftpOption(MessageOptionCode.TIMEOUT, Tftp.DEFAULT_CONNECTION_TIMEOUT));
         } catch (TftpException ex) {
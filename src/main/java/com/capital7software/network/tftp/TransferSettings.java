@@ -0,0 +1,125 @@
+/*
+ * File: TransferSettings.java
+ */
+package com.capital7software.network.tftp;
+
+import com.capital7software.network.util.Compression;
+import com.capital7software.network.util.DigestAlgorithm;
+import com.capital7software.network.util.ManifestCache;
+
+/**
+ * The settings of a file that is sent to a server: how the file is hashed and which of the
+ * options of the transfer the client asks for. A new instance holds the settings of a plain
+ * transfer, with the file hashed in MD5 before it is sent.
+ *
+ * @author Vincent Palodichuk
+ */
+public class TransferSettings {
+    private boolean stream;
+    private DigestAlgorithm digestAlgorithm = DigestAlgorithm.MD5;
+    private ManifestCache manifestCache;
+    private boolean merkle;
+    private Compression compression;
+    private boolean delta;
+    private Durability durability;
+
+    /**
+     * Returns true if the file is not hashed up front. Its hash is computed as the blocks are
+     * sent and is sent in a trailer once the last block is acknowledged
+     *
+     * @return true if the hash of the file is sent in a trailer
+     */
+    public boolean isStream() {
+        return stream;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Get the algorithm that the file and its blocks are hashed with
+     *
+     * @return the algorithm that the file and its blocks are hashed with
+     */
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public void setDigestAlgorithm(DigestAlgorithm digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm != null ? digestAlgorithm : DigestAlgorithm.MD5;
+    }
+
+    /**
+     * Get the hashes of the files that were already hashed
+     *
+     * @return the manifests of the files or null to always hash the file
+     */
+    public ManifestCache getManifestCache() {
+        return manifestCache;
+    }
+
+    public void setManifestCache(ManifestCache manifestCache) {
+        this.manifestCache = manifestCache;
+    }
+
+    /**
+     * Returns true if the file is validated with the root of a Merkle tree over the hashes of
+     * its blocks, which is sent in a trailer, so that only the blocks that differ are sent again
+     *
+     * @return true if the file is validated with a Merkle tree
+     */
+    public boolean isMerkle() {
+        return merkle;
+    }
+
+    public void setMerkle(boolean merkle) {
+        this.merkle = merkle;
+    }
+
+    /**
+     * Get the codec that the blocks are compressed with
+     *
+     * @return the codec or null if the blocks are sent as they are
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns true if only the blocks that differ from the copy of the file that the receiver
+     * already has are sent
+     *
+     * @return true if the file is sent as a delta upload
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Get when the receiver should force the file to its storage device
+     *
+     * @return the durability or null to leave it to the receiver
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferSettings{" + "stream = " + stream + ", digestAlgorithm = " + digestAlgorithm + ", merkle = " + merkle
+                + ", compression = " + compression + ", delta = " + delta + ", durability = " + durability + '}';
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * File: BlockCompressor.java
+ */
+package com.capital7software.network.tftp.client;
+
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.Message;
+import com.capital7software.network.util.BlockReader;
+import com.capital7software.network.util.BlockTable;
+import com.capital7software.network.util.Compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads and compresses the blocks of a file ahead of the send loop, on a pool of worker
+ * threads, so that the blocks are ready by the time the previous block is acknowledged. The
+ * packets are handed out in the order of the blocks, and their buffers are reused once they
+ * have been released.
+ * <p>
+ * A block is only sent compressed when it saves at least one sixteenth of its size. Once a
+ * block does not, the blocks that follow it are sent as they are without trying, for a number
+ * of blocks that doubles every time another block does not compress, so that files that are
+ * already compressed cost almost no work.
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockCompressor implements Closeable {
+    /**
+     * The fraction of a block that compression must save for the block to be sent compressed
+     */
+    public static final int MIN_SAVING = 16;
+
+    /**
+     * The most blocks that are sent without trying to compress them after a block that did not
+     * compress
+     */
+    public static final int MAX_SKIP = 64;
+
+    private final BlockReader reader;
+    private final BlockTable blocks;
+    private final Compression compression;
+    private final ExecutorService workers;
+    private final int window;
+    private final Deque<Future<Packet>> pending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<Packet> free = new ConcurrentLinkedQueue<>();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicInteger compressed = new AtomicInteger();
+    private int nextIndex;
+    private int skip;
+    private int skipUntil;
+
+    /**
+     * A DATA packet of a block, together with the block as it is in the file.
+     */
+    public static final class Packet {
+        private final byte[] block;
+        private final byte[] packet;
+        private int index;
+        private int length;
+        private int packetLength;
+
+        private Packet(int blockSize) {
+            block = new byte[DataMessage.HEADER_SIZE + blockSize];
+            packet = new byte[DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + blockSize + DataMessage.CHECKSUM_SIZE];
+        }
+
+        /**
+         * Get the index of the block, which is one less than its id
+         *
+         * @return the index of the block
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the block as it is in the file, after the header of a DATA packet
+         *
+         * @return the array that holds the block
+         */
+        public byte[] getBlock() {
+            return block;
+        }
+
+        /**
+         * Get the length of the header and the block as it is in the file
+         *
+         * @return the length of the header and the block
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Get the DATA packet to send, with room for the checksum after it
+         *
+         * @return the array that holds the packet
+         */
+        public byte[] getPacket() {
+            return packet;
+        }
+
+        /**
+         * Get the length of the DATA packet to send, without the checksum
+         *
+         * @return the length of the packet
+         */
+        public int getPacketLength() {
+            return packetLength;
+        }
+    }
+
+    /**
+     * Initializes a compressor of the blocks of the specified file.
+     *
+     * @param reader the reader of the file
+     * @param blocks the blocks of the file
+     * @param compression the codec to compress the blocks with
+     * @param threads the number of worker threads
+     */
+    public BlockCompressor(BlockReader reader, BlockTable blocks, Compression compression, int threads) {
+        this.reader = reader;
+        this.blocks = blocks;
+        this.compression = compression;
+        this.window = Math.max(1, threads) * 2;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "tftp-compress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the packet of the next block, waiting for it to be compressed if it is not ready yet.
+     * The blocks that follow it are handed to the workers as well, up to twice as many as there
+     * are workers.
+     *
+     * @return the packet of the next block
+     * @throws IOException if the block could not be read
+     */
+    public Packet next() throws IOException {
+        while (pending.size() < window && nextIndex < blocks.size()) {
+            int index = nextIndex++;
+            pending.add(workers.submit(() -> pack(index)));
+        }
+
+        Future<Packet> next = pending.poll();
+        if (next == null) {
+            throw new IOException("There are no more blocks to send.");
+        }
+
+        try {
+            return next.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while the block was compressed.", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException io ? io : new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Reads and compresses the block with the specified index on the calling thread, such as
+     * for a block that is sent again.
+     *
+     * @param index the index of the block, which is one less than its id
+     * @return the packet of the block
+     * @throws IOException if the block could not be read
+     */
+    public Packet pack(int index) throws IOException {
+        Packet answer = free.poll();
+        if (answer == null) {
+            answer = new Packet((int) blocks.getBlockSize());
+        }
+
+        int length = (int) blocks.getLength(index);
+        byte[] block = answer.block;
+        byte[] packet = answer.packet;
+        Message.writeOpCodeAndId(index + 1, (short) OpCode.DATA.getValue(), 0, block);
+        Message.writeOpCodeAndId(index + 1, (short) OpCode.DATA.getValue(), 0, packet);
+        reader.read(blocks.getOffset(index), ByteBuffer.wrap(block, DataMessage.HEADER_SIZE, length));
+
+        int offset = DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE;
+        int size = length > 0 && tryCompress(index) ? compression.compress(block, DataMessage.HEADER_SIZE, length, packet, offset, length - Math.max(1, length / MIN_SAVING)) : -1;
+
+        if (size >= 0) {
+            packet[DataMessage.HEADER_SIZE] = (byte) compression.getFlag();
+            compressed.incrementAndGet();
+        } else {
+            packet[DataMessage.HEADER_SIZE] = Compression.RAW;
+            System.arraycopy(block, DataMessage.HEADER_SIZE, packet, offset, length);
+            size = length;
+        }
+        paidOff(index, size < length);
+
+        answer.index = index;
+        answer.length = DataMessage.HEADER_SIZE + length;
+        answer.packetLength = offset + size;
+        rawBytes.addAndGet(length);
+        sentBytes.addAndGet(size);
+        return answer;
+    }
+
+    /**
+     * Hands the buffers of the specified packet back, once it has been sent.
+     *
+     * @param packet the packet that is no longer used
+     */
+    public void release(Packet packet) {
+        if (packet != null) {
+            free.add(packet);
+        }
+    }
+
+    /**
+     * Get the number of blocks that were sent compressed
+     *
+     * @return the number of blocks that were compressed
+     */
+    public int getCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * Get the number of bytes of the blocks as they are in the file
+     *
+     * @return the number of bytes that were read
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * Get the number of bytes of the blocks as they are sent
+     *
+     * @return the number of bytes that were sent, without the headers
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    private synchronized boolean tryCompress(int index) {
+        return index >= skipUntil;
+    }
+
+    private synchronized void paidOff(int index, boolean paidOff) {
+        if (paidOff) {
+            skip = 0;
+        } else if (index >= skipUntil) {
+            skip = Math.min(MAX_SKIP, Math.max(1, skip * 2));
+            skipUntil = index + 1 + skip;
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCompressor{" + "compression = " + compression + ", compressed = " + compressed + ", rawBytes = " + rawBytes + ", sentBytes = " + sentBytes + '}';
+    }
+}
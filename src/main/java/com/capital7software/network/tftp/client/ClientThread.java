@@ -6,22 +6,39 @@ package com.capital7software.network.tftp.client;
 import com.capital7software.network.exception.TftpException;
 import com.capital7software.network.tftp.OpCode;
 import com.capital7software.network.tftp.Tftp;
+import com.capital7software.network.tftp.TftpOption;
 import com.capital7software.network.tftp.TftpSendRequest;
 import com.capital7software.network.tftp.TransferMode;
+import com.capital7software.network.tftp.TransferSettings;
 import com.capital7software.network.tftp.messages.*;
 import com.capital7software.network.util.BlockInfo;
+import com.capital7software.network.util.BlockTable;
+import com.capital7software.network.util.BlockReader;
+import com.capital7software.network.util.Compression;
 import com.capital7software.network.util.FileInfo;
+import com.capital7software.network.util.ManifestCache;
+import com.capital7software.network.util.Digest;
+import com.capital7software.network.util.DigestAlgorithm;
+import com.capital7software.network.util.MerkleTree;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.StringJoiner;
 
 /**
  *
@@ -31,16 +48,53 @@ public class ClientThread  extends Thread {
     public final static String SHUTDOWN_MSG = ".";
     private final static Logger ERRORS = Logger.getLogger(ClientThread.class.getName());
     
+    private static final int MAX_PACKET_SIZE = 65536;
+    private static final int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+    // The receiver copies a run of kept blocks before it acknowledges the run
+    private static final int MAX_KEEP_BYTES = 4 * 1024 * 1024;
+    private static final int DIGESTS_POLL_INTERVAL = 200;
+
     private final InetAddress server;
     private final int destPort;
     private final String filename;
     private final DatagramSocket socket;
+    private final boolean stream;
+    private final DigestAlgorithm digestAlgorithm;
+    private final ManifestCache manifestCache;
+    private final boolean merkle;
+    private final Compression compression;
+    private final boolean delta;
+    private final TransferSettings settings;
+    private boolean checksum;
+    private boolean holes;
+    private BlockCompressor compressor;
+    private final List<MessageOption> negotiated = new LinkedList<>();
     private volatile boolean stopped = false;
     
     public ClientThread(InetAddress address, int port, String filename) throws SocketException {
+        this(address, port, filename, new TransferSettings());
+    }
+
+    /**
+     * Initializes a sender of the specified file.
+     *
+     * @param address the address of the server
+     * @param port the port of the server
+     * @param filename the file to send
+     * @param settings how the file is hashed and which options of the transfer are asked for
+     * @throws SocketException if the socket could not be opened
+     */
+    public ClientThread(InetAddress address, int port, String filename, TransferSettings settings) throws SocketException {
         this.server = address;
         this.destPort = port;
         this.filename = filename;
+        this.settings = settings;
+        this.stream = settings.isStream();
+        this.digestAlgorithm = settings.getDigestAlgorithm();
+        this.manifestCache = settings.getManifestCache();
+        this.merkle = settings.isMerkle();
+        this.compression = settings.getCompression();
+        this.delta = settings.isDelta();
         this.socket = new DatagramSocket();
         this.socket.setSoTimeout(Tftp.DEFAULT_SOCKET_TIMEOUT);
     }
@@ -53,7 +107,7 @@ public class ClientThread  extends Thread {
     public void run() {
         System.out.printf("Preparing to send %s to server...%n", filename);
         System.out.println("Gathering file information...");
-        FileInfo fi = generateFileInfo();
+        FileInfo fi = stream ? describeFile() : generateFileInfo();
         
         if (fi == null) {
             System.out.println("Unable to validate the source file to send. Exiting...");
@@ -61,44 +115,128 @@ public class ClientThread  extends Thread {
         }
         
         SocketAddress dest = negotiateSendTransfer(fi);
+
+        if (dest != null && isNegotiated(MessageOptionCode.STORED)) {
+            System.out.println("The receiver already has the content of the file, nothing was sent.");
+            System.out.println("Exiting...");
+            return;
+        }
         
         if (dest != null) {
-            try {
+            try (BlockReader reader = new BlockReader(Paths.get(fi.getFilename()));
+                 BlockCompressor compressor = isNegotiated(MessageOptionCode.COMPRESSION)
+                         ? new BlockCompressor(reader, fi.getBlockTable(), compression, COMPRESSION_THREADS) : null) {
+                this.compressor = compressor;
+                byte[][] theirs = isNegotiated(MessageOptionCode.DELTA) ? fetchDigests(dest) : null;
+                if (theirs == null && isNegotiated(MessageOptionCode.DELTA)) {
+                    return;
+                }
                 System.out.println("Sending file to receiver...");
 
-                for (BlockInfo ci : fi.getBlocks()) {
-                    DataMessage message = new DataMessage(ci.getId());
-                    message.setBlock(ci.read(false), (int) ci.getSize());
-                    byte[] data = message.getPayload();
-                    byte[] input = new byte[data.length * 2];
-                    System.out.printf("Sending Block: %s... ", ci.getId());
-//                    System.out.println(ci);
-
-                    DatagramPacket output = new DatagramPacket(data, data.length, dest);
-                    DatagramPacket receive = new DatagramPacket(input, input.length);
-                    socket.send(output);
-                    System.out.printf("Block: %s has been sent.%n", ci.getId());
-                    socket.receive(receive);
-
-                    try {
-                        Message msg = MessageFactory.getMessage(receive.getData(), receive.getOffset(), receive.getLength());
-                        System.out.printf("Received an %s message... ", msg.getOpCode());
-
-                        if (msg.getOpCode() == OpCode.ACK) {
-                            AckMessage response = (AckMessage)msg;
-                            System.out.printf("Message details: [%s] - [%d]%n", response.getOpCode(), response.getId());
-                        } else if (msg.getOpCode() == OpCode.ERROR) {
-                            ErrorMessage response = (ErrorMessage)msg;
-                            System.out.printf("Message details: [%s] - [%s] - [%s]%n", response.getOpCode(), response.getErrorCode(), response.getMsg().getValue());
-                            System.out.println("Exiting...");
+                // Every DATA packet is assembled in place: the header is written in front of
+                // the block, which is read straight from the file into the packet.
+                byte[] data = new byte[DataMessage.HEADER_SIZE + (int) fi.getBlockSize() + DataMessage.CHECKSUM_SIZE];
+                byte[] input = new byte[data.length * 2];
+                boolean validateTree = merkle && isNegotiated(MessageOptionCode.TRAILER);
+                Digest digest = fi.getMd5() == null && !validateTree ? digestAlgorithm.newDigest() : null;
+                Digest leafDigest = validateTree ? digestAlgorithm.newDigest() : null;
+                BlockTable blocks = fi.getBlockTable();
+                byte[][] leaves = validateTree ? new byte[blocks.size()][] : null;
+                byte[] zeros = holes ? new byte[(int) fi.getBlockSize()] : null;
+                // The receiver hashed its copy in the negotiated algorithm, which is MD5 unless talg was accepted
+                DigestAlgorithm deltaAlgorithm = isNegotiated(MessageOptionCode.DIGEST_ALGORITHM) ? digestAlgorithm : DigestAlgorithm.MD5;
+                Digest deltaDigest = theirs != null ? deltaAlgorithm.newDigest() : null;
+                int maxKeep = (int) Math.max(1, MAX_KEEP_BYTES / fi.getBlockSize());
+                int lastId = 0;
+                OpCode runOp = null;
+                int runStart = 0;
+                int runCount = 0;
+                long skipped = 0;
+                long kept = 0;
+
+                // The blocks are walked by index, so no object is made for any of them
+                for (int i = 0; i < blocks.size(); i++) {
+                    // The compressed packets are prepared ahead by the workers, with the block as it is in the file
+                    BlockCompressor.Packet packet = compressor != null ? compressor.next() : null;
+                    byte[] block = packet != null ? packet.getBlock() : data;
+                    int length = packet != null ? packet.getLength() : readBlock(reader, blocks, i, data);
+                    if (digest != null) {
+                        digest.update(block, DataMessage.HEADER_SIZE, length - DataMessage.HEADER_SIZE);
+                    }
+                    if (leaves != null) {
+                        // Blocks that were hashed up front already have their leaf
+                        if (blocks.isHashed()) {
+                            leaves[i] = blocks.getDigest(i);
+                        } else {
+                            leafDigest.update(block, DataMessage.HEADER_SIZE, length - DataMessage.HEADER_SIZE);
+                            leaves[i] = leafDigest.digest();
+                        }
+                    }
+                    lastId = i + 1;
+
+                    // A full block of zeros joins the run of zeros that is sent as a single HOLE, and a
+                    // full block that the receiver already has joins the run that is sent as a KEEP
+                    boolean full = length - DataMessage.HEADER_SIZE == fi.getBlockSize();
+                    OpCode op = null;
+                    if (zeros != null && full && Arrays.mismatch(block, DataMessage.HEADER_SIZE, length, zeros, 0, zeros.length) < 0) {
+                        op = OpCode.HOLE;
+                    } else if (theirs != null && full && i < theirs.length
+                            && Arrays.equals(theirs[i], digestOf(blocks, i, deltaAlgorithm, deltaDigest, block, length))) {
+                        op = OpCode.KEEP;
+                    }
+
+                    if (runCount > 0 && (op != runOp || op == OpCode.KEEP && runCount == maxKeep)) {
+                        if (!sendRun(dest, runOp == OpCode.HOLE ? new HoleMessage(runStart, runCount) : new KeepMessage(runStart, runCount), input)) {
                             return;
                         }
-                    } catch (TftpException ex) {
-                        ERRORS.log(Level.SEVERE, ex.getMessage(), ex);
+                        if (runOp == OpCode.HOLE) {
+                            skipped += runCount;
+                        } else {
+                            kept += runCount;
+                        }
+                        runCount = 0;
+                    }
+
+                    if (op != null) {
+                        if (runCount++ == 0) {
+                            runOp = op;
+                            runStart = lastId;
+                        }
+                        if (compressor != null) {
+                            compressor.release(packet);
+                        }
+                        continue;
+                    }
+
+                    boolean sent = packet != null ? sendBlock(dest, lastId, packet.getPacket(), packet.getPacketLength(), input)
+                            : sendBlock(dest, lastId, data, length, input);
+                    if (compressor != null) {
+                        compressor.release(packet);
+                    }
+                    if (!sent) {
+                        return;
                     }
                 }
 
                 System.out.println("File has been sent to the receiver.");
+                if (compressor != null) {
+                    System.out.printf("%d of %d blocks were compressed with %s, %d bytes were sent for %d bytes of data.%n",
+                            compressor.getCompressed(), blocks.size(), compression, compressor.getSentBytes(), compressor.getRawBytes());
+                }
+                if (skipped > 0) {
+                    System.out.printf("%d %s of zeros %s sent as holes.%n", skipped, skipped == 1 ? "block" : "blocks", skipped == 1 ? "was" : "were");
+                }
+                if (theirs != null) {
+                    System.out.printf("%d %s kept from the receiver's copy.%n", kept, kept == 1 ? "block was" : "blocks were");
+                }
+
+                if (leaves != null) {
+                    MerkleTree tree = MerkleTree.fromLeaves(digestAlgorithm, leaves);
+                    sendTrailer(dest, lastId, MessageOptionCode.MERKLE_ROOT, tree.getRoot(), tree, reader, blocks, data);
+                } else if (digest != null) {
+                    MessageOptionCode option = digestAlgorithm == DigestAlgorithm.MD5 ? MessageOptionCode.FILE_MD5 : MessageOptionCode.FILE_HASH;
+                    sendTrailer(dest, lastId, option, digest.finish(), null, reader, blocks, data);
+                }
                 System.out.println("Exiting...");
             } catch (TftpException | IOException ex) {
                 ERRORS.log(Level.SEVERE, null, ex);
@@ -109,10 +247,12 @@ public class ClientThread  extends Thread {
     protected FileInfo generateFileInfo() {
         FileInfo answer = new FileInfo();
         
+        answer.setDigestAlgorithm(digestAlgorithm);
+        answer.setManifestCache(manifestCache);
         answer.setFilename(filename);
 
         System.out.printf("Number of bytes: %d%n", answer.getSize());
-        System.out.printf("File MD5 Hash: %s%n", answer.getMd5());
+        System.out.printf("File %s Hash: %s%n", digestAlgorithm, answer.getMd5());
         System.out.println("Calculating block size and number of blocks...");
 
         long chunkSize = answer.getBlockSize();
@@ -133,24 +273,13 @@ public class ClientThread  extends Thread {
             numberOfChunks++;
         }
 
-        System.out.println("Validating blocks...");
-        int count = 0;
-        for (BlockInfo md5Chunk : blocks) {
-            //System.out.println(String.format("Block %d MD5 Hash: %s", md5Chunk.getId(), md5Chunk.getMd5()));
-            try {
-                if (md5Chunk.read(false) != null) {
-                    //System.out.println(String.format("Block %d successfully read from the file", md5Chunk.getId()));
-                    count++;
-                } else {
-                    System.out.printf("Block %d not read from the file%n", md5Chunk.getId());
-                }
-            } catch (TftpException ex) {
-                System.out.printf("Block %d not read from the file%n", md5Chunk.getId());
-               //ERRORS.log(Level.SEVERE, null, ex);
-            }
-        }
+        // The blocks were just hashed from the file, or come from a manifest whose size, mtime and
+        // CRC32C all checked out, so reading them back again would only hash every block twice.
+        // A file that could not be read to its end has a table without the short last block.
+        BlockTable table = answer.getBlockTable();
+        boolean hashed = answer.getMd5() != null && table != null && table.isHashed() && lastChunkSize < chunkSize;
 
-        if (count != blocks.size()) {
+        if (!hashed) {
             System.out.println("Unable to validate the blocks in the source file.");
             halt();
             answer = null;
@@ -161,19 +290,382 @@ public class ClientThread  extends Thread {
         return answer;
     }
 
+    /**
+     * Gathers the size and the blocks of the file without reading it, for streaming.
+     *
+     * @return the file information, without hashes
+     */
+    protected FileInfo describeFile() {
+        FileInfo answer = new FileInfo();
+
+        answer.setDigestAlgorithm(digestAlgorithm);
+        answer.setFilename(filename, false);
+
+        System.out.printf("Number of bytes: %d%n", answer.getSize());
+        System.out.printf("%d %s of up to %d %s, the %s Hash is calculated while sending%n",
+                answer.getNumBlocks(), answer.getNumBlocks() == 1 ? "block" : "blocks",
+                answer.getBlockSize(), answer.getBlockSize() == 1 ? "byte" : "bytes", digestAlgorithm);
+
+        return answer;
+    }
+
+    private static int readBlock(BlockReader reader, BlockTable blocks, int index, byte[] data) throws IOException {
+        int length = (int) blocks.getLength(index);
+        Message.writeOpCodeAndId(index + 1, (short) OpCode.DATA.getValue(), 0, data);
+        reader.read(blocks.getOffset(index), ByteBuffer.wrap(data, DataMessage.HEADER_SIZE, length));
+        return DataMessage.HEADER_SIZE + length;
+    }
+
+    /**
+     * Sends the DATA packet of a block and waits for it to be acknowledged, sending it again
+     * when the acknowledgement does not arrive or is for another block.
+     *
+     * @param dest the address of the receiver
+     * @param id the id of the block
+     * @param data the packet, with room for the checksum after it
+     * @param length the length of the packet, without the checksum
+     * @param input the buffer that the acknowledgement is received into
+     * @return false if the receiver rejected the block or never acknowledged it
+     * @throws IOException if the packet could not be sent
+     */
+    private boolean sendBlock(SocketAddress dest, int id, byte[] data, int length, byte[] input) throws IOException {
+        if (checksum) {
+            length = DataMessage.writeChecksum(data, 0, length);
+        }
+        System.out.printf("Sending Block: %s... ", id);
+
+        return exchange(new DatagramPacket(data, length, dest), id, input);
+    }
+
+    /**
+     * Sends a HOLE for a run of blocks that are all zeros, or a KEEP for a run of blocks that
+     * the receiver already has, and waits for the last block of the run to be acknowledged,
+     * sending it again when the acknowledgement does not arrive.
+     *
+     * @param dest the address of the receiver
+     * @param run the HOLE or KEEP that describes the run
+     * @param input the buffer that the acknowledgement is received into
+     * @return false if the receiver rejected the run or never acknowledged it
+     * @throws IOException if the packet could not be sent
+     */
+    private boolean sendRun(SocketAddress dest, RunMessage run, byte[] input) throws IOException {
+        run.setChecksum(checksum);
+        byte[] payload = run.getPayload();
+        int first = run.getId();
+        int last = (int) (first + run.getCount() - 1);
+        System.out.printf(run.getOpCode() == OpCode.HOLE ? "Sending Blocks: %s-%s as a hole... " : "Keeping Blocks: %s-%s of the receiver's copy... ", first, last);
+
+        return exchange(new DatagramPacket(payload, payload.length, dest), last, input);
+    }
+
+    /**
+     * Asks the receiver for the hashes of the blocks of the copy of the file that it already
+     * has. While the receiver is still hashing its copy, it answers without them and is asked
+     * again a little later.
+     *
+     * @param dest the address of the receiver
+     * @return the hashes of the blocks of the copy, none if the receiver stopped answering, or
+     * null if the receiver aborted the transfer
+     * @throws TftpException if a request could not be built or an answer could not be read
+     * @throws IOException if a request could not be sent
+     */
+    private byte[][] fetchDigests(SocketAddress dest) throws TftpException, IOException {
+        System.out.println("Fetching the hashes of the receiver's copy of the file...");
+        List<byte[]> answer = new ArrayList<>();
+        byte[] input = new byte[MAX_PACKET_SIZE];
+        int retries = Integer.parseInt(Tftp.DEFAULT_RETRY_COUNT);
+        int attempt = 0;
+        long count = -1;
+        boolean send = true;
+
+        while (count < 0 || answer.size() < count) {
+            String first = "" + (answer.size() + 1);
+
+            if (send) {
+                AckMessage request = new AckMessage(OpCode.OACK, 0);
+                request.addOption(new TftpOption(MessageOptionCode.DIGESTS, first));
+                byte[] payload = request.getPayload();
+                socket.send(new DatagramPacket(payload, payload.length, dest));
+            }
+
+            DatagramPacket receive = new DatagramPacket(input, input.length);
+            try {
+                socket.receive(receive);
+            } catch (SocketTimeoutException ex) {
+                if (++attempt > retries) {
+                    // The file can still be sent in full
+                    System.out.println("The receiver did not send the hashes of its copy, every block will be sent.");
+                    return new byte[0][];
+                }
+                send = true;
+                continue;
+            }
+
+            Message msg = MessageFactory.getMessage(receive.getData(), receive.getOffset(), receive.getLength());
+
+            if (msg instanceof ErrorMessage error) {
+                System.out.printf("The receiver aborted the transfer: [%s] - [%s]%n", error.getErrorCode(), error.getMsg().getValue());
+                return null;
+            }
+
+            // An answer to an earlier request is ignored
+            send = msg instanceof AckMessage reply && reply.getOpCode() == OpCode.OACK && Objects.equals(valueOf(reply, MessageOptionCode.DIGESTS), first);
+            if (!send) {
+                continue;
+            }
+            attempt = 0;
+
+            AckMessage reply = (AckMessage) msg;
+            String total = valueOf(reply, MessageOptionCode.DELTA);
+            if (total == null) {
+                try {
+                    Thread.sleep(DIGESTS_POLL_INTERVAL);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return new byte[0][];
+                }
+                continue;
+            }
+
+            String hashes = valueOf(reply, MessageOptionCode.MERKLE_HASHES);
+            try {
+                count = Long.parseLong(total);
+                if (hashes == null) {
+                    break;
+                }
+                for (String hash : hashes.split(",")) {
+                    answer.add(Digest.fromHex(hash));
+                }
+            } catch (NumberFormatException ex) {
+                ERRORS.log(Level.WARNING, "Malformed answer from the receiver", ex);
+                return new byte[0][];
+            }
+        }
+
+        System.out.printf("The receiver has a copy of %d %s.%n", answer.size(), answer.size() == 1 ? "block" : "blocks");
+        return answer.toArray(new byte[0][]);
+    }
+
+    private static byte[] digestOf(BlockTable blocks, int index, DigestAlgorithm algorithm, Digest digest, byte[] block, int length) {
+        // Blocks that were hashed up front in the same algorithm are not hashed again
+        if (blocks.isHashed() && blocks.getAlgorithm() == algorithm) {
+            return blocks.getDigest(index);
+        }
+        digest.update(block, DataMessage.HEADER_SIZE, length - DataMessage.HEADER_SIZE);
+        return digest.digest();
+    }
+
+    private boolean exchange(DatagramPacket output, int id, byte[] input) throws IOException {
+        DatagramPacket receive = new DatagramPacket(input, input.length);
+        int retries = Integer.parseInt(Tftp.DEFAULT_RETRY_COUNT);
+
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            socket.send(output);
+            System.out.printf("Block: %s has been sent.%n", id);
+            receive.setLength(input.length);
+
+            try {
+                socket.receive(receive);
+            } catch (SocketTimeoutException ex) {
+                continue;
+            }
+
+            try {
+                Message msg = MessageFactory.getMessage(receive.getData(), receive.getOffset(), receive.getLength());
+                System.out.printf("Received an %s message... ", msg.getOpCode());
+
+                if (msg.getOpCode() == OpCode.ACK) {
+                    AckMessage response = (AckMessage)msg;
+                    System.out.printf("Message details: [%s] - [%d]%n", response.getOpCode(), response.getId());
+                    // The ACK of an earlier block means that this one was lost or damaged
+                    if (response.getId() == id) {
+                        return true;
+                    }
+                } else if (msg.getOpCode() == OpCode.ERROR) {
+                    ErrorMessage response = (ErrorMessage)msg;
+                    System.out.printf("Message details: [%s] - [%s] - [%s]%n", response.getOpCode(), response.getErrorCode(), response.getMsg().getValue());
+                    System.out.println("Exiting...");
+                    return false;
+                }
+            } catch (TftpException ex) {
+                ERRORS.log(Level.SEVERE, ex.getMessage(), ex);
+            }
+        }
+
+        System.out.printf("Block %d was not acknowledged by the receiver. Exiting...%n", id);
+        return false;
+    }
+
+    /**
+     * Sends the trailer with the hash of the file, if the receiver accepted it, and waits for
+     * it to be acknowledged. When the trailer carries the root of a Merkle tree, the receiver
+     * may first ask for the hashes of nodes of the tree and for blocks to be sent again.
+     *
+     * @param dest the address of the receiver
+     * @param lastId the id of the last block that was sent
+     * @param option the option that carries the hash
+     * @param hash the hash of the file or the root of its Merkle tree
+     * @param tree the Merkle tree of the file or null if the trailer carries the hash of the file
+     * @param reader the reader of the file, for the blocks that are sent again
+     * @param blocks the blocks of the file
+     * @param data the buffer that the packets of the blocks that are sent again are assembled in
+     * @throws TftpException if the trailer could not be built or the response could not be read
+     * @throws IOException if the trailer could not be sent
+     */
+    private void sendTrailer(SocketAddress dest, int lastId, MessageOptionCode option, String hash, MerkleTree tree,
+                             BlockReader reader, BlockTable blocks, byte[] data) throws TftpException, IOException {
+        System.out.printf(tree != null ? "File %s Merkle root: %s%n" : "File %s Hash: %s%n", digestAlgorithm, hash);
+
+        boolean accepted = isNegotiated(MessageOptionCode.TRAILER);
+
+        if (!accepted) {
+            System.out.println("The receiver does not accept a trailer, the file cannot be validated.");
+            return;
+        }
+
+        AckMessage trailer = new AckMessage(OpCode.OACK, lastId);
+        trailer.addOption(new TftpOption(option, hash));
+        byte[] payload = trailer.getPayload();
+        byte[] input = new byte[MAX_PACKET_SIZE];
+        int retries = Integer.parseInt(Tftp.DEFAULT_RETRY_COUNT);
+        boolean send = true;
+
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (send) {
+                socket.send(new DatagramPacket(payload, payload.length, dest));
+            }
+
+            DatagramPacket receive = new DatagramPacket(input, input.length);
+            try {
+                socket.receive(receive);
+            } catch (SocketTimeoutException ex) {
+                send = true;
+                continue;
+            }
+
+            Message msg = MessageFactory.getMessage(receive.getData(), receive.getOffset(), receive.getLength());
+            send = false;
+
+            if (msg instanceof AckMessage ack && ack.getOpCode() == OpCode.ACK && ack.getId() == lastId) {
+                System.out.println("The receiver validated the file.");
+                return;
+            } else if (msg instanceof ErrorMessage error) {
+                System.out.printf("The receiver rejected the file: [%s] - [%s]%n", error.getErrorCode(), error.getMsg().getValue());
+                return;
+            } else if (tree != null && msg instanceof AckMessage request && request.getOpCode() == OpCode.OACK) {
+                if (!answer(dest, request, tree, reader, blocks, data)) {
+                    return;
+                }
+                attempt = -1;
+            }
+        }
+
+        System.out.println("The trailer was not acknowledged by the receiver.");
+    }
+
+    /**
+     * Answers a request of the receiver for the hashes of nodes of the Merkle tree of the file
+     * or for blocks to be sent again.
+     *
+     * @return false if a block that was sent again was not acknowledged
+     */
+    private boolean answer(SocketAddress dest, AckMessage request, MerkleTree tree, BlockReader reader,
+                           BlockTable blocks, byte[] data) throws TftpException, IOException {
+        String level = valueOf(request, MessageOptionCode.MERKLE_LEVEL);
+        String nodes = valueOf(request, MessageOptionCode.MERKLE_NODES);
+        String resend = valueOf(request, MessageOptionCode.RESEND);
+
+        try {
+            if (level != null && nodes != null) {
+                int depth = Integer.parseInt(level);
+                StringJoiner hashes = new StringJoiner(",");
+
+                for (String node : nodes.split(",")) {
+                    int index = Integer.parseInt(node);
+                    boolean exists = depth >= 0 && depth <= tree.getHeight() && index >= 0 && index < tree.getWidth(depth);
+                    hashes.add(exists ? tree.getNode(depth, index) : "0");
+                }
+
+                AckMessage reply = new AckMessage(OpCode.OACK, request.getId());
+                reply.addOption(new TftpOption(MessageOptionCode.MERKLE_LEVEL, level));
+                reply.addOption(new TftpOption(MessageOptionCode.MERKLE_NODES, nodes));
+                reply.addOption(new TftpOption(MessageOptionCode.MERKLE_HASHES, hashes.toString()));
+                byte[] payload = reply.getPayload();
+                socket.send(new DatagramPacket(payload, payload.length, dest));
+            } else if (resend != null) {
+                System.out.printf("The receiver asked for block(s) %s again.%n", resend);
+                byte[] input = new byte[data.length * 2];
+
+                for (String id : resend.split(",")) {
+                    int index = Integer.parseInt(id) - 1;
+                    if (index >= 0 && index < blocks.size()) {
+                        boolean sent;
+                        if (compressor != null) {
+                            BlockCompressor.Packet packet = compressor.pack(index);
+                            sent = sendBlock(dest, index + 1, packet.getPacket(), packet.getPacketLength(), input);
+                            compressor.release(packet);
+                        } else {
+                            sent = sendBlock(dest, index + 1, data, readBlock(reader, blocks, index, data), input);
+                        }
+                        if (!sent) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException ex) {
+            ERRORS.log(Level.WARNING, "Malformed request from the receiver", ex);
+        }
+
+        return true;
+    }
+
+    private static String valueOf(AckMessage message, MessageOptionCode code) throws TftpException {
+        for (MessageOption option : message.getOptions()) {
+            if (Objects.equals(option.getName().getValue(), code.getValue())) {
+                return option.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private boolean isNegotiated(MessageOptionCode code) {
+        return negotiated.stream().anyMatch(option -> Objects.equals(option.getName().getValue(), code.getValue()));
+    }
+
     private SocketAddress negotiateSendTransfer(FileInfo fi) {
         SocketAddress answer = null;
         
         try {
             System.out.printf("Negotiating transfer settings with destination %s [%s]...%n", server.getHostName(), server.getHostAddress());
             TftpSendRequest request = new TftpSendRequest(socket, new InetSocketAddress(server, destPort), fi, TransferMode.OCTET);
-            request.addDefaultOptions();
+            request.addDefaultOptions(settings);
             boolean connected = request.connect();
 
             if (!connected) {
                 System.out.printf("Unable to negotiate transfer settings with destination %s [%s]. Exiting...%n", server.getHostName(), server.getHostAddress());
             } else {
                 answer = request.getOutgoing();
+                negotiated.clear();
+                negotiated.addAll(request.getOptions());
+                checksum = isNegotiated(MessageOptionCode.CHECKSUM);
+                holes = isNegotiated(MessageOptionCode.HOLES);
+
+                if (compression != null && !isNegotiated(MessageOptionCode.COMPRESSION)) {
+                    System.out.printf("The receiver does not support %s compression, the blocks will be sent as they are.%n", compression);
+                }
+
+                if (delta && !isNegotiated(MessageOptionCode.DELTA)) {
+                    System.out.println("The receiver has no copy of the file or does not support delta uploads, every block will be sent.");
+                }
+
+                if (merkle && !isNegotiated(MessageOptionCode.TRAILER)) {
+                    System.out.println("The receiver does not support Merkle validation, the file will not be validated.");
+                }
+
+                if (digestAlgorithm != DigestAlgorithm.MD5 && !isNegotiated(MessageOptionCode.DIGEST_ALGORITHM)) {
+                    System.out.printf("The receiver does not support the %s Hash, the file will not be validated.%n", digestAlgorithm);
+                }
             }
 
         } catch (TftpException ex) {
@@ -3,6 +3,11 @@
  */
 package com.capital7software.network.tftp.client;
 
+import com.capital7software.network.tftp.Durability;
+import com.capital7software.network.tftp.TransferSettings;
+import com.capital7software.network.util.Compression;
+import com.capital7software.network.util.DigestAlgorithm;
+import com.capital7software.network.util.ManifestCache;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.InetAddress;
@@ -10,6 +15,8 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,26 +29,76 @@ public class FileClient {
     private final static int PORT = 69;
     private static final String DEFAULT_HOST = "localhost";
     private static final String MSG_FMT = "Host: %s [%s]%n";
+    private static final String DIGEST_ARG = "--digest=";
+    private static final String MANIFESTS_ARG = "--manifests=";
+    private static final String NO_MANIFESTS_ARG = "--no-manifests";
+    private static final String MERKLE_ARG = "--merkle";
+    private static final String COMPRESS_ARG = "--compress";
+    private static final String DELTA_ARG = "--delta";
+    private static final String DURABILITY_ARG = "--durability=";
 
     /**
      * @param args the command line arguments
      */
     public static void main(String @NotNull [] args) {
-        if (args.length == 0 || args[0] == null || args[0].trim().isEmpty() || !Files.exists(Paths.get(args[0]))) {
+        TransferSettings settings = new TransferSettings();
+        settings.setManifestCache(new ManifestCache(ManifestCache.DEFAULT_DIRECTORY, ManifestCache.DEFAULT_MAX_ENTRIES));
+        List<String> positional = new ArrayList<>();
+
+        for (String arg : args) {
+            if ("--stream".equals(arg)) {
+                settings.setStream(true);
+            } else if (arg.startsWith(DIGEST_ARG)) {
+                DigestAlgorithm digestAlgorithm = DigestAlgorithm.fromValue(arg.substring(DIGEST_ARG.length()));
+                if (digestAlgorithm == null) {
+                    printUsage();
+                    return;
+                }
+                settings.setDigestAlgorithm(digestAlgorithm);
+            } else if (arg.startsWith(MANIFESTS_ARG)) {
+                settings.setManifestCache(new ManifestCache(Paths.get(arg.substring(MANIFESTS_ARG.length())), ManifestCache.DEFAULT_MAX_ENTRIES));
+            } else if (NO_MANIFESTS_ARG.equals(arg)) {
+                settings.setManifestCache(null);
+            } else if (MERKLE_ARG.equals(arg)) {
+                settings.setMerkle(true);
+            } else if (DELTA_ARG.equals(arg)) {
+                settings.setDelta(true);
+            } else if (arg.startsWith(DURABILITY_ARG)) {
+                Durability durability = Durability.fromValue(arg.substring(DURABILITY_ARG.length()));
+                if (durability == null) {
+                    printUsage();
+                    return;
+                }
+                settings.setDurability(durability);
+            } else if (COMPRESS_ARG.equals(arg)) {
+                settings.setCompression(Compression.DEFLATE);
+            } else if (arg.startsWith(COMPRESS_ARG + "=")) {
+                Compression compression = Compression.fromValue(arg.substring(COMPRESS_ARG.length() + 1));
+                if (compression == null) {
+                    printUsage();
+                    return;
+                }
+                settings.setCompression(compression);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.isEmpty() || positional.get(0) == null || positional.get(0).trim().isEmpty() || !Files.exists(Paths.get(positional.get(0)))) {
             printUsage();
         } else {
             try {
                 String hostname = DEFAULT_HOST;
                 
-                if (args.length == 2) {
-                    hostname = args[1];
+                if (positional.size() == 2) {
+                    hostname = positional.get(1);
                 }
                 
                 InetAddress ia = InetAddress.getByName(hostname);
                 
                 System.out.printf((MSG_FMT) + "%n", hostname, ia.getHostAddress());
                 
-                Thread sender = new ClientThread(ia, PORT, args[0]);
+                Thread sender = new ClientThread(ia, PORT, positional.get(0), settings);
                 sender.start();
             } catch (UnknownHostException | SocketException ex) {
                 ERRORS.log(Level.SEVERE, ex.getMessage(), ex);
@@ -51,5 +108,7 @@ public class FileClient {
 
     private static void printUsage() {
         System.out.println("A filename to a file that exists on this system is required.");
+        System.out.println("Usage: FileClient [--stream] [--merkle] [--compress[=deflate|lz4]] [--delta] [--durability=none|eof|ack|blocks:<n>|bytes:<n>] [--digest=md5|sha256|crc32c|xxh64] [--manifests=<dir> | --no-manifests] <filename> [host]");
+        System.out.printf("Manifests of hashed files are kept in %s unless another directory is given.%n", ManifestCache.DEFAULT_DIRECTORY);
     }
 }
@@ -206,7 +206,7 @@ public class AckMessage implements Message, OptionableMessage, IdableMessage {
 
     @Override
     public String toString() {
-        return "AckMessage{" + "opCode = " + opCode + ", id = " + id + ", options = " + options + '}';
+        return "AckMessage{" + "opCode = " + opCode + ", id = " + Integer.toUnsignedString(id) + ", options = " + options + '}';
     }
 
     @Override
@@ -3,22 +3,41 @@
  */
 package com.capital7software.network.tftp.messages;
 
+import com.capital7software.network.exception.CorruptMessageException;
 import com.capital7software.network.exception.TftpException;
 import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.util.BlockInfo;
+import com.capital7software.network.util.Compression;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
 
 /**
- *
+ * A DATA message. When the checksum option has been negotiated, the packet ends with the CRC32C
+ * of the header and the block, so that a block that was damaged on the way is noticed as soon
+ * as it arrives instead of when the hash of the whole file is compared.
+ * <p>
+ * When compression has been negotiated, the block is preceded by a flag that tells whether it
+ * is sent as it is or which {@link Compression} it was compressed with. The block is
+ * decompressed as the packet is parsed, so {@link #getBlock()} always returns the block as it
+ * is in the file.
  */
 public class DataMessage implements Message, IdableMessage {
     public static final int HEADER_SIZE = 6;
+    public static final int CHECKSUM_SIZE = 4;
+    public static final int FLAG_SIZE = 1;
+    public static final String CHECKSUM_ALGORITHM = "crc32c";
     protected static final int DEFAULT_ID = 1;
     protected static final OpCode DEFAULT_OP_CODE = OpCode.DATA;
+    private static final ThreadLocal<byte[]> BLOCKS = ThreadLocal.withInitial(() -> new byte[BlockInfo.MAX_BLOCK_SIZE]);
     
     protected OpCode opCode;
     protected int id;
     protected byte[] block;
+    protected boolean checksum;
+    protected boolean compressed;
 
     public DataMessage() {
         this(DEFAULT_ID);
@@ -39,10 +58,18 @@ public class DataMessage implements Message, IdableMessage {
     public int getPayloadSize() {
         int size = HEADER_SIZE;
         
+        if (compressed) {
+            size += FLAG_SIZE;
+        }
+        
         if (block != null) {
             size += block.length;
         }
         
+        if (checksum) {
+            size += CHECKSUM_SIZE;
+        }
+        
         return size;
     }
 
@@ -50,11 +77,20 @@ public class DataMessage implements Message, IdableMessage {
     public byte[] getPayload() {
         var buffer = new byte[getPayloadSize()];
         Message.writeOpCodeAndId(id, (short) opCode.getValue(), 0, buffer);
+        int offset = HEADER_SIZE;
 
+        // The block is always written as it is, a compressed block is assembled by the sender
+        if (compressed) {
+            buffer[offset++] = Compression.RAW;
+        }
 
         // Write out any data
         if (block != null) {
-            System.arraycopy(block, 0, buffer, HEADER_SIZE, block.length);
+            System.arraycopy(block, 0, buffer, offset, block.length);
+        }
+        
+        if (checksum) {
+            writeChecksum(buffer, 0, buffer.length - CHECKSUM_SIZE);
         }
         
         return buffer;
@@ -81,18 +117,122 @@ public class DataMessage implements Message, IdableMessage {
             throw new TftpException("The specified buffer is not for a DATA message.");
         }
         
-        int end = offset + length - 1;
+        if (checksum) {
+            if (length < HEADER_SIZE + CHECKSUM_SIZE || !verifyChecksum(bytes, offset, length - CHECKSUM_SIZE)) {
+                throw new CorruptMessageException("The checksum of the DATA message does not match.");
+            }
+            length -= CHECKSUM_SIZE;
+        }
+        
         opCode = bytes[offset + 1] == OpCode.DATA.getValue() ? OpCode.DATA : OpCode.UNKNOWN;
         id = Message.getIdFromPayload(bytes, offset);
 
-        offset += HEADER_SIZE;
-        
+        if (compressed) {
+            if (length < HEADER_SIZE + FLAG_SIZE) {
+                throw new TftpException("The DATA message has no compression flag.");
+            }
+            int flag = bytes[offset + HEADER_SIZE];
+            if (flag != Compression.RAW) {
+                block = decompress(flag, bytes, offset + HEADER_SIZE + FLAG_SIZE, length - HEADER_SIZE - FLAG_SIZE);
+                return;
+            }
+            offset += FLAG_SIZE;
+            length -= FLAG_SIZE;
+        }
+
         // Load the data
-        if (offset < end) {
+        if (length > HEADER_SIZE) {
             block = new byte[length - HEADER_SIZE];
             
-            System.arraycopy(bytes, offset, block, 0, block.length);
+            System.arraycopy(bytes, offset + HEADER_SIZE, block, 0, block.length);
+        }
+    }
+
+    private static byte[] decompress(int flag, byte[] bytes, int offset, int length) throws TftpException {
+        Compression compression = Compression.fromFlag(flag);
+
+        if (compression == null) {
+            throw new TftpException("The block of the DATA message was compressed with an unknown codec: " + flag);
         }
+
+        byte[] buffer = BLOCKS.get();
+        try {
+            return Arrays.copyOf(buffer, compression.decompress(bytes, offset, length, buffer, 0, buffer.length));
+        } catch (DataFormatException ex) {
+            // Without a checksum, a damaged block is only noticed here, and is sent again just the same
+            throw new CorruptMessageException("The block of the DATA message could not be decompressed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the checksum of the specified packet right after it.
+     *
+     * @param bytes the buffer that holds the packet, with room for the checksum after it
+     * @param offset the index of the first byte of the packet
+     * @param length the length of the packet, without the checksum
+     * @return the length of the packet with the checksum
+     */
+    public static int writeChecksum(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        ByteBuffer.wrap(bytes, offset + length, CHECKSUM_SIZE).putInt((int) crc.getValue());
+        return length + CHECKSUM_SIZE;
+    }
+
+    /**
+     * Writes the checksum of the bytes of the specified buffer, from the start of the buffer up
+     * to its position, at its position.
+     *
+     * @param packet the buffer that holds the packet, with room for the checksum after it
+     */
+    public static void writeChecksum(ByteBuffer packet) {
+        CRC32C crc = new CRC32C();
+        crc.update(packet.duplicate().flip());
+        packet.putInt((int) crc.getValue());
+    }
+
+    static boolean verifyChecksum(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return ByteBuffer.wrap(bytes, offset + length, CHECKSUM_SIZE).getInt() == (int) crc.getValue();
+    }
+
+    /**
+     * Returns true if the packet of this message ends with a checksum
+     *
+     * @return true if the packet of this message ends with a checksum
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Set whether the packet of this message ends with a checksum. It must be set before the
+     * payload is parsed, as the checksum is verified and removed by {@link #fromPayload(byte[], int, int)}.
+     *
+     * @param checksum true if the packet of this message ends with a checksum
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns true if the block of this message is preceded by a compression flag
+     *
+     * @return true if the block of this message is preceded by a compression flag
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Set whether the block of this message is preceded by a compression flag. It must be set
+     * before the payload is parsed, as the block is decompressed by {@link #fromPayload(byte[], int, int)}.
+     *
+     * @param compressed true if the block of this message is preceded by a compression flag
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
     }
 
     public byte[] getBlock() {
@@ -137,7 +277,7 @@ public class DataMessage implements Message, IdableMessage {
 
     @Override
     public String toString() {
-        return "DataMessage{" + "opCode = " + opCode + ", id = " + id + ", block = " + Arrays.toString(block) + '}';
+        return "DataMessage{" + "opCode = " + opCode + ", id = " + Integer.toUnsignedString(id) + ", block = " + Arrays.toString(block) + '}';
     }
 
     @Override
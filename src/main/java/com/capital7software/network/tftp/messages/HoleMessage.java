@@ -0,0 +1,23 @@
+/*
+ * File: HoleMessage.java
+ */
+package com.capital7software.network.tftp.messages;
+
+import com.capital7software.network.tftp.OpCode;
+
+/**
+ * A HOLE message stands in for a run of full blocks that are all zeros, once the holes option
+ * has been negotiated. The receiver does not write the run, so the file it writes stays sparse.
+ *
+ * @author Vincent Palodichuk
+ */
+public class HoleMessage extends RunMessage {
+
+    public HoleMessage() {
+        this(DataMessage.DEFAULT_ID, 1);
+    }
+
+    public HoleMessage(int id, int count) {
+        super(OpCode.HOLE, id, count);
+    }
+}
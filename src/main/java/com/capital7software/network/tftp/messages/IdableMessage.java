@@ -4,10 +4,48 @@
 package com.capital7software.network.tftp.messages;
 
 /**
+ * A message that carries the id of a block.
+ * <p>
+ * Blocks are numbered with 64 bits, but only the low 32 bits of the number are sent as the id,
+ * which is unsigned. Once a transfer has more than 2^32 blocks the id rolls over to 0, and the
+ * number of the block is recovered from the number of the block that the receiver expects, as
+ * a peer is never more than 2^31 blocks ahead or behind.
  *
  * @author Vincent Palodichuk
  */
 public interface IdableMessage {
     int getId();
     void setId(int id);
+
+    /**
+     * Get the number of the block of this message.
+     *
+     * @param expected the number of a block that is close to it, such as the block expected next
+     * @return the number of the block that is closest to the expected block and has this id
+     */
+    default long getBlockNumber(long expected) {
+        return toBlock(getId(), expected);
+    }
+
+    /**
+     * Get the id that is sent for the specified block.
+     *
+     * @param block the number of the block
+     * @return the low 32 bits of the number
+     */
+    static int toId(long block) {
+        return (int) block;
+    }
+
+    /**
+     * Get the number of the block with the specified id that is closest to the specified block.
+     *
+     * @param id the id that was received
+     * @param expected the number of a block that is close to it, such as the block expected next
+     * @return the number of the block
+     */
+    static long toBlock(int id, long expected) {
+        // The difference of the ids as a signed 32 bit value is the distance between the blocks
+        return expected + (id - toId(expected));
+    }
 }
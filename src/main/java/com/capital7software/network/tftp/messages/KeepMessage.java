@@ -0,0 +1,24 @@
+/*
+ * File: KeepMessage.java
+ */
+package com.capital7software.network.tftp.messages;
+
+import com.capital7software.network.tftp.OpCode;
+
+/**
+ * A KEEP message stands in for a run of full blocks that are the same as the blocks of the copy
+ * of the file that the receiver already has, once the delta option has been negotiated. The
+ * receiver copies the run from its copy into the new version of the file.
+ *
+ * @author Vincent Palodichuk
+ */
+public class KeepMessage extends RunMessage {
+
+    public KeepMessage() {
+        this(DataMessage.DEFAULT_ID, 1);
+    }
+
+    public KeepMessage(int id, int count) {
+        super(OpCode.KEEP, id, count);
+    }
+}
@@ -51,11 +51,7 @@ public interface Message {
 
     static int getIdFromPayload(byte @NotNull [] bytes, int startIndex) {
         var offset = startIndex + 2;
-        int sid = (((bytes[offset]) << 24) | (0x00FF0000 & ((bytes[offset + 1]) << 16)) | (0x0000FF00 & ((bytes[offset + 2]) << 8)) | (0x000000FF & (bytes[offset + 3])));
-        if (sid < 0) {
-            return 0x000000000000FFFF & sid;
-        } else {
-            return sid;
-        }
+        // The id is unsigned, so ids from 2^31 on are kept as they are rather than truncated
+        return (((bytes[offset]) << 24) | (0x00FF0000 & ((bytes[offset + 1]) << 16)) | (0x0000FF00 & ((bytes[offset + 2]) << 8)) | (0x000000FF & (bytes[offset + 3])));
     }
 }
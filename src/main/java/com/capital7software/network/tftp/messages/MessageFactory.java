@@ -27,6 +27,12 @@ public class MessageFactory {
             } else if (iCode == OpCode.DATA.getValue()) {
                 answer = new DataMessage();
                 answer.fromPayload(data, offset, length);
+            } else if (iCode == OpCode.HOLE.getValue()) {
+                answer = new HoleMessage();
+                answer.fromPayload(data, offset, length);
+            } else if (iCode == OpCode.KEEP.getValue()) {
+                answer = new KeepMessage();
+                answer.fromPayload(data, offset, length);
             } else if (iCode == OpCode.ERROR.getValue()) {
                 answer = new ErrorMessage();
                 answer.fromPayload(data, offset, length);
@@ -13,7 +13,23 @@ public enum MessageOptionCode {
     TIMEOUT("timeout"),
     BLOCK_COUNT("blkcnt"),
     FILE_MD5("tmd5"),
-    RETRY_COUNT("retry");
+    RETRY_COUNT("retry"),
+    ACK_POLICY("ackpolicy"),
+    TRAILER("trailer"),
+    DIGEST_ALGORITHM("talg"),
+    FILE_HASH("thash"),
+    CHECKSUM("checksum"),
+    MERKLE_ROOT("tmerkle"),
+    MERKLE_LEVEL("tlevel"),
+    MERKLE_NODES("tnodes"),
+    MERKLE_HASHES("thashes"),
+    RESEND("tresend"),
+    HOLES("tholes"),
+    COMPRESSION("tcompress"),
+    DELTA("tdelta"),
+    DIGESTS("tdigests"),
+    STORED("tstored"),
+    DURABILITY("tsync");
     
     private final String value;
     
@@ -0,0 +1,153 @@
+/*
+ * File: RunMessage.java
+ */
+package com.capital7software.network.tftp.messages;
+
+import com.capital7software.network.exception.CorruptMessageException;
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * A message that stands in for a run of full blocks that are not sent. It carries the id of the
+ * first block of the run and the number of blocks in it, as an unsigned 32 bit value, and is
+ * acknowledged with the ACK of the last block of the run. The op code tells the receiver where
+ * the blocks of the run come from, see {@link HoleMessage} and {@link KeepMessage}.
+ * <p>
+ * When the checksum option has been negotiated, the packet ends with a CRC32C just like a
+ * DATA packet does, as a damaged count would drop blocks from the file.
+ *
+ * @author Vincent Palodichuk
+ */
+public abstract class RunMessage implements Message, IdableMessage {
+    public static final int HEADER_SIZE = 10;
+
+    protected OpCode opCode;
+    protected int id;
+    protected int count;
+    protected boolean checksum;
+
+    protected RunMessage(OpCode opCode, int id, int count) {
+        this.opCode = opCode;
+        this.id = id;
+        this.count = count;
+    }
+
+    @Override
+    public OpCode getOpCode() {
+        return opCode;
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return checksum ? HEADER_SIZE + DataMessage.CHECKSUM_SIZE : HEADER_SIZE;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        var buffer = new byte[getPayloadSize()];
+        int offset = Message.writeOpCodeAndId(id, (short) opCode.getValue(), 0, buffer);
+        ByteBuffer.wrap(buffer, offset, Integer.BYTES).putInt(count);
+
+        if (checksum) {
+            DataMessage.writeChecksum(buffer, 0, HEADER_SIZE);
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public void fromPayload(byte[] bytes) throws TftpException {
+        fromPayload(bytes, 0, bytes != null ? bytes.length : 0);
+    }
+
+    @Override
+    public void fromPayload(byte[] bytes, int length) throws TftpException {
+        fromPayload(bytes, 0, length);
+    }
+
+    @Override
+    public void fromPayload(byte[] bytes, int offset, int length) throws TftpException {
+        if (bytes == null || length < HEADER_SIZE || bytes[offset] != 0 || bytes[offset + 1] != opCode.getValue()) {
+            throw new TftpException("The specified buffer is not for a " + opCode + " message.");
+        }
+
+        if (checksum && (length < HEADER_SIZE + DataMessage.CHECKSUM_SIZE || !DataMessage.verifyChecksum(bytes, offset, HEADER_SIZE))) {
+            throw new CorruptMessageException("The checksum of the " + opCode + " message does not match.");
+        }
+
+        id = Message.getIdFromPayload(bytes, offset);
+        count = ByteBuffer.wrap(bytes, offset + DataMessage.HEADER_SIZE, Integer.BYTES).getInt();
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the number of blocks in the run
+     *
+     * @return the number of blocks in the run, which is unsigned
+     */
+    public long getCount() {
+        return Integer.toUnsignedLong(count);
+    }
+
+    /**
+     * Set the number of blocks in the run
+     *
+     * @param count the number of blocks in the run, up to 2^32 - 1
+     */
+    public void setCount(long count) {
+        this.count = (int) count;
+    }
+
+    /**
+     * Returns true if the packet of this message ends with a checksum
+     *
+     * @return true if the packet of this message ends with a checksum
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Set whether the packet of this message ends with a checksum. It must be set before the
+     * payload is parsed, as the checksum is verified by {@link #fromPayload(byte[], int, int)}.
+     *
+     * @param checksum true if the packet of this message ends with a checksum
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(opCode, id, count);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        RunMessage other = (RunMessage) obj;
+        return this.id == other.id && this.count == other.count && this.opCode == other.opCode;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + "opCode = " + opCode + ", id = " + Integer.toUnsignedString(id) + ", count = " + getCount() + '}';
+    }
+}
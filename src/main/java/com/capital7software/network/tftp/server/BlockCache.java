@@ -0,0 +1,471 @@
+/*
+ * File: BlockCache.java
+ */
+package com.capital7software.network.tftp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of file pages held in direct (off-heap) memory, shared by every download of a
+ * server. Files are cached in pages of {@link #PAGE_SIZE} bytes, so a page is read from disk once
+ * no matter which block size each client negotiated. Pages are keyed by the identity of the file
+ * (its file key, size and modification time), so a file that changes is never served from stale
+ * pages, and by their index in the file.
+ * <p>
+ * The memory of the cache is allocated once, as a slab of its capacity (or a few slabs, as a
+ * single buffer is limited to 2 GB), and cut into page slots. A miss reads into a free slot and
+ * an evicted page gives its slot back, so a busy cache does not allocate direct memory on every
+ * miss and leave it to the garbage collector. A page is pinned while it is being copied out of,
+ * and its slot is only reused once it is no longer pinned. When every slot is pinned, the page
+ * is read into a buffer of its own and not cached.
+ * <p>
+ * Eviction is a segmented LRU: new pages enter a probation segment and are only promoted to the
+ * protected segment when they are read a second time, through another channel than the one that
+ * read them in, as a single download reads every page once for each of its blocks. A single large
+ * file that is read once therefore only churns the probation segment and cannot flush the pages
+ * of the files that every client keeps asking for. Concurrent misses on the same page wait for a single read.
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockCache {
+    public static final int PAGE_SIZE = 65536; // 64 KB
+    private static final int MAX_SLAB_SIZE = 1 << 30; // 1 GB, a multiple of the page size
+    private static final double PROTECTED_RATIO = 0.8;
+    public static final String STATS_MSG = "Block cache: %d hit(s), %d miss(es), %d disk read(s), %d eviction(s), %d of %d byte(s) used%n";
+
+    private final long capacity;
+    private final int protectedPageCount;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final LinkedHashMap<PageKey, Page> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<PageKey, Page> protectedPages = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<PageKey, FutureTask<Page>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initializes an empty cache and allocates its memory.
+     *
+     * @param capacity the maximum number of bytes held by the cache, which is rounded down to
+     * a whole number of pages
+     */
+    public BlockCache(long capacity) {
+        if (capacity < PAGE_SIZE) {
+            throw new IllegalArgumentException("capacity must be at least " + PAGE_SIZE + " bytes.");
+        }
+        if (capacity / PAGE_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity must be at most " + (long) Integer.MAX_VALUE * PAGE_SIZE + " bytes.");
+        }
+
+        int pageCount = (int) (capacity / PAGE_SIZE);
+        this.capacity = (long) pageCount * PAGE_SIZE;
+        this.protectedPageCount = (int) (pageCount * PROTECTED_RATIO);
+
+        for (long remaining = this.capacity; remaining > 0; remaining -= MAX_SLAB_SIZE) {
+            ByteBuffer slab = ByteBuffer.allocateDirect((int) Math.min(remaining, MAX_SLAB_SIZE));
+
+            for (int offset = 0; offset < slab.capacity(); offset += PAGE_SIZE) {
+                free.add(slab.slice(offset, PAGE_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Get the identity of the specified file as used by this cache.
+     *
+     * @param file the file
+     * @return the identity of the file
+     * @throws IOException if the attributes of the file could not be read
+     */
+    public static FileId identify(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object key = attributes.fileKey() != null ? attributes.fileKey() : file.toAbsolutePath().normalize();
+
+        return new FileId(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Copies the bytes of the specified file that start at the specified offset into the
+     * specified buffer, until the buffer is full or the end of the file is reached.
+     *
+     * @param file the identity of the file
+     * @param channel an open channel of the file, used to read the pages that are missing
+     * @param offset the offset in the file of the first byte to copy
+     * @param dst the buffer that receives the bytes
+     * @throws IOException if a missing page could not be read
+     */
+    public void read(FileId file, FileChannel channel, long offset, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining() && offset < file.size()) {
+            Page page = page(file, channel, offset / PAGE_SIZE);
+
+            try {
+                int start = (int) (offset % PAGE_SIZE);
+                int length = Math.min(dst.remaining(), page.buffer.limit() - start);
+
+                if (length <= 0) {
+                    break;
+                }
+
+                dst.put(page.buffer.duplicate().position(start).limit(start + length));
+                offset += length;
+            } finally {
+                release(page);
+            }
+        }
+    }
+
+    /**
+     * Reads the specified file into the protected segment of the cache, page by page, until
+     * either the whole file or as much of it as fits has been read.
+     *
+     * @param path the file to read
+     * @return the number of bytes that were read into the cache
+     * @throws IOException if the file could not be read
+     */
+    public long preload(Path path) throws IOException {
+        FileId file = identify(path);
+        long answer = 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long index = 0, count = 0; index * PAGE_SIZE < file.size() && count < protectedPageCount; index++, count++) {
+                PageKey key = new PageKey(file, index);
+                Page page = lookup(key, channel);
+
+                if (page == null) {
+                    page = load(channel, key, true);
+                }
+                boolean cached = page.cached;
+                int length = page.buffer.limit();
+                release(page);
+
+                if (!cached) {
+                    // Every slot is pinned by a download
+                    break;
+                }
+                answer += length;
+            }
+        }
+
+        return answer;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of pages that were read from disk
+     *
+     * @return the number of pages that were read from disk
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of bytes of the memory of the cache that hold a page
+     *
+     * @return the number of bytes of the memory of the cache that hold a page
+     */
+    public synchronized long getSize() {
+        return capacity - (long) free.size() * PAGE_SIZE;
+    }
+
+    /**
+     * Writes the counters of this cache to the console
+     */
+    public void printStats() {
+        System.out.printf(STATS_MSG, getHits(), getMisses(), getReads(), getEvictions(), getSize(), capacity);
+    }
+
+    /**
+     * Get the page with the specified index, pinned, reading it if it is not cached. The page
+     * must be passed to {@link #release(Page)} once it has been copied out of.
+     */
+    private Page page(FileId file, FileChannel channel, long index) throws IOException {
+        PageKey key = new PageKey(file, index);
+        boolean waited = false;
+
+        while (true) {
+            Page answer = lookup(key, channel);
+
+            if (answer != null) {
+                if (!waited) {
+                    hits.incrementAndGet();
+                }
+                return answer;
+            }
+
+            if (!waited) {
+                misses.incrementAndGet();
+            }
+
+            FutureTask<Page> task = new FutureTask<>(() -> load(channel, key, false));
+            FutureTask<Page> existing = loading.putIfAbsent(key, task);
+
+            try {
+                if (existing == null) {
+                    task.run();
+                    return task.get();
+                }
+
+                // The page that the other read cached may be evicted again before it is pinned here, in which case it is read again
+                existing.get();
+                waited = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a page to be read.", ex);
+            } catch (ExecutionException ex) {
+                throw ex.getCause() instanceof IOException io ? io : new IOException(ex.getCause());
+            } finally {
+                if (existing == null) {
+                    loading.remove(key, task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a page into a free slot and caches it, pinned.
+     */
+    private Page load(FileChannel channel, PageKey key, boolean protect) throws IOException {
+        long offset = key.index * PAGE_SIZE;
+        int length = (int) Math.min(PAGE_SIZE, key.file.size() - offset);
+        ByteBuffer slot = acquire();
+        ByteBuffer buffer = slot != null ? slot.clear().limit(length) : ByteBuffer.allocate(length);
+
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("The file was truncated while it was being read.");
+                }
+            }
+        } catch (IOException ex) {
+            if (slot != null) {
+                synchronized (this) {
+                    free.push(slot);
+                }
+            }
+            throw ex;
+        }
+        reads.incrementAndGet();
+
+        Page answer = new Page(key, buffer.flip(), slot != null, channel);
+        if (answer.cached) {
+            insert(answer, protect);
+        }
+        return answer;
+    }
+
+    /**
+     * Takes a free slot, evicting the coldest page that is not pinned if there is none.
+     *
+     * @return the slot or null if every slot holds a page that is pinned
+     */
+    private synchronized ByteBuffer acquire() {
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+
+        Page page = evict(probation);
+        if (page == null) {
+            page = evict(protectedPages);
+        }
+
+        return page != null ? page.buffer : null;
+    }
+
+    private Page evict(LinkedHashMap<PageKey, Page> segment) {
+        Iterator<Page> coldest = segment.values().iterator();
+
+        while (coldest.hasNext()) {
+            Page page = coldest.next();
+
+            if (page.pins == 0) {
+                coldest.remove();
+                evictions.incrementAndGet();
+                return page;
+            }
+        }
+
+        return null;
+    }
+
+    private synchronized Page lookup(PageKey key, FileChannel channel) {
+        Page answer = protectedPages.get(key);
+
+        if (answer == null) {
+            answer = probation.get(key);
+
+            if (answer != null && answer.reader != channel) {
+                // A second read promotes the page, demoting the coldest protected pages
+                probation.remove(key);
+                answer.reader = null;
+                protectedPages.put(key, answer);
+
+                Iterator<Map.Entry<PageKey, Page>> coldest = protectedPages.entrySet().iterator();
+                while (protectedPages.size() > protectedPageCount && coldest.hasNext()) {
+                    Map.Entry<PageKey, Page> entry = coldest.next();
+                    coldest.remove();
+                    probation.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (answer != null) {
+            answer.pins++;
+        }
+        return answer;
+    }
+
+    private synchronized void insert(Page page, boolean protect) {
+        if (protectedPages.containsKey(page.key) || probation.containsKey(page.key)) {
+            // The page was cached by another read, so the slot goes back once it is released
+            page.cached = false;
+            page.recycle = true;
+            return;
+        }
+
+        if (protect && protectedPageCount > 0) {
+            protectedPages.put(page.key, page);
+
+            Iterator<Map.Entry<PageKey, Page>> coldest = protectedPages.entrySet().iterator();
+            while (protectedPages.size() > protectedPageCount && coldest.hasNext()) {
+                Map.Entry<PageKey, Page> entry = coldest.next();
+                coldest.remove();
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        } else {
+            probation.put(page.key, page);
+        }
+    }
+
+    private synchronized void release(Page page) {
+        if (page.pins > 0) {
+            page.pins--;
+        }
+        if (page.pins == 0 && page.recycle) {
+            page.recycle = false;
+            free.push(page.buffer);
+        }
+    }
+
+    /**
+     * A page of a file and the slot that holds it
+     */
+    private static final class Page {
+        private final PageKey key;
+        private final ByteBuffer buffer;
+        private boolean cached;
+        private boolean recycle;
+        private int pins = 1;
+        private FileChannel reader;
+
+        /**
+         * @param key the file and the index of the page
+         * @param buffer the bytes of the page
+         * @param cached true if the buffer is a slot of the cache
+         * @param reader the channel that the page was read through, until it is promoted
+         */
+        private Page(PageKey key, ByteBuffer buffer, boolean cached, FileChannel reader) {
+            this.key = key;
+            this.buffer = buffer;
+            this.cached = cached;
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * The identity of a cached file
+     */
+    public static final class FileId {
+        private final Object key;
+        private final long size;
+        private final long modified;
+
+        FileId(Object key, long size, long modified) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FileId other)) {
+                return false;
+            }
+            return size == other.size && modified == other.modified && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, size, modified);
+        }
+
+        @Override
+        public String toString() {
+            return "FileId{" + "key = " + key + ", size = " + size + ", modified = " + modified + '}';
+        }
+    }
+
+    private static final class PageKey {
+        private final FileId file;
+        private final long index;
+
+        PageKey(FileId file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PageKey other)) {
+                return false;
+            }
+            return index == other.index && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * file.hashCode() + Long.hashCode(index);
+        }
+    }
+}
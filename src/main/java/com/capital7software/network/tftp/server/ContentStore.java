@@ -0,0 +1,365 @@
+/*
+ * File: ContentStore.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+import com.capital7software.network.util.Digest;
+import com.capital7software.network.util.DigestAlgorithm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link UploadStorage} that keys the content of the uploads by its hash, so that content
+ * that is uploaded again is stored once.
+ * <p>
+ * A file is cut into chunks of {@link #CHUNK_SIZE} bytes, and every chunk is stored once under
+ * the SHA-256 Hash of its content, no matter how many files it appears in. A file is described
+ * by the list of its chunks, which is stored under the MD5 Hash and the size of the file. When
+ * a WRQ announces the size and the MD5 Hash of content that is already stored, the filename is
+ * pointed at that content and nothing is transferred. The last upload of a filename is the one
+ * that a download of the filename gets. Chunks are never deleted.
+ * <p>
+ * Uploads are received into staged files as usual. Once an upload has been validated, its file
+ * is moved to the pending directory and cut into chunks by a background thread, so that the
+ * transfer is not held up. Until then, a download of the filename is served from the pending
+ * file. Files that are still pending when the server stops are stored when it starts again, and
+ * a pending file is only deleted once its chunks, its list of chunks and its filename have been
+ * forced to the storage device, so an upload that was published as durable survives a crash
+ * while it is being stored.
+ * <p>
+ * A download of stored content is served from a copy that is put together from its chunks,
+ * which is kept in {@link RestoredFiles} for the next download until the copies take more than
+ * their capacity.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ContentStore implements UploadStorage {
+    private static final Logger ERRORS = Logger.getLogger(ContentStore.class.getName());
+    public static final int CHUNK_SIZE = 65536; // 64 KB
+    public static final String STATS_MSG = "Content store: %d upload(s) stored, %d upload(s) linked without a transfer, %d of %d chunk(s) were new%n";
+
+    private final Path tmp;
+    private final Path pending;
+    private final Path chunks;
+    private final Path files;
+    private final Path names;
+    private final RestoredFiles restored;
+    private final Map<String, Path> waiting = new ConcurrentHashMap<>();
+    private final ExecutorService ingester;
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1_000);
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong newChunks = new AtomicLong();
+    private final AtomicLong totalChunks = new AtomicLong();
+
+    /**
+     * Opens the store in the specified directory, creating it if it does not exist. The files
+     * that were still pending when the store was last closed are stored again.
+     *
+     * @param root the directory of the store
+     * @throws IOException if the directories of the store could not be created
+     */
+    public ContentStore(Path root) throws IOException {
+        this(root, RestoredFiles.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the store in the specified directory, creating it if it does not exist. The files
+     * that were still pending when the store was last closed are stored again.
+     *
+     * @param root the directory of the store
+     * @param restoredCapacity the number of bytes of files put together for downloads that are
+     * kept for the next download
+     * @throws IOException if the directories of the store could not be created
+     */
+    public ContentStore(Path root, long restoredCapacity) throws IOException {
+        this.tmp = Files.createDirectories(root.resolve("tmp"));
+        this.pending = Files.createDirectories(root.resolve("pending"));
+        this.chunks = Files.createDirectories(root.resolve("chunks"));
+        this.files = Files.createDirectories(root.resolve("files"));
+        this.names = Files.createDirectories(root.resolve("names"));
+        this.restored = new RestoredFiles(root.resolve("restored"), restoredCapacity, RestoredFiles.DEFAULT_IN_USE_MS);
+        // The thread is not a daemon, so the files that are pending are stored before the server exits
+        this.ingester = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "tftp-store"));
+
+        // The uploads that were being received when the server stopped were never validated
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tmp)) {
+            stream.forEach(leftovers::add);
+        }
+        for (Path file : leftovers) {
+            Files.deleteIfExists(file);
+        }
+
+        List<Path> leftPending = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(pending)) {
+            stream.forEach(leftPending::add);
+        }
+        // The names start with a sequence number, so a filename that was uploaded twice ends up with its last upload
+        leftPending.sort(null);
+        for (Path file : leftPending) {
+            waiting.put(nameOf(file), file);
+            ingester.submit(() -> ingest(file));
+        }
+    }
+
+    @Override
+    public boolean link(String name, long size, String md5) throws IOException {
+        String key = md5.toLowerCase() + "-" + size;
+
+        if (!Files.exists(files.resolve(key))) {
+            return false;
+        }
+
+        writeName(name, key);
+        linked.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public Upload stage(String name, long size) throws IOException {
+        Path file = Files.createTempFile(tmp, "upload", ".tmp");
+
+        return new Upload() {
+            @Override
+            public String getFilename() {
+                return file.toString();
+            }
+
+            @Override
+            public BlockWriter open(long size, boolean direct) throws IOException {
+                return new BlockWriter(file, size, direct);
+            }
+
+            @Override
+            public void publish(boolean durable) throws IOException {
+                Path target = pending.resolve(String.format("%019d-%s", sequence.incrementAndGet(), encode(name)));
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                if (durable) {
+                    // A pending file is stored again when the store is opened, so it is durable once it is in the directory
+                    BlockWriter.forceDirectory(pending);
+                }
+                // The upload has been acknowledged, so it can be downloaded before it has been stored
+                waiting.put(name, target);
+                ingester.submit(() -> ingest(target));
+            }
+
+            @Override
+            public void discard() throws IOException {
+                Files.deleteIfExists(file);
+            }
+        };
+    }
+
+    @Override
+    public Path restore(String name) throws IOException {
+        Path file = waiting.get(name);
+        if (file != null) {
+            try {
+                // A link keeps the upload readable for the download after it has been stored and deleted
+                return restored.link(file.getFileName().toString(), file);
+            } catch (NoSuchFileException ignored) {
+                // It was stored in the meantime, and its name already points at its content
+            }
+        }
+
+        String key;
+        try {
+            key = Files.readString(names.resolve(encode(name)), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+
+        // The content is put together once and then served to every download of it, while it is kept
+        Path answer = restored.get(key);
+        if (answer != null) {
+            return answer;
+        }
+
+        Path temp = Files.createTempFile(tmp, "restore", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                for (String chunk : Files.readAllLines(files.resolve(key), StandardCharsets.UTF_8)) {
+                    if (!chunk.isEmpty()) {
+                        Files.copy(chunkOf(chunk), out);
+                    }
+                }
+            }
+            return restored.put(key, temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Cuts a validated upload into chunks, stores the chunks that are new and points its
+     * filename at its content.
+     *
+     * @param file the pending file, whose name is a sequence number and the encoded filename
+     */
+    private void ingest(Path file) {
+        String name = nameOf(file);
+        Digest fileDigest = DigestAlgorithm.MD5.newDigest();
+        Digest chunkDigest = DigestAlgorithm.SHA256.newDigest();
+        List<String> recipe = new ArrayList<>();
+        Set<Path> directories = new HashSet<>();
+        long size = 0;
+
+        try {
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int length;
+
+                while ((length = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                    fileDigest.update(chunk, 0, length);
+                    chunkDigest.update(chunk, 0, length);
+                    String key = chunkDigest.finish();
+                    if (storeChunk(key, chunk, length)) {
+                        directories.add(chunkOf(key).getParent());
+                        // A directory of chunks may have been created as well
+                        directories.add(chunks);
+                    }
+                    recipe.add(key);
+                    size += length;
+                }
+            }
+
+            for (Path directory : directories) {
+                BlockWriter.forceDirectory(directory);
+            }
+
+            String key = fileDigest.finish() + "-" + size;
+            Path recipeFile = files.resolve(key);
+            if (!Files.exists(recipeFile)) {
+                StringBuilder lines = new StringBuilder();
+                recipe.forEach(chunk -> lines.append(chunk).append('\n'));
+                byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+                Path temp = Files.createTempFile(tmp, "recipe", ".tmp");
+                writeForced(temp, bytes, bytes.length);
+                Files.move(temp, recipeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                BlockWriter.forceDirectory(files);
+            }
+
+            writeName(name, key);
+            // A later upload of the same filename may already be pending
+            waiting.remove(name, file);
+            Files.delete(file);
+            stored.incrementAndGet();
+            System.out.printf("Stored %s as %s in %d chunk(s).%n", name, key, recipe.size());
+        } catch (IOException ex) {
+            // The file stays pending and is stored again when the store is next opened
+            ERRORS.log(Level.SEVERE, "Unable to store " + name, ex);
+        }
+    }
+
+    private static String nameOf(Path file) {
+        String fileName = file.getFileName().toString();
+        return URLDecoder.decode(fileName.substring(fileName.indexOf('-') + 1), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores a chunk unless it is already stored.
+     *
+     * @return true if the chunk was moved into its directory, which must then be forced
+     */
+    private boolean storeChunk(String key, byte[] chunk, int length) throws IOException {
+        Path target = chunkOf(key);
+        totalChunks.incrementAndGet();
+
+        if (Files.exists(target)) {
+            return false;
+        }
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(tmp, "chunk", ".tmp");
+        try {
+            writeForced(temp, chunk, length);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            newChunks.incrementAndGet();
+            return true;
+        } catch (FileAlreadyExistsException ignored) {
+            // The chunk has the same content whoever wrote it
+            return false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the specified bytes to the specified file and forces them to the storage device,
+     * so that the file can be renamed into the store before the pending file that holds the
+     * same content is deleted.
+     */
+    private static void writeForced(Path file, byte[] bytes, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private Path chunkOf(String key) {
+        // The chunks are spread over directories by the first byte of their hash
+        return chunks.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private void writeName(String name, String key) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        Path temp = Files.createTempFile(tmp, "name", ".tmp");
+        writeForced(temp, bytes, bytes.length);
+        Files.move(temp, names.resolve(encode(name)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        BlockWriter.forceDirectory(names);
+    }
+
+    static String encode(String name) {
+        // Dots are encoded as well, so that no filename can name a directory
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E");
+    }
+
+    @Override
+    public void printStats() {
+        System.out.printf(STATS_MSG, stored.get(), linked.get(), newChunks.get(), totalChunks.get());
+    }
+
+    /**
+     * Stops taking new uploads. The uploads that are pending are still stored before the
+     * background thread exits.
+     */
+    @Override
+    public void close() {
+        ingester.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "ContentStore{" + "names = " + names.getParent() + ", pending = " + waiting.size() + ", stored = " + stored + ", linked = " + linked + '}';
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * File: DeltaBase.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.TftpOption;
+import com.capital7software.network.tftp.messages.AckMessage;
+import com.capital7software.network.tftp.messages.MessageOption;
+import com.capital7software.network.tftp.messages.MessageOptionCode;
+import com.capital7software.network.util.BlockReader;
+import com.capital7software.network.util.BlockTable;
+import com.capital7software.network.util.DigestAlgorithm;
+import com.capital7software.network.util.MD5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The copy of a file that the server already has, which a delta upload builds the new version
+ * of the file from. It is shared by both server engines.
+ * <p>
+ * The blocks of the copy are hashed with {@link MD5#hashBlocks(Path, BlockTable, boolean)} in
+ * the block size and the algorithm of the upload, in the background, so that the OACK is not
+ * held up. The client asks for the hashes with OACKs that carry the id of the first block it
+ * wants in the tdigests option, and they are sent back in the thashes option, along with the
+ * number of blocks of the copy in the tdelta option. An answer without the tdelta option tells
+ * the client that the blocks are still being hashed. The client then sends the blocks that
+ * differ as usual, and a KEEP message for every run of blocks that are the same, which are
+ * copied from here into the new version of the file.
+ *
+ * @author Vincent Palodichuk
+ */
+public class DeltaBase implements Closeable {
+    /**
+     * The most characters of hashes that are sent in a single OACK
+     */
+    public static final int MAX_HASH_CHARS = 60_000;
+
+    private final Path file;
+    private final BlockReader reader;
+    private final BlockTable blocks;
+    private final CompletableFuture<Void> hashing;
+
+    /**
+     * Opens the specified copy and starts hashing its blocks.
+     *
+     * @param file the copy of the file that the server already has
+     * @param blockSize the block size of the upload
+     * @param algorithm the algorithm that the blocks of the upload are hashed with
+     * @throws IOException if the copy could not be opened
+     */
+    public DeltaBase(Path file, int blockSize, DigestAlgorithm algorithm) throws IOException {
+        this.file = file;
+        this.reader = new BlockReader(file);
+        long count = reader.getSize() / blockSize + 1;
+        // A copy with more blocks than a table can hold is not offered, so every block is sent
+        this.blocks = new BlockTable(file.toString(), reader.getSize(), blockSize, count <= Integer.MAX_VALUE ? count : 0, algorithm);
+        this.hashing = CompletableFuture.runAsync(() -> MD5.hashBlocks(file, blocks, false));
+    }
+
+    /**
+     * Get the copy of the file that the server already has
+     *
+     * @return the copy of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the number of blocks of the copy, as offered to the client in the OACK
+     *
+     * @return the number of blocks of the copy
+     */
+    public long getNumBlocks() {
+        return blocks.size();
+    }
+
+    /**
+     * Returns true if the specified OACK asks for the hashes of the blocks of the copy
+     *
+     * @param message the OACK that the client sent
+     * @return true if the OACK carries the tdigests option
+     * @throws TftpException if the options of the OACK could not be read
+     */
+    public static boolean isRequest(AckMessage message) throws TftpException {
+        return valueOf(message, MessageOptionCode.DIGESTS) != null;
+    }
+
+    /**
+     * Answers a request for the hashes of the blocks of the copy.
+     *
+     * @param request the OACK that the client sent
+     * @return the OACK to send back
+     * @throws TftpException if the request could not be read
+     */
+    public AckMessage answer(AckMessage request) throws TftpException {
+        String first = valueOf(request, MessageOptionCode.DIGESTS);
+        AckMessage answer = new AckMessage(OpCode.OACK, request.getId());
+
+        answer.addOption(new TftpOption(MessageOptionCode.DIGESTS, first));
+        if (!hashing.isDone()) {
+            return answer;
+        }
+
+        // The table is cut short when the copy could not be read to its end
+        int count = blocks.size();
+        answer.addOption(new TftpOption(MessageOptionCode.DELTA, "" + count));
+
+        try {
+            int index = Integer.parseInt(first) - 1;
+            int most = Math.max(1, MAX_HASH_CHARS / (2 * blocks.getDigestLength() + 1));
+            StringJoiner hashes = new StringJoiner(",");
+
+            for (int i = Math.max(0, index); i < count && i - index < most && blocks.isHashed(); i++) {
+                hashes.add(blocks.getHash(i));
+            }
+            if (hashes.length() > 0) {
+                answer.addOption(new TftpOption(MessageOptionCode.MERKLE_HASHES, hashes.toString()));
+            }
+        } catch (NumberFormatException ex) {
+            throw new TftpException("Invalid block id in the tdigests option.");
+        }
+
+        return answer;
+    }
+
+    /**
+     * Reads the block with the specified id from the copy, if it is a full block that was
+     * hashed.
+     *
+     * @param id the id of the block
+     * @param block the array that receives the block, as long as a full block
+     * @throws TftpException if the copy has no full block with that id or it could not be read
+     */
+    public void read(long id, byte[] block) throws TftpException {
+        if (!hashing.isDone() || id < 1 || id > blocks.size() || blocks.getLength((int) id - 1) != block.length) {
+            throw new TftpException("Block " + id + " is not a full block of the copy on the server.");
+        }
+
+        try {
+            reader.read(blocks.getOffset((int) id - 1), ByteBuffer.wrap(block));
+        } catch (IOException ex) {
+            throw new TftpException(ex.getMessage(), ex);
+        }
+    }
+
+    private static String valueOf(AckMessage message, MessageOptionCode code) throws TftpException {
+        for (MessageOption option : message.getOptions()) {
+            if (Objects.equals(option.getName().getValue(), code.getValue())) {
+                return option.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        hashing.cancel(false);
+        reader.close();
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaBase{" + "file = " + file + ", blocks = " + blocks.size() + ", hashed = " + hashing.isDone() + '}';
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * File: FileHashes.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.DigestAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the hashes of the files that a server sends, so that a RRQ that asks for
+ * the hash of a file up front does not read the whole file again. Hashes are keyed by the
+ * identity of the file as used by the {@link BlockCache} (its file key, size and modification
+ * time) and by the algorithm, so a file that changes is hashed again. Concurrent requests for
+ * the same hash wait for a single pass over the file and the least recently used hashes are
+ * dropped once the cache is full.
+ *
+ * @author Vincent Palodichuk
+ */
+public class FileHashes {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final Map<Key, FutureTask<String>> hashes;
+    private final AtomicLong passes = new AtomicLong();
+
+    /**
+     * Initializes an empty cache that holds at most {@link #DEFAULT_MAX_ENTRIES} hashes.
+     */
+    public FileHashes() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Initializes an empty cache.
+     *
+     * @param maxEntries the maximum number of hashes held by the cache
+     */
+    public FileHashes(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1.");
+        }
+
+        this.hashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<String>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the hash of the whole of the specified file, reading the file only if it was not
+     * hashed with the specified algorithm since it last changed.
+     *
+     * @param file the file to hash
+     * @param algorithm the algorithm to hash the file with
+     * @return the hash as a lowercase hexadecimal string
+     * @throws IOException if the file could not be read
+     */
+    public String hash(Path file, DigestAlgorithm algorithm) throws IOException {
+        Key key = new Key(BlockCache.identify(file), algorithm);
+        FutureTask<String> task = new FutureTask<>(() -> algorithm.hashFile(file));
+        FutureTask<String> existing;
+
+        synchronized (hashes) {
+            existing = hashes.putIfAbsent(key, task);
+        }
+
+        try {
+            if (existing != null) {
+                return existing.get();
+            }
+
+            passes.incrementAndGet();
+            task.run();
+            String answer = task.get();
+
+            if (!key.file.equals(BlockCache.identify(file))) {
+                // The file changed while it was being hashed, so the hash may mix both versions
+                forget(key, task);
+            }
+            return answer;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a file to be hashed.", ex);
+        } catch (ExecutionException ex) {
+            forget(key, existing != null ? existing : task);
+            throw ex.getCause() instanceof IOException io ? io : new IOException(ex.getCause());
+        } catch (IOException ex) {
+            forget(key, task);
+            throw ex;
+        }
+    }
+
+    /**
+     * Get the number of times that a whole file was read to compute its hash
+     *
+     * @return the number of passes over a file
+     */
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /**
+     * Get the number of hashes that are held by the cache
+     *
+     * @return the number of hashes that are held by the cache
+     */
+    public int size() {
+        synchronized (hashes) {
+            return hashes.size();
+        }
+    }
+
+    private void forget(Key key, FutureTask<String> task) {
+        synchronized (hashes) {
+            hashes.remove(key, task);
+        }
+    }
+
+    private static final class Key {
+        private final BlockCache.FileId file;
+        private final DigestAlgorithm algorithm;
+
+        Key(BlockCache.FileId file, DigestAlgorithm algorithm) {
+            this.file = file;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key other)) {
+                return false;
+            }
+            return algorithm == other.algorithm && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, algorithm);
+        }
+    }
+}
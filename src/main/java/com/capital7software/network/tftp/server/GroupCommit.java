@@ -0,0 +1,204 @@
+/*
+ * File: GroupCommit.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forces the files of the transfers of a server to their storage devices on behalf of the
+ * sessions, so that many sessions that want their files forced at the same moment do not all
+ * hit the device at once.
+ * <p>
+ * Every device, as told by the {@link FileStore} of the file, has one thread that forces the
+ * files. A session hands its file to that thread and waits. While the thread is forcing a
+ * batch, the requests of other sessions pile up and are forced together as the next batch, with
+ * one force per file no matter how many requests there are for it. At most one force is under
+ * way on a device at a time, and file systems with a journal commit the forces of a batch that
+ * arrive together in one go.
+ *
+ * @author Vincent Palodichuk
+ */
+public class GroupCommit implements Closeable {
+    public static final String STATS_MSG = "Group commit: %d force request(s) served by %d force(s) in %d batch(es) on %d device(s), %.1f ms forcing%n";
+
+    /**
+     * A session that waits for its file to be forced
+     */
+    private static final class Request {
+        private final BlockWriter writer;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException failure;
+
+        private Request(BlockWriter writer) {
+            this.writer = writer;
+        }
+
+        private void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new IOException("The file could not be forced: " + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    /**
+     * The thread that forces the files on a single device
+     */
+    private final class Device implements Runnable {
+        private final List<Request> queue = new ArrayList<>();
+        private final Thread thread;
+        private boolean stopped;
+
+        private Device(int index) {
+            this.thread = new Thread(this, "tftp-sync-" + index);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void force(BlockWriter writer) throws IOException {
+            Request request = new Request(writer);
+
+            synchronized (this) {
+                if (stopped) {
+                    writer.force();
+                    return;
+                }
+                queue.add(request);
+                notifyAll();
+            }
+            request.await();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<Request> batch;
+
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            closed = true;
+                        }
+                    }
+                    if (queue.isEmpty()) {
+                        stopped = true;
+                        return;
+                    }
+                    batch = new ArrayList<>(queue);
+                    queue.clear();
+                }
+
+                long start = System.nanoTime();
+                Map<BlockWriter, IOException> results = new IdentityHashMap<>();
+                for (Request request : batch) {
+                    if (!results.containsKey(request.writer)) {
+                        IOException failure = null;
+                        try {
+                            request.writer.force();
+                        } catch (IOException ex) {
+                            failure = ex;
+                        }
+                        results.put(request.writer, failure);
+                        forces.incrementAndGet();
+                    }
+                }
+                nanos.addAndGet(System.nanoTime() - start);
+                batches.incrementAndGet();
+
+                for (Request request : batch) {
+                    request.failure = results.get(request.writer);
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+
+    private final Map<Path, FileStore> stores = new ConcurrentHashMap<>();
+    private final Map<FileStore, Device> devices = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Forces the bytes that were written with the specified writer to the storage device,
+     * waiting until they are there.
+     *
+     * @param writer the writer of the file to force
+     * @throws IOException if the file could not be forced
+     */
+    public void force(BlockWriter writer) throws IOException {
+        Path file = writer.getFile();
+        requests.incrementAndGet();
+
+        if (file == null || closed) {
+            // A file in memory has nothing to force, and once closed every session forces its own file
+            writer.force();
+            return;
+        }
+
+        // Finding the store of a file reads the mount table, so it is only done once per directory
+        Path directory = file.toAbsolutePath().getParent();
+        FileStore store = stores.get(directory);
+        if (store == null) {
+            store = Files.getFileStore(directory);
+            stores.put(directory, store);
+        }
+
+        devices.computeIfAbsent(store, key -> new Device(devices.size() + 1)).force(writer);
+    }
+
+    /**
+     * Writes the counters of the coordinator to the console
+     */
+    public void printStats() {
+        System.out.printf(STATS_MSG, requests.get(), forces.get(), batches.get(), devices.size(), nanos.get() / 1_000_000.0);
+    }
+
+    /**
+     * Stops the threads of the devices once they have forced the files that they were asked to.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Device device : devices.values()) {
+            synchronized (device) {
+                device.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommit{" + "devices = " + devices.size() + ", requests = " + requests + ", forces = " + forces + ", batches = " + batches + '}';
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * File: MerkleResync.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.TftpOption;
+import com.capital7software.network.tftp.messages.AckMessage;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.MessageOption;
+import com.capital7software.network.tftp.messages.MessageOptionCode;
+import com.capital7software.network.util.MerkleTree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Finds and repairs the blocks of an upload whose Merkle root does not match the root that the
+ * client sent in its trailer. It is shared by both server engines, which only move the packets:
+ * every handler returns the messages to send to the client, in order.
+ * <p>
+ * The exchange is driven by the server with OACKs that carry the id of the last block. The
+ * server asks for the hashes of the children of the nodes that differ, one level at a time,
+ * with the tlevel and tnodes options, and the client answers with the same options and the
+ * hashes in thashes. Once the leaves that differ are known, the server asks for their blocks
+ * with the tresend option, and the client sends each of them again as a DATA that is
+ * acknowledged as usual. When the roots match, the trailer is acknowledged; the search starts
+ * over from the root if they still differ, up to {@link #MAX_ROUNDS} times.
+ *
+ * @author Vincent Palodichuk
+ */
+public class MerkleResync {
+    /**
+     * The most nodes or blocks that are asked for in a single OACK
+     */
+    public static final int MAX_NODES = 128;
+
+    /**
+     * The number of times that the blocks that differ are searched for and sent again before
+     * the file is rejected
+     */
+    public static final int MAX_ROUNDS = 3;
+
+    /**
+     * The number of times that a request is sent again when the client does not answer
+     */
+    public static final int MAX_RETRANSMITS = 5;
+
+    /**
+     * The states that a resync moves through
+     */
+    public enum State {
+        /**
+         * The hashes of the nodes of a level are being compared
+         */
+        COMPARING,
+        /**
+         * The blocks that differ are being sent again
+         */
+        RESENDING,
+        /**
+         * The roots match and the trailer has been acknowledged
+         */
+        VALIDATED,
+        /**
+         * The file could not be repaired
+         */
+        FAILED
+    }
+
+    private final ReceiveTransfer transfer;
+    private final int lastId;
+    private final Deque<Integer> queue = new ArrayDeque<>();
+    private final List<Integer> mismatched = new ArrayList<>();
+    private final Set<Integer> awaiting = new HashSet<>();
+    private final Set<Integer> rewritten = new HashSet<>();
+    private String root;
+    private MerkleTree tree;
+    private State state = State.COMPARING;
+    private int level;
+    private String requested;
+    private AckMessage outstanding;
+    private int rounds;
+    private int retransmits;
+    private int resent;
+
+    /**
+     * Initializes the resync of the specified transfer, once every block has been written.
+     *
+     * @param transfer the transfer whose file is validated
+     * @param lastId the id of the last block, which the trailer and the requests carry
+     */
+    public MerkleResync(ReceiveTransfer transfer, int lastId) {
+        this.transfer = transfer;
+        this.lastId = lastId;
+    }
+
+    /**
+     * Get the state of this resync
+     *
+     * @return the state of this resync
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true once the file has either been validated or rejected
+     *
+     * @return true once the resync has ended
+     */
+    public boolean isDone() {
+        return state == State.VALIDATED || state == State.FAILED;
+    }
+
+    /**
+     * Get the number of blocks that were sent again
+     *
+     * @return the number of blocks that were sent again
+     */
+    public int getResent() {
+        return resent;
+    }
+
+    /**
+     * Compares the root in the specified trailer with the root of the received file.
+     *
+     * @param trailer the OACK that the client sent after the last block was acknowledged
+     * @return the messages to send to the client
+     * @throws TftpException if the options of the trailer could not be read
+     */
+    public List<AckMessage> start(AckMessage trailer) throws TftpException {
+        root = valueOf(trailer, MessageOptionCode.MERKLE_ROOT);
+
+        if (root == null) {
+            System.out.printf("The trailer for the received file %s has no Merkle root.%n", transfer.getFilename());
+            state = State.FAILED;
+            return List.of();
+        }
+
+        return compareRoot();
+    }
+
+    /**
+     * Handles an OACK with the hashes that were asked for. Answers to earlier requests are
+     * ignored, and a trailer that was sent again is answered with the last request.
+     *
+     * @param reply the OACK that the client sent
+     * @return the messages to send to the client
+     * @throws TftpException if the options of the answer could not be read
+     */
+    public List<AckMessage> onReply(AckMessage reply) throws TftpException {
+        if (valueOf(reply, MessageOptionCode.MERKLE_ROOT) != null) {
+            // The trailer was sent again, so the answer to it was lost
+            return state == State.VALIDATED ? List.of(new AckMessage(lastId)) : outstanding != null ? List.of(outstanding) : List.of();
+        }
+
+        if (state != State.COMPARING || requested == null
+                || !Objects.equals(valueOf(reply, MessageOptionCode.MERKLE_LEVEL), "" + level)
+                || !Objects.equals(valueOf(reply, MessageOptionCode.MERKLE_NODES), requested)) {
+            return List.of();
+        }
+
+        String[] nodes = requested.split(",");
+        String hashes = valueOf(reply, MessageOptionCode.MERKLE_HASHES);
+        String[] values = hashes != null ? hashes.split(",") : new String[0];
+
+        if (values.length != nodes.length) {
+            return List.of();
+        }
+
+        for (int i = 0; i < nodes.length; i++) {
+            int node = Integer.parseInt(nodes[i]);
+            if (!tree.matches(level, node, values[i])) {
+                mismatched.add(node);
+            }
+        }
+
+        requested = null;
+        retransmits = 0;
+        return nextRequest();
+    }
+
+    /**
+     * Handles a DATA with a block that was asked for again.
+     *
+     * @param message the DATA that the client sent
+     * @return the messages to send to the client
+     * @throws TftpException if the block could not be written
+     */
+    public List<AckMessage> onData(DataMessage message) throws TftpException {
+        int id = message.getId();
+
+        if (state != State.RESENDING || !awaiting.contains(id)) {
+            // The ACK of a block that was already written again was lost
+            return rewritten.contains(id) ? List.of(new AckMessage(id)) : List.of();
+        }
+
+        transfer.rewrite(message);
+        awaiting.remove(id);
+        rewritten.add(id);
+        resent++;
+        retransmits = 0;
+
+        List<AckMessage> answer = new ArrayList<>();
+        answer.add(new AckMessage(id));
+
+        if (awaiting.isEmpty()) {
+            answer.addAll(queue.isEmpty() ? compareRoot() : nextResend());
+        }
+
+        return answer;
+    }
+
+    /**
+     * Get the request that is waiting for an answer, so that it can be sent again when the
+     * client does not answer.
+     *
+     * @return the request or null if there is none or it has been sent too many times already
+     */
+    public AckMessage retransmit() {
+        if (isDone() || outstanding == null || ++retransmits > MAX_RETRANSMITS) {
+            return null;
+        }
+        return outstanding;
+    }
+
+    private List<AckMessage> compareRoot() throws TftpException {
+        tree = transfer.getMerkleTree();
+
+        if (tree.matches(tree.getHeight(), 0, root)) {
+            state = State.VALIDATED;
+            outstanding = null;
+            return List.of(new AckMessage(lastId));
+        }
+
+        if (++rounds > MAX_ROUNDS) {
+            state = State.FAILED;
+            return List.of();
+        }
+
+        System.out.printf("The Merkle root of %s does not match, looking for the blocks that differ.%n", transfer.getFilename());
+        state = State.COMPARING;
+        level = tree.getHeight();
+        queue.clear();
+        mismatched.clear();
+        mismatched.add(0);
+        rewritten.clear();
+        return nextRequest();
+    }
+
+    private List<AckMessage> nextRequest() throws TftpException {
+        if (queue.isEmpty()) {
+            if (level == 0) {
+                // The leaves that differ are the blocks to send again
+                for (int leaf : mismatched) {
+                    queue.add(leaf + 1);
+                }
+                mismatched.clear();
+
+                if (queue.isEmpty()) {
+                    state = State.FAILED;
+                    return List.of();
+                }
+
+                System.out.printf("%d block(s) of %s differ and will be sent again.%n", queue.size(), transfer.getFilename());
+                state = State.RESENDING;
+                return nextResend();
+            }
+
+            level--;
+            for (int node : mismatched) {
+                queue.add(2 * node);
+                if (2 * node + 1 < tree.getWidth(level)) {
+                    queue.add(2 * node + 1);
+                }
+            }
+            mismatched.clear();
+        }
+
+        StringJoiner nodes = new StringJoiner(",");
+        for (int i = 0; i < MAX_NODES && !queue.isEmpty(); i++) {
+            nodes.add("" + queue.poll());
+        }
+        requested = nodes.toString();
+
+        outstanding = new AckMessage(OpCode.OACK, lastId);
+        outstanding.addOption(new TftpOption(MessageOptionCode.MERKLE_LEVEL, "" + level));
+        outstanding.addOption(new TftpOption(MessageOptionCode.MERKLE_NODES, requested));
+        return List.of(outstanding);
+    }
+
+    private List<AckMessage> nextResend() throws TftpException {
+        StringJoiner ids = new StringJoiner(",");
+
+        awaiting.clear();
+        for (int i = 0; i < MAX_NODES && !queue.isEmpty(); i++) {
+            int id = queue.poll();
+            awaiting.add(id);
+            ids.add("" + id);
+        }
+
+        outstanding = new AckMessage(OpCode.OACK, lastId);
+        outstanding.addOption(new TftpOption(MessageOptionCode.RESEND, ids.toString()));
+        return List.of(outstanding);
+    }
+
+    private static String valueOf(AckMessage message, MessageOptionCode code) throws TftpException {
+        for (MessageOption option : message.getOptions()) {
+            if (Objects.equals(option.getName().getValue(), code.getValue())) {
+                return option.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleResync{" + "filename = " + transfer.getFilename() + ", state = " + state + ", level = " + level + ", resent = " + resent + '}';
+    }
+}
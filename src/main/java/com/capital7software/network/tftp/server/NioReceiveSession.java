@@ -0,0 +1,369 @@
+/*
+ * File: NioReceiveSession.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.messages.AckMessage;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.RunMessage;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state machine of a single WRQ served by the {@link NioTftpServer}.
+ *
+ * @author Vincent Palodichuk
+ */
+class NioReceiveSession extends NioSession {
+    private static final Logger ERRORS = Logger.getLogger(NioReceiveSession.class.getName());
+
+    /**
+     * The states that a session moves through
+     */
+    enum State {
+        /**
+         * The OACK has been sent and the first DATA has not arrived yet
+         */
+        NEGOTIATED,
+        /**
+         * At least one DATA has been written
+         */
+        RECEIVING,
+        /**
+         * Every block has been written and the session waits for the trailer with the MD5 Hash
+         */
+        TRAILER,
+        /**
+         * The Merkle root of the file did not match and the blocks that differ are being
+         * searched for and sent again
+         */
+        RESYNC,
+        /**
+         * Every block has been written and the file is being validated, published and forced on
+         * a worker thread, which sends the final ACK once it is done
+         */
+        FINISHING,
+        /**
+         * Every block has been written. The session lingers so that a retransmitted final
+         * DATA can be acknowledged again.
+         */
+        COMPLETE
+    }
+
+    private final ReceiveTransfer transfer;
+    private State state = State.NEGOTIATED;
+    private MerkleResync resync;
+    private boolean closed;
+
+    NioReceiveSession(NioTftpServer server, DatagramChannel channel, SocketAddress client, ReceiveTransfer transfer) {
+        super(server, channel, client);
+        this.transfer = transfer;
+    }
+
+    @Override
+    synchronized void start() {
+        if (transfer.isComplete()) {
+            state = State.COMPLETE;
+        }
+        sendOack(transfer.getOptions().getAccepted());
+    }
+
+    @Override
+    synchronized void onRequest() {
+        lastActivity = System.currentTimeMillis();
+
+        if (state == State.NEGOTIATED) {
+            sendOack(transfer.getOptions().getAccepted());
+        }
+    }
+
+    @Override
+    boolean isChecksum() {
+        return transfer.getOptions().isChecksum();
+    }
+
+    @Override
+    boolean isCompressed() {
+        return transfer.getOptions().isCompressed();
+    }
+
+    @Override
+    synchronized void onCorruptData() {
+        lastActivity = System.currentTimeMillis();
+
+        if (state != State.COMPLETE && state != State.RESYNC && state != State.FINISHING) {
+            // Repeating the ACK of the last block in order makes the client send the block again
+            sendAck(transfer.getNextBlock() - 1);
+        }
+    }
+
+    @Override
+    synchronized boolean onData(DataMessage message) {
+        lastActivity = System.currentTimeMillis();
+        long expected = transfer.getNextBlock();
+
+        if (state == State.FINISHING) {
+            // The final ACK is on its way once the file is finished
+            return true;
+        }
+
+        if (state == State.RESYNC) {
+            try {
+                return settle(resync.onData(message));
+            } catch (TftpException ex) {
+                server.sendError(channel, client, ErrorCode.ACCESS_VIOLATION, ex.getMessage());
+                ERRORS.log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+
+        long block = transfer.blockOf(message);
+
+        if (block < expected) {
+            // Our ACK was lost, so acknowledge the duplicate again
+            sendAck(block);
+            return true;
+        }
+
+        if (state == State.COMPLETE || !transfer.accepts(block)) {
+            server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected block number received");
+            return false;
+        }
+
+        try {
+            transfer.write(message);
+        } catch (TftpException ex) {
+            server.sendError(channel, client, ErrorCode.ACCESS_VIOLATION, ex.getMessage());
+            ERRORS.log(Level.SEVERE, null, ex);
+            return false;
+        }
+
+        state = State.RECEIVING;
+
+        if (transfer.isComplete() && !transfer.getOptions().isTrailer()) {
+            // The final ACK tells the client that the file is stored, so it is only sent once the file is validated, published and forced
+            long last = transfer.getNextBlock() - 1;
+            finishLater(transfer::finish, () -> sendAck(last), "The received file could not be validated or stored.");
+            return true;
+        }
+
+        // A block that arrived early repeats the ACK of the last block in order
+        sendAck(transfer.getNextBlock() - 1);
+        if (transfer.isComplete()) {
+            state = State.TRAILER;
+        }
+
+        return true;
+    }
+
+    @Override
+    synchronized boolean onRun(RunMessage message) {
+        lastActivity = System.currentTimeMillis();
+
+        if (state == State.FINISHING) {
+            return true;
+        }
+        long last = message.getBlockNumber(transfer.getNextBlock()) + message.getCount() - 1;
+
+        if (last < transfer.getNextBlock()) {
+            // Our ACK was lost, so acknowledge the duplicate again
+            sendAck(last);
+            return true;
+        }
+
+        if (state != State.NEGOTIATED && state != State.RECEIVING) {
+            server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected " + message.getOpCode() + " packet");
+            return false;
+        }
+
+        try {
+            transfer.writeRun(message);
+        } catch (TftpException ex) {
+            server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, ex.getMessage());
+            return false;
+        }
+
+        state = State.RECEIVING;
+        sendAck(transfer.getNextBlock() - 1);
+        return true;
+    }
+
+    @Override
+    synchronized boolean onTrailer(AckMessage message) {
+        lastActivity = System.currentTimeMillis();
+
+        if (state == State.FINISHING) {
+            // A trailer that was sent again is answered once the file is finished
+            return true;
+        }
+
+        if (state == State.NEGOTIATED || state == State.RECEIVING) {
+            // The client of a delta upload asks for the hashes of the copy before it sends a block
+            try {
+                AckMessage digests = transfer.answerDigests(message);
+                if (digests != null) {
+                    server.send(channel, client, digests);
+                    return true;
+                }
+            } catch (TftpException ex) {
+                server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, ex.getMessage());
+                return false;
+            }
+        }
+
+        if (state == State.COMPLETE && transfer.getOptions().isTrailer()) {
+            // Our ACK of the trailer was lost
+            sendAck(message.getId());
+            return true;
+        }
+
+        if (state == State.RESYNC || state == State.TRAILER && transfer.getOptions().isMerkle()) {
+            try {
+                if (state == State.TRAILER) {
+                    resync = new MerkleResync(transfer, message.getId());
+                    state = State.RESYNC;
+                    return settle(resync.start(message));
+                }
+                return settle(resync.onReply(message));
+            } catch (TftpException ex) {
+                server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, ex.getMessage());
+                return false;
+            }
+        }
+
+        if (state != State.TRAILER) {
+            return super.onTrailer(message);
+        }
+
+        finishLater(() -> transfer.finish(message), () -> sendAck(message.getId()), "MD5 Hash validation failed.");
+        return true;
+    }
+
+    private boolean settle(List<AckMessage> replies) {
+        // Once the root matches, the last reply is the final ACK, which waits until the file is published
+        boolean validated = resync.getState() == MerkleResync.State.VALIDATED;
+        int count = validated ? replies.size() - 1 : replies.size();
+        for (AckMessage reply : replies.subList(0, Math.max(0, count))) {
+            server.send(channel, client, reply);
+        }
+
+        if (!resync.isDone()) {
+            return true;
+        }
+
+        if (resync.getResent() > 0) {
+            System.out.printf("%d block(s) of %s were sent again.%n", resync.getResent(), transfer.getFilename());
+        }
+        AckMessage ack = count < replies.size() ? replies.get(count) : null;
+        finishLater(() -> transfer.finish(validated), () -> {
+            if (ack != null) {
+                server.send(channel, client, ack);
+            }
+        }, "Merkle root validation failed.");
+        return true;
+    }
+
+    /**
+     * Validates, publishes and forces the file on a worker thread, as that may hash, copy or
+     * force the whole file, and then sends the final ACK, or an ERROR if the file could not be
+     * finished.
+     *
+     * @param finish finishes the file and returns true if it was validated and stored
+     * @param acknowledge sends the final ACK
+     * @param error the message of the ERROR that is sent if the file could not be finished
+     */
+    private void finishLater(Callable<Boolean> finish, Runnable acknowledge, String error) {
+        state = State.FINISHING;
+
+        server.execute(() -> {
+            boolean finished;
+            String message = error;
+
+            try {
+                finished = finish.call();
+            } catch (Exception ex) {
+                ERRORS.log(Level.WARNING, null, ex);
+                finished = false;
+                message = ex.getMessage();
+            }
+
+            synchronized (this) {
+                lastActivity = System.currentTimeMillis();
+                state = State.COMPLETE;
+
+                if (!finished) {
+                    server.sendError(channel, client, ErrorCode.NOT_DEFINED, message);
+                    server.remove(client, this);
+                } else {
+                    acknowledge.run();
+                    System.out.printf("File %s received from %s.%n", transfer.getFilename(), client);
+                }
+                if (closed && finished) {
+                    close();
+                }
+            }
+        });
+    }
+
+    @Override
+    synchronized boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    @Override
+    int getTimeout() {
+        return transfer.getOptions().getTimeout();
+    }
+
+    @Override
+    synchronized boolean expire() {
+        if (state == State.FINISHING) {
+            // The worker that finishes the file ends the session
+            return false;
+        }
+
+        if (state == State.RESYNC) {
+            // The client only answers, so a request that was lost is sent again
+            AckMessage again = resync.retransmit();
+            if (again != null) {
+                lastActivity = System.currentTimeMillis();
+                server.send(channel, client, again);
+                return false;
+            }
+        }
+
+        if (state != State.COMPLETE) {
+            System.out.printf("Timed out waiting for %s from %s. Abandoning the transfer.%n", transfer.getFilename(), client);
+            server.sendError(channel, client, ErrorCode.NOT_DEFINED, "Timed out.");
+        }
+        return true;
+    }
+
+    @Override
+    synchronized void close() {
+        if (state == State.FINISHING) {
+            // The worker closes the transfer once it has finished the file
+            closed = true;
+            return;
+        }
+
+        try {
+            transfer.close();
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, null, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioReceiveSession{" + "client = " + client + ", filename = " + transfer.getFilename() + ", state = " + state + '}';
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * File: NioSendSession.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.messages.AckMessage;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state machine of a single RRQ served by the {@link NioTftpServer}. A block is sent every
+ * time the client acknowledges the previous one, and the last packet is sent again whenever the
+ * client stays silent for the negotiated timeout.
+ *
+ * @author Vincent Palodichuk
+ */
+class NioSendSession extends NioSession {
+    private static final Logger ERRORS = Logger.getLogger(NioSendSession.class.getName());
+
+    /**
+     * The states that a session moves through
+     */
+    enum State {
+        /**
+         * The OACK has been sent and the client has not acknowledged it yet
+         */
+        NEGOTIATED,
+        /**
+         * At least one DATA has been sent
+         */
+        SENDING,
+        /**
+         * The client has acknowledged the last block
+         */
+        COMPLETE
+    }
+
+    private final SendTransfer transfer;
+    private final String filename;
+    private State state = State.NEGOTIATED;
+    private int retries;
+
+    NioSendSession(NioTftpServer server, DatagramChannel channel, SocketAddress client, SendTransfer transfer, String filename) {
+        super(server, channel, client);
+        this.transfer = transfer;
+        this.filename = filename;
+    }
+
+    @Override
+    synchronized void start() {
+        if (transfer.getOptions().getAccepted().isEmpty()) {
+            sendNextBlock();
+        } else {
+            // The client acknowledges the OACK with block 0
+            sendOack(transfer.getOptions().getAccepted());
+        }
+    }
+
+    @Override
+    synchronized void onRequest() {
+        lastActivity = System.currentTimeMillis();
+
+        if (state == State.NEGOTIATED) {
+            sendOack(transfer.getOptions().getAccepted());
+        }
+    }
+
+    @Override
+    synchronized boolean onAck(AckMessage message) {
+        lastActivity = System.currentTimeMillis();
+
+        // Duplicate ACKs are ignored rather than answered, otherwise every duplicate would
+        // double the traffic for the rest of the transfer
+        if (message.getBlockNumber(transfer.getLastSent()) != transfer.getLastSent() || state == State.COMPLETE) {
+            return true;
+        }
+
+        retries = 0;
+
+        if (transfer.isComplete()) {
+            state = State.COMPLETE;
+            System.out.printf("File %s sent to %s.%n", filename, client);
+            return false;
+        }
+
+        return sendNextBlock();
+    }
+
+    @Override
+    synchronized boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    @Override
+    int getTimeout() {
+        return transfer.getOptions().getTimeout();
+    }
+
+    @Override
+    synchronized boolean expire() {
+        if (state == State.COMPLETE) {
+            return true;
+        }
+
+        if (++retries > TftpServerSession.MAX_RETRIES) {
+            System.out.printf("Timed out sending %s to %s. Abandoning the transfer.%n", filename, client);
+            server.sendError(channel, client, ErrorCode.NOT_DEFINED, "Timed out.");
+            return true;
+        }
+
+        lastActivity = System.currentTimeMillis();
+
+        if (state == State.NEGOTIATED) {
+            sendOack(transfer.getOptions().getAccepted());
+        } else {
+            server.send(channel, client, transfer.currentBlock());
+        }
+
+        return false;
+    }
+
+    @Override
+    void close() {
+        try {
+            transfer.close();
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, null, ex);
+        }
+    }
+
+    private boolean sendNextBlock() {
+        try {
+            ByteBuffer packet = transfer.nextBlock();
+            state = State.SENDING;
+            server.send(channel, client, packet);
+            return true;
+        } catch (IOException ex) {
+            server.sendError(channel, client, ErrorCode.NOT_DEFINED, ex.getMessage());
+            ERRORS.log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioSendSession{" + "client = " + client + ", filename = " + filename + ", state = " + state + '}';
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * File: NioSession.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.messages.AckMessage;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.RunMessage;
+import com.capital7software.network.tftp.messages.IdableMessage;
+import com.capital7software.network.tftp.messages.MessageOption;
+
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state machine of a single transfer served by the {@link NioTftpServer}. It is driven by
+ * the event loops, one packet at a time, and never blocks on the network. Every handler is
+ * called with the session locked, as packets of the same client may be picked up by different
+ * event loops.
+ *
+ * @author Vincent Palodichuk
+ */
+abstract class NioSession {
+    private static final Logger ERRORS = Logger.getLogger(NioSession.class.getName());
+
+    protected final NioTftpServer server;
+    protected final DatagramChannel channel;
+    protected final SocketAddress client;
+    protected volatile long lastActivity;
+
+    NioSession(NioTftpServer server, DatagramChannel channel, SocketAddress client) {
+        this.server = server;
+        this.channel = channel;
+        this.client = client;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends the first packet of the transfer.
+     */
+    abstract void start();
+
+    /**
+     * Called when the client repeats its request, which means that our answer was lost.
+     */
+    abstract void onRequest();
+
+    /**
+     * Handles a DATA from the client of this session.
+     *
+     * @param message the DATA that was received
+     * @return false if the session has ended and must be removed from the session table
+     */
+    synchronized boolean onData(DataMessage message) {
+        server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected DATA packet");
+        return false;
+    }
+
+    /**
+     * Handles a HOLE or a KEEP from the client of this session.
+     *
+     * @param message the HOLE or KEEP that was received
+     * @return false if the session has ended and must be removed from the session table
+     */
+    synchronized boolean onRun(RunMessage message) {
+        server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected " + message.getOpCode() + " packet");
+        return false;
+    }
+
+    /**
+     * Returns true if the DATA packets that the client of this session sends end with a checksum
+     *
+     * @return true if the DATA packets of the client end with a checksum
+     */
+    boolean isChecksum() {
+        return false;
+    }
+
+    /**
+     * Returns true if the blocks that the client of this session sends are preceded by a
+     * compression flag
+     *
+     * @return true if the DATA packets of the client may be compressed
+     */
+    boolean isCompressed() {
+        return false;
+    }
+
+    /**
+     * Handles a DATA from the client of this session whose checksum did not match.
+     */
+    synchronized void onCorruptData() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Handles an ACK from the client of this session.
+     *
+     * @param message the ACK that was received
+     * @return false if the session has ended and must be removed from the session table
+     */
+    synchronized boolean onAck(AckMessage message) {
+        server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected ACK packet");
+        return false;
+    }
+
+    /**
+     * Handles an OACK from the client of this session, which carries the trailer of an upload.
+     *
+     * @param message the OACK that was received
+     * @return false if the session has ended and must be removed from the session table
+     */
+    synchronized boolean onTrailer(AckMessage message) {
+        server.sendError(channel, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected OACK packet");
+        return false;
+    }
+
+    /**
+     * Returns true once the transfer has finished
+     *
+     * @return true once the transfer has finished
+     */
+    abstract boolean isComplete();
+
+    /**
+     * Get the negotiated timeout of this transfer
+     *
+     * @return the timeout in milliseconds
+     */
+    abstract int getTimeout();
+
+    boolean isExpired(long now) {
+        return now - lastActivity > getTimeout();
+    }
+
+    /**
+     * Called when nothing has been heard from the client within the timeout.
+     *
+     * @return true if the session has given up and must be removed from the session table
+     */
+    abstract boolean expire();
+
+    /**
+     * Releases the resources of this session once it has been removed from the session table.
+     */
+    void close() {
+    }
+
+    protected void sendOack(List<MessageOption> options) {
+        try {
+            AckMessage message = new AckMessage(OpCode.OACK);
+            message.addOptionAll(options);
+            server.send(channel, client, message);
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    protected void sendAck(long block) {
+        try {
+            server.send(channel, client, new AckMessage(IdableMessage.toId(block)));
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        }
+    }
+}
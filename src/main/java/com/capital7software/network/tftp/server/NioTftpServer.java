@@ -0,0 +1,583 @@
+/*
+ * File: NioTftpServer.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.CorruptMessageException;
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.AckPolicy;
+import com.capital7software.network.tftp.Durability;
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.NetAscii;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.messages.*;
+import com.capital7software.network.util.BlockInfo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking alternative to the {@link TftpServer}. All transfers, downloads (RRQ) as well
+ * as uploads (WRQ), are served from the one listening port by a small number of event loop
+ * threads that share a single {@link DatagramChannel}. Incoming packets are routed to their
+ * transfer by the remote address that sent them, and each transfer is a {@link NioSession}
+ * state machine that only occupies a thread while it is handling a packet, so idle transfers
+ * cost a table entry rather than a blocked thread.
+ * <p>
+ * Nothing that may wait on the disk for long runs on the event loops, as it would stall every
+ * session of every loop. A request is opened on a small pool of worker threads, which may
+ * restore the file from the {@link UploadStorage} or hash it, and a received file is validated,
+ * published and forced there too, after which the worker sends the OACK or the final ACK. The
+ * blocks themselves are written on the event loops, so this engine does not write with direct
+ * I/O and does not force a file every so many blocks or bytes, it forces the file once when it
+ * is closed instead.
+ *
+ * @author Vincent Palodichuk
+ */
+public class NioTftpServer implements Runnable {
+    private static final Logger ERRORS = Logger.getLogger(NioTftpServer.class.getName());
+    private static final String DEFAULT_ERROR_MESSAGE = "An unknown error has occurred.";
+    private static final long SWEEP_INTERVAL = 1_000; // 1 second.
+    private static final long SHUTDOWN_WAIT_SECONDS = 10;
+    private static final int RECEIVE_BUFFER_SIZE = BlockInfo.MAX_BLOCK_SIZE + DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + DataMessage.CHECKSUM_SIZE;
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * The number of threads that open requests and finish received files
+     */
+    public static final int DEFAULT_WORKERS = 4;
+
+    private final int port;
+    private final int eventLoops;
+    private final Map<SocketAddress, NioSession> sessions = new ConcurrentHashMap<>();
+    private final Set<SocketAddress> opening = ConcurrentHashMap.newKeySet();
+    private final ExecutorService workers = Executors.newFixedThreadPool(DEFAULT_WORKERS, runnable -> {
+        Thread thread = new Thread(runnable, "tftp-nio-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Selector> selectors = new CopyOnWriteArrayList<>();
+    private volatile boolean isShutDown;
+    private volatile boolean verbose;
+    private Path root = Paths.get(System.getProperty("user.dir"));
+    private ServerConfig config;
+    private volatile BlockCache blockCache;
+    private volatile UploadStorage storage;
+    private final FileHashes fileHashes = new FileHashes();
+    private final GroupCommit groupCommit = new GroupCommit();
+
+    public NioTftpServer(ServerConfig config) {
+        this(config.getPort(), config.getEventLoops());
+        this.verbose = config.isVerbose();
+        this.root = config.getRoot();
+        this.config = config;
+    }
+
+    public NioTftpServer(int port, int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be greater than 0.");
+        }
+
+        this.port = port;
+        this.eventLoops = eventLoops;
+    }
+
+    public NioTftpServer(int port) {
+        this(port, DEFAULT_EVENT_LOOPS);
+    }
+
+    public NioTftpServer() {
+        this(TftpServer.DEFAULT_PORT);
+    }
+
+    @Override
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            if (config != null) {
+                blockCache = config.createBlockCache();
+                storage = config.createStorage();
+            }
+
+            if (config != null && config.getDirectThreshold() > 0) {
+                System.out.println("The selector engine writes the blocks on its event loops, so --direct is ignored.");
+            }
+            if (config != null && config.getDurability().getInterval() > 0) {
+                System.out.printf("The selector engine only forces a file when it is closed, so --durability=%s is forced as eof.%n", config.getDurability());
+            }
+
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+            System.out.printf("Serving port %d with %d event loop(s)%n", port, eventLoops);
+
+            List<Thread> loops = new ArrayList<>();
+
+            for (int i = 1; i < eventLoops; i++) {
+                final int index = i;
+                Thread loop = new Thread(() -> eventLoop(channel, index), "tftp-nio-" + index);
+                loop.start();
+                loops.add(loop);
+            }
+
+            eventLoop(channel, 0);
+
+            for (Thread loop : loops) {
+                loop.join();
+            }
+            System.out.println("Shutting down...");
+            workers.shutdown();
+            workers.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            if (blockCache != null) {
+                blockCache.printStats();
+            }
+            if (storage != null) {
+                storage.close();
+                storage.printStats();
+            }
+            groupCommit.close();
+            groupCommit.printStats();
+        } catch (IOException ex) {
+            ERRORS.log(Level.SEVERE, "Could not bind to port: " + port, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void shutDown() {
+        this.isShutDown = true;
+
+        for (Selector selector : selectors) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get the number of transfers that are currently in the session table
+     *
+     * @return the number of transfers that are currently in the session table
+     */
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Get the cache that downloads are served through
+     *
+     * @return the cache that downloads are served through or null if there is none
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Get the hashes of the files that were sent, so that a file is only hashed again once it
+     * changed
+     *
+     * @return the hashes of the files that were sent
+     */
+    public FileHashes getFileHashes() {
+        return fileHashes;
+    }
+
+    /**
+     * Get the storage that uploads are kept in
+     *
+     * @return the storage that uploads are kept in or null if they are written as files of their own
+     */
+    public UploadStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the coordinator that forces the received files of every session
+     *
+     * @return the coordinator that forces the received files of every session
+     */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    private ReceiveSettings newReceiveSettings() {
+        ReceiveSettings answer = config != null ? ReceiveSettings.fromConfig(config) : new ReceiveSettings();
+
+        // An event loop cannot wait on a disk writer, so every block is written before it is acknowledged
+        answer.setWriteBehind(0);
+        answer.setAckPolicy(AckPolicy.WRITTEN);
+        answer.setVerbose(verbose);
+        answer.setGroupCommit(groupCommit);
+        // Nor on a direct write or a force, so the file is only forced when a worker finishes it
+        answer.setDirectThreshold(0);
+        if (answer.getDurability().getInterval() > 0) {
+            answer.setDurability(new Durability(Durability.Mode.EOF, 0));
+        }
+
+        return answer;
+    }
+
+    /**
+     * Runs a task that may wait on the disk on a worker thread rather than on an event loop.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // The server is shutting down
+            ERRORS.log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Returns true if per-block progress is written to the console
+     *
+     * @return true if per-block progress is written to the console
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * When set to true, every block that is received and written is reported to the console.
+     *
+     * @param verbose true to report per-block progress to the console
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        NioTftpServer server = new NioTftpServer(ServerConfig.fromArgs(args));
+        Thread t = new Thread(server);
+        t.start();
+    }
+
+    private void eventLoop(DatagramChannel channel, int index) {
+        try (Selector selector = Selector.open()) {
+            selectors.add(selector);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+
+            while (!isShutDown) {
+                selector.select(SWEEP_INTERVAL);
+                selector.selectedKeys().clear();
+
+                // Every loop is woken for the same channel, so drain whatever the others left
+                SocketAddress source;
+                while ((source = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    dispatch(channel, source, buffer);
+                    buffer.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (index == 0 && now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        } catch (IOException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        } finally {
+            shutDown();
+        }
+    }
+
+    private void dispatch(DatagramChannel channel, SocketAddress source, ByteBuffer buffer) {
+        NioSession session = sessions.get(source);
+        Message msg;
+
+        try {
+            if (session != null && (session.isChecksum() || session.isCompressed()) && buffer.limit() > 1 && buffer.get(1) == OpCode.DATA.getValue()) {
+                // The checksum is verified and removed, and the block decompressed, as the DATA is parsed
+                DataMessage data = new DataMessage();
+                data.setChecksum(session.isChecksum());
+                data.setCompressed(session.isCompressed());
+                data.fromPayload(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                msg = data;
+            } else if (session != null && session.isChecksum() && buffer.limit() > 1
+                    && (buffer.get(1) == OpCode.HOLE.getValue() || buffer.get(1) == OpCode.KEEP.getValue())) {
+                RunMessage run = buffer.get(1) == OpCode.HOLE.getValue() ? new HoleMessage() : new KeepMessage();
+                run.setChecksum(true);
+                run.fromPayload(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                msg = run;
+            } else {
+                msg = MessageFactory.getMessage(buffer.array(), buffer.arrayOffset(), buffer.limit());
+            }
+        } catch (CorruptMessageException ex) {
+            session.onCorruptData();
+            return;
+        } catch (TftpException | RuntimeException ex) {
+            msg = null;
+        }
+
+        if (msg == null) {
+            sendError(channel, source, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unknown packet");
+            return;
+        }
+
+        switch (msg.getOpCode()) {
+            case RRQ, WRQ -> {
+                if (session != null && !session.isComplete()) {
+                    session.onRequest();
+                } else {
+                    open(channel, source, (FileMessage) msg);
+                }
+            }
+            case DATA -> {
+                if (session == null) {
+                    sendError(channel, source, ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                } else if (!session.onData((DataMessage) msg)) {
+                    remove(source, session);
+                }
+            }
+            case HOLE, KEEP -> {
+                if (session == null) {
+                    sendError(channel, source, ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                } else if (!session.onRun((RunMessage) msg)) {
+                    remove(source, session);
+                }
+            }
+            case ACK -> {
+                if (session == null) {
+                    sendError(channel, source, ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                } else if (!session.onAck((AckMessage) msg)) {
+                    remove(source, session);
+                }
+            }
+            case OACK -> {
+                if (session == null) {
+                    sendError(channel, source, ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                } else if (!session.onTrailer((AckMessage) msg)) {
+                    remove(source, session);
+                }
+            }
+            case ERROR -> {
+                if (session != null) {
+                    ErrorMessage error = (ErrorMessage) msg;
+                    System.out.printf("Transfer with %s aborted by the client: %s%n", source,
+                            error.getMsg() != null ? error.getMsg().getValue() : error.getErrorCode());
+                    remove(source, session);
+                }
+            }
+            default -> sendError(channel, source, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected packet");
+        }
+    }
+
+    private void open(DatagramChannel channel, SocketAddress source, FileMessage request) {
+        NioSession existing = sessions.get(source);
+
+        if (existing != null && !existing.isComplete()) {
+            existing.onRequest();
+            return;
+        }
+
+        // A request that the client sent again while the first one is being opened is dropped, the OACK answers both
+        if (opening.add(source)) {
+            execute(() -> {
+                try {
+                    openSession(channel, source, request);
+                } finally {
+                    opening.remove(source);
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens the session of a request on a worker thread, as the file may have to be restored,
+     * hashed or created first, and starts it once it is in the session table.
+     */
+    private void openSession(DatagramChannel channel, SocketAddress source, FileMessage request) {
+        try {
+            NioSession session = request.getOpCode() == OpCode.RRQ
+                    ? openRead(channel, source, request)
+                    : openWrite(channel, source, request);
+
+            if (session != null) {
+                NioSession previous = sessions.put(source, session);
+                if (previous != null) {
+                    previous.close();
+                }
+                session.start();
+            }
+        } catch (NumberFormatException ex) {
+            sendError(channel, source, ErrorCode.ILLEGAL_TFTP_OPERATION, "Invalid option value.");
+        } catch (IOException ex) {
+            sendError(channel, source, ErrorCode.NOT_DEFINED, ex.getMessage());
+            ERRORS.log(Level.WARNING, null, ex);
+        }
+    }
+
+    private NioSession openWrite(DatagramChannel channel, SocketAddress source, FileMessage request) throws IOException {
+        TransferOptions options = TransferOptions.fromRequest(request);
+        String file = request.getFilename().getValue();
+
+        if (options.getDurability() != null && options.getDurability().getInterval() > 0) {
+            // The blocks are written on the event loops, which must not wait on a force
+            options.refuseDurability();
+        }
+
+        if (storage != null) {
+            if (TransferOptions.isStored(request) && options.getMd5() != null && options.getFileSize() >= 0
+                    && storage.link(file, options.getFileSize(), options.getMd5())) {
+                // The content is already here, so the OACK ends the transfer
+                System.out.printf("File %s from %s is already stored, nothing to receive.%n", file, source);
+                options.acceptStored();
+                sendOack(channel, source, options.getAccepted());
+                return null;
+            }
+
+            UploadStorage.Upload upload = storage.stage(file, options.getFileSize());
+            System.out.printf("Preparing to receive %s from %s in %s mode%n", file, source, request.getMode().getValue());
+            return new NioReceiveSession(this, channel, source,
+                    new ReceiveTransfer(upload.getFilename(), options, newReceiveSettings(), null, upload));
+        }
+        String base = TftpServer.targetOf(file);
+        StagedFile staged = StagedFile.create(file);
+
+        if (staged == null && Files.exists(Paths.get(base)) && options.isDelta()) {
+            String realFile = TftpServer.prepareDelta(base);
+
+            if (realFile == null) {
+                System.out.printf("File %s is already being received.%n", file);
+                sendError(channel, source, ErrorCode.FILE_ALREADY_EXISTS, "The file is already being received by this server.");
+                return null;
+            }
+
+            DeltaBase delta;
+            try {
+                delta = new DeltaBase(Paths.get(base), options.getBlockSize(), options.getDigestAlgorithm());
+            } catch (IOException ex) {
+                Files.deleteIfExists(Paths.get(realFile));
+                throw ex;
+            }
+            options.acceptDelta(delta.getNumBlocks());
+
+            System.out.printf("Preparing to receive %s from %s in %s mode%n", file, source, request.getMode().getValue());
+            return new NioReceiveSession(this, channel, source, new ReceiveTransfer(realFile, options, newReceiveSettings(), delta, null));
+        } else if (staged == null && Files.exists(Paths.get(base))) {
+            System.out.printf("File %s already exists.%n", file);
+            sendError(channel, source, ErrorCode.FILE_ALREADY_EXISTS, "The file already exists on this server.");
+            return null;
+        } else if (staged == null) {
+            System.out.printf("File %s is already being received.%n", file);
+            sendError(channel, source, ErrorCode.FILE_ALREADY_EXISTS, "The file is already being received by this server.");
+            return null;
+        } else if (!staged.reserve(options.getFileSize())) {
+            System.out.printf(TftpServer.DISK_FULL_MSG, file, options.getFileSize());
+            sendError(channel, source, ErrorCode.DISK_FULL, "There is not enough room on this server for the file.");
+            return null;
+        }
+
+        System.out.printf("Preparing to receive %s from %s in %s mode%n", file, source, request.getMode().getValue());
+        return new NioReceiveSession(this, channel, source,
+                new ReceiveTransfer(staged.getFilename(), options, newReceiveSettings(), null, staged));
+    }
+
+    private NioSession openRead(DatagramChannel channel, SocketAddress source, FileMessage request) throws IOException {
+        String file = request.getFilename().getValue();
+        Path path = TftpServer.resolveFile(root, file);
+
+        if (path == null) {
+            sendError(channel, source, ErrorCode.ACCESS_VIOLATION, "The file is outside of the served directory.");
+            return null;
+        }
+
+        if (!Files.isRegularFile(path) && storage != null) {
+            Path stored = storage.restore(file);
+            path = stored != null ? stored : path;
+        }
+
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            System.out.printf("File %s was not found.%n", file);
+            sendError(channel, source, ErrorCode.FILE_NOT_FOUND, "The file was not found on this server.");
+            return null;
+        }
+
+        TransferOptions options = TransferOptions.fromReadRequest(request, path, fileHashes);
+        System.out.printf("Preparing to send %s to %s in %s mode%n", file, source, request.getMode().getValue());
+        return new NioSendSession(this, channel, source, new SendTransfer(path, options, blockCache), path.toString());
+    }
+
+    void remove(SocketAddress source, NioSession session) {
+        if (sessions.remove(source, session)) {
+            session.close();
+        }
+    }
+
+    private void sweep(long now) {
+        for (Map.Entry<SocketAddress, NioSession> entry : sessions.entrySet()) {
+            NioSession session = entry.getValue();
+
+            if (session.isExpired(now) && session.expire()) {
+                remove(entry.getKey(), session);
+            }
+        }
+    }
+
+    void send(DatagramChannel channel, SocketAddress dest, Message message) {
+        try {
+            if (channel.send(ByteBuffer.wrap(message.getPayload()), dest) == 0) {
+                ERRORS.log(Level.FINE, "Send buffer full, dropped a {0} for {1}", new Object[]{message.getOpCode(), dest});
+            }
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, null, ex);
+        }
+    }
+
+    void send(DatagramChannel channel, SocketAddress dest, ByteBuffer packet) {
+        try {
+            if (channel.send(packet, dest) == 0) {
+                ERRORS.log(Level.FINE, "Send buffer full, dropped a packet for {0}", dest);
+            }
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, null, ex);
+        }
+    }
+
+    void sendOack(DatagramChannel channel, SocketAddress dest, List<MessageOption> options) {
+        try {
+            AckMessage message = new AckMessage(OpCode.OACK);
+            message.addOptionAll(options);
+            send(channel, dest, message);
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    void sendError(DatagramChannel channel, SocketAddress dest, ErrorCode code, String msg) {
+        ErrorMessage message = new ErrorMessage();
+
+        message.setErrorCode(code);
+        if (msg == null || msg.isEmpty()) {
+            msg = DEFAULT_ERROR_MESSAGE;
+        }
+
+        message.setMsg(new NetAscii(msg));
+        send(channel, dest, message);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * File: ReceiveSettings.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.tftp.AckPolicy;
+import com.capital7software.network.tftp.Durability;
+
+/**
+ * The settings of the server that decide how a {@link ReceiveTransfer} writes its file. The
+ * policy and the durability are only used when the client did not negotiate them. A new
+ * instance writes every block before it is acknowledged, through the page cache, and leaves
+ * forcing the file to the operating system.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ReceiveSettings {
+    private boolean verbose;
+    private int writeBehind;
+    private AckPolicy ackPolicy = AckPolicy.WRITTEN;
+    private Durability durability = Durability.NONE;
+    private GroupCommit groupCommit;
+    private long directThreshold;
+
+    /**
+     * Copies the settings of a transfer from the startup settings of a server. The coordinator
+     * of the forces belongs to the server, so it is not set.
+     *
+     * @param config the startup settings of the server
+     * @return the settings of the transfers that the server receives
+     */
+    public static ReceiveSettings fromConfig(ServerConfig config) {
+        ReceiveSettings answer = new ReceiveSettings();
+
+        answer.setVerbose(config.isVerbose());
+        answer.setWriteBehind(config.getWriteBehind());
+        answer.setAckPolicy(config.getAckPolicy());
+        answer.setDurability(config.getDurability());
+        answer.setDirectThreshold(config.getDirectThreshold());
+
+        return answer;
+    }
+
+    /**
+     * Returns true if every block written is reported to the console
+     *
+     * @return true if every block written is reported to the console
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Get the number of blocks that may be waiting for the disk writer
+     *
+     * @return the number of blocks, or 0 if every block is written before
+     * {@link ReceiveTransfer#write(com.capital7software.network.tftp.messages.DataMessage)} returns
+     */
+    public int getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(int writeBehind) {
+        this.writeBehind = Math.max(0, writeBehind);
+    }
+
+    /**
+     * Get the policy used when the client did not negotiate one
+     *
+     * @return the policy that decides when a block may be acknowledged
+     */
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    public void setAckPolicy(AckPolicy ackPolicy) {
+        this.ackPolicy = ackPolicy != null ? ackPolicy : AckPolicy.WRITTEN;
+    }
+
+    /**
+     * Get the durability used when the client did not negotiate one
+     *
+     * @return when the file is forced to the storage device
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability != null ? durability : Durability.NONE;
+    }
+
+    /**
+     * Get the coordinator that forces the file along with the files of the other transfers
+     *
+     * @return the coordinator or null to force the file directly
+     */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    public void setGroupCommit(GroupCommit groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * Get the size from which the file is written with direct I/O
+     *
+     * @return the size in bytes, or 0 to always write the file through the page cache
+     */
+    public long getDirectThreshold() {
+        return directThreshold;
+    }
+
+    public void setDirectThreshold(long directThreshold) {
+        this.directThreshold = Math.max(0, directThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiveSettings{" + "writeBehind = " + writeBehind + ", ackPolicy = " + ackPolicy + ", durability = " + durability
+                + ", directThreshold = " + directThreshold + '}';
+    }
+}
@@ -0,0 +1,683 @@
+/*
+ * File: ReceiveTransfer.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.AckPolicy;
+import com.capital7software.network.tftp.Durability;
+import com.capital7software.network.tftp.messages.AckMessage;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.HoleMessage;
+import com.capital7software.network.tftp.messages.KeepMessage;
+import com.capital7software.network.tftp.messages.MessageOption;
+import com.capital7software.network.tftp.messages.MessageOptionCode;
+import com.capital7software.network.tftp.messages.RunMessage;
+import com.capital7software.network.util.BlockWriter;
+import com.capital7software.network.util.Digest;
+import com.capital7software.network.util.MerkleTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The receiving side of a single WRQ, independent of how the DATA messages arrive. The blocking
+ * and the selector based engines both feed the blocks of a transfer through this class, which
+ * writes them to the file in order and validates the result once the last block has arrived.
+ * The last block is the one with the number of blocks that the client announced, or, when it
+ * announced none, the first block shorter than the block size, as in plain TFTP.
+ * The file is opened by a {@link BlockWriter} when the first block arrives and stays open until
+ * the transfer is finished or closed. When the client announced the size of the file, the file
+ * is mapped into memory.
+ * <p>
+ * A block is written before it is acknowledged, unless the {@link AckPolicy} of the transfer is
+ * {@link AckPolicy#QUEUED} and the server has a write-behind depth. The blocks are then handed
+ * to a {@link WriteBehind} disk writer and acknowledged as soon as they are queued.
+ * <p>
+ * The {@link Durability} of the transfer decides when the file is forced to the storage device:
+ * every so many blocks or bytes, or only when the file is closed. Either way the file is forced
+ * when it is closed by {@link #finish()}, which the engines run before the final ACK. The forces go through the {@link GroupCommit} of the server, if it has one, and the
+ * time spent waiting on them is reported when the file is closed. An upload that was staged by
+ * an {@link UploadStorage} is made durable by the storage when it is published, which for an
+ * upload that is received in memory is the first time that it reaches a file.
+ * <p>
+ * A file whose announced size is at least the direct I/O threshold of the server is written
+ * with direct I/O, see {@link BlockWriter}, so that a large upload that nobody reads right away
+ * does not push the files that are being served out of the page cache.
+ * <p>
+ * The hash of the file, in the algorithm negotiated with the talg option, is updated as the
+ * blocks are written in order, so the file is validated the moment the last block arrives
+ * instead of being read back from disk. A client that streams the file without hashing it
+ * first sends the hash in a trailer instead, see
+ * {@link #finish(AckMessage)}.
+ * <p>
+ * When the file is validated with a Merkle tree, the hash of every block is kept instead, so
+ * that the blocks that differ from those of the client can be found and written again with
+ * {@link #rewrite(DataMessage)}, see {@link MerkleResync}.
+ * <p>
+ * A delta upload of a file that the server already has is written to a file of its own, with
+ * the blocks that the client kept copied from the {@link DeltaBase}. The new version only
+ * replaces the existing file once it has been validated. In the same way, a file that was
+ * staged by an {@link UploadStorage} is only handed to the storage once it has been validated.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ReceiveTransfer implements Closeable {
+    /**
+     * How far ahead of the expected block a block may arrive and still be kept
+     */
+    public static final int REORDER_WINDOW = 8;
+    public static final String DURABILITY_MSG = "Durability of %s is %s: %d force(s), %.1f ms waiting on them%n";
+    public static final String DIRECT_MSG = "Writing %s with direct I/O%n";
+    public static final String DIRECT_STATS_MSG = "Wrote %d of %d byte(s) of %s with direct I/O%n";
+
+    private final String filename;
+    private final TransferOptions options;
+    private final boolean verbose;
+    private final int writeBehind;
+    private final AckPolicy ackPolicy;
+    private final Digest digest;
+    private final Digest leafDigest;
+    private final byte[][] leaves;
+    private final Map<Long, DataMessage> pending = new HashMap<>();
+    private final DeltaBase delta;
+    private final UploadStorage.Upload upload;
+    private final Durability durability;
+    private final GroupCommit groupCommit;
+    private final long directThreshold;
+    private BlockWriter writer;
+    private WriteBehind pipeline;
+    private long nextBlock = 1;
+    private long lastBlock;
+    private long holeEnd;
+    private byte[] zeros;
+    private byte[] zeroLeaf;
+    private boolean committed;
+    private long lastSequence;
+    private long unforcedBlocks;
+    private long unforcedBytes;
+    private long forces;
+    private long forceNanos;
+
+    /**
+     * Initializes a transfer that writes to the specified file.
+     *
+     * @param filename the full path of the local file that the data is written to
+     * @param options the negotiated options of the transfer
+     * @param settings the settings of the server that decide how the file is written
+     * @param delta the copy of the file that a delta upload is built from, which this transfer
+     * closes, or null if the file is uploaded in full
+     * @param upload the upload that the file was staged for by an {@link UploadStorage}, which
+     * the file is handed to once it has been validated, or null if the file is kept where it is
+     */
+    public ReceiveTransfer(String filename, TransferOptions options, ReceiveSettings settings, DeltaBase delta, UploadStorage.Upload upload) {
+        this.delta = delta;
+        this.upload = upload;
+        this.filename = filename;
+        this.options = options;
+        this.verbose = settings.isVerbose();
+        this.writeBehind = settings.getWriteBehind();
+        this.ackPolicy = options.getAckPolicy() != null ? options.getAckPolicy() : settings.getAckPolicy();
+        this.durability = options.getDurability() != null ? options.getDurability() : settings.getDurability();
+        this.groupCommit = settings.getGroupCommit();
+        this.directThreshold = settings.getDirectThreshold();
+        this.digest = options.getFileHash() != null || options.isTrailer() && !options.isMerkle() ? options.getDigestAlgorithm().newDigest() : null;
+        this.leafDigest = options.isMerkle() ? options.getDigestAlgorithm().newDigest() : null;
+        // A Merkle tree is only accepted for transfers whose blocks can be counted with an int
+        this.leaves = options.isMerkle() ? new byte[(int) Math.max(0, options.getNumBlocks())][] : null;
+        this.lastBlock = options.getNumBlocks();
+    }
+
+    /**
+     * Get the id of the block that is expected next
+     *
+     * @return the id of the block that is expected next
+     */
+    public long getNextBlock() {
+        return nextBlock;
+    }
+
+    /**
+     * Returns true once every block of the transfer has been written
+     *
+     * @return true once every block of the transfer has been written
+     */
+    public boolean isComplete() {
+        return lastBlock >= 0 && nextBlock > lastBlock;
+    }
+
+    /**
+     * Get the id of the last block of the transfer
+     *
+     * @return the id of the last block, or -1 if the client did not announce the number of
+     * blocks and the short block that ends the file has not arrived yet
+     */
+    public long getLastBlock() {
+        return lastBlock;
+    }
+
+    /**
+     * Get the negotiated options of this transfer
+     *
+     * @return the negotiated options of this transfer
+     */
+    public TransferOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Get the policy that decides when a block may be acknowledged
+     *
+     * @return the policy that decides when a block may be acknowledged
+     */
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    /**
+     * Get the durability that decides when the file is forced to the storage device
+     *
+     * @return the durability of this transfer
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Get the disk writer of this transfer
+     *
+     * @return the disk writer or null if the blocks are written synchronously or no block has
+     * been written yet
+     */
+    public WriteBehind getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Get the full path of the local file that the data is written to
+     *
+     * @return the full path of the local file that the data is written to
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get the number of the block of the specified message. Only the low 32 bits of the number
+     * are sent, so the number is the one closest to the block that is expected next.
+     *
+     * @param message the DATA message that holds the block
+     * @return the number of the block
+     */
+    public long blockOf(DataMessage message) {
+        return message.getBlockNumber(nextBlock);
+    }
+
+    /**
+     * Returns true if the block with the specified id can be passed to {@link #write(DataMessage)}:
+     * it is the block that is expected next or one that arrived ahead of it but within the
+     * reorder window.
+     *
+     * @param id the id of the block
+     * @return true if the block can be written
+     */
+    public boolean accepts(long id) {
+        return id >= nextBlock && id < nextBlock + REORDER_WINDOW && (lastBlock < 0 || id <= lastBlock);
+    }
+
+    /**
+     * Writes the block of the specified message to the file. A block that arrived ahead of the
+     * one that is expected next is held until the gap is filled, after which the run is written
+     * in order. Once this method returns, every block before {@link #getNextBlock()} may be
+     * acknowledged.
+     *
+     * @param message the DATA message that holds the block
+     * @throws TftpException if the block is not accepted or could not be written
+     */
+    public void write(DataMessage message) throws TftpException {
+        long id = blockOf(message);
+
+        if (!accepts(id)) {
+            throw new TftpException("Unexpected block number received");
+        }
+
+        if (lastBlock < 0 && (message.getBlock() == null || message.getBlock().length < options.getBlockSize())) {
+            // Without a block count, the file ends with the first block that is not full
+            lastBlock = id;
+            pending.keySet().removeIf(held -> held > id);
+        }
+
+        if (id != nextBlock) {
+            if (verbose) {
+                System.out.printf("Holding block %d until block %d arrives%n", id, nextBlock);
+            }
+            pending.put(id, message);
+            return;
+        }
+
+        store(id, message.getBlock());
+        nextBlock++;
+        drain();
+    }
+
+    /**
+     * Writes a run of blocks that the client did not send, see {@link #writeHole(HoleMessage)}
+     * and {@link #writeKeep(KeepMessage)}.
+     *
+     * @param message the HOLE or KEEP message that describes the run
+     * @throws TftpException if the run could not be written
+     */
+    public void writeRun(RunMessage message) throws TftpException {
+        if (message instanceof KeepMessage keep) {
+            writeKeep(keep);
+        } else {
+            writeHole((HoleMessage) message);
+        }
+    }
+
+    /**
+     * Skips a run of blocks that are all zeros. The run is not written, so it reads as zeros
+     * and takes no space on most file systems, but it still goes through the digests of the
+     * file. Once this method returns, every block before {@link #getNextBlock()} may be
+     * acknowledged.
+     *
+     * @param message the HOLE message that describes the run
+     * @throws TftpException if the run does not start with the block that is expected next, or
+     * includes the last block, which is always sent as a DATA message
+     */
+    public void writeHole(HoleMessage message) throws TftpException {
+        long first = message.getBlockNumber(nextBlock);
+        long count = message.getCount();
+
+        if (!options.isHoles() || first != nextBlock || count < 1 || lastBlock >= 0 && first + count > lastBlock) {
+            throw new TftpException("Unexpected block number received");
+        }
+
+        long offset = (first - 1) * options.getBlockSize();
+        long end = offset + count * options.getBlockSize();
+
+        if (verbose) {
+            System.out.printf((TftpServer.SKIPPING_MSG), first, first + count - 1, offset, end - 1);
+        }
+
+        if (digest != null || leaves != null) {
+            if (zeros == null) {
+                zeros = new byte[options.getBlockSize()];
+                if (leaves != null) {
+                    leafDigest.update(zeros);
+                    zeroLeaf = leafDigest.digest();
+                }
+            }
+
+            for (long id = first; id < first + count; id++) {
+                if (digest != null) {
+                    digest.update(zeros);
+                }
+                if (leaves != null && id <= leaves.length) {
+                    leaves[(int) id - 1] = zeroLeaf;
+                }
+            }
+        }
+
+        try {
+            openWriter();
+        } catch (IOException ex) {
+            throw new TftpException(ex.getMessage(), ex);
+        }
+
+        holeEnd = Math.max(holeEnd, end);
+        nextBlock += count;
+        drain();
+    }
+
+    /**
+     * Copies a run of blocks that are the same as those of the copy that the server already
+     * has. Once this method returns, every block before {@link #getNextBlock()} may be
+     * acknowledged.
+     *
+     * @param message the KEEP message that describes the run
+     * @throws TftpException if this is not a delta upload, the run does not start with the
+     * block that is expected next, includes the last block or a block that the copy does not
+     * have in full, or could not be written
+     */
+    public void writeKeep(KeepMessage message) throws TftpException {
+        long first = message.getBlockNumber(nextBlock);
+        long count = message.getCount();
+
+        if (delta == null || first != nextBlock || count < 1 || lastBlock >= 0 && first + count > lastBlock) {
+            throw new TftpException("Unexpected block number received");
+        }
+
+        if (verbose) {
+            System.out.printf((TftpServer.KEEPING_MSG), first, first + count - 1, (first - 1) * options.getBlockSize());
+        }
+
+        for (long id = first; id < first + count; id++) {
+            // Every block gets an array of its own, as the disk writer takes it over
+            byte[] block = new byte[options.getBlockSize()];
+            delta.read(id, block);
+            store(id, block);
+        }
+
+        nextBlock += count;
+        drain();
+    }
+
+    /**
+     * Answers a request of the client for the hashes of the blocks of the copy that a delta
+     * upload is built from.
+     *
+     * @param request the OACK that the client sent
+     * @return the OACK to send back or null if this is not a delta upload or the OACK is not a
+     * request for hashes
+     * @throws TftpException if the request could not be read
+     */
+    public AckMessage answerDigests(AckMessage request) throws TftpException {
+        return delta != null && DeltaBase.isRequest(request) ? delta.answer(request) : null;
+    }
+
+    private void drain() throws TftpException {
+        DataMessage next;
+        while ((next = pending.remove(nextBlock)) != null) {
+            store(nextBlock, next.getBlock());
+            nextBlock++;
+        }
+
+        if (durability.isDue(unforcedBlocks, unforcedBytes)) {
+            try {
+                forceFile();
+            } catch (IOException ex) {
+                throw new TftpException(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Forces every block that was written since the last force to the storage device.
+     */
+    private void forceFile() throws IOException {
+        if (writer == null || unforcedBlocks == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (pipeline != null) {
+            // The disk writer may still hold some of the blocks
+            pipeline.awaitWritten(lastSequence);
+        }
+        if (groupCommit != null) {
+            groupCommit.force(writer);
+        } else {
+            writer.force();
+        }
+        forceNanos += System.nanoTime() - start;
+        forces++;
+        unforcedBlocks = 0;
+        unforcedBytes = 0;
+    }
+
+    private void openWriter() throws IOException {
+        if (writer == null) {
+            boolean direct = directThreshold > 0 && options.getFileSize() >= directThreshold;
+            writer = upload != null ? upload.open(options.getFileSize(), direct) : new BlockWriter(Paths.get(filename), options.getFileSize(), direct);
+            if (writer.isDirect()) {
+                System.out.printf(DIRECT_MSG, filename);
+            }
+            if (writeBehind > 0 && ackPolicy == AckPolicy.QUEUED) {
+                // Only a block that may be acknowledged before it is written gains from the disk writer
+                pipeline = new WriteBehind(writer, writeBehind);
+            }
+        }
+    }
+
+    /**
+     * Writes a block that the client sent again because its hash did not match, once every
+     * block has been written. The block replaces what was written for it before.
+     *
+     * @param message the DATA message that holds the block
+     * @throws TftpException if the block is not part of the file or could not be written
+     */
+    public void rewrite(DataMessage message) throws TftpException {
+        long id = blockOf(message);
+
+        if (id < 1 || id >= nextBlock) {
+            throw new TftpException("Unexpected block number received");
+        }
+
+        store(id, message.getBlock());
+    }
+
+    /**
+     * Builds the Merkle tree over the hashes of the blocks that have been written so far.
+     *
+     * @return the tree or null if the file is not validated with a Merkle tree
+     */
+    public MerkleTree getMerkleTree() {
+        return leaves != null ? MerkleTree.fromLeaves(options.getDigestAlgorithm(), leaves) : null;
+    }
+
+    private void store(long id, byte[] buffer) throws TftpException {
+        long offset = (id - 1) * options.getBlockSize();
+        long end = buffer != null ? offset + (long) buffer.length : offset;
+
+        if (offset < 0) {
+            System.out.println("Overflow error. Exiting...");
+            throw new TftpException("Overflow error!");
+        }
+
+        if (verbose) {
+            System.out.printf((TftpServer.RECEIVING_MSG), id, offset, end - 1);
+        }
+
+        if (leaves != null && id <= leaves.length) {
+            if (buffer != null) {
+                leafDigest.update(buffer);
+            }
+            leaves[(int) id - 1] = leafDigest.digest();
+        }
+
+        if (buffer != null && buffer.length > 0) {
+            if (digest != null) {
+                digest.update(buffer);
+            }
+
+            try {
+                openWriter();
+
+                if (pipeline != null) {
+                    // The array of the message is not used again, so it is handed over as it is
+                    lastSequence = pipeline.submit(offset, buffer, buffer.length);
+                } else {
+                    writer.write(offset, buffer, 0, buffer.length);
+                }
+                unforcedBlocks++;
+                unforcedBytes += buffer.length;
+                if (ackPolicy == AckPolicy.SYNCED) {
+                    forceFile();
+                }
+            } catch (IOException ex) {
+                throw new TftpException(ex.getMessage(), ex);
+            }
+        }
+
+        if (verbose) {
+            System.out.printf((TftpServer.WRITING_MSG), id, offset, end - 1);
+        }
+    }
+
+    /**
+     * Validates the received file against the hash that was sent with the request, once the
+     * file has been closed.
+     *
+     * @return false if the validation failed, true if it passed or if there was no hash to
+     * validate against
+     */
+    public boolean finish() {
+        return finish(options.getFileHash());
+    }
+
+    /**
+     * Validates the received file against the hash in the specified trailer, once the file
+     * has been closed.
+     *
+     * @param trailer the OACK that the client sent after the last block was acknowledged
+     * @return false if the validation failed or the trailer has no hash, true if it passed
+     * @throws TftpException if the options of the trailer could not be read
+     */
+    public boolean finish(AckMessage trailer) throws TftpException {
+        for (MessageOption option : trailer.getOptions()) {
+            String name = option.getName().getValue();
+
+            if (Objects.equals(name, MessageOptionCode.FILE_MD5.getValue()) || Objects.equals(name, MessageOptionCode.FILE_HASH.getValue())) {
+                return finish(option.getValue().getValue());
+            }
+        }
+
+        System.out.printf("The trailer for the received file %s has no %s Hash.%n", filename, options.getDigestAlgorithm());
+        return false;
+    }
+
+    /**
+     * Closes the file once the Merkle root of the file has been compared, and reports the
+     * outcome.
+     *
+     * @param validated true if the root of the file matched the root of the client
+     * @return false if the validation failed or the file could not be closed, true otherwise
+     */
+    public boolean finish(boolean validated) {
+        try {
+            closeFile();
+        } catch (IOException ex) {
+            System.out.printf("Unable to close the received file %s: %s%n", filename, ex.getMessage());
+            return false;
+        }
+
+        System.out.printf(validated ? "%s Merkle root validated for the received file %s.%n" : "%s Merkle root validation failed for the received file %s.%n",
+                options.getDigestAlgorithm(), filename);
+        return validated && commit();
+    }
+
+    private boolean finish(String hash) {
+        try {
+            closeFile();
+        } catch (IOException ex) {
+            System.out.printf("Unable to close the received file %s: %s%n", filename, ex.getMessage());
+            return false;
+        }
+
+        if (hash == null) {
+            System.out.printf("Skipping %s Hash validation.%n", options.getDigestAlgorithm());
+            return commit();
+        }
+
+        // Every block went through the digest in order, so the file does not have to be read back
+        String fileHash = digest.finish();
+
+        if (hash.compareToIgnoreCase(fileHash) != 0) {
+            System.out.printf("%s Hash validation failed for the received file %s.%n", options.getDigestAlgorithm(), filename);
+            return false;
+        }
+
+        System.out.printf("%s Hash validated for the received file %s.%n", options.getDigestAlgorithm(), filename);
+        return commit();
+    }
+
+    /**
+     * Replaces the file that a delta upload was built from with the new version, or hands the
+     * file to the storage that staged it, once the file has been validated.
+     *
+     * @return false if the file could not be replaced or stored, true otherwise
+     */
+    private boolean commit() {
+        if (delta == null && upload == null || committed) {
+            return true;
+        }
+
+        try {
+            if (upload != null) {
+                // Where the upload ends up is up to the storage, and so is making it durable there
+                upload.publish(durability.isForced());
+            } else {
+                Files.move(Paths.get(filename), delta.getFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                System.out.printf("The received file %s replaced %s.%n", filename, delta.getFile());
+            }
+            committed = true;
+            if (durability.isForced() && delta != null) {
+                // The rename is only durable once the directory is
+                BlockWriter.forceDirectory(delta.getFile().toAbsolutePath().getParent());
+            }
+            return true;
+        } catch (IOException ex) {
+            System.out.printf("Unable to keep the received file %s: %s%n", filename, ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Closes the file of this transfer. The file of a delta upload that was not validated is
+     * deleted, leaving the copy that it was built from as it was, as is the file of an upload
+     * that was staged by an {@link UploadStorage}. Safe to call more than once.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            closeFile();
+        } finally {
+            if (delta != null) {
+                delta.close();
+                if (!committed) {
+                    Files.deleteIfExists(Paths.get(filename));
+                }
+            }
+            if (upload != null && !committed) {
+                upload.discard();
+            }
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (writer != null) {
+            BlockWriter current = writer;
+            WriteBehind stage = pipeline;
+            writer = null;
+            pipeline = null;
+
+            try (current) {
+                if (stage != null) {
+                    stage.close();
+                    stage.printStats(filename);
+                }
+                // A file that ends with a hole is only as long as its last block until then
+                if (holeEnd > current.getLength()) {
+                    current.extend(holeEnd);
+                    // The length is written through the file, so it has to be forced like a block
+                    unforcedBlocks++;
+                }
+                // The gathered blocks and the final length go to the file before it is forced
+                if (current.finish()) {
+                    unforcedBlocks++;
+                }
+                if (current.isDirect()) {
+                    System.out.printf(DIRECT_STATS_MSG, current.getDirectLength(), current.getLength(), filename);
+                }
+                if (durability.isForced()) {
+                    writer = current;
+                    try {
+                        forceFile();
+                    } finally {
+                        writer = null;
+                    }
+                    System.out.printf(DURABILITY_MSG, filename, durability, forces, forceNanos / 1_000_000.0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * File: RestoredFiles.java
+ */
+package com.capital7software.network.tftp.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files that an {@link UploadStorage} put together so that they can be downloaded like any
+ * other file. The copies are only a cache of content that the storage keeps in another form, so
+ * the least recently used copies are deleted once they take more than the capacity of the
+ * directory, and the directory is emptied when the storage is opened.
+ * <p>
+ * A copy is only deleted once it has not been handed out for a while, as a session opens its
+ * file some time after the copy was handed to it. Once the file is open, deleting it does not
+ * disturb the download on the platforms the server runs on.
+ *
+ * @author Vincent Palodichuk
+ */
+public class RestoredFiles {
+    private static final Logger ERRORS = Logger.getLogger(RestoredFiles.class.getName());
+
+    /**
+     * The number of bytes of copies that are kept when no capacity is specified
+     */
+    public static final long DEFAULT_CAPACITY = 256L * 1024L * 1024L; // 256 MB
+
+    /**
+     * The number of milliseconds after it was handed out that a copy is never deleted
+     */
+    public static final long DEFAULT_IN_USE_MS = 60_000;
+
+    private final Path directory;
+    private final long capacity;
+    private final long inUseMillis;
+
+    /**
+     * Opens the cache in the specified directory, deleting the copies that are already there.
+     *
+     * @param directory the directory of the copies
+     * @param capacity the number of bytes of copies that are kept
+     * @param inUseMillis the number of milliseconds after it was handed out that a copy is
+     * never deleted
+     * @throws IOException if the directory could not be created or emptied
+     */
+    public RestoredFiles(Path directory, long capacity, long inUseMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.capacity = Math.max(0, capacity);
+        this.inUseMillis = Math.max(0, inUseMillis);
+
+        for (Path file : list()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Get the copy with the specified key, if there is one, and marks it as used.
+     *
+     * @param key the key of the content
+     * @return the copy or null if the content has not been put together
+     * @throws IOException if the copy could not be marked as used
+     */
+    public synchronized Path get(String key) throws IOException {
+        Path answer = directory.resolve(key);
+
+        try {
+            touch(answer);
+            return answer;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves a file that was put together into the cache under the specified key. If another
+     * download put the same content together first, that copy is kept and the file is deleted.
+     *
+     * @param key the key of the content
+     * @param file the file that was put together, on the same file system as the cache
+     * @return the copy
+     * @throws IOException if the file could not be moved
+     */
+    public synchronized Path put(String key, Path file) throws IOException {
+        Path answer = directory.resolve(key);
+
+        try {
+            Files.move(file, answer, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            Files.deleteIfExists(file);
+        }
+        touch(answer);
+        evict();
+
+        return answer;
+    }
+
+    /**
+     * Links the specified file into the cache under the specified key, so that the copy stays
+     * readable when the file is later deleted. The file is copied if it cannot be linked.
+     *
+     * @param key the key of the content
+     * @param file the file
+     * @return the copy
+     * @throws NoSuchFileException if the file does not exist
+     * @throws IOException if the file could not be linked or copied
+     */
+    public synchronized Path link(String key, Path file) throws IOException {
+        Path answer = directory.resolve(key);
+
+        if (!Files.exists(answer)) {
+            try {
+                Files.createLink(answer, file);
+            } catch (UnsupportedOperationException | FileAlreadyExistsException ex) {
+                Files.copy(file, answer, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        touch(answer);
+        evict();
+
+        return answer;
+    }
+
+    /**
+     * Deletes the least recently used copies, that have not been handed out for a while, until
+     * the copies take no more than the capacity.
+     *
+     * @throws IOException if the directory could not be listed
+     */
+    public synchronized void evict() throws IOException {
+        List<Path> files = list();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+
+        for (Path file : files) {
+            BasicFileAttributes attribute = Files.readAttributes(file, BasicFileAttributes.class);
+            attributes.add(attribute);
+            total += attribute.size();
+        }
+
+        if (total <= capacity) {
+            return;
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong(i -> attributes.get(i).lastModifiedTime().toMillis()));
+
+        long cutoff = System.currentTimeMillis() - inUseMillis;
+        for (int i : order) {
+            if (total <= capacity || attributes.get(i).lastModifiedTime().toMillis() > cutoff) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(files.get(i));
+                total -= attributes.get(i).size();
+            } catch (IOException ex) {
+                // Such as a copy that is still open on a platform that does not delete open files
+                ERRORS.log(Level.FINE, "Unable to delete " + files.get(i), ex);
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes that the copies take
+     *
+     * @return the number of bytes of copies in the cache
+     * @throws IOException if the directory could not be listed
+     */
+    public synchronized long getSize() throws IOException {
+        long answer = 0;
+
+        for (Path file : list()) {
+            answer += Files.size(file);
+        }
+
+        return answer;
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> answer = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(answer::add);
+        }
+
+        return answer;
+    }
+
+    private static void touch(Path file) throws IOException {
+        // The modification time of a copy orders the eviction, as with the manifests of the client
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    @Override
+    public String toString() {
+        return "RestoredFiles{" + "directory = " + directory + ", capacity = " + capacity + '}';
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ * File: SegmentStore.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * An {@link UploadStorage} that packs small uploads into large append-only segment files, so
+ * that a flood of tiny files does not cost a file, an inode and a handful of metadata updates
+ * on the disk for every upload.
+ * <p>
+ * An upload whose size is announced and is at most {@link #MAX_PACKED_SIZE} bytes is received
+ * into a buffer in memory. Once it has been validated, it is appended to the active segment as
+ * a record that holds its filename, its length, a CRC32C and its content. The active segment is
+ * sealed and a new one started once it reaches {@link #SEGMENT_SIZE} bytes. Larger uploads, and
+ * uploads of an unknown size, are received into staged files as usual and moved into a
+ * directory of their own, with a record that points the filename at the file. The last record
+ * of a filename is the one that a download of the filename gets. Content is not deduplicated.
+ * <p>
+ * Where the record of every filename is kept is held in memory, and a snapshot of it is written
+ * whenever the store is closed or compacted, along with how far into every segment it goes. On
+ * open, the snapshot is loaded and the records that were appended after it are read back from
+ * the segments. A record that was only partly written when the server stopped fails its CRC and
+ * the segment is truncated before it. The snapshot ends with a CRC32C of its own, and when it is
+ * missing or does not match, every segment is read from the start instead.
+ * <p>
+ * Packed content is put together into a file of its own for a download, and kept in
+ * {@link RestoredFiles} for the next download of it.
+ * <p>
+ * A background thread compacts the sealed segments that are less than half live, by appending
+ * their live records to the active segment and deleting them. The records are read in batches
+ * of {@link #COMPACT_BATCH_SIZE} bytes without holding the lock of the store, which is only
+ * taken to append a batch and point its filenames at the copies, so uploads and downloads are
+ * not held up while a segment is compacted.
+ *
+ * @author Vincent Palodichuk
+ */
+public class SegmentStore implements UploadStorage {
+    private static final Logger ERRORS = Logger.getLogger(SegmentStore.class.getName());
+
+    /**
+     * The largest upload that is packed into a segment
+     */
+    public static final int MAX_PACKED_SIZE = 65536; // 64 KB
+
+    /**
+     * The size that a segment is sealed at
+     */
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024; // 64 MB
+
+    /**
+     * The number of seconds between two passes of the compaction
+     */
+    public static final int COMPACT_INTERVAL = 30;
+
+    /**
+     * The number of bytes of content that the compaction reads before it appends them
+     */
+    public static final int COMPACT_BATCH_SIZE = 1024 * 1024; // 1 MB
+
+    public static final String STATS_MSG = "Segment store: %d upload(s) packed, %d upload(s) kept as files, %d of %d byte(s) live in %d segment(s), %d segment(s) compacted%n";
+
+    private static final int MAGIC = 0x54465352; // TFSR
+    private static final int INDEX_MAGIC = 0x54465349; // TFSI
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Short.BYTES + Integer.BYTES * 2;
+    private static final int FILE_RECORD = -1;
+    private static final String SEGMENT_FORMAT = "segment-%06d.dat";
+
+    /**
+     * Where the content of a filename is kept
+     */
+    private static final class Entry {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        /**
+         * @param segment the id of the segment that holds the record
+         * @param offset the offset in the segment of the content of the record
+         * @param length the length of the content or -1 if the content is a file of its own
+         * @param recordSize the number of bytes that the whole record takes in the segment
+         */
+        private Entry(int segment, long offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+    /**
+     * A segment file and how many of its bytes belong to records that are still live
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path file;
+        private long size;
+        private long live;
+
+        private Segment(int id, Path file, long size) {
+            this.id = id;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final Path root;
+    private final Path tmp;
+    private final Path segments;
+    private final Path files;
+    private final RestoredFiles restored;
+    private final long segmentSize;
+    private final Object lock = new Object();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeMap<Integer, Segment> segmentsById = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+    private FileChannel activeChannel;
+    private long packed;
+    private long kept;
+    private long compacted;
+
+    /**
+     * Opens the store in the specified directory, creating it if it does not exist, and reads
+     * back the records that were appended since the last snapshot of the index.
+     *
+     * @param root the directory of the store
+     * @throws IOException if the store could not be created or read
+     */
+    public SegmentStore(Path root) throws IOException {
+        this(root, SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the specified directory, creating it if it does not exist, and reads
+     * back the records that were appended since the last snapshot of the index.
+     *
+     * @param root the directory of the store
+     * @param segmentSize the size that a segment is sealed at
+     * @throws IOException if the store could not be created or read
+     */
+    public SegmentStore(Path root, long segmentSize) throws IOException {
+        this.root = root;
+        this.segmentSize = Math.max(1, segmentSize);
+        this.tmp = Files.createDirectories(root.resolve("tmp"));
+        this.segments = Files.createDirectories(root.resolve("segments"));
+        this.files = Files.createDirectories(root.resolve("files"));
+        // The downloads that were put together are not needed again
+        this.restored = new RestoredFiles(root.resolve("restored"), RestoredFiles.DEFAULT_CAPACITY, RestoredFiles.DEFAULT_IN_USE_MS);
+
+        // Nor are the uploads that were being received
+        clear(tmp);
+        load();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tftp-compact");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private static void clear(Path directory) throws IOException {
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(leftovers::add);
+        }
+        for (Path file : leftovers) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Loads the snapshot of the index and reads the records that follow it in every segment.
+     */
+    private void load() throws IOException {
+        Map<Integer, Long> indexed = readIndex();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segments, "segment-*.dat")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+                    segmentsById.put(id, new Segment(id, file, Files.size(file)));
+                } catch (NumberFormatException ex) {
+                    ERRORS.log(Level.WARNING, "Ignoring the unknown segment " + file);
+                }
+            }
+        }
+
+        // The entries of segments that were deleted after the snapshot was written were compacted into later segments
+        entries.values().removeIf(entry -> !segmentsById.containsKey(entry.segment));
+
+        // Segments are read in order, so a record that was appended later wins over an earlier one
+        for (Segment segment : segmentsById.values()) {
+            long start = indexed.getOrDefault(segment.id, 0L);
+            if (start > segment.size) {
+                entries.values().removeIf(entry -> entry.segment == segment.id);
+                start = 0;
+            }
+            scan(segment, start);
+        }
+
+        // A file of its own is moved into place before its record is appended, so a record without its file is dropped
+        entries.entrySet().removeIf(entry -> entry.getValue().length == FILE_RECORD && !Files.exists(fileOf(entry.getKey())));
+        for (Entry entry : entries.values()) {
+            segmentsById.get(entry.segment).live += entry.recordSize;
+        }
+
+        if (!segmentsById.isEmpty()) {
+            active = segmentsById.lastEntry().getValue();
+            activeChannel = FileChannel.open(active.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private Map<Integer, Long> readIndex() {
+        Map<Integer, Long> answer = new HashMap<>();
+        Path index = root.resolve("index.dat");
+
+        if (!Files.exists(index)) {
+            return answer;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(index);
+            if (bytes.length < Integer.BYTES * 2) {
+                throw new IOException("The index of the segment store is cut short.");
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length - Integer.BYTES);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != INDEX_MAGIC || (int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Integer.BYTES, Integer.BYTES).getInt()) {
+                throw new IOException("Not an index of a segment store, or a corrupt one.");
+            }
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                answer.put(in.readInt(), in.readLong());
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                entries.put(in.readUTF(), new Entry(in.readInt(), in.readLong(), in.readInt(), in.readInt()));
+            }
+        } catch (IOException ex) {
+            // Every segment is read from the start instead
+            ERRORS.log(Level.WARNING, "Unable to read the index of the segment store, reading every segment.", ex);
+            answer.clear();
+            entries.clear();
+        }
+
+        return answer;
+    }
+
+    /**
+     * Reads the records of a segment from the specified offset, and truncates the segment
+     * before the first record that is not whole.
+     */
+    private void scan(Segment segment, long start) throws IOException {
+        long position = start;
+
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(start))));
+
+            while (position + RECORD_HEADER_SIZE <= segment.size) {
+                if (in.readInt() != MAGIC) {
+                    break;
+                }
+                byte[] name = new byte[in.readUnsignedShort()];
+                if (position + RECORD_HEADER_SIZE + name.length > segment.size) {
+                    break;
+                }
+                in.readFully(name);
+                int length = in.readInt();
+                int crc = in.readInt();
+                int content = Math.max(length, 0);
+                int recordSize = RECORD_HEADER_SIZE + name.length + content;
+                if (length < FILE_RECORD || position + recordSize > segment.size) {
+                    break;
+                }
+                byte[] data = new byte[content];
+                in.readFully(data);
+
+                CRC32C check = new CRC32C();
+                check.update(name);
+                check.update(data);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+
+                entries.put(new String(name, StandardCharsets.UTF_8), new Entry(segment.id, position + recordSize - content, length, recordSize));
+                position += recordSize;
+            }
+
+            if (position < segment.size) {
+                System.out.printf("Truncating %s at %d, the record there is not whole.%n", segment.file, position);
+                channel.truncate(position);
+                segment.size = position;
+            }
+        }
+    }
+
+    @Override
+    public boolean link(String name, long size, String md5) {
+        // Content is not keyed by its hash, so every upload is transferred
+        return false;
+    }
+
+    @Override
+    public Upload stage(String name, long size) throws IOException {
+        if (size >= 0 && size <= MAX_PACKED_SIZE) {
+            return new Upload() {
+                private BlockWriter writer;
+
+                @Override
+                public String getFilename() {
+                    return name + " (in memory)";
+                }
+
+                @Override
+                public BlockWriter open(long size, boolean direct) {
+                    writer = new BlockWriter(ByteBuffer.allocate((int) size));
+                    return writer;
+                }
+
+                @Override
+                public void publish(boolean durable) throws IOException {
+                    int length = writer != null ? (int) writer.getLength() : 0;
+                    byte[] data = new byte[length];
+                    if (writer != null) {
+                        writer.getBuffer().get(0, data);
+                    }
+
+                    synchronized (lock) {
+                        append(name, length, data);
+                        packed++;
+                        if (durable) {
+                            // The upload was received in memory, so the segment is the first place that it is written to
+                            activeChannel.force(false);
+                        }
+                    }
+                }
+
+                @Override
+                public void discard() {
+                    writer = null;
+                }
+            };
+        }
+
+        Path file = Files.createTempFile(tmp, "upload", ".tmp");
+
+        return new Upload() {
+            @Override
+            public String getFilename() {
+                return file.toString();
+            }
+
+            @Override
+            public BlockWriter open(long size, boolean direct) throws IOException {
+                return new BlockWriter(file, size, direct);
+            }
+
+            @Override
+            public void publish(boolean durable) throws IOException {
+                synchronized (lock) {
+                    Files.move(file, fileOf(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    if (durable) {
+                        BlockWriter.forceDirectory(files);
+                    }
+                    append(name, FILE_RECORD, new byte[0]);
+                    kept++;
+                    if (durable) {
+                        activeChannel.force(false);
+                    }
+                }
+            }
+
+            @Override
+            public void discard() throws IOException {
+                Files.deleteIfExists(file);
+            }
+        };
+    }
+
+    /**
+     * Appends a record to the active segment and points the filename at it. The caller holds
+     * the lock.
+     */
+    private void append(String name, int length, byte[] data) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + nameBytes.length + data.length;
+
+        if (active == null || active.size > 0 && active.size + recordSize > segmentSize) {
+            roll();
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(nameBytes);
+        crc.update(data);
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(MAGIC).putShort((short) nameBytes.length).put(nameBytes).putInt(length).putInt((int) crc.getValue()).put(data);
+        record.flip();
+
+        long position = active.size;
+        while (record.hasRemaining()) {
+            position += activeChannel.write(record, position);
+        }
+
+        Entry entry = new Entry(active.id, active.size + recordSize - data.length, length, recordSize);
+        active.size += recordSize;
+        active.live += recordSize;
+
+        Entry previous = entries.put(name, entry);
+        if (previous != null) {
+            segmentsById.get(previous.segment).live -= previous.recordSize;
+            if (previous.length == FILE_RECORD && length != FILE_RECORD) {
+                Files.deleteIfExists(fileOf(name));
+            }
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new one. The caller holds the lock.
+     */
+    private void roll() throws IOException {
+        int id = active != null ? active.id + 1 : 1;
+
+        if (activeChannel != null) {
+            activeChannel.force(false);
+            activeChannel.close();
+        }
+
+        active = new Segment(id, segments.resolve(String.format(SEGMENT_FORMAT, id)), 0);
+        activeChannel = FileChannel.open(active.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentsById.put(id, active);
+        // Segments are rolled rarely, and a forced record is only durable once its segment is in the directory
+        BlockWriter.forceDirectory(segments);
+    }
+
+    @Override
+    public Path restore(String name) throws IOException {
+        Entry entry;
+        byte[] data;
+
+        synchronized (lock) {
+            entry = entries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.length == FILE_RECORD) {
+                return fileOf(name);
+            }
+
+            Path answer = restored.get(entry.segment + "-" + entry.offset);
+            if (answer != null) {
+                return answer;
+            }
+
+            data = new byte[entry.length];
+            read(entry, data);
+        }
+
+        // A record is never rewritten in place, so its content is put together once and served to every download of it, while it is kept
+        Path file = Files.createTempFile(tmp, "restore", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(data);
+            }
+            return restored.put(entry.segment + "-" + entry.offset, file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Reads the content of a packed record. The caller holds the lock.
+     */
+    private void read(Entry entry, byte[] data) throws IOException {
+        Segment segment = segmentsById.get(entry.segment);
+        FileChannel channel = segment == active ? activeChannel : readers.get(segment.id);
+
+        if (channel == null) {
+            // A sealed segment is kept open for the next download of one of its records
+            channel = FileChannel.open(segment.file, StandardOpenOption.READ);
+            readers.put(segment.id, channel);
+        }
+
+        readFully(channel, entry.offset, data, segment.file);
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] data, Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new NoSuchFileException(file.toString(), null, "The segment ends before the record.");
+            }
+            position += count;
+        }
+    }
+
+    private Path fileOf(String name) {
+        return files.resolve(ContentStore.encode(name));
+    }
+
+    /**
+     * Appends the live records of the sealed segments that are less than half live to the
+     * active segment, and deletes those segments. Runs on the background thread every
+     * {@link #COMPACT_INTERVAL} seconds.
+     */
+    void compact() {
+        try {
+            List<Segment> sparse = new ArrayList<>();
+            synchronized (lock) {
+                for (Segment segment : segmentsById.values()) {
+                    if (segment != active && segment.live * 2 < segment.size) {
+                        sparse.add(segment);
+                    }
+                }
+            }
+
+            for (Segment segment : sparse) {
+                if (!copyLive(segment)) {
+                    return;
+                }
+            }
+
+            synchronized (lock) {
+                if (sparse.isEmpty() || activeChannel == null) {
+                    return;
+                }
+
+                // The copies have to be on the disk before the segments that they were copied from are deleted
+                activeChannel.force(false);
+                for (Segment segment : sparse) {
+                    FileChannel reader = readers.remove(segment.id);
+                    if (reader != null) {
+                        reader.close();
+                    }
+                    Files.deleteIfExists(segment.file);
+                    segmentsById.remove(segment.id);
+                    compacted++;
+                }
+                writeIndex();
+            }
+        } catch (IOException ex) {
+            // The segments are compacted again on the next pass
+            ERRORS.log(Level.SEVERE, "Unable to compact the segment store", ex);
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the active segment, a batch at a time.
+     * Only the sealed segment is read without the lock, and it is never written again.
+     *
+     * @return false if the store was closed in the meantime
+     */
+    private boolean copyLive(Segment segment) throws IOException {
+        List<Map.Entry<String, Entry>> live = new ArrayList<>();
+        synchronized (lock) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().segment == segment.id) {
+                    live.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        live.sort(Comparator.comparingLong(entry -> entry.getValue().offset));
+
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            int next = 0;
+
+            while (next < live.size()) {
+                int first = next;
+                long bytes = 0;
+                List<byte[]> batch = new ArrayList<>();
+
+                while (next < live.size() && (next == first || bytes + live.get(next).getValue().length <= COMPACT_BATCH_SIZE)) {
+                    Entry record = live.get(next++).getValue();
+                    byte[] data = new byte[Math.max(record.length, 0)];
+                    readFully(channel, record.offset, data, segment.file);
+                    batch.add(data);
+                    bytes += data.length;
+                }
+
+                synchronized (lock) {
+                    if (activeChannel == null) {
+                        return false;
+                    }
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        Map.Entry<String, Entry> entry = live.get(first + i);
+                        // A filename that was uploaded again while the batch was read already points elsewhere
+                        if (entries.get(entry.getKey()) == entry.getValue()) {
+                            // The record is copied as it is, so a file of its own stays where it is
+                            append(entry.getKey(), entry.getValue().length, batch.get(i));
+                        }
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the index, and how far into every segment it goes. The caller holds
+     * the lock.
+     */
+    private void writeIndex() throws IOException {
+        Path temp = Files.createTempFile(tmp, "index", ".tmp");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(segmentsById.size());
+            for (Segment segment : segmentsById.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.size);
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry record = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(record.segment);
+                out.writeLong(record.offset);
+                out.writeInt(record.length);
+                out.writeInt(record.recordSize);
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, root.resolve("index.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void printStats() {
+        synchronized (lock) {
+            long live = 0;
+            long size = 0;
+            for (Segment segment : segmentsById.values()) {
+                live += segment.live;
+                size += segment.size;
+            }
+            System.out.printf(STATS_MSG, packed, kept, live, size, segmentsById.size(), compacted);
+        }
+    }
+
+    /**
+     * Stops the compaction, forces the active segment to the disk and writes a snapshot of the
+     * index.
+     *
+     * @throws IOException if the segment could not be forced or the index could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+
+        synchronized (lock) {
+            if (activeChannel != null) {
+                activeChannel.force(false);
+                activeChannel.close();
+                activeChannel = null;
+            }
+            for (FileChannel reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+            writeIndex();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStore{" + "root = " + root + ", packed = " + packed + ", kept = " + kept + ", segments = " + segmentsById.size() + '}';
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * File: SendTransfer.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.IdableMessage;
+import com.capital7software.network.util.BlockReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The sending side of a single RRQ, independent of how the DATA messages leave. The file is
+ * opened once by a {@link BlockReader} and every DATA packet is assembled in a direct buffer: the header is written in
+ * place and the block is read in behind it with a positional read, so the data never passes
+ * through the Java heap on its way from the file to the socket. When the server has a
+ * {@link BlockCache}, the block is copied from the cached pages of the file instead.
+ *
+ * @author Vincent Palodichuk
+ */
+public class SendTransfer implements Closeable {
+    private final BlockReader reader;
+    private final BlockCache cache;
+    private final BlockCache.FileId fileId;
+    private final TransferOptions options;
+    private final long size;
+    private final long numBlocks;
+    private final ByteBuffer packet;
+    private long lastSent;
+
+    /**
+     * Opens the specified file for sending.
+     *
+     * @param file the file to send
+     * @param options the negotiated options of the transfer
+     * @throws IOException if the file could not be opened
+     */
+    public SendTransfer(Path file, TransferOptions options) throws IOException {
+        this(file, options, null);
+    }
+
+    /**
+     * Opens the specified file for sending, with its blocks served through the specified cache.
+     *
+     * @param file the file to send
+     * @param options the negotiated options of the transfer
+     * @param cache the cache that the blocks are read through or null to read them from the file
+     * @throws IOException if the file could not be opened
+     */
+    public SendTransfer(Path file, TransferOptions options, BlockCache cache) throws IOException {
+        this.reader = new BlockReader(file);
+        this.cache = cache;
+        this.fileId = cache != null ? BlockCache.identify(file) : null;
+        this.options = options;
+        this.size = reader.getSize();
+        this.numBlocks = size / options.getBlockSize() + 1;
+        this.packet = ByteBuffer.allocateDirect(DataMessage.HEADER_SIZE + (int) Math.min(options.getBlockSize(), size) + DataMessage.CHECKSUM_SIZE);
+    }
+
+    /**
+     * Get the number of the last block that was assembled. Only its low 32 bits are sent as
+     * the id of the block.
+     *
+     * @return the number of the last block that was assembled, 0 if no block has been assembled yet
+     */
+    public long getLastSent() {
+        return lastSent;
+    }
+
+    /**
+     * Get the number of blocks in the transfer. The last block is always shorter than the
+     * block size, and is empty when the file size is a multiple of the block size.
+     *
+     * @return the number of blocks in the transfer
+     */
+    public long getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * Returns true once the last block has been assembled
+     *
+     * @return true once the last block has been assembled
+     */
+    public boolean isComplete() {
+        return lastSent >= numBlocks;
+    }
+
+    /**
+     * Get the negotiated options of this transfer
+     *
+     * @return the negotiated options of this transfer
+     */
+    public TransferOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Assembles the DATA packet of the next block.
+     *
+     * @return the packet, ready to be sent
+     * @throws IOException if the block could not be read
+     */
+    public ByteBuffer nextBlock() throws IOException {
+        long id = lastSent + 1;
+        long offset = (id - 1) * options.getBlockSize();
+        int length = (int) Math.max(0, Math.min(options.getBlockSize(), size - offset));
+
+        packet.clear();
+        packet.putShort((short) OpCode.DATA.getValue());
+        packet.putInt(IdableMessage.toId(id));
+        packet.limit(DataMessage.HEADER_SIZE + length);
+
+        if (cache != null) {
+            cache.read(fileId, reader.getChannel(), offset, packet);
+        }
+
+        if (packet.hasRemaining()) {
+            reader.read(offset + packet.position() - DataMessage.HEADER_SIZE, packet);
+        }
+
+        if (options.isChecksum()) {
+            packet.limit(packet.position() + DataMessage.CHECKSUM_SIZE);
+            DataMessage.writeChecksum(packet);
+        }
+
+        lastSent = id;
+        return currentBlock();
+    }
+
+    /**
+     * Get the DATA packet of the last block that was assembled so that it can be sent again.
+     *
+     * @return the packet, ready to be sent
+     */
+    public ByteBuffer currentBlock() {
+        return packet.duplicate().rewind();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * File: ServerConfig.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.tftp.AckPolicy;
+import com.capital7software.network.tftp.Durability;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The startup settings of the servers. The settings can be read from command line arguments of
+ * the form {@code --name=value}, or {@code --name} for the settings that are switches.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ServerConfig {
+    public static final int DEFAULT_WRITE_BEHIND = 64;
+
+    private int port = TftpServer.DEFAULT_PORT;
+    private int bufferSize = TftpServer.DEFAULT_BUFFER_SIZE;
+    private int shards = 1;
+    private int eventLoops = NioTftpServer.DEFAULT_EVENT_LOOPS;
+    private int statsInterval;
+    private boolean verbose;
+    private Path root = Paths.get(System.getProperty("user.dir"));
+    private long cacheSize;
+    private int writeBehind = DEFAULT_WRITE_BEHIND;
+    private AckPolicy ackPolicy = AckPolicy.WRITTEN;
+    private Durability durability = Durability.NONE;
+    private long directThreshold;
+    private final List<String> preload = new ArrayList<>();
+    private Path store;
+    private boolean segments;
+
+    /**
+     * Parses the specified command line arguments. Unknown arguments are reported and ignored.
+     *
+     * @param args the command line arguments
+     * @return the parsed settings
+     * @throws IllegalArgumentException if the value of a setting is not valid
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig answer = new ServerConfig();
+
+        for (String arg : args) {
+            if (arg == null || !arg.startsWith("--")) {
+                System.out.printf("Ignoring unknown argument %s%n", arg);
+                continue;
+            }
+
+            int index = arg.indexOf('=');
+            String name = index >= 0 ? arg.substring(2, index) : arg.substring(2);
+            String value = index >= 0 ? arg.substring(index + 1) : null;
+
+            switch (name) {
+                case "port" -> answer.setPort(parseInt(name, value));
+                case "buffer" -> answer.setBufferSize(parseInt(name, value));
+                case "shards" -> answer.setShards(parseInt(name, value));
+                case "loops" -> answer.setEventLoops(parseInt(name, value));
+                case "stats" -> answer.setStatsInterval(parseInt(name, value));
+                case "cache" -> answer.setCacheSize(parseInt(name, value) * 1024L * 1024L);
+                case "preload" -> answer.setPreload(Arrays.asList(value == null ? new String[0] : value.split(",")));
+                case "writebehind" -> answer.setWriteBehind(parseInt(name, value));
+                case "ackpolicy" -> answer.setAckPolicy(AckPolicy.fromValue(value));
+                case "durability" -> answer.setDurability(Durability.fromValue(value));
+                case "direct" -> answer.setDirectThreshold(parseInt(name, value) * 1024L * 1024L);
+                case "root" -> answer.setRoot(Paths.get(value == null ? "" : value));
+                case "store" -> answer.setStore(value == null ? null : Paths.get(value));
+                case "storage" -> answer.setSegments(parseStorage(value));
+                case "verbose" -> answer.setVerbose(value == null || Boolean.parseBoolean(value));
+                default -> System.out.printf("Ignoring unknown argument %s%n", arg);
+            }
+        }
+
+        return answer;
+    }
+
+    private static boolean parseStorage(String value) {
+        if ("segments".equals(value)) {
+            return true;
+        } else if ("content".equals(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("--storage must be one of content or segments.");
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("--" + name + " requires a numeric value.", ex);
+        }
+    }
+
+    /**
+     * Get the port that the server listens on for requests
+     *
+     * @return the port that the server listens on for requests
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Get the size of the buffer that requests are received in
+     *
+     * @return the size of the buffer in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Get the number of sockets that are bound to the port, each with its own receive loop
+     *
+     * @return the number of receive loops
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be greater than 0.");
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Get the number of event loops used by the {@link NioTftpServer}
+     *
+     * @return the number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be greater than 0.");
+        }
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Get how often the server statistics are written to the console
+     *
+     * @return the interval in seconds, 0 when the statistics are only written at shutdown
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(int statsInterval) {
+        this.statsInterval = Math.max(0, statsInterval);
+    }
+
+    /**
+     * Returns true if per-block progress is written to the console
+     *
+     * @return true if per-block progress is written to the console
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Get the directory that read requests are served from
+     *
+     * @return the directory that read requests are served from
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    public void setRoot(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Get the directory of the content store that uploads are kept in
+     *
+     * @return the directory of the store or null if uploads are written as files of their own
+     */
+    public Path getStore() {
+        return store;
+    }
+
+    public void setStore(Path store) {
+        this.store = store != null ? store.toAbsolutePath().normalize() : null;
+    }
+
+    /**
+     * Returns true if the uploads in the store are packed into segments instead of being keyed
+     * by their content
+     *
+     * @return true if the store is a {@link SegmentStore}, false if it is a {@link ContentStore}
+     */
+    public boolean isSegments() {
+        return segments;
+    }
+
+    public void setSegments(boolean segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the storage that uploads are kept in, as described by these settings.
+     *
+     * @return the storage or null if uploads are written as files of their own
+     * @throws IOException if the storage could not be opened
+     */
+    public UploadStorage createStorage() throws IOException {
+        if (store == null) {
+            return null;
+        }
+        return segments ? new SegmentStore(store) : new ContentStore(store);
+    }
+
+    /**
+     * Get the capacity of the block cache that downloads are served through
+     *
+     * @return the capacity in bytes, 0 when downloads are read straight from the files
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = Math.max(0, cacheSize);
+    }
+
+    /**
+     * Get the files, relative to the root, that are read into the block cache at startup
+     *
+     * @return an unmodifiable view of the files that are read into the block cache at startup
+     */
+    public List<String> getPreload() {
+        return Collections.unmodifiableList(preload);
+    }
+
+    public void setPreload(List<String> preload) {
+        this.preload.clear();
+        for (String file : preload) {
+            if (file != null && !file.isBlank()) {
+                this.preload.add(file.trim());
+            }
+        }
+    }
+
+    /**
+     * Get the number of received blocks that may be waiting for the disk writer of an upload
+     * whose blocks are acknowledged once they are queued
+     *
+     * @return the number of blocks, 0 when the blocks are always written before they are
+     * acknowledged
+     */
+    public int getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(int writeBehind) {
+        this.writeBehind = Math.max(0, writeBehind);
+    }
+
+    /**
+     * Get the policy that decides when a DATA is acknowledged if the client did not negotiate
+     * one. A block is written before it is acknowledged unless {@link AckPolicy#QUEUED} is
+     * asked for, as an acknowledged block that was only queued is lost if the server stops.
+     *
+     * @return the default policy, {@link AckPolicy#WRITTEN} unless it was set
+     */
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    public void setAckPolicy(AckPolicy ackPolicy) {
+        if (ackPolicy == null) {
+            throw new IllegalArgumentException("ackPolicy must be one of queued, written or synced.");
+        }
+        this.ackPolicy = ackPolicy;
+    }
+
+    /**
+     * Get the durability that decides when received files are forced to the storage device if
+     * the client did not negotiate one
+     *
+     * @return the default durability
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("durability must be one of none, blocks:<n>, bytes:<n>, eof or ack.");
+        }
+        this.durability = durability;
+    }
+
+    /**
+     * Get the size from which received files are written with direct I/O, bypassing the page
+     * cache
+     *
+     * @return the size in bytes or 0 if received files are always written through the page cache
+     */
+    public long getDirectThreshold() {
+        return directThreshold;
+    }
+
+    public void setDirectThreshold(long directThreshold) {
+        this.directThreshold = Math.max(0, directThreshold);
+    }
+
+    /**
+     * Creates the block cache described by these settings and reads the preloaded files into it.
+     *
+     * @return the block cache or null if the cache is disabled
+     */
+    public BlockCache createBlockCache() {
+        if (cacheSize <= 0) {
+            return null;
+        }
+
+        BlockCache answer = new BlockCache(Math.max(cacheSize, BlockCache.PAGE_SIZE));
+
+        for (String file : preload) {
+            Path path = TftpServer.resolveFile(root, file);
+
+            if (path == null) {
+                System.out.printf("Not preloading %s, it is outside of the served directory.%n", file);
+                continue;
+            }
+
+            try {
+                System.out.printf("Preloaded %d byte(s) of %s%n", answer.preload(path), file);
+            } catch (IOException ex) {
+                System.out.printf("Unable to preload %s: %s%n", file, ex.getMessage());
+            }
+        }
+
+        return answer;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" + "port = " + port + ", bufferSize = " + bufferSize + ", shards = " + shards + ", eventLoops = " + eventLoops + ", statsInterval = " + statsInterval + ", verbose = " + verbose + ", root = " + root + ", cacheSize = " + cacheSize + ", preload = " + preload + ", writeBehind = " + writeBehind + ", ackPolicy = " + ackPolicy + ", durability = " + durability + ", directThreshold = " + directThreshold + ", store = " + store + ", segments = " + segments + '}';
+    }
+}
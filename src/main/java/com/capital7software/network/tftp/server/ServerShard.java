@@ -0,0 +1,284 @@
+/*
+ * File: ServerShard.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.messages.FileMessage;
+import com.capital7software.network.tftp.messages.Message;
+import com.capital7software.network.tftp.messages.MessageFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One receive loop of a {@link TftpServer}. Every shard owns a socket bound to the listening
+ * port and the set of sessions that it accepted. When the server runs more than one shard, the
+ * sockets share the port through SO_REUSEPORT and the kernel spreads the clients across them.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ServerShard implements Runnable {
+    private static final Logger ERRORS = Logger.getLogger(ServerShard.class.getName());
+    public static final String STATS_MSG = "Shard %d: %d request(s), %d accepted, %d rejected, %d completed, %d failed, %d active%n";
+
+    private final TftpServer server;
+    private final int index;
+    private final DatagramSocket socket;
+    private final Executor sessionExecutor;
+    private final Set<TftpServerSession> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    ServerShard(TftpServer server, int index, DatagramSocket socket, Executor sessionExecutor) {
+        this.server = server;
+        this.index = index;
+        this.socket = socket;
+        this.sessionExecutor = sessionExecutor;
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[server.getBufferSize()];
+
+        try {
+            socket.setSoTimeout(TftpServer.DEFAULT_TIMEOUT);
+        } catch (IOException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+            return;
+        }
+
+        while (!server.isShutDown()) {
+            DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+
+            try {
+                // Wait to receive wake-up packet
+                if (server.isVerbose()) {
+                    System.out.printf("Shard %d waiting for a request...%n", index);
+                }
+                socket.receive(incoming);
+                requests.incrementAndGet();
+                Message msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
+
+                if (msg == null || (msg.getOpCode() != OpCode.RRQ && msg.getOpCode() != OpCode.WRQ)) {
+                    reject(incoming, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unknown packet");
+                } else if (msg.getOpCode() == OpCode.WRQ && server.getStorage() != null) {
+                    receiveStored((FileMessage) msg, incoming, server.getStorage());
+                } else if (msg.getOpCode() == OpCode.WRQ) {
+                    receiveFile((FileMessage) msg, incoming);
+                } else {
+                    FileMessage message = (FileMessage) msg;
+                    String file = message.getFilename().getValue();
+                    Path path = TftpServer.resolveFile(server.getRoot(), file);
+
+                    if (path == null) {
+                        reject(incoming, ErrorCode.ACCESS_VIOLATION, "The file is outside of the served directory.");
+                    } else {
+                        // The session looks for the file, as it may have to be restored from the storage
+                        start(new TftpServerSession(this, message, incoming.getSocketAddress(), path.toString()), incoming);
+                    }
+                }
+            } catch (SocketTimeoutException ignored) {
+            } catch (IOException ex) {
+                ERRORS.log(Level.WARNING, null, ex);
+            } catch (TftpException ex) {
+                ERRORS.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Get the server that this shard belongs to
+     *
+     * @return the server that this shard belongs to
+     */
+    public TftpServer getServer() {
+        return server;
+    }
+
+    /**
+     * Get the index of this shard
+     *
+     * @return the index of this shard
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the number of packets received on the listening socket of this shard
+     *
+     * @return the number of packets received on the listening socket of this shard
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of transfers this shard has started
+     *
+     * @return the number of transfers this shard has started
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Get the number of packets this shard has answered with an error
+     *
+     * @return the number of packets this shard has answered with an error
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of transfers accepted by this shard that completed
+     *
+     * @return the number of transfers accepted by this shard that completed
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of transfers accepted by this shard that failed
+     *
+     * @return the number of transfers accepted by this shard that failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of transfers accepted by this shard that are in progress
+     *
+     * @return the number of transfers accepted by this shard that are in progress
+     */
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Writes the counters of this shard to the console
+     */
+    public void printStats() {
+        System.out.printf(STATS_MSG, index, getRequests(), getAccepted(), getRejected(), getCompleted(), getFailed(), getActiveSessions());
+    }
+
+    void sessionFinished(TftpServerSession session, boolean success) {
+        if (sessions.remove(session)) {
+            (success ? completed : failed).incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts a session that receives an upload into a staged file in the working directory of
+     * the server, or into a copy of the existing file for a delta upload. The request is
+     * rejected if the file already exists, is already being received or does not fit on the
+     * file system.
+     */
+    private void receiveFile(FileMessage message, DatagramPacket incoming) throws IOException {
+        String file = message.getFilename().getValue();
+        TransferOptions options;
+
+        try {
+            options = TransferOptions.fromRequest(message);
+        } catch (NumberFormatException ex) {
+            reject(incoming, ErrorCode.ILLEGAL_TFTP_OPERATION, "Invalid option value.");
+            return;
+        }
+
+        String base = TftpServer.targetOf(file);
+        StagedFile staged = StagedFile.create(file);
+
+        if (staged == null && Files.exists(Paths.get(base)) && options.isDelta()) {
+            // The client only sends the blocks that differ from the copy that is already here
+            String realFile = TftpServer.prepareDelta(base);
+
+            if (realFile == null) {
+                System.out.printf("File %s is already being received.%n", file);
+                reject(incoming, ErrorCode.FILE_ALREADY_EXISTS, "The file is already being received by this server.");
+            } else {
+                start(new TftpServerSession(this, message, incoming.getSocketAddress(), realFile, base), incoming);
+            }
+        } else if (staged == null && Files.exists(Paths.get(base))) {
+            System.out.printf("File %s already exists.%n", file);
+            reject(incoming, ErrorCode.FILE_ALREADY_EXISTS, "The file already exists on this server.");
+        } else if (staged == null) {
+            System.out.printf("File %s is already being received.%n", file);
+            reject(incoming, ErrorCode.FILE_ALREADY_EXISTS, "The file is already being received by this server.");
+        } else if (!staged.reserve(options.getFileSize())) {
+            System.out.printf(TftpServer.DISK_FULL_MSG, file, options.getFileSize());
+            reject(incoming, ErrorCode.DISK_FULL, "There is not enough room on this server for the file.");
+        } else {
+            start(new TftpServerSession(this, message, incoming.getSocketAddress(), staged), incoming);
+        }
+    }
+
+    /**
+     * Starts a session that receives an upload into the storage of the server, or ends the
+     * transfer with an OACK right away when the storage already holds the content of the file.
+     */
+    private void receiveStored(FileMessage message, DatagramPacket incoming, UploadStorage storage) throws IOException {
+        String file = message.getFilename().getValue();
+        TransferOptions options;
+
+        try {
+            options = TransferOptions.fromRequest(message);
+        } catch (NumberFormatException ex) {
+            reject(incoming, ErrorCode.ILLEGAL_TFTP_OPERATION, "Invalid option value.");
+            return;
+        }
+
+        if (TransferOptions.isStored(message) && options.getMd5() != null && options.getFileSize() >= 0
+                && storage.link(file, options.getFileSize(), options.getMd5())) {
+            // The content is already here, so the OACK ends the transfer
+            System.out.printf("File %s from %s is already stored, nothing to receive.%n", file, incoming.getSocketAddress());
+            options.acceptStored();
+            server.oackHello(socket, incoming.getSocketAddress(), options.getAccepted());
+            accepted.incrementAndGet();
+            return;
+        }
+
+        start(new TftpServerSession(this, message, incoming.getSocketAddress(), storage.stage(file, options.getFileSize())), incoming);
+    }
+
+    private void start(TftpServerSession session, DatagramPacket incoming) {
+        sessions.add(session);
+        try {
+            sessionExecutor.execute(session);
+            accepted.incrementAndGet();
+        } catch (RejectedExecutionException ex) {
+            sessions.remove(session);
+            reject(incoming, ErrorCode.NOT_DEFINED, "The server is shutting down.");
+        }
+    }
+
+    private void reject(DatagramPacket incoming, ErrorCode code, String msg) {
+        rejected.incrementAndGet();
+        server.sendError(socket, incoming, code, msg);
+    }
+
+    @Override
+    public String toString() {
+        return "ServerShard{" + "index = " + index + ", port = " + socket.getLocalPort() + ", active = " + sessions.size() + '}';
+    }
+}
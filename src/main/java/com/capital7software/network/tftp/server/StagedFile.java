@@ -0,0 +1,186 @@
+/*
+ * File: StagedFile.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An upload that is written as a file of its own in the working directory of the server. The
+ * blocks are written to a hidden file next to the target, which is renamed over the target in
+ * one step once the upload has been validated, so nobody ever sees half of an upload under its
+ * real name.
+ * <p>
+ * When the size of the upload is announced, the space for it is reserved before any data is
+ * transferred: the request is rejected if the file system does not have that much room left
+ * beyond what the uploads already under way still have to write. The staged file is extended to
+ * its full size when it is opened, so the file system knows how large it will be, but on most
+ * file systems the extension is sparse and takes no space until the blocks are written, which
+ * is why the space is reserved here rather than by extending the file.
+ *
+ * @author Vincent Palodichuk
+ */
+public class StagedFile implements UploadStorage.Upload {
+    private static final String PREFIX = ".";
+    private static final String SUFFIX = ".part";
+
+    // Every upload that is under way, by its target
+    private static final Map<Path, StagedFile> RECEIVING = new ConcurrentHashMap<>();
+
+    private final Path target;
+    private final Path file;
+    private volatile long reserved;
+    private volatile BlockWriter writer;
+    private boolean finished;
+
+    private StagedFile(Path target) {
+        this.target = target;
+        this.file = target.resolveSibling(PREFIX + target.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Stages the local file that an upload of the specified file is written to.
+     *
+     * @param inFile the filename from the WRQ
+     * @return the staged file or null if the file already exists or is already being received
+     * @throws IOException if the staged file could not be created
+     */
+    public static StagedFile create(String inFile) throws IOException {
+        Path target = Paths.get(TftpServer.targetOf(inFile));
+
+        if (Files.exists(target)) {
+            return null;
+        }
+
+        StagedFile answer = new StagedFile(target);
+        if (RECEIVING.putIfAbsent(target, answer) != null) {
+            return null;
+        }
+        try {
+            // A staged file that was left behind when the server stopped is simply written over
+            Files.newByteChannel(answer.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+        } catch (IOException ex) {
+            RECEIVING.remove(target);
+            throw ex;
+        }
+        return answer;
+    }
+
+    /**
+     * Reserves the space for an upload of the specified size on the file system of the target.
+     * The bytes that the uploads under way have already written are taken from the free space
+     * of the file system, so only the bytes that they still have to write are counted against
+     * it. If the space cannot be reserved, the staged file is discarded, so that the filename
+     * can be uploaded again.
+     *
+     * @param size the size of the file in bytes or -1 if it is unknown, in which case nothing is
+     * reserved
+     * @return false if the file system does not have room for the upload, true otherwise
+     * @throws IOException if the free space of the file system could not be read
+     */
+    public boolean reserve(long size) throws IOException {
+        if (size <= 0) {
+            return true;
+        }
+
+        try {
+            long usable = Files.getFileStore(file).getUsableSpace();
+            synchronized (StagedFile.class) {
+                if (getReserved() + size <= usable) {
+                    reserved = size;
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            discard();
+            throw ex;
+        }
+
+        discard();
+        return false;
+    }
+
+    /**
+     * Get the number of bytes that the uploads that are under way have reserved and not yet
+     * written
+     *
+     * @return the number of bytes that are reserved
+     */
+    public static long getReserved() {
+        long answer = 0;
+
+        for (StagedFile staged : RECEIVING.values()) {
+            answer += staged.getOutstanding();
+        }
+
+        return answer;
+    }
+
+    private long getOutstanding() {
+        BlockWriter current = writer;
+        return Math.max(0, reserved - (current != null ? current.getLength() : 0));
+    }
+
+    /**
+     * Get the file that the upload replaces once it has been validated
+     *
+     * @return the target of the upload
+     */
+    public Path getTarget() {
+        return target;
+    }
+
+    @Override
+    public String getFilename() {
+        return file.toString();
+    }
+
+    @Override
+    public BlockWriter open(long size, boolean direct) throws IOException {
+        BlockWriter answer = new BlockWriter(file, size, direct);
+        // Sets the full length of the file up front, and is truncated away if the upload ends early
+        answer.preallocate(size);
+        writer = answer;
+        return answer;
+    }
+
+    @Override
+    public void publish(boolean durable) throws IOException {
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        if (durable) {
+            // The rename is only durable once the directory is
+            BlockWriter.forceDirectory(target.toAbsolutePath().getParent());
+        }
+        finish();
+    }
+
+    @Override
+    public void discard() throws IOException {
+        try {
+            Files.deleteIfExists(file);
+        } finally {
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        if (!finished) {
+            finished = true;
+            RECEIVING.remove(target, this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StagedFile{" + "target = " + target + ", reserved = " + reserved + '}';
+    }
+}
@@ -8,21 +8,29 @@ import com.capital7software.network.tftp.ErrorCode;
 import com.capital7software.network.tftp.NetAscii;
 import com.capital7software.network.tftp.OpCode;
 import com.capital7software.network.tftp.messages.*;
-import com.capital7software.network.util.BlockInfo;
-import com.capital7software.network.util.MD5;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,20 +41,43 @@ public class TftpServer implements Runnable {
     private final static String DEFAULT_ERROR_MESSAGE = "An unknown error has occurred.";
     public final static String WRITING_MSG = "Wrote: [%s]-[%s]-[%s]%n";
     public final static String RECEIVING_MSG = "Received: [%s]-[%s]-[%s]%n";
-    private final static int DEFAULT_TIMEOUT = 10000; // 10 seconds.
+    public final static String SKIPPING_MSG = "Skipped: [%s-%s]-[%s]-[%s]%n";
+    public final static String KEEPING_MSG = "Kept: [%s-%s]-[%s]%n";
+    public final static String DISK_FULL_MSG = "There is no room for %s, which is %d byte(s).%n";
+    final static int DEFAULT_TIMEOUT = 10000; // 10 seconds.
     private final static String SUFFIX = "_received";
+    private final static String DELTA_SUFFIX = ".delta";
     public final static int DEFAULT_PORT = 69;
     public final static int DEFAULT_BUFFER_SIZE = 16384; // 16 KB
     public final static String SHUTDOWN_MSG = ".";
     private final int bufferSize; // in bytes
     private final int port;
+    private final int shards;
+    private final int statsInterval; // in seconds
+    private final Path root;
+    private final ServerConfig config;
+    private volatile BlockCache blockCache;
+    private volatile UploadStorage storage;
+    private final FileHashes fileHashes = new FileHashes();
+    private final GroupCommit groupCommit = new GroupCommit();
     private static final Logger ERRORS = Logger.getLogger(TftpServer.class.getName());
+    private final List<ServerShard> shardList = new CopyOnWriteArrayList<>();
     private volatile boolean isShutDown;
+    private volatile boolean verbose;
 
-    public TftpServer(int port, int bufferSize) {
+    public TftpServer(ServerConfig config) {
         this.isShutDown = false;
-        this.bufferSize = bufferSize;
-        this.port = port;
+        this.bufferSize = config.getBufferSize();
+        this.port = config.getPort();
+        this.shards = config.getShards();
+        this.statsInterval = config.getStatsInterval();
+        this.verbose = config.isVerbose();
+        this.root = config.getRoot();
+        this.config = config;
+    }
+
+    public TftpServer(int port, int bufferSize) {
+        this(newConfig(port, bufferSize));
     }
 
     public TftpServer(int port) {
@@ -59,106 +90,271 @@ public class TftpServer implements Runnable {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[bufferSize];
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            socket.setSoTimeout(DEFAULT_TIMEOUT);
-
-            while (true) {
-                if (isShutDown) {
-                    System.out.println("Shutting down...");
-                    return;
-                }
+        ExecutorService sessionExecutor = newSessionExecutor();
+        ScheduledExecutorService statsReporter = null;
+        List<DatagramSocket> sockets = new ArrayList<>();
 
-                DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+        try {
+            blockCache = config.createBlockCache();
+            storage = config.createStorage();
+            int count = shards;
+
+            if (count > 1 && !isReusePortSupported()) {
+                System.out.println("SO_REUSEPORT is not supported on this platform. Using a single receive loop.");
+                count = 1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                sockets.add(bind(count > 1));
+                shardList.add(new ServerShard(this, i, sockets.get(i), sessionExecutor));
+            }
+            System.out.printf("Serving port %d with %d receive loop(s)%n", port, count);
+
+            if (statsInterval > 0) {
+                statsReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "tftp-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                statsReporter.scheduleAtFixedRate(this::printStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+            }
 
+            List<Thread> loops = new ArrayList<>();
+            for (int i = 1; i < count; i++) {
+                Thread loop = new Thread(shardList.get(i), "tftp-shard-" + i);
+                loop.start();
+                loops.add(loop);
+            }
+
+            shardList.get(0).run();
+
+            for (Thread loop : loops) {
+                loop.join();
+            }
+            System.out.println("Shutting down...");
+        } catch (SocketException ex) {
+            ERRORS.log(Level.SEVERE, "Could not bind to port: " + port, ex);
+        } catch (IOException ex) {
+            ERRORS.log(Level.SEVERE, "Could not open the upload store: " + config.getStore(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (DatagramSocket socket : sockets) {
+                socket.close();
+            }
+            if (statsReporter != null) {
+                statsReporter.shutdown();
+            }
+            // Let the transfers that are in progress run to completion
+            sessionExecutor.shutdown();
+            if (storage != null) {
                 try {
-                    // Wait to receive wake-up packet
-                    System.out.println("Waiting for a request...");
-                    socket.receive(incoming);
-                    Message msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
-                    System.out.println("File Receiver woke-up");
-
-                    if (msg == null || (msg.getOpCode() != OpCode.RRQ && msg.getOpCode() != OpCode.WRQ)) {
-                        sendError(socket, incoming, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unknown packet");
-                        shutDown();
-                    } else if (msg.getOpCode() == OpCode.WRQ) {
-                        FileMessage message = (FileMessage) msg;
-                        String file = message.getFilename().getValue();
-                        String mode = message.getMode().getValue();
-
-                        String realFile = prepareFile(file);
-
-                        if (realFile == null) {
-                            System.out.printf("File %s already exists. Exiting...%n", file);
-                            sendError(socket, incoming, ErrorCode.FILE_ALREADY_EXISTS, "The file already exists on this server.");
-                            shutDown();
-                        } else {
-                            System.out.printf("Preparing to receive %s in %s mode%n", file, mode);
-
-                            int blockSize = 512;
-                            System.out.printf("Block size set to %d byte(s)%n", blockSize);
-                            int timeout = DEFAULT_TIMEOUT;
-                            System.out.printf("Timeout set to %d second(s)%n", timeout / 1_000);
-
-                            String md5 = null;
-                            long numBlocks = -1;
-
-                            List<MessageOption> options = new LinkedList<>();
-
-                            for (MessageOption option : message.getOptions()) {
-                                if (Objects.equals(option.getName().getValue(), MessageOptionCode.BLOCK_SIZE.getValue())) {
-                                    int newBlockSize = Integer.parseInt(option.getValue().getValue());
-                                    if (newBlockSize != blockSize) {
-                                        blockSize = newBlockSize;
-                                        System.out.printf("Block size changed to %d byte(s)%n", blockSize);
-                                    }
-                                    options.add(option);
-                                } else if (Objects.equals(option.getName().getValue(), MessageOptionCode.BLOCK_COUNT.getValue())) {
-                                    numBlocks = Long.parseLong(option.getValue().getValue());
-                                    System.out.printf("Number of blocks to receive is %d%n", numBlocks);
-                                    options.add(option);
-                                } else if (Objects.equals(option.getName().getValue(), MessageOptionCode.FILE_MD5.getValue())) {
-                                    md5 = option.getValue().getValue();
-                                    System.out.printf("MD5 Hash of file being received is %s%n", md5);
-                                    options.add(option);
-                                } else if (Objects.equals(option.getName().getValue(), MessageOptionCode.FILE_SIZE.getValue())) {
-                                    var fileSize = Long.parseLong(option.getValue().getValue());
-                                    System.out.printf("File size is %d byte(s)%n", fileSize);
-                                    options.add(option);
-                                } else if (Objects.equals(option.getName().getValue(), MessageOptionCode.TIMEOUT.getValue())) {
-                                    int newTimeout = Integer.parseInt(option.getValue().getValue()) * 1_000;
-                                    if (newTimeout != timeout) {
-                                        timeout = newTimeout;
-                                        socket.setSoTimeout(timeout);
-                                        System.out.printf("Timeout changed to %d second(s)%n", timeout / 1_000);
-                                    }
-                                    options.add(option);
-                                }
-                            }
-
-                            oackHello(socket, incoming);
-                            System.out.println("Said hello");
-                            if (blockSize > buffer.length) {
-                                int oldLength = buffer.length;
-                                buffer = new byte[blockSize + 8];
-                                incoming.setData(buffer);
-                                System.out.printf("Changed size of the receive buffer from %d bytes to %d bytes.%n", oldLength, buffer.length);
-                            }
-                            System.out.println("Waiting for file data...");
-                            receiveFile(socket, incoming, options, (int) numBlocks, blockSize, realFile, md5);
-                            System.out.println("File received.");
-                            shutDown();
-                        }
-                    }
-                } catch (SocketTimeoutException ignored) {
+                    sessionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+                    storage.close();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
                 } catch (IOException ex) {
                     ERRORS.log(Level.WARNING, null, ex);
-                } catch (TftpException ex) {
-                    ERRORS.log(Level.SEVERE, null, ex);
                 }
             }
+            groupCommit.close();
+            printStats();
+        }
+    }
+
+    /**
+     * Get the number of transfers that are currently in progress
+     *
+     * @return the number of transfers that are currently in progress
+     */
+    public int getActiveSessions() {
+        int answer = 0;
+
+        for (ServerShard shard : shardList) {
+            answer += shard.getActiveSessions();
+        }
+
+        return answer;
+    }
+
+    /**
+     * Returns an unmodifiable view of the receive loops of this server
+     *
+     * @return the receive loops of this server
+     */
+    public List<ServerShard> getShards() {
+        return Collections.unmodifiableList(shardList);
+    }
+
+    /**
+     * Writes the counters of every receive loop to the console
+     */
+    public void printStats() {
+        for (ServerShard shard : shardList) {
+            shard.printStats();
+        }
+
+        if (blockCache != null) {
+            blockCache.printStats();
+        }
+
+        if (storage != null) {
+            storage.printStats();
+        }
+
+        groupCommit.printStats();
+    }
+
+    /**
+     * Get the settings that this server was started with
+     *
+     * @return the settings that this server was started with
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Get the cache that downloads are served through
+     *
+     * @return the cache that downloads are served through or null if there is none
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Get the hashes of the files that were sent, so that a file is only hashed again once it
+     * changed
+     *
+     * @return the hashes of the files that were sent
+     */
+    public FileHashes getFileHashes() {
+        return fileHashes;
+    }
+
+    /**
+     * Get the storage that uploads are kept in
+     *
+     * @return the storage that uploads are kept in or null if they are written as files of their own
+     */
+    public UploadStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the coordinator that forces the received files of every session
+     *
+     * @return the coordinator that forces the received files of every session
+     */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Get the settings that a session writes a received file with
+     *
+     * @return the settings of the transfers that this server receives
+     */
+    public ReceiveSettings newReceiveSettings() {
+        ReceiveSettings answer = ReceiveSettings.fromConfig(config);
+
+        answer.setVerbose(verbose);
+        answer.setGroupCommit(groupCommit);
+
+        return answer;
+    }
+
+    /**
+     * Get the size of the receive buffer used for incoming requests
+     *
+     * @return the size of the receive buffer in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns true if per-block progress is written to the console
+     *
+     * @return true if per-block progress is written to the console
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * When set to true, every block that is received and written is reported to the console.
+     * This is off by default, as the console becomes a point of contention between sessions.
+     *
+     * @param verbose true to report per-block progress to the console
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Get the directory that read requests are served from
+     *
+     * @return the directory that read requests are served from
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    boolean isShutDown() {
+        return isShutDown;
+    }
+
+    private DatagramSocket bind(boolean reusePort) throws SocketException {
+        DatagramSocket answer = new DatagramSocket(null);
+
+        try {
+            if (reusePort) {
+                answer.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            answer.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            answer.close();
+            throw ex instanceof SocketException ? (SocketException) ex : new SocketException(ex.getMessage());
+        }
+
+        return answer;
+    }
+
+    private static boolean isReusePortSupported() {
+        try (DatagramSocket socket = new DatagramSocket(null)) {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
         } catch (SocketException ex) {
-            ERRORS.log(Level.SEVERE, "Could not bind to port: " + port, ex);
+            return false;
+        }
+    }
+
+    private static ServerConfig newConfig(int port, int bufferSize) {
+        ServerConfig answer = new ServerConfig();
+
+        answer.setPort(port);
+        answer.setBufferSize(bufferSize);
+
+        return answer;
+    }
+
+    /**
+     * Creates the executor that runs the sessions. A virtual thread is used per session when the
+     * runtime provides them, otherwise a platform thread is used per session.
+     *
+     * @return the executor that runs the sessions
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tftp-session");
+                thread.setDaemon(false);
+                return thread;
+            });
         }
     }
 
@@ -197,6 +393,19 @@ public class TftpServer implements Runnable {
         }
     }
 
+    public void oackHello(DatagramSocket socket, SocketAddress dest, List<MessageOption> options) throws IOException {
+        try {
+            AckMessage message = new AckMessage(OpCode.OACK);
+
+            message.addOptionAll(options);
+
+            DatagramPacket outgoing = new DatagramPacket(message.getPayload(), message.getPayloadSize(), dest);
+            socket.send(outgoing);
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        }
+    }
+
     public void ackData(DatagramSocket socket, DatagramPacket packet) throws IOException {
         try {
             AckMessage message = new AckMessage();
@@ -210,107 +419,114 @@ public class TftpServer implements Runnable {
         }
     }
 
+    public void ackData(DatagramSocket socket, SocketAddress dest, long block) throws IOException {
+        try {
+            AckMessage message = new AckMessage(IdableMessage.toId(block));
+            DatagramPacket outgoing = new DatagramPacket(message.getPayload(), message.getPayloadSize(), dest);
+            socket.send(outgoing);
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        }
+    }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        TftpServer server = new TftpServer();
+        TftpServer server = new TftpServer(ServerConfig.fromArgs(args));
         Thread t = new Thread(server);
         t.start();
     }
 
-    private String prepareFile(String inFile) {
-        String answer = "";
-        try {
-            String directory = System.getProperty("user.dir");
-            String fullPath = inFile;
-            String ext = "";
-            String name;
-
-            int extIndex = fullPath.lastIndexOf('.');
-
-            if (extIndex >= 0) {
-                ext = fullPath.substring(extIndex);
-            }
-
-            int index = fullPath.lastIndexOf(File.separatorChar);
-
-            if (index >= 0) {
-                name = fullPath.substring(index + 1, extIndex >= 0 ? extIndex : fullPath.length());
-            } else {
-                fullPath = Paths.get(fullPath).getFileName().toString();
-
-                extIndex = fullPath.lastIndexOf('.');
+    /**
+     * Resolves the file named in a RRQ against the specified root directory.
+     *
+     * @param root the directory that read requests are served from
+     * @param inFile the filename from the RRQ
+     * @return the file to send or null if the name points outside the root directory
+     */
+    static Path resolveFile(Path root, String inFile) {
+        Path answer = null;
 
-                if (extIndex >= 0) {
-                    ext = fullPath.substring(extIndex);
-                }
+        try {
+            Path path = root.resolve(inFile).normalize();
 
-                name = fullPath.substring(0, extIndex >= 0 ? extIndex : fullPath.length());
+            if (path.startsWith(root)) {
+                answer = path;
             }
+        } catch (InvalidPathException ex) {
+            ERRORS.log(Level.FINE, null, ex);
+        }
 
-            String outFileName = name + SUFFIX + ext;
-
-            answer = directory + File.separatorChar + outFileName;
-            Path path = Paths.get(answer);
-            if (Files.exists(path)) {
-                answer = null;
-            } else {
-                Files.createFile(path);
-            }
+        return answer;
+    }
 
+    /**
+     * Creates the local file that a delta upload of a file that already exists is written to,
+     * before it replaces the existing file.
+     *
+     * @param target the full path of the file that already exists
+     * @return the full path of the created file or null if another upload of the file is already
+     * under way
+     */
+    static String prepareDelta(String target) {
+        String answer = target + DELTA_SUFFIX;
+        try {
+            Files.createFile(Paths.get(answer));
             return answer;
+        } catch (FileAlreadyExistsException ex) {
+            answer = null;
         } catch (IOException ex) {
             ERRORS.log(Level.SEVERE, null, ex);
+            answer = null;
         }
         return answer;
     }
 
-    private void receiveFile(DatagramSocket socket, DatagramPacket incoming, List<MessageOption> options, int numBlocks, int blockSize, String filename, String md5) throws TftpException, IOException {
-        for (int i = 0; i < numBlocks; i++) {
-            socket.receive(incoming);
-            DataMessage message = new DataMessage();
-            message.fromPayload(incoming.getData(), incoming.getOffset(), incoming.getLength());
+    /**
+     * Get the full path of the local file that an upload of the specified file is written to.
+     *
+     * @param inFile the filename from the WRQ
+     * @return the full path of the local file
+     */
+    static String targetOf(String inFile) {
+        String directory = System.getProperty("user.dir");
+        String fullPath = inFile;
+        String ext = "";
+        String name;
 
-            if (i + 1 != message.getId()) {
-                sendError(socket, incoming, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected block number received");
-                break;
-            }
+        int extIndex = fullPath.lastIndexOf('.');
 
-            long offset = ((long) message.getId() - 1) * blockSize;
-            byte[] buffer = message.getBlock();
-            long end = buffer != null ? offset + (long) buffer.length : offset;
-            System.out.printf((RECEIVING_MSG), message.getId(), offset, end - 1);
-            BlockInfo block = new BlockInfo(filename, message.getId(), offset, i + 1 == numBlocks ? Objects.requireNonNull(buffer).length : blockSize);
-            try {
-                if (offset < 0) {
-                    sendError(socket, incoming, ErrorCode.NOT_DEFINED, "Overflow error.");
-                    System.out.println("Overflow error. Exiting...");
-                    throw new TftpException("Overflow error!");
-                }
-                block.write(buffer, true);
-            } catch (TftpException ex) {
-                sendError(socket, incoming, ErrorCode.ACCESS_VIOLATION, ex.getMessage());
-                throw ex;
-            }
-            System.out.printf((WRITING_MSG), message.getId(), offset, end - 1);
-            ackData(socket, incoming);
+        if (extIndex >= 0) {
+            ext = fullPath.substring(extIndex);
         }
 
-        String fileMd5 = MD5.hashFile(Paths.get(filename), false);
+        int index = fullPath.lastIndexOf(File.separatorChar);
 
-        if (md5 != null) {
-            if (md5.compareToIgnoreCase(fileMd5) != 0) {
-                System.out.println("MD5 Hash validation failed for the received file.");
-            } else {
-                System.out.println("MD5 Hash validated for the received file.");
-            }
+        if (index >= 0) {
+            name = fullPath.substring(index + 1, extIndex >= 0 ? extIndex : fullPath.length());
         } else {
-            System.out.println("Skipping MD5 Hash validation.");
+            fullPath = Paths.get(fullPath).getFileName().toString();
+
+            extIndex = fullPath.lastIndexOf('.');
+
+            if (extIndex >= 0) {
+                ext = fullPath.substring(extIndex);
+            }
+
+            name = fullPath.substring(0, extIndex >= 0 ? extIndex : fullPath.length());
         }
+
+        String outFileName = name + SUFFIX + ext;
+
+        return directory + File.separatorChar + outFileName;
+    }
+
+    void sendError(DatagramSocket socket, DatagramPacket incoming, ErrorCode code, String msg) {
+        sendError(socket, incoming.getSocketAddress(), code, msg);
     }
 
-    private void sendError(DatagramSocket socket, DatagramPacket incoming, ErrorCode code, String msg) {
+    void sendError(DatagramSocket socket, SocketAddress dest, ErrorCode code, String msg) {
         try {
             ErrorMessage message = new ErrorMessage();
 
@@ -320,7 +536,7 @@ public class TftpServer implements Runnable {
             }
 
             message.setMsg(new NetAscii(msg));
-            DatagramPacket outgoing = new DatagramPacket(message.getPayload(), message.getPayloadSize(), incoming.getSocketAddress());
+            DatagramPacket outgoing = new DatagramPacket(message.getPayload(), message.getPayloadSize(), dest);
             socket.send(outgoing);
         } catch (IOException ex) {
             ERRORS.log(Level.SEVERE, null, ex);
@@ -0,0 +1,506 @@
+/*
+ * File: TftpServerSession.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.CorruptMessageException;
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.ErrorCode;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.Tftp;
+import com.capital7software.network.tftp.messages.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single file transfer that was accepted by a {@link TftpServer}, either a download (RRQ) or
+ * an upload (WRQ). Each session owns its own socket bound to an ephemeral port, which acts as
+ * the server side transfer id (TID) for the remainder of the transfer, so that the listening
+ * socket is free to accept the next request.
+ *
+ * @author Vincent Palodichuk
+ */
+public class TftpServerSession implements Runnable {
+    private static final Logger ERRORS = Logger.getLogger(TftpServerSession.class.getName());
+    public static final String SENDING_MSG = "Sending: [%s]-[%s]%n";
+    static final int MAX_RETRIES = Integer.parseInt(Tftp.DEFAULT_RETRY_COUNT);
+
+    private final ServerShard shard;
+    private final TftpServer server;
+    private final FileMessage request;
+    private final SocketAddress client;
+    private volatile String filename;
+    private final String base;
+    private final UploadStorage.Upload upload;
+
+    /**
+     * Initializes a session that will receive the file named in the specified request.
+     *
+     * @param shard the receive loop that accepted the request
+     * @param request the RRQ or WRQ that started this session
+     * @param client the address and port (the client TID) that sent the request
+     * @param filename the full path of the local file that the data is read from or written to
+     */
+    public TftpServerSession(ServerShard shard, FileMessage request, SocketAddress client, String filename) {
+        this(shard, request, client, filename, null);
+    }
+
+    /**
+     * Initializes a session that will receive the file named in the specified request.
+     *
+     * @param shard the receive loop that accepted the request
+     * @param request the RRQ or WRQ that started this session
+     * @param client the address and port (the client TID) that sent the request
+     * @param filename the full path of the local file that the data is read from or written to
+     * @param base the full path of the copy that a delta upload is built from, or null if the
+     * file is transferred in full
+     */
+    public TftpServerSession(ServerShard shard, FileMessage request, SocketAddress client, String filename, String base) {
+        this(shard, request, client, filename, base, null);
+    }
+
+    /**
+     * Initializes a session that will receive the file named in the specified request into the
+     * file that the storage of the server, or a {@link StagedFile}, staged for it.
+     *
+     * @param shard the receive loop that accepted the request
+     * @param request the WRQ that started this session
+     * @param client the address and port (the client TID) that sent the request
+     * @param upload the upload that was staged for the file
+     */
+    public TftpServerSession(ServerShard shard, FileMessage request, SocketAddress client, UploadStorage.Upload upload) {
+        this(shard, request, client, upload.getFilename(), null, upload);
+    }
+
+    private TftpServerSession(ServerShard shard, FileMessage request, SocketAddress client, String filename, String base, UploadStorage.Upload upload) {
+        this.base = base;
+        this.upload = upload;
+        this.shard = shard;
+        this.server = shard.getServer();
+        this.request = request;
+        this.client = client;
+        this.filename = filename;
+    }
+
+    /**
+     * Get the address of the client that this session is transferring with
+     *
+     * @return the address of the client that this session is transferring with
+     */
+    public SocketAddress getClient() {
+        return client;
+    }
+
+    /**
+     * Get the full path of the local file that this session reads from or writes to
+     *
+     * @return the full path of the local file that this session reads from or writes to
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void run() {
+        String file = request.getFilename().getValue();
+        String mode = request.getMode().getValue();
+        boolean reading = request.getOpCode() == OpCode.RRQ;
+        boolean success = false;
+
+        // The channel lets DATA be sent straight from a direct buffer, its socket adaptor is
+        // used for everything else
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(null);
+            DatagramSocket socket = channel.socket();
+
+            if (reading && !findFile(socket, file)) {
+                return;
+            }
+            System.out.printf("Preparing to %s %s %s %s in %s mode on port %d%n", reading ? "send" : "receive",
+                    file, reading ? "to" : "from", client, mode, socket.getLocalPort());
+
+            TransferOptions options;
+            try {
+                options = reading ? TransferOptions.fromReadRequest(request, Paths.get(filename), server.getFileHashes()) : TransferOptions.fromRequest(request);
+            } catch (NumberFormatException ex) {
+                server.sendError(socket, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Invalid option value.");
+                return;
+            }
+            int blockSize = options.getBlockSize();
+
+            System.out.printf("%s: block size %d byte(s), %d block(s), timeout %d second(s)%n", file, blockSize, options.getNumBlocks(), options.getTimeout() / 1_000);
+            socket.setSoTimeout(options.getTimeout());
+
+            byte[] buffer = new byte[Math.max(blockSize + DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + DataMessage.CHECKSUM_SIZE, server.getBufferSize())];
+            DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
+
+            if (reading) {
+                success = sendFile(channel, socket, incoming, options);
+                if (success) {
+                    System.out.printf("File %s sent to %s.%n", file, client);
+                }
+            } else {
+                DeltaBase delta = null;
+                if (base != null) {
+                    try {
+                        delta = new DeltaBase(Paths.get(base), blockSize, options.getDigestAlgorithm());
+                    } catch (IOException ex) {
+                        Files.deleteIfExists(Paths.get(filename));
+                        throw ex;
+                    }
+                    options.acceptDelta(delta.getNumBlocks());
+                }
+                try (ReceiveTransfer transfer = new ReceiveTransfer(filename, options, server.newReceiveSettings(), delta, upload)) {
+                    server.oackHello(socket, client, options.getAccepted());
+                    success = receiveFile(socket, incoming, transfer);
+                }
+                if (success) {
+                    System.out.printf("File %s received from %s.%n", file, client);
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            System.out.printf("Timed out waiting for %s from %s. Abandoning the transfer.%n", file, client);
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, null, ex);
+        } catch (TftpException ex) {
+            ERRORS.log(Level.SEVERE, null, ex);
+        } finally {
+            if (upload != null && !success) {
+                // The transfer may have failed before its file was ever opened
+                try {
+                    upload.discard();
+                } catch (IOException ex) {
+                    ERRORS.log(Level.WARNING, null, ex);
+                }
+            }
+            shard.sessionFinished(this, success);
+        }
+    }
+
+    /**
+     * Finds the file that a RRQ asks for, restoring it from the storage of the server when it
+     * is not a file of its own. Restoring may put the file together from the storage, so it is
+     * done by the session rather than by the receive loop of the shard.
+     *
+     * @return true if the file was found, false if the client was sent an ERROR
+     */
+    private boolean findFile(DatagramSocket socket, String file) throws IOException {
+        Path path = Paths.get(filename);
+        UploadStorage storage = server.getStorage();
+
+        if (!Files.isRegularFile(path) && storage != null) {
+            Path stored = storage.restore(file);
+            path = stored != null ? stored : path;
+        }
+
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            System.out.printf("File %s was not found.%n", file);
+            server.sendError(socket, client, ErrorCode.FILE_NOT_FOUND, "The file was not found on this server.");
+            return false;
+        }
+
+        filename = path.toString();
+        return true;
+    }
+
+    private boolean sendFile(DatagramChannel channel, DatagramSocket socket, DatagramPacket incoming, TransferOptions options) throws TftpException, IOException {
+        try (SendTransfer transfer = new SendTransfer(Paths.get(filename), options, server.getBlockCache())) {
+            ByteBuffer outgoing;
+            int retries = 0;
+
+            if (options.getAccepted().isEmpty()) {
+                outgoing = transfer.nextBlock();
+            } else {
+                // The client acknowledges the OACK with block 0
+                AckMessage oack = new AckMessage(OpCode.OACK);
+                oack.addOptionAll(options.getAccepted());
+                outgoing = ByteBuffer.wrap(oack.getPayload());
+            }
+            channel.send(outgoing, client);
+
+            while (true) {
+                incoming.setLength(incoming.getData().length);
+
+                try {
+                    socket.receive(incoming);
+                } catch (SocketTimeoutException ex) {
+                    if (++retries > MAX_RETRIES) {
+                        throw ex;
+                    }
+                    channel.send(outgoing.rewind(), client);
+                    continue;
+                }
+
+                if (!client.equals(incoming.getSocketAddress())) {
+                    server.sendError(socket, incoming.getSocketAddress(), ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                    continue;
+                }
+
+                Message msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
+
+                if (msg instanceof ErrorMessage error) {
+                    System.out.printf("Transfer with %s aborted by the client: %s%n", client,
+                            error.getMsg() != null ? error.getMsg().getValue() : error.getErrorCode());
+                    return false;
+                }
+
+                // Duplicate ACKs are ignored rather than answered, otherwise every duplicate
+                // would double the traffic for the rest of the transfer
+                if (msg instanceof AckMessage ack && ack.getBlockNumber(transfer.getLastSent()) == transfer.getLastSent()) {
+                    if (transfer.isComplete()) {
+                        return true;
+                    }
+                    retries = 0;
+                    outgoing = transfer.nextBlock();
+                    if (server.isVerbose()) {
+                        System.out.printf(SENDING_MSG, transfer.getLastSent(), outgoing.remaining() - DataMessage.HEADER_SIZE);
+                    }
+                    channel.send(outgoing, client);
+                }
+            }
+        }
+    }
+
+    private boolean receiveFile(DatagramSocket socket, DatagramPacket incoming, ReceiveTransfer transfer) throws TftpException, IOException {
+        boolean last = false;
+
+        while (!transfer.isComplete()) {
+            incoming.setLength(incoming.getData().length);
+            socket.receive(incoming);
+
+            if (!client.equals(incoming.getSocketAddress())) {
+                // A packet from some other TID must not terminate this transfer
+                server.sendError(socket, incoming.getSocketAddress(), ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                continue;
+            }
+
+            byte opCode = incoming.getLength() > 1 ? incoming.getData()[incoming.getOffset() + 1] : 0;
+
+            if (opCode == OpCode.HOLE.getValue() || opCode == OpCode.KEEP.getValue()) {
+                if (!receiveRun(socket, incoming, transfer)) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (opCode == OpCode.OACK.getValue()) {
+                // The client of a delta upload asks for the hashes of the copy before it sends a block
+                Message msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
+                AckMessage digests = msg instanceof AckMessage request ? transfer.answerDigests(request) : null;
+                if (digests == null) {
+                    server.sendError(socket, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected OACK packet");
+                    return false;
+                }
+                byte[] payload = digests.getPayload();
+                socket.send(new DatagramPacket(payload, payload.length, client));
+                continue;
+            }
+
+            DataMessage message = new DataMessage();
+            message.setChecksum(transfer.getOptions().isChecksum());
+            message.setCompressed(transfer.getOptions().isCompressed());
+            try {
+                message.fromPayload(incoming.getData(), incoming.getOffset(), incoming.getLength());
+            } catch (CorruptMessageException ex) {
+                // Repeating the ACK of the last block in order makes the client send the block again
+                server.ackData(socket, client, transfer.getNextBlock() - 1);
+                continue;
+            }
+
+            long block = transfer.blockOf(message);
+
+            if (block < transfer.getNextBlock()) {
+                // Our ACK was lost, so acknowledge the duplicate again
+                server.ackData(socket, client, block);
+                continue;
+            }
+
+            if (!transfer.accepts(block)) {
+                server.sendError(socket, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Unexpected block number received");
+                return false;
+            }
+
+            try {
+                transfer.write(message);
+            } catch (TftpException ex) {
+                server.sendError(socket, client, ErrorCode.ACCESS_VIOLATION, ex.getMessage());
+                throw ex;
+            }
+            if (transfer.isComplete() && !transfer.getOptions().isTrailer()) {
+                // The final ACK tells the client that the file is stored, so it is only sent once the file is validated, published and forced
+                last = true;
+                break;
+            }
+            // A block that arrived early repeats the ACK of the last block in order
+            server.ackData(socket, client, transfer.getNextBlock() - 1);
+        }
+
+        if (transfer.getOptions().isTrailer()) {
+            return awaitTrailer(socket, incoming, transfer);
+        }
+        if (!transfer.finish()) {
+            server.sendError(socket, client, ErrorCode.NOT_DEFINED, "The received file could not be validated or stored.");
+            return false;
+        }
+        if (last) {
+            server.ackData(socket, client, transfer.getNextBlock() - 1);
+        }
+        return true;
+    }
+
+    private boolean receiveRun(DatagramSocket socket, DatagramPacket incoming, ReceiveTransfer transfer) throws TftpException, IOException {
+        RunMessage run = incoming.getData()[incoming.getOffset() + 1] == OpCode.HOLE.getValue() ? new HoleMessage() : new KeepMessage();
+        run.setChecksum(transfer.getOptions().isChecksum());
+        try {
+            run.fromPayload(incoming.getData(), incoming.getOffset(), incoming.getLength());
+        } catch (CorruptMessageException ex) {
+            server.ackData(socket, client, transfer.getNextBlock() - 1);
+            return true;
+        }
+
+        long last = run.getBlockNumber(transfer.getNextBlock()) + run.getCount() - 1;
+
+        if (last < transfer.getNextBlock()) {
+            // Our ACK was lost, so acknowledge the duplicate again
+            server.ackData(socket, client, last);
+            return true;
+        }
+
+        try {
+            transfer.writeRun(run);
+        } catch (TftpException ex) {
+            server.sendError(socket, client, ErrorCode.ILLEGAL_TFTP_OPERATION, ex.getMessage());
+            return false;
+        }
+
+        server.ackData(socket, client, transfer.getNextBlock() - 1);
+        return true;
+    }
+
+    private boolean awaitTrailer(DatagramSocket socket, DatagramPacket incoming, ReceiveTransfer transfer) throws TftpException, IOException {
+        while (true) {
+            incoming.setLength(incoming.getData().length);
+            socket.receive(incoming);
+
+            if (!client.equals(incoming.getSocketAddress())) {
+                server.sendError(socket, incoming.getSocketAddress(), ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                continue;
+            }
+
+            Message msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
+
+            if (msg instanceof DataMessage data && transfer.blockOf(data) < transfer.getNextBlock()) {
+                // The ACK of the last block was lost
+                server.ackData(socket, client, transfer.blockOf(data));
+            } else if (msg instanceof RunMessage run && run.getBlockNumber(transfer.getNextBlock()) < transfer.getNextBlock()) {
+                server.ackData(socket, client, run.getBlockNumber(transfer.getNextBlock()) + run.getCount() - 1);
+            } else if (msg instanceof AckMessage trailer && trailer.getOpCode() == OpCode.OACK) {
+                if (transfer.getOptions().isMerkle()) {
+                    return resync(socket, incoming, transfer, trailer);
+                }
+                if (!transfer.finish(trailer)) {
+                    server.sendError(socket, client, ErrorCode.NOT_DEFINED, "MD5 Hash validation failed.");
+                    return false;
+                }
+                server.ackData(socket, client, trailer.getBlockNumber(transfer.getNextBlock() - 1));
+                return true;
+            } else {
+                server.sendError(socket, client, ErrorCode.ILLEGAL_TFTP_OPERATION, "Expected the trailer of the transfer.");
+                return false;
+            }
+        }
+    }
+
+    private boolean resync(DatagramSocket socket, DatagramPacket incoming, ReceiveTransfer transfer, AckMessage trailer) throws TftpException, IOException {
+        MerkleResync resync = new MerkleResync(transfer, trailer.getId());
+        List<AckMessage> replies = resync.start(trailer);
+
+        while (true) {
+            // Once the root matches, the last reply is the final ACK, which waits until the file is published
+            int count = resync.getState() == MerkleResync.State.VALIDATED ? replies.size() - 1 : replies.size();
+            for (AckMessage reply : replies.subList(0, Math.max(0, count))) {
+                byte[] payload = reply.getPayload();
+                socket.send(new DatagramPacket(payload, payload.length, client));
+            }
+
+            if (resync.isDone()) {
+                boolean validated = transfer.finish(resync.getState() == MerkleResync.State.VALIDATED);
+                if (!validated) {
+                    server.sendError(socket, client, ErrorCode.NOT_DEFINED, "Merkle root validation failed.");
+                    return false;
+                }
+                if (count < replies.size()) {
+                    byte[] payload = replies.get(count).getPayload();
+                    socket.send(new DatagramPacket(payload, payload.length, client));
+                }
+                if (resync.getResent() > 0) {
+                    System.out.printf("%d block(s) of %s were sent again.%n", resync.getResent(), filename);
+                }
+                return true;
+            }
+
+            replies = List.of();
+            incoming.setLength(incoming.getData().length);
+
+            try {
+                socket.receive(incoming);
+            } catch (SocketTimeoutException ex) {
+                AckMessage again = resync.retransmit();
+                if (again == null) {
+                    throw ex;
+                }
+                replies = List.of(again);
+                continue;
+            }
+
+            if (!client.equals(incoming.getSocketAddress())) {
+                server.sendError(socket, incoming.getSocketAddress(), ErrorCode.UNKNOWN_TRANSFER_ID, "Unknown transfer ID.");
+                continue;
+            }
+
+            Message msg;
+            if (incoming.getLength() > 1 && incoming.getData()[incoming.getOffset() + 1] == OpCode.DATA.getValue()) {
+                DataMessage data = new DataMessage();
+                data.setChecksum(transfer.getOptions().isChecksum());
+                data.setCompressed(transfer.getOptions().isCompressed());
+                try {
+                    data.fromPayload(incoming.getData(), incoming.getOffset(), incoming.getLength());
+                } catch (CorruptMessageException ex) {
+                    // The client sends the block again when its ACK does not arrive
+                    continue;
+                }
+                msg = data;
+            } else {
+                msg = MessageFactory.getMessage(incoming.getData(), incoming.getOffset(), incoming.getLength());
+            }
+
+            if (msg instanceof DataMessage data) {
+                replies = resync.onData(data);
+            } else if (msg instanceof AckMessage reply && reply.getOpCode() == OpCode.OACK) {
+                replies = resync.onReply(reply);
+            } else if (msg instanceof ErrorMessage error) {
+                System.out.printf("Transfer with %s aborted by the client: %s%n", client,
+                        error.getMsg() != null ? error.getMsg().getValue() : error.getErrorCode());
+                transfer.finish(false);
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TftpServerSession{" + "client = " + client + ", filename = " + filename + '}';
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * File: TransferOptions.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.tftp.AckPolicy;
+import com.capital7software.network.tftp.Durability;
+import com.capital7software.network.tftp.TftpOption;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.FileMessage;
+import com.capital7software.network.tftp.messages.MessageOption;
+import com.capital7software.network.tftp.messages.MessageOptionCode;
+import com.capital7software.network.util.BlockInfo;
+import com.capital7software.network.util.Compression;
+import com.capital7software.network.util.DigestAlgorithm;
+import com.capital7software.network.util.MD5;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The settings of a single transfer as negotiated from the options of a RRQ or WRQ. Only the
+ * options that the server understands are accepted, and only the accepted options are sent
+ * back to the client in the OACK.
+ *
+ * @author Vincent Palodichuk
+ */
+public class TransferOptions {
+    private int blockSize = BlockInfo.DEFAULT_BLOCK_SIZE;
+    private int timeout = TftpServer.DEFAULT_TIMEOUT;
+    private long numBlocks = -1;
+    private long fileSize = -1;
+    private String md5;
+    private AckPolicy ackPolicy;
+    private Durability durability;
+    private boolean trailer;
+    private DigestAlgorithm digestAlgorithm = DigestAlgorithm.MD5;
+    private String fileHash;
+    private boolean checksum;
+    private boolean merkle;
+    private boolean holes;
+    private Compression compression;
+    private boolean delta;
+    private final List<MessageOption> accepted = new LinkedList<>();
+
+    /**
+     * Returns true if the specified request asks to send only the blocks that differ from the
+     * copy of the file that the server already has, without parsing the other options.
+     *
+     * @param request the WRQ that contains the requested options
+     * @return true if the request asks for a delta upload
+     */
+    public static boolean isDelta(FileMessage request) {
+        return request.getOptions().stream().anyMatch(option -> Objects.equals(option.getName().getValue(), MessageOptionCode.DELTA.getValue())
+                && Objects.equals(option.getValue().getValue(), "1"));
+    }
+
+    /**
+     * Returns true if the specified request asks to be told when the server already holds the
+     * content of the file, instead of the file being transferred.
+     *
+     * @param request the WRQ that contains the requested options
+     * @return true if the request asks whether the content is already stored
+     */
+    public static boolean isStored(FileMessage request) {
+        return request.getOptions().stream().anyMatch(option -> Objects.equals(option.getName().getValue(), MessageOptionCode.STORED.getValue())
+                && Objects.equals(option.getValue().getValue(), "1"));
+    }
+
+    /**
+     * Parses the options of the specified request.
+     *
+     * @param request the RRQ or WRQ that contains the requested options
+     * @return the negotiated options
+     * @throws NumberFormatException if a numeric option has a value that is not a number
+     */
+    public static TransferOptions fromRequest(FileMessage request) {
+        TransferOptions answer = new TransferOptions();
+        DigestAlgorithm algorithm = null;
+        MessageOption hashOption = null;
+        MessageOption hashTrailer = null;
+        MessageOption merkleTrailer = null;
+
+        for (MessageOption option : request.getOptions()) {
+            String name = option.getName().getValue();
+            String value = option.getValue().getValue();
+
+            if (Objects.equals(name, MessageOptionCode.BLOCK_SIZE.getValue())) {
+                answer.blockSize = Integer.parseInt(value);
+                answer.accepted.add(option);
+            } else if (Objects.equals(name, MessageOptionCode.BLOCK_COUNT.getValue())) {
+                answer.numBlocks = Long.parseLong(value);
+                answer.accepted.add(option);
+            } else if (Objects.equals(name, MessageOptionCode.FILE_MD5.getValue())) {
+                answer.md5 = value;
+                answer.accepted.add(option);
+            } else if (Objects.equals(name, MessageOptionCode.FILE_SIZE.getValue())) {
+                answer.fileSize = Long.parseLong(value);
+                answer.accepted.add(option);
+            } else if (Objects.equals(name, MessageOptionCode.TIMEOUT.getValue())) {
+                answer.timeout = Integer.parseInt(value) * 1_000;
+                answer.accepted.add(option);
+            } else if (Objects.equals(name, MessageOptionCode.TRAILER.getValue())) {
+                // The only trailers that are understood carry the hash of the file
+                if (Objects.equals(value, MessageOptionCode.FILE_MD5.getValue())) {
+                    answer.trailer = true;
+                    answer.accepted.add(option);
+                } else if (Objects.equals(value, MessageOptionCode.FILE_HASH.getValue())) {
+                    hashTrailer = option;
+                } else if (Objects.equals(value, MessageOptionCode.MERKLE_ROOT.getValue())) {
+                    merkleTrailer = option;
+                }
+            } else if (Objects.equals(name, MessageOptionCode.DIGEST_ALGORITHM.getValue())) {
+                // An unknown algorithm is left out of the OACK, so the client knows MD5 is used
+                algorithm = DigestAlgorithm.fromValue(value);
+                if (algorithm != null) {
+                    answer.accepted.add(new TftpOption(MessageOptionCode.DIGEST_ALGORITHM, algorithm.getValue()));
+                }
+            } else if (Objects.equals(name, MessageOptionCode.FILE_HASH.getValue())) {
+                hashOption = option;
+            } else if (Objects.equals(name, MessageOptionCode.CHECKSUM.getValue())) {
+                // Every DATA packet ends with a CRC32C, the only checksum that is understood
+                if (DataMessage.CHECKSUM_ALGORITHM.equalsIgnoreCase(value)) {
+                    answer.checksum = true;
+                    answer.accepted.add(new TftpOption(MessageOptionCode.CHECKSUM, DataMessage.CHECKSUM_ALGORITHM));
+                }
+            } else if (Objects.equals(name, MessageOptionCode.HOLES.getValue())) {
+                // The client may send runs of zero blocks as HOLE messages
+                if (Objects.equals(value, "1")) {
+                    answer.holes = true;
+                    answer.accepted.add(option);
+                }
+            } else if (Objects.equals(name, MessageOptionCode.COMPRESSION.getValue())) {
+                // An unknown codec is left out of the OACK, so the client sends the blocks as they are
+                answer.compression = Compression.fromValue(value);
+                if (answer.compression != null) {
+                    answer.accepted.add(new TftpOption(MessageOptionCode.COMPRESSION, answer.compression.getValue()));
+                }
+            } else if (Objects.equals(name, MessageOptionCode.DELTA.getValue())) {
+                // Only acknowledged once the server knows that it has a copy to offer, see acceptDelta
+                answer.delta = Objects.equals(value, "1");
+            } else if (Objects.equals(name, MessageOptionCode.ACK_POLICY.getValue())) {
+                // An unknown policy is left out of the OACK, so the client knows the server's is used
+                answer.ackPolicy = AckPolicy.fromValue(value);
+                if (answer.ackPolicy != null) {
+                    answer.accepted.add(new TftpOption(MessageOptionCode.ACK_POLICY, answer.ackPolicy.getValue()));
+                }
+            } else if (Objects.equals(name, MessageOptionCode.DURABILITY.getValue())) {
+                // As with the ackpolicy, an unknown durability is left out of the OACK
+                answer.durability = Durability.fromValue(value);
+                if (answer.durability != null) {
+                    answer.accepted.add(new TftpOption(MessageOptionCode.DURABILITY, answer.durability.getValue()));
+                }
+            }
+        }
+
+        // The leaves of a Merkle tree are indexed with an int, so larger transfers are not offered one,
+        // and neither are transfers whose number of blocks was not announced
+        if (merkleTrailer != null && answer.numBlocks >= 0 && answer.numBlocks <= Integer.MAX_VALUE) {
+            answer.trailer = true;
+            answer.merkle = true;
+            answer.accepted.add(merkleTrailer);
+        }
+
+        // The hash of the file only means something in the negotiated algorithm
+        if (algorithm != null && (hashOption != null || hashTrailer != null || answer.merkle)) {
+            answer.digestAlgorithm = algorithm;
+            answer.fileHash = hashOption != null ? hashOption.getValue().getValue() : null;
+            answer.trailer |= hashTrailer != null;
+            if (hashOption != null || hashTrailer != null) {
+                answer.accepted.add(hashOption != null ? hashOption : hashTrailer);
+            }
+        } else {
+            answer.fileHash = answer.md5;
+        }
+
+        return answer;
+    }
+
+    /**
+     * Parses the options of the specified RRQ and answers them for the file that is going to be
+     * sent. The block size is limited to what this server supports and the file size, block
+     * count and hashes are replaced with the values of the file.
+     *
+     * @param request the RRQ that contains the requested options
+     * @param file the file that is going to be sent
+     * @return the negotiated options
+     * @throws IOException if the file could not be read
+     * @throws NumberFormatException if a numeric option has a value that is not a number
+     */
+    public static TransferOptions fromReadRequest(FileMessage request, Path file) throws IOException {
+        return fromReadRequest(request, file, null);
+    }
+
+    /**
+     * Parses the options of the specified RRQ and answers them for the file that is going to be
+     * sent, taking the hash of the file from the specified cache so that a file is only read
+     * again once it changed.
+     *
+     * @param request the RRQ that contains the requested options
+     * @param file the file that is going to be sent
+     * @param hashes the hashes of the files that were already sent or null to always hash the file
+     * @return the negotiated options
+     * @throws IOException if the file could not be read
+     * @throws NumberFormatException if a numeric option has a value that is not a number
+     */
+    public static TransferOptions fromReadRequest(FileMessage request, Path file, FileHashes hashes) throws IOException {
+        TransferOptions requested = fromRequest(request);
+        TransferOptions answer = new TransferOptions();
+
+        answer.blockSize = Math.max(BlockInfo.MIN_BLOCK_SIZE, Math.min(BlockInfo.MAX_BLOCK_SIZE, requested.blockSize));
+        answer.timeout = requested.timeout;
+        answer.checksum = requested.checksum;
+        answer.fileSize = Files.size(file);
+        answer.numBlocks = answer.fileSize / answer.blockSize + 1;
+
+        for (MessageOption option : requested.accepted) {
+            String name = option.getName().getValue();
+
+            if (Objects.equals(name, MessageOptionCode.BLOCK_SIZE.getValue())) {
+                answer.accepted.add(new TftpOption(MessageOptionCode.BLOCK_SIZE, "" + answer.blockSize));
+            } else if (Objects.equals(name, MessageOptionCode.BLOCK_COUNT.getValue())) {
+                answer.accepted.add(new TftpOption(MessageOptionCode.BLOCK_COUNT, "" + answer.numBlocks));
+            } else if (Objects.equals(name, MessageOptionCode.FILE_SIZE.getValue())) {
+                answer.accepted.add(new TftpOption(MessageOptionCode.FILE_SIZE, "" + answer.fileSize));
+            } else if (Objects.equals(name, MessageOptionCode.FILE_MD5.getValue())) {
+                answer.md5 = hashes != null ? hashes.hash(file, DigestAlgorithm.MD5) : MD5.hashFile(file);
+                answer.accepted.add(new TftpOption(MessageOptionCode.FILE_MD5, answer.md5));
+            } else if (Objects.equals(name, MessageOptionCode.FILE_HASH.getValue())) {
+                answer.digestAlgorithm = requested.digestAlgorithm;
+                answer.fileHash = hashes != null ? hashes.hash(file, requested.digestAlgorithm) : requested.digestAlgorithm.hashFile(file);
+                answer.accepted.add(new TftpOption(MessageOptionCode.FILE_HASH, answer.fileHash));
+            } else if (!Objects.equals(name, MessageOptionCode.TRAILER.getValue()) && !Objects.equals(name, MessageOptionCode.HOLES.getValue())
+                    && !Objects.equals(name, MessageOptionCode.COMPRESSION.getValue()) && !Objects.equals(name, MessageOptionCode.DELTA.getValue())
+                    && !Objects.equals(name, MessageOptionCode.STORED.getValue()) && !Objects.equals(name, MessageOptionCode.DURABILITY.getValue())) {
+                // Only the client sends HOLE and KEEP messages and compressed blocks, so a download never has any
+                answer.accepted.add(option);
+            }
+        }
+
+        return answer;
+    }
+
+    /**
+     * Get the size in bytes of every block but the last
+     *
+     * @return the size in bytes of every block but the last
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get the timeout in milliseconds
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Get the number of blocks in the transfer
+     *
+     * @return the number of blocks in the transfer or -1 if it is unknown
+     */
+    public long getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * Get the size of the file in bytes
+     *
+     * @return the size of the file in bytes or -1 if it is unknown
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Get the MD5 Hash of the file
+     *
+     * @return the MD5 Hash of the file or null if it is unknown
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * Get the hash of the file that the transfer is validated against
+     *
+     * @return the hash of the file, in the digest algorithm of the transfer, or null if it is
+     * unknown
+     */
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Returns true if the client sends the root of the Merkle tree of the file in the trailer,
+     * and can send the hashes of the nodes of its tree and blocks again when the roots differ
+     *
+     * @return true if the file is validated with a Merkle tree
+     */
+    public boolean isMerkle() {
+        return merkle;
+    }
+
+    /**
+     * Returns true if the client may send a run of blocks that are all zeros as a HOLE message
+     *
+     * @return true if the client may send HOLE messages
+     */
+    public boolean isHoles() {
+        return holes;
+    }
+
+    /**
+     * Returns true if the client asked to send only the blocks that differ from the copy of the
+     * file that the server already has
+     *
+     * @return true if the client asked for a delta upload
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * Accepts the delta option of the request, offering the client a copy of the file with the
+     * specified number of blocks to compare its blocks with.
+     *
+     * @param numBlocks the number of blocks of the copy that the server has
+     */
+    public void acceptDelta(long numBlocks) {
+        accepted.add(new TftpOption(MessageOptionCode.DELTA, "" + numBlocks));
+    }
+
+    /**
+     * Leaves the durability that the client asked for out of the OACK, so that the durability
+     * of the server is used instead.
+     */
+    public void refuseDurability() {
+        durability = null;
+        accepted.removeIf(option -> Objects.equals(option.getName().getValue(), MessageOptionCode.DURABILITY.getValue()));
+    }
+
+    /**
+     * Accepts the stored option of the request, telling the client that the server already
+     * holds the content of the file and that nothing has to be transferred.
+     */
+    public void acceptStored() {
+        accepted.add(new TftpOption(MessageOptionCode.STORED, "1"));
+    }
+
+    /**
+     * Get the codec that the client may compress the blocks of the transfer with
+     *
+     * @return the codec or null if the blocks are sent as they are
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns true if the block of every DATA packet of the transfer is preceded by a
+     * compression flag
+     *
+     * @return true if the blocks of the transfer may be compressed
+     */
+    public boolean isCompressed() {
+        return compression != null;
+    }
+
+    /**
+     * Returns true if every DATA packet of the transfer ends with a CRC32C of the packet
+     *
+     * @return true if every DATA packet of the transfer ends with a checksum
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Get the algorithm of the hash of the file, as negotiated with the talg option
+     *
+     * @return the algorithm of the hash of the file, MD5 unless another one was negotiated
+     */
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Returns true if the client sends the hash of the file in a trailer, an OACK with the id
+     * of the last block, once the last block has been acknowledged
+     *
+     * @return true if the hash of the file arrives in a trailer
+     */
+    public boolean isTrailer() {
+        return trailer;
+    }
+
+    /**
+     * Get the policy that decides when a DATA of a WRQ is acknowledged
+     *
+     * @return the policy or null if the client did not negotiate one
+     */
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    /**
+     * Get the durability that decides when the blocks of a WRQ are forced to the storage device
+     *
+     * @return the durability or null if the client did not negotiate one
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns an unmodifiable view of the options that were accepted
+     *
+     * @return the options that are acknowledged in the OACK
+     */
+    public List<MessageOption> getAccepted() {
+        return Collections.unmodifiableList(accepted);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferOptions{" + "blockSize = " + blockSize + ", timeout = " + timeout + ", numBlocks = " + numBlocks + ", fileSize = " + fileSize + ", md5 = " + md5 + ", ackPolicy = " + ackPolicy + ", trailer = " + trailer + ", digestAlgorithm = " + digestAlgorithm + ", fileHash = " + fileHash + ", checksum = " + checksum + ", merkle = " + merkle + ", holes = " + holes + ", compression = " + compression + ", delta = " + delta + ", durability = " + durability + '}';
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * File: UploadStorage.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Where the files that clients upload are kept, when they are not written as files of their
+ * own in the working directory of the server. An upload is received into a file or a buffer
+ * that the storage stages for it, and is only handed to the storage once it has been
+ * validated. Uploads are looked up by the filename from their WRQ.
+ *
+ * @author Vincent Palodichuk
+ */
+public interface UploadStorage extends Closeable {
+    /**
+     * An upload that is being received into a file or a buffer that the storage staged for it.
+     */
+    interface Upload {
+        /**
+         * Get the name that the upload is reported under
+         *
+         * @return the full path of the staged file, or a description of the buffer that the
+         * upload is received into
+         */
+        String getFilename();
+
+        /**
+         * Opens the writer that the blocks of the upload are written with.
+         *
+         * @param size the size of the file in bytes or -1 if it is unknown
+         * @param direct true if the upload is large enough to be written with direct I/O, which
+         * an upload that is not received into a file of its own ignores
+         * @return the writer
+         * @throws IOException if the staged file could not be opened
+         */
+        BlockWriter open(long size, boolean direct) throws IOException;
+
+        /**
+         * Hands the staged file over to the storage, once the upload has been validated.
+         *
+         * @param durable if true, the upload is on the storage device under its filename when
+         * this returns, as the blocks of a file received into a staged file were already forced
+         * when it was closed
+         * @throws IOException if the storage could not take the file
+         */
+        void publish(boolean durable) throws IOException;
+
+        /**
+         * Drops an upload that failed, deleting its staged file.
+         *
+         * @throws IOException if the file could not be deleted
+         */
+        void discard() throws IOException;
+    }
+
+    /**
+     * Stores the specified filename as a file that the storage already holds the content of,
+     * so that the upload does not have to be transferred.
+     *
+     * @param name the filename from the WRQ
+     * @param size the size of the file in bytes
+     * @param md5 the MD5 Hash of the file
+     * @return true if the content was already held, false if the file has to be uploaded
+     * @throws IOException if the storage could not be read or written
+     */
+    boolean link(String name, long size, String md5) throws IOException;
+
+    /**
+     * Stages a new upload of the specified filename.
+     *
+     * @param name the filename from the WRQ
+     * @param size the size of the file in bytes or -1 if it is unknown
+     * @return the upload
+     * @throws IOException if the staged file could not be created
+     */
+    Upload stage(String name, long size) throws IOException;
+
+    /**
+     * Get a file with the content that was last stored under the specified filename, so that it
+     * can be downloaded.
+     *
+     * @param name the filename from the RRQ
+     * @return the file or null if nothing is stored under that filename
+     * @throws IOException if the file could not be put together
+     */
+    Path restore(String name) throws IOException;
+
+    /**
+     * Writes the counters of the storage to the console
+     */
+    void printStats();
+}
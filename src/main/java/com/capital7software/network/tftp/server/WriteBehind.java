@@ -0,0 +1,269 @@
+/*
+ * File: WriteBehind.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The disk stage of a received file. The network thread hands the blocks to a disk writer
+ * thread through a bounded single-producer, single-consumer ring, so a slow write no longer adds
+ * to the round trip of the DATA that is being acknowledged. When the ring is full the network
+ * thread waits for the writer, which holds back the ACKs and therefore the sender.
+ * <p>
+ * Every block that is submitted gets a sequence number, starting at 1, that can be waited on
+ * until the block has been written or forced to the storage device. Whenever the writer runs out
+ * of blocks and somebody is waiting for a forced block, everything written so far is forced in
+ * one go.
+ *
+ * @author Vincent Palodichuk
+ */
+public class WriteBehind implements Closeable {
+    private static final long PARK_NANOS = 1_000_000L;
+    public static final String STATS_MSG = "Write-behind for %s: %d block(s), max queue depth %d of %d, %d stall(s), %d force(s)%n";
+
+    private final BlockWriter writer;
+    private final long[] offsets;
+    private final byte[][] blocks;
+    private final int[] lengths;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread thread;
+    private volatile long forceRequested;
+    private volatile long forced;
+    private volatile boolean idle;
+    private volatile boolean closing;
+    private volatile Thread waiter;
+    private volatile IOException failure;
+    private long maxDepth;
+    private long stalls;
+    private long forces;
+
+    /**
+     * Starts the disk writer of the specified file.
+     *
+     * @param writer the writer of the file
+     * @param depth the number of blocks that may be waiting to be written, rounded up to a power
+     * of two
+     */
+    public WriteBehind(BlockWriter writer, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be greater than 0.");
+        }
+
+        int capacity = depth == 1 ? 1 : Integer.highestOneBit(depth - 1) << 1;
+
+        this.writer = writer;
+        this.offsets = new long[capacity];
+        this.blocks = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.mask = capacity - 1;
+        this.thread = new Thread(this::drain, "tftp-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Hands the specified block to the disk writer, waiting for room in the ring if the writer
+     * has fallen behind. The array is written as it is, so it must not be changed afterwards.
+     *
+     * @param offset the offset in the file of the first byte of the block
+     * @param data the bytes of the block
+     * @param length the number of bytes of the block
+     * @return the sequence number of the block
+     * @throws IOException if the writer has failed
+     */
+    public long submit(long offset, byte[] data, int length) throws IOException {
+        long sequence = head.get();
+
+        if (sequence - tail.get() > mask) {
+            stalls++;
+            while (sequence - tail.get() > mask) {
+                park();
+            }
+        }
+        checkFailure();
+
+        int slot = (int) (sequence & mask);
+        offsets[slot] = offset;
+        blocks[slot] = data;
+        lengths[slot] = length;
+        head.set(sequence + 1);
+        maxDepth = Math.max(maxDepth, sequence + 1 - tail.get());
+
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+
+        return sequence + 1;
+    }
+
+    /**
+     * Waits until the block with the specified sequence number has been written to the file.
+     *
+     * @param sequence the sequence number of the block
+     * @throws IOException if the writer has failed
+     */
+    public void awaitWritten(long sequence) throws IOException {
+        while (tail.get() < sequence) {
+            park();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until the block with the specified sequence number has been forced to the storage
+     * device.
+     *
+     * @param sequence the sequence number of the block
+     * @throws IOException if the writer has failed
+     */
+    public void awaitForced(long sequence) throws IOException {
+        if (forceRequested < sequence) {
+            forceRequested = sequence;
+            LockSupport.unpark(thread);
+        }
+        while (forced < sequence) {
+            park();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Get the number of blocks that are waiting to be written
+     *
+     * @return the number of blocks that are waiting to be written
+     */
+    public long getDepth() {
+        return head.get() - tail.get();
+    }
+
+    /**
+     * Get the largest number of blocks that were waiting to be written at once
+     *
+     * @return the largest number of blocks that were waiting to be written at once
+     */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get the number of blocks that had to wait for room in the ring
+     *
+     * @return the number of blocks that had to wait for room in the ring
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Get the number of blocks that fit into the ring
+     *
+     * @return the number of blocks that fit into the ring
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Writes the counters of this pipeline to the console
+     *
+     * @param filename the name of the file that was written
+     */
+    public void printStats(String filename) {
+        System.out.printf(STATS_MSG, filename, head.get(), maxDepth, getCapacity(), stalls, forces);
+    }
+
+    /**
+     * Waits for every submitted block to be written and stops the disk writer. The file itself
+     * is left open.
+     *
+     * @throws IOException if the writer has failed
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                long sequence = tail.get();
+
+                if (sequence == head.get()) {
+                    if (forced < forceRequested && forced < sequence) {
+                        writer.force();
+                        forces++;
+                        forced = sequence;
+                        wake();
+                        continue;
+                    }
+
+                    if (closing) {
+                        return;
+                    }
+
+                    idle = true;
+                    if (sequence == head.get() && !closing && forced >= Math.min(forceRequested, sequence)) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                    continue;
+                }
+
+                int slot = (int) (sequence & mask);
+                writer.write(offsets[slot], blocks[slot], 0, lengths[slot]);
+                blocks[slot] = null;
+                tail.set(sequence + 1);
+                wake();
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            // Release everybody that is waiting on a block that will never be written
+            tail.set(Long.MAX_VALUE / 2);
+            forced = Long.MAX_VALUE / 2;
+            wake();
+        }
+    }
+
+    private void park() {
+        waiter = Thread.currentThread();
+        LockSupport.parkNanos(this, PARK_NANOS);
+        waiter = null;
+    }
+
+    private void wake() {
+        Thread current = waiter;
+
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("The block could not be written: " + failure.getMessage(), failure);
+        }
+    }
+}
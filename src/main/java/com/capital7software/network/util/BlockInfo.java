@@ -7,7 +7,6 @@ import com.capital7software.network.exception.TftpException;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
@@ -70,13 +69,14 @@ public class BlockInfo implements Serializable {
      */
     public static final String PROP_MD5 = "md5";
 
-    private transient PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+    private transient PropertyChangeSupport pcs;
 
     private String filename;
     private int id;
     private long offset;
     private long size;
     private final String md5;
+    private final DigestAlgorithm algorithm;
 
     /**
      * Initializes an empty block
@@ -107,22 +107,47 @@ public class BlockInfo implements Serializable {
      * @param md5 the MD5 Hash of this block
      */
     public BlockInfo(String filename, int id, long offset, long size, String md5) {
+        this(filename, id, offset, size, md5, DigestAlgorithm.MD5);
+    }
+    
+    /**
+     * Initializes a block with the specified values
+     * 
+     * @param filename the filename that this block belongs to
+     * @param id the id of this block. Can be any integer value
+     * @param offset the offset in bytes in to filename that this block starts at
+     * @param size the length in bytes of this block
+     * @param hash the hash of this block
+     * @param algorithm the algorithm of the hash
+     */
+    public BlockInfo(String filename, int id, long offset, long size, String hash, DigestAlgorithm algorithm) {
         this.filename = filename;
         this.id = id;
         this.offset = offset;
         this.size = size;
-        this.md5 = md5;
+        this.md5 = hash;
+        this.algorithm = algorithm;
     }
     
     /**
-     * Get the MD5 Hash of this block
+     * Get the hash of this block, calculated with the algorithm of this block. The name is
+     * kept from when every block was hashed with MD5.
      *
-     * @return the MD5 Hash of this block
+     * @return the hash of this block
      */
     public String getMd5() {
         return md5;
     }
 
+    /**
+     * Get the algorithm that the hash of this block was calculated with
+     *
+     * @return the algorithm of the hash of this block
+     */
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
     /**
      * Get the filename that this block belongs to
      *
@@ -247,6 +272,8 @@ public class BlockInfo implements Serializable {
      *   The next two bytes (byte 3 and 4) are the id of this block. 
      *  </li>
      * </ul>
+     * The file is opened for every call, so a transfer that reads many blocks of the same file
+     * should use a {@link BlockReader} instead.
      * 
      * @param output if true, the method will output what it is doing to the
      * console
@@ -279,15 +306,16 @@ public class BlockInfo implements Serializable {
                 }
                 
                 if (md5 != null) {
-                    ByteArrayInputStream stream = new ByteArrayInputStream(buffer.array());
-                    String md5Read = MD5.hashByteArray(stream, false, (int)size, 0);
+                    Digest digest = algorithm.newDigest();
+                    digest.update(buffer.array(), 0, (int) size);
+                    String md5Read = digest.finish();
 
                     if (md5.compareToIgnoreCase(md5Read) != 0) {
-                        throw new TftpException("MD5 Hash comparison failed.");
+                        throw new TftpException(algorithm + " Hash comparison failed.");
                     }
 
                     if (output) {
-                        System.out.println("MDS Hash comparison passed.");
+                        System.out.println(algorithm + " Hash comparison passed.");
                     }
                 }
             }
@@ -345,14 +373,16 @@ public class BlockInfo implements Serializable {
             }
 
             if (md5 != null) {
-                String md5Read = MD5.hashByteArray(new ByteArrayInputStream(buffer.array()), false, (int) size, 0);
+                Digest digest = algorithm.newDigest();
+                digest.update(data, 0, (int) size);
+                String md5Read = digest.finish();
 
                 if (md5.compareToIgnoreCase(md5Read) != 0) {
-                    throw new TftpException("MD5 Hash comparison failed.");
+                    throw new TftpException(algorithm + " Hash comparison failed.");
                 }
 
                 if (output) {
-                    System.out.println("MDS Hash comparison passed.");
+                    System.out.println(algorithm + " Hash comparison passed.");
                 }
             }
         } catch (IOException ex) {
@@ -370,6 +400,7 @@ public class BlockInfo implements Serializable {
         hash = 97 * hash + (int) (this.offset ^ (this.offset >>> 32));
         hash = 97 * hash + (int) (this.size ^ (this.size >>> 32));
         hash = 97 * hash + Objects.hashCode(this.md5);
+        hash = 97 * hash + Objects.hashCode(this.algorithm);
         return hash;
     }
 
@@ -397,12 +428,15 @@ public class BlockInfo implements Serializable {
         if (!Objects.equals(this.filename, other.filename)) {
             return false;
         }
+        if (this.algorithm != other.algorithm) {
+            return false;
+        }
         return Objects.equals(this.md5, other.md5);
     }
 
     @Override
     public String toString() {
-        return "BlockInfo{" + "filename = " + filename + ", id = " + id + ", offset = " + offset + ", size = " + size + ", md5 = " + md5 + '}';
+        return "BlockInfo{" + "filename = " + filename + ", id = " + id + ", offset = " + offset + ", size = " + size + ", md5 = " + md5 + ", algorithm = " + algorithm + '}';
     }
     
     private PropertyChangeSupport getPcs() {
@@ -0,0 +1,217 @@
+/*
+ * File: BlockReader.java
+ */
+package com.capital7software.network.util;
+
+import com.capital7software.network.exception.TftpException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the blocks of a single file for the whole of a transfer. Unlike {@link BlockInfo#read(boolean)},
+ * which opens the file and allocates a buffer for every block, the file is opened once and the
+ * blocks are read either straight into a buffer supplied by the caller, such as the payload of the
+ * next DATA packet, or into a buffer that is reused from block to block. The file can also be
+ * mapped into memory, in which case blocks are copied out of the mapping without a system call.
+ * <p>
+ * When a block carries a hash, it can be validated as it is read. The digest is computed
+ * over the bytes where they were read to, without copying them again.
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockReader implements Closeable {
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer mapping;
+    private ByteBuffer buffer;
+    private Digest digest;
+
+    /**
+     * Opens the specified file for reading.
+     *
+     * @param file the file to read
+     * @throws IOException if the file could not be opened
+     */
+    public BlockReader(Path file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens the specified file for reading.
+     *
+     * @param file the file to read
+     * @param map if true, the file is mapped into memory. Files that are too large to be mapped
+     * as a whole are read through the channel instead
+     * @throws IOException if the file could not be opened
+     */
+    public BlockReader(Path file, boolean map) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.mapping = map && size > 0 && size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+    }
+
+    /**
+     * Get the file that is being read
+     *
+     * @return the file that is being read
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the size of the file when it was opened
+     *
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if the blocks are copied out of a mapping of the file
+     *
+     * @return true if the blocks are copied out of a mapping of the file
+     */
+    public boolean isMapped() {
+        return mapping != null;
+    }
+
+    /**
+     * Get the channel of the file, for callers that read it in their own way
+     *
+     * @return the channel of the file
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads the bytes of the file that start at the specified offset into the specified buffer,
+     * until the buffer is full.
+     *
+     * @param offset the offset in the file of the first byte to read
+     * @param dst the buffer that receives the bytes
+     * @throws IOException if the end of the file is reached before the buffer is full
+     */
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        if (mapping != null) {
+            if (offset + dst.remaining() > size) {
+                throw new IOException("The file was truncated while it was being read.");
+            }
+            dst.put(mapping.duplicate().position((int) offset).limit((int) offset + dst.remaining()));
+            return;
+        }
+
+        long position = offset;
+
+        while (dst.hasRemaining()) {
+            int count = channel.read(dst, position);
+
+            if (count < 0) {
+                throw new IOException("The file was truncated while it was being read.");
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Reads the specified block into the specified array.
+     *
+     * @param block the block to read
+     * @param dst the array that receives the block
+     * @param index the index in the array of the first byte of the block
+     * @param verify if true and the block has a hash, the block is validated
+     * @return the number of bytes that were read
+     * @throws TftpException Indicates that the hash validation failed or that the block could
+     * not be read
+     */
+    public int read(BlockInfo block, byte[] dst, int index, boolean verify) throws TftpException {
+        int length = (int) block.getSize();
+
+        if (length <= 0) {
+            return 0;
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(dst, index, length);
+
+        try {
+            read(block.getOffset(), target);
+        } catch (IOException ex) {
+            throw new TftpException(ex.getMessage(), ex);
+        }
+
+        if (verify) {
+            verify(block, ByteBuffer.wrap(dst, index, length));
+        }
+
+        return length;
+    }
+
+    /**
+     * Reads the specified block into a buffer that is reused by every call.
+     *
+     * @param block the block to read
+     * @param verify if true and the block has a hash, the block is validated
+     * @return a read-only view of the block, only valid until the next call
+     * @throws TftpException Indicates that the hash validation failed or that the block could
+     * not be read
+     */
+    public ByteBuffer read(BlockInfo block, boolean verify) throws TftpException {
+        int length = (int) Math.max(0, block.getSize());
+
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+        }
+
+        buffer.clear().limit(length);
+
+        try {
+            read(block.getOffset(), buffer);
+        } catch (IOException ex) {
+            throw new TftpException(ex.getMessage(), ex);
+        }
+
+        buffer.flip();
+
+        if (verify) {
+            verify(block, buffer.duplicate());
+        }
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void verify(BlockInfo block, ByteBuffer data) throws TftpException {
+        if (block.getMd5() == null || block.getSize() <= 0) {
+            return;
+        }
+
+        if (digest == null || digest.getAlgorithm() != block.getAlgorithm()) {
+            digest = block.getAlgorithm().newDigest();
+        }
+
+        digest.update(data);
+
+        if (block.getMd5().compareToIgnoreCase(digest.finish()) != 0) {
+            throw new TftpException(block.getAlgorithm() + " Hash comparison failed.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockReader{" + "file = " + file + ", size = " + size + ", mapped = " + isMapped() + '}';
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * File: BlockTable.java
+ */
+package com.capital7software.network.util;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The blocks of a file, kept as primitives instead of one {@link BlockInfo} per block. The
+ * offset and the size of a block are computed from its index, as every block but the last has
+ * the same size, and the hashes of the blocks are packed one after the other into a single
+ * array as raw bytes. A file of a million blocks takes a single array of 16 MB with MD5 instead
+ * of a million objects, each with its own strings and listeners.
+ * <p>
+ * The table is also an unmodifiable list of blocks for the callers that iterate over them. A
+ * {@link BlockInfo} is only made when a block is asked for and is not kept by the table.
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockTable extends AbstractList<BlockInfo> implements RandomAccess, Serializable {
+    private final String filename;
+    private final long fileSize;
+    private final long blockSize;
+    private final DigestAlgorithm algorithm;
+    private final int digestLength;
+    private int count;
+    private byte[] digests;
+
+    /**
+     * Initializes a table of the specified number of blocks, without hashes.
+     *
+     * @param filename the filename that the blocks belong to
+     * @param fileSize the size of the file in bytes
+     * @param blockSize the size of every block but the last
+     * @param count the number of blocks, which may include an empty block after the end of the file
+     * @param algorithm the algorithm that the blocks are hashed with
+     * @throws IllegalArgumentException if the block size is not positive or there are more
+     * blocks than a list can hold
+     */
+    public BlockTable(String filename, long fileSize, long blockSize, long count, DigestAlgorithm algorithm) {
+        if (count < 0 || count > 0 && blockSize <= 0) {
+            throw new IllegalArgumentException("A table of blocks needs a positive block size.");
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A file of " + count + " blocks of " + blockSize + " bytes has too many blocks to be described.");
+        }
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.count = (int) count;
+        this.algorithm = algorithm;
+        this.digestLength = algorithm.newDigest().digest().length;
+    }
+
+    /**
+     * Get the filename that the blocks belong to
+     *
+     * @return the filename that the blocks belong to
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get the size of every block but the last
+     *
+     * @return the size of a block in bytes
+     */
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get the algorithm that the blocks are hashed with
+     *
+     * @return the algorithm of the hashes
+     */
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the length of the hash of a block
+     *
+     * @return the length of a hash in bytes
+     */
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    /**
+     * Returns true if the blocks have been hashed
+     *
+     * @return true if every block has a hash
+     */
+    public boolean isHashed() {
+        return digests != null;
+    }
+
+    /**
+     * Get the offset in the file of the first byte of the block with the specified index
+     *
+     * @param index the index of the block, which is one less than its id
+     * @return the offset of the block
+     */
+    public long getOffset(int index) {
+        return checkIndex(index) * blockSize;
+    }
+
+    /**
+     * Get the size of the block with the specified index
+     *
+     * @param index the index of the block, which is one less than its id
+     * @return the size of the block in bytes, 0 for the empty block after the end of the file
+     */
+    public long getLength(int index) {
+        return Math.max(0, Math.min(blockSize, fileSize - getOffset(index)));
+    }
+
+    /**
+     * Get the hash of the block with the specified index
+     *
+     * @param index the index of the block, which is one less than its id
+     * @return a copy of the raw hash or null if the blocks have not been hashed
+     */
+    public byte[] getDigest(int index) {
+        checkIndex(index);
+        if (digests == null) {
+            return null;
+        }
+        int from = index * digestLength;
+        return Arrays.copyOfRange(digests, from, from + digestLength);
+    }
+
+    /**
+     * Get the hash of the block with the specified index
+     *
+     * @param index the index of the block, which is one less than its id
+     * @return the hash as a lowercase hexadecimal string or null if the blocks have not been hashed
+     */
+    public String getHash(int index) {
+        byte[] digest = getDigest(index);
+        return digest != null ? Digest.toHex(digest) : null;
+    }
+
+    /**
+     * Set the hash of the block with the specified index. The blocks can be hashed in parallel,
+     * as every block has its own range of the array.
+     *
+     * @param index the index of the block, which is one less than its id
+     * @param digest the raw hash of the block
+     */
+    public void setDigest(int index, byte[] digest) {
+        checkIndex(index);
+        if (digest.length != digestLength) {
+            throw new IllegalArgumentException("The hash of a block must be " + digestLength + " bytes long.");
+        }
+        System.arraycopy(digest, 0, allocateDigests(), index * digestLength, digestLength);
+    }
+
+    /**
+     * Drops the blocks from the specified index on, such as when the file could not be read
+     * up to its end.
+     *
+     * @param count the number of blocks to keep
+     */
+    public void truncate(int count) {
+        if (count < 0 || count > this.count) {
+            throw new IllegalArgumentException("The table has only " + this.count + " blocks.");
+        }
+        this.count = count;
+    }
+
+    @Override
+    public BlockInfo get(int index) {
+        return new BlockInfo(filename, index + 1, getOffset(index), getLength(index), getHash(index), algorithm);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Block index " + index + " is out of range for " + count + " blocks.");
+        }
+        return index;
+    }
+
+    private synchronized byte[] allocateDigests() {
+        if (digests == null) {
+            long length = (long) count * digestLength;
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("The file has too many blocks to hash with " + algorithm + ".");
+            }
+            digests = new byte[(int) length];
+        }
+        return digests;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockTable{" + "filename = " + filename + ", blocks = " + count + ", blockSize = " + blockSize + ", algorithm = " + algorithm + ", hashed = " + isHashed() + '}';
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * File: BlockWriter.java
+ */
+package com.capital7software.network.util;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the blocks of a single file for the whole of a transfer. Unlike {@link BlockInfo#write(byte[], boolean)},
+ * which opens the file for every block, the file is opened once and every block is written at
+ * its offset with a positional write.
+ * <p>
+ * When the final size of the file is known up front, the file can be mapped into memory
+ * instead, in which case writing a block is a copy into the mapping and the data reaches the
+ * disk when the operating system writes the pages back. If the transfer ends early, the file is
+ * truncated to the bytes that were actually written when the writer is closed.
+ * <p>
+ * A writer can also write into a buffer in memory instead of a file, such as for small uploads
+ * that are packed into a larger file once they have been received.
+ * <p>
+ * Very large files can be written with direct I/O instead, bypassing the page cache so that
+ * they do not push the files that are being served out of it. Direct I/O can only write whole
+ * blocks of the file system from memory that is aligned to them, so the blocks of the transfer
+ * are gathered in an aligned buffer that is written once it is full. The last, partial buffer
+ * is padded to a whole block and the padding is truncated away when the writer is closed. A
+ * block that does not follow the ones that were gathered, such as one that was skipped by a
+ * delta, is written through the page cache instead.
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockWriter implements Closeable {
+    /**
+     * The number of bytes gathered before they are written with direct I/O
+     */
+    public static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final FileChannel direct;
+    private final ByteBuffer staging;
+    private final int alignment;
+    private long stagingOffset;
+    private long length;
+    private long allocated;
+    private long directLength;
+    private int stagingCounted;
+    private boolean finished;
+
+    /**
+     * Opens the specified file for writing. The file must already exist.
+     *
+     * @param file the file to write
+     * @throws IOException if the file could not be opened
+     */
+    public BlockWriter(Path file) throws IOException {
+        this(file, -1);
+    }
+
+    /**
+     * Opens the specified file for writing. The file must already exist.
+     *
+     * @param file the file to write
+     * @param size the final size of the file, if it is known, in which case the file is mapped
+     * into memory. Use -1 when the size is not known. Files that are too large to be mapped as a
+     * whole are written through the channel instead
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public BlockWriter(Path file, long size) throws IOException {
+        this(file, size, false);
+    }
+
+    /**
+     * Opens the specified file for writing. The file must already exist.
+     *
+     * @param file the file to write
+     * @param size the final size of the file, if it is known, in which case the file is mapped
+     * into memory unless it is written with direct I/O. Use -1 when the size is not known
+     * @param direct if true, the file is written with direct I/O, bypassing the page cache. If
+     * the file system does not support direct I/O, the file is written through the channel
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public BlockWriter(Path file, long size, boolean direct) throws IOException {
+        this.file = file;
+
+        if (!direct && size > 0 && size <= Integer.MAX_VALUE) {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } else {
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            this.buffer = null;
+        }
+
+        FileChannel directChannel = null;
+        int blockSize = 0;
+        if (direct) {
+            try {
+                blockSize = (int) Files.getFileStore(file).getBlockSize();
+                directChannel = FileChannel.open(file, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+            } catch (IOException | UnsupportedOperationException ex) {
+                // Such as tmpfs, which refuses O_DIRECT, so the file is simply written through the page cache
+                directChannel = null;
+            }
+        }
+
+        if (directChannel != null && blockSize > 0 && DIRECT_BUFFER_SIZE % blockSize == 0) {
+            this.direct = directChannel;
+            this.alignment = blockSize;
+            this.staging = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE + blockSize).alignedSlice(blockSize).limit(DIRECT_BUFFER_SIZE);
+        } else {
+            if (directChannel != null) {
+                directChannel.close();
+            }
+            this.direct = null;
+            this.alignment = 0;
+            this.staging = null;
+        }
+    }
+
+    /**
+     * Initializes a writer into the specified buffer instead of a file. The blocks are written
+     * at their offsets from the start of the buffer.
+     *
+     * @param buffer the buffer that receives the blocks, as large as the file
+     */
+    public BlockWriter(ByteBuffer buffer) {
+        this.file = null;
+        this.channel = null;
+        this.buffer = buffer;
+        this.direct = null;
+        this.staging = null;
+        this.alignment = 0;
+    }
+
+    /**
+     * Get the buffer that the blocks are written into
+     *
+     * @return the buffer or the mapping of the file, or null if the blocks are written through
+     * the channel of the file
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the file that is being written
+     *
+     * @return the file that is being written or null if the blocks are written into a buffer
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if the blocks are copied into a mapping of the file
+     *
+     * @return true if the blocks are copied into a mapping of the file
+     */
+    public boolean isMapped() {
+        return buffer instanceof MappedByteBuffer;
+    }
+
+    /**
+     * Returns true if the blocks are written with direct I/O, bypassing the page cache
+     *
+     * @return true if the blocks are written with direct I/O
+     */
+    public boolean isDirect() {
+        return direct != null;
+    }
+
+    /**
+     * Get the number of bytes that were written with direct I/O
+     *
+     * @return the number of bytes, not counting the padding, that bypassed the page cache
+     */
+    public long getDirectLength() {
+        return directLength;
+    }
+
+    /**
+     * Get the offset just past the last byte that has been written
+     *
+     * @return the number of bytes in the file once the writer is closed
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the remaining bytes of the specified buffer to the file, starting at the specified
+     * offset.
+     *
+     * @param offset the offset in the file of the first byte to write
+     * @param src the bytes to write
+     * @return the number of bytes that were written
+     * @throws IOException if the bytes could not be written, or do not fit into a mapped file
+     */
+    public int write(long offset, ByteBuffer src) throws IOException {
+        int answer = src.remaining();
+
+        if (buffer != null) {
+            if (offset + answer > buffer.capacity()) {
+                throw new IOException("The block does not fit into the announced size of the file.");
+            }
+            buffer.put((int) offset, src, src.position(), answer);
+            src.position(src.limit());
+        } else if (direct != null && !finished) {
+            writeDirect(offset, src);
+        } else {
+            long position = offset;
+
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+
+        length = Math.max(length, offset + answer);
+        return answer;
+    }
+
+    /**
+     * Writes the specified bytes to the file, starting at the specified offset.
+     *
+     * @param offset the offset in the file of the first byte to write
+     * @param data the array that holds the bytes
+     * @param index the index in the array of the first byte to write
+     * @param count the number of bytes to write
+     * @return the number of bytes that were written
+     * @throws IOException if the bytes could not be written, or do not fit into a mapped file
+     */
+    public int write(long offset, byte[] data, int index, int count) throws IOException {
+        return write(offset, ByteBuffer.wrap(data, index, count));
+    }
+
+    /**
+     * Makes the file at least as long as the specified length without writing the bytes before
+     * it, which read as zeros. On most file systems the bytes that are skipped take no space.
+     *
+     * @param length the length of the file
+     * @throws IOException if the length of the file could not be changed
+     */
+    public void extend(long length) throws IOException {
+        if (buffer == null && channel.size() < length) {
+            // A channel can only truncate, so the last byte is written to set the length
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        this.length = Math.max(this.length, length);
+    }
+
+    /**
+     * Sets the length of the file to its final size before any block is written, rather than
+     * growing it block by block. The JDK has no portable way to allocate the blocks of a file
+     * without writing them, so on most file systems the file is sparse until it is written, but
+     * the file system knows how large it will be. The file is truncated back to the bytes that
+     * were actually written when the writer is closed.
+     *
+     * @param size the final size of the file or -1 if it is unknown
+     * @throws IOException if the length of the file could not be changed
+     */
+    public void preallocate(long size) throws IOException {
+        if (channel != null && channel.size() < size) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        allocated = Math.max(allocated, size);
+    }
+
+    /**
+     * Gathers the bytes of a block in the aligned buffer. A block that follows the gathered
+     * ones is added to them and a block that was sent again replaces its copy in the buffer.
+     * After a gap, such as a hole, the gathered blocks are written and the buffer starts again
+     * at the next aligned offset, with the bytes before it written through the page cache.
+     * Bytes before the buffer are already in the file, so they are written through the page
+     * cache as well.
+     *
+     * @param offset the offset in the file of the first byte to write
+     * @param src the bytes to write
+     * @throws IOException if the bytes could not be written
+     */
+    private void writeDirect(long offset, ByteBuffer src) throws IOException {
+        if (offset < stagingOffset) {
+            int count = (int) Math.min(src.remaining(), stagingOffset - offset);
+            writeChannel(offset, src, count);
+            offset += count;
+        }
+
+        long end = stagingOffset + staging.position();
+        if (src.hasRemaining() && offset < end) {
+            int count = (int) Math.min(src.remaining(), end - offset);
+            staging.put((int) (offset - stagingOffset), src, src.position(), count);
+            src.position(src.position() + count);
+            offset += count;
+        }
+
+        if (src.hasRemaining() && offset > end) {
+            flushStaging();
+            long next = (offset + alignment - 1) / alignment * alignment;
+            int count = (int) Math.min(src.remaining(), next - offset);
+            writeChannel(offset, src, count);
+            stagingOffset = next;
+            staging.clear().limit(DIRECT_BUFFER_SIZE);
+            stagingCounted = 0;
+            if (!src.hasRemaining()) {
+                // The next block starts before the buffer, so its first bytes go through the page cache too
+                return;
+            }
+        }
+
+        while (src.hasRemaining()) {
+            int count = Math.min(src.remaining(), staging.remaining());
+            staging.put(staging.position(), src, src.position(), count);
+            staging.position(staging.position() + count);
+            src.position(src.position() + count);
+            if (!staging.hasRemaining()) {
+                writeStaging(staging.position());
+                stagingOffset += staging.position();
+                staging.clear().limit(DIRECT_BUFFER_SIZE);
+                stagingCounted = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the specified number of bytes of the buffer through the page cache.
+     *
+     * @param offset the offset in the file of the first byte to write
+     * @param src the bytes to write
+     * @param count the number of bytes to write
+     * @throws IOException if the bytes could not be written
+     */
+    private void writeChannel(long offset, ByteBuffer src, int count) throws IOException {
+        ByteBuffer part = src.duplicate().limit(src.position() + count);
+        long position = offset;
+
+        while (part.hasRemaining()) {
+            position += channel.write(part, position);
+        }
+        src.position(part.position());
+    }
+
+    /**
+     * Writes the first bytes of the aligned buffer at its offset with direct I/O, padded to a
+     * whole block of the file system. The bytes stay in the buffer, so that more blocks can be
+     * gathered after them.
+     *
+     * @param count the number of bytes to write
+     * @throws IOException if the bytes could not be written
+     */
+    private void writeStaging(int count) throws IOException {
+        int padded = (count + alignment - 1) / alignment * alignment;
+        // The padding reads as zeros, like the hole it may cover when the buffer started again after it
+        for (int i = count; i < padded; i++) {
+            staging.put(i, (byte) 0);
+        }
+        ByteBuffer src = staging.duplicate().position(0).limit(padded);
+        long position = stagingOffset;
+
+        while (src.hasRemaining()) {
+            position += direct.write(src, position);
+        }
+        // The padding past the last byte is truncated away when the writer is finished
+        allocated = Math.max(allocated, position);
+        // A buffer that is written again after a force is only counted once
+        directLength += Math.max(0, count - stagingCounted);
+        stagingCounted = Math.max(stagingCounted, count);
+    }
+
+    /**
+     * Writes the bytes that are gathered in the aligned buffer but not yet in the file. When
+     * the file already holds bytes past them, which were written through the page cache, the
+     * buffer is written through the page cache as well, so the padding does not overwrite them.
+     *
+     * @throws IOException if the bytes could not be written
+     */
+    private void flushStaging() throws IOException {
+        int count = staging.position();
+
+        if (count == 0) {
+            return;
+        }
+        if (stagingOffset + count >= length) {
+            writeStaging(count);
+        } else {
+            ByteBuffer src = staging.duplicate().position(0).limit(count);
+            long position = stagingOffset;
+
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+    }
+
+    /**
+     * Forces the bytes written so far to the storage device.
+     *
+     * @throws IOException if the bytes could not be forced
+     */
+    public void force() throws IOException {
+        if (buffer instanceof MappedByteBuffer mapping) {
+            mapping.force();
+        }
+        if (direct != null && !finished) {
+            // Once the writer is finished the gathered blocks are in the file and its padding is truncated away
+            flushStaging();
+        }
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Forces the entries of the specified directory to the storage device, so that a file that
+     * was created in it or renamed into it is still there after a crash. Not every platform can
+     * force a directory, in which case nothing happens.
+     *
+     * @param directory the directory
+     */
+    public static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the blocks that are still gathered for direct I/O and truncates the file to the
+     * bytes that were written, dropping the padding and the part of the mapping or of the
+     * preallocated file that was never written. Call it before the final {@link #force()}, so
+     * that the length that is forced is the final length of the file. No block may be written
+     * afterwards.
+     *
+     * @return true if the file was changed, in which case it must be forced again
+     * @throws IOException if the blocks could not be written or the file could not be truncated
+     */
+    public boolean finish() throws IOException {
+        if (channel == null || finished) {
+            return false;
+        }
+
+        finished = true;
+        boolean answer = false;
+        if (direct != null && staging.position() > 0) {
+            flushStaging();
+            answer = true;
+        }
+        if (length < Math.max(buffer != null ? buffer.capacity() : 0, allocated)) {
+            // The transfer ended early, so drop the part of the mapping, the preallocated file or the padding that was never written
+            channel.truncate(length);
+            answer = true;
+        }
+
+        return answer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            finish();
+        } finally {
+            try {
+                if (direct != null) {
+                    direct.close();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockWriter{" + "file = " + file + ", length = " + length + ", mapped = " + isMapped() + ", direct = " + isDirect() + '}';
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * File: ChecksumDigest.java
+ */
+package com.capital7software.network.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * A {@link Digest} backed by a {@link Checksum}, such as the CRC32C of the platform, which the
+ * JVM computes with the CRC instructions of the processor where they are available.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ChecksumDigest implements Digest {
+    private final DigestAlgorithm algorithm;
+    private final Checksum checksum;
+    private final int size;
+
+    /**
+     * Initializes a digest around the specified checksum.
+     *
+     * @param algorithm the algorithm that is reported by this digest
+     * @param checksum the checksum
+     * @param size the number of bytes of the checksum value that make up the hash
+     */
+    public ChecksumDigest(DigestAlgorithm algorithm, Checksum checksum, int size) {
+        this.algorithm = algorithm;
+        this.checksum = checksum;
+        this.size = size;
+    }
+
+    @Override
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        checksum.update(bytes, offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        checksum.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        long value = checksum.getValue();
+        byte[] bytes = new byte[size];
+
+        for (int i = size - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+
+        checksum.reset();
+        return bytes;
+    }
+
+    @Override
+    public void reset() {
+        checksum.reset();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * File: Compression.java
+ */
+package com.capital7software.network.util;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codecs that the blocks of a transfer can be compressed with. The codec of a transfer is
+ * negotiated with the tcompress option. DEFLATE compresses text and configuration files the
+ * most, while LZ4 is several times faster on both ends for a lower ratio.
+ * <p>
+ * Every block is compressed on its own, so a block can be decompressed without the blocks
+ * before it and sent again on its own. The flag of a codec is written in front of every block
+ * that it compressed, so that a block that did not compress can be sent as it is.
+ *
+ * @author Vincent Palodichuk
+ */
+public enum Compression {
+    DEFLATE("deflate", 1),
+    LZ4("lz4", 2);
+
+    /**
+     * The flag of a block that is sent as it is
+     */
+    public static final int RAW = 0;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final String value;
+    private final int flag;
+
+    Compression(String value, int flag) {
+        this.value = value;
+        this.flag = flag;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Get the flag that is written in front of a block that was compressed with this codec
+     *
+     * @return the flag of this codec
+     */
+    public int getFlag() {
+        return flag;
+    }
+
+    /**
+     * Get the codec with the specified value, ignoring case
+     *
+     * @param value the value of the codec as it appears in the tcompress option
+     * @return the codec or null if there is no codec with that value
+     */
+    public static Compression fromValue(String value) {
+        for (Compression compression : values()) {
+            if (compression.value.equalsIgnoreCase(value)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the codec with the specified flag
+     *
+     * @param flag the flag that was written in front of a block
+     * @return the codec or null if the block is raw or the flag is unknown
+     */
+    public static Compression fromFlag(int flag) {
+        for (Compression compression : values()) {
+            if (compression.flag == flag) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compresses the specified bytes, giving up as soon as the output does not fit.
+     *
+     * @param src the array that holds the bytes to compress
+     * @param srcOffset the index of the first byte to compress
+     * @param srcLength the number of bytes to compress
+     * @param dst the array that receives the compressed bytes
+     * @param dstOffset the index in the array of the first compressed byte
+     * @param dstLength the most bytes that may be written to the array
+     * @return the number of compressed bytes or -1 if they do not fit in dstLength bytes
+     */
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) {
+        if (this == LZ4) {
+            return Lz4.compress(src, srcOffset, srcLength, dst, dstOffset, dstLength);
+        }
+
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(src, srcOffset, srcLength);
+            deflater.finish();
+            int length = deflater.deflate(dst, dstOffset, dstLength);
+            return deflater.finished() ? length : -1;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompresses the specified bytes.
+     *
+     * @param src the array that holds the compressed bytes
+     * @param srcOffset the index of the first compressed byte
+     * @param srcLength the number of compressed bytes
+     * @param dst the array that receives the decompressed bytes
+     * @param dstOffset the index in the array of the first decompressed byte
+     * @param dstLength the most bytes that may be written to the array
+     * @return the number of decompressed bytes
+     * @throws DataFormatException if the bytes are not valid for this codec or decompress to
+     * more than dstLength bytes
+     */
+    public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws DataFormatException {
+        if (this == LZ4) {
+            return Lz4.decompress(src, srcOffset, srcLength, dst, dstOffset, dstLength);
+        }
+
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            int length = inflater.inflate(dst, dstOffset, dstLength);
+            if (!inflater.finished()) {
+                throw new DataFormatException("The DEFLATE block is truncated or decompresses to more than " + dstLength + " bytes.");
+            }
+            return length;
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * File: Digest.java
+ */
+package com.capital7software.network.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash that is built up a piece at a time, whatever the algorithm behind it. Instances are
+ * not thread safe; they are cheap to create and can be reused once {@link #finish()} has been
+ * called.
+ *
+ * @author Vincent Palodichuk
+ */
+public interface Digest {
+    /**
+     * Get the algorithm of this digest
+     *
+     * @return the algorithm of this digest
+     */
+    DigestAlgorithm getAlgorithm();
+
+    /**
+     * Adds the specified bytes to the hash.
+     *
+     * @param bytes the array that holds the bytes
+     * @param offset the index in the array of the first byte
+     * @param length the number of bytes
+     */
+    void update(byte[] bytes, int offset, int length);
+
+    /**
+     * Adds the remaining bytes of the specified buffer to the hash and moves the position of
+     * the buffer to its limit.
+     *
+     * @param buffer the bytes to add
+     */
+    void update(ByteBuffer buffer);
+
+    /**
+     * Adds the specified bytes to the hash.
+     *
+     * @param bytes the bytes to add
+     */
+    default void update(byte[] bytes) {
+        update(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Completes the hash and resets this digest so that it can be used again.
+     *
+     * @return the hash as a lowercase hexadecimal string
+     */
+    default String finish() {
+        return toHex(digest());
+    }
+
+    /**
+     * Completes the hash and resets this digest so that it can be used again.
+     *
+     * @return the bytes of the hash
+     */
+    byte[] digest();
+
+    /**
+     * Discards the bytes added so far.
+     */
+    void reset();
+
+    /**
+     * Formats the specified bytes as a lowercase hexadecimal string.
+     *
+     * @param bytes the bytes to format
+     * @return the hexadecimal string
+     */
+    static String toHex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Parses the specified hexadecimal string into bytes.
+     *
+     * @param hex the hexadecimal string, with two digits for every byte
+     * @return the bytes
+     * @throws NumberFormatException if the string is not hexadecimal
+     */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * File: DigestAlgorithm.java
+ */
+package com.capital7software.network.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * The algorithms that files and blocks can be hashed with. The algorithm of a transfer is
+ * negotiated with the talg option. MD5 remains the default, CRC32C is the cheapest when only
+ * transport integrity matters and XXH64 is a fast 64 bit hash with a lower collision rate.
+ *
+ * @author Vincent Palodichuk
+ */
+public enum DigestAlgorithm {
+    MD5("md5"),
+    SHA256("sha256"),
+    CRC32C("crc32c"),
+    XXH64("xxh64");
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final String value;
+
+    DigestAlgorithm(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Get the algorithm with the specified value, ignoring case
+     *
+     * @param value the value of the algorithm as it appears in the talg option
+     * @return the algorithm or null if there is no algorithm with that value
+     */
+    public static DigestAlgorithm fromValue(String value) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.value.equalsIgnoreCase(value)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new digest of this algorithm.
+     *
+     * @return a new digest
+     */
+    public Digest newDigest() {
+        return switch (this) {
+            case MD5 -> new JdkDigest(this, "MD5");
+            case SHA256 -> new JdkDigest(this, "SHA-256");
+            case CRC32C -> new ChecksumDigest(this, new CRC32C(), 4);
+            case XXH64 -> new XxHash64(0);
+        };
+    }
+
+    /**
+     * Hashes the whole of the specified file.
+     *
+     * @param file the file to hash
+     * @return the hash as a lowercase hexadecimal string
+     * @throws IOException if the file could not be read
+     */
+    public String hashFile(Path file) throws IOException {
+        Digest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return digest.finish();
+    }
+}
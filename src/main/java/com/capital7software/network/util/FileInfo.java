@@ -10,10 +10,12 @@ import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,18 +56,58 @@ public class FileInfo implements Serializable {
     private String filename;
     private long size;
     private String md5;
-    private List<BlockInfo> blocks = new ArrayList<>();
+    private BlockTable blocks = new BlockTable(null, 0, 0, 0, DigestAlgorithm.MD5);
     private long blockSize;
+    private DigestAlgorithm digestAlgorithm = DigestAlgorithm.MD5;
+    private transient ManifestCache manifestCache;
     
     /**
-     * Get the MD5 Hash of this file
+     * Get the hash of this file, calculated with the digest algorithm of this file
      *
-     * @return the MD5 Hash of this file
+     * @return the hash of this file
      */
     public String getMd5() {
         return md5;
     }
 
+    /**
+     * Get the algorithm that the file and its blocks are hashed with
+     *
+     * @return the algorithm that the file and its blocks are hashed with
+     */
+    public DigestAlgorithm getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Set the algorithm that the file and its blocks are hashed with. It must be set before
+     * the filename, as the hashes are calculated when the filename is set.
+     *
+     * @param digestAlgorithm the algorithm that the file and its blocks are hashed with
+     */
+    public void setDigestAlgorithm(DigestAlgorithm digestAlgorithm) {
+        this.digestAlgorithm = Objects.requireNonNull(digestAlgorithm);
+    }
+
+    /**
+     * Get the cache of the hashes of files that have already been hashed
+     *
+     * @return the cache or null if every file is hashed
+     */
+    public ManifestCache getManifestCache() {
+        return manifestCache;
+    }
+
+    /**
+     * Set the cache of the hashes of files that have already been hashed. It must be set before
+     * the filename, as the hashes are calculated when the filename is set.
+     *
+     * @param manifestCache the cache or null if every file is hashed
+     */
+    public void setManifestCache(ManifestCache manifestCache) {
+        this.manifestCache = manifestCache;
+    }
+
     /**
      * Get the size of this file in bytes
      *
@@ -77,12 +119,22 @@ public class FileInfo implements Serializable {
     
     /**
      * Returns an unmodifiable list view of the blocks contained within this
- file
+     * file. The blocks are made as they are asked for, so callers that only
+     * need the offsets or the hashes should use {@link #getBlockTable()}.
      *
      * @return the list of blocks that represent this file
      */
     public List<BlockInfo> getBlocks() {
-        return Collections.unmodifiableList(blocks);
+        return blocks;
+    }
+
+    /**
+     * Get the table of the blocks of this file
+     *
+     * @return the offsets, sizes and hashes of the blocks of this file
+     */
+    public BlockTable getBlockTable() {
+        return blocks;
     }
 
     /**
@@ -102,12 +154,29 @@ public class FileInfo implements Serializable {
      * @param filename the new filename that this block belongs to
      */
     public void setFilename(String filename) {
+        setFilename(filename, true);
+    }
+
+    /**
+     * Set the filename that this block belongs to. When the filename is set,
+     * the size, block size and blocks are calculated if the file exists.
+     * The MD5 Hashes of the file and of its blocks are only calculated when
+     * requested, as they require the whole file to be read.
+     *
+     * @param filename the new filename that this block belongs to
+     * @param hash if false, the file is not read and the MD5 Hashes are left null
+     */
+    public void setFilename(String filename, boolean hash) {
         if (!Objects.equals(this.filename, filename)) {
             String oldPath = this.filename;
             this.filename = filename;
             getPcs().firePropertyChange(PROP_FILENAME, oldPath, filename);
             
-            calculateFileInfo();
+            if (hash) {
+                calculateFileInfo();
+            } else {
+                calculateFileLayout();
+            }
         }
     }
 
@@ -115,6 +184,8 @@ public class FileInfo implements Serializable {
      * Populates the properties of this file info based on the file associated
      * with this file. If the file does not exist, then nothing is changed.
      * Otherwise, the size, MD5 Hash, block size, and blocks are all populated.
+     * The hashes are taken from the manifest cache, if there is one and the
+     * file has not changed since it was recorded.
      */
     public void calculateFileInfo() {
         final Path path = Paths.get(filename);
@@ -123,33 +194,70 @@ public class FileInfo implements Serializable {
                 long oldSize = this.size;
                 String oldMd5 = this.md5;
                 long oldBlockSize = this.blockSize;
-                List<BlockInfo> oldBlocks = this.blocks;
-                this.size = Files.size(path);
-                this.md5 = MD5.hashFile(path);
+                BlockTable oldBlocks = this.blocks;
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                this.size = attributes.size();
                 this.blockSize = calculateBlockSize(this.size, MIN_NUM_BLOCKS, BlockInfo.MIN_BLOCK_SIZE, BlockInfo.MAX_BLOCK_SIZE);
-                long numBlocks = this.size / this.blockSize;
-                if (this.size % this.blockSize != 0) {
-                    numBlocks++;
-                }
-                this.blocks = MD5.hashBlocks(path, numBlocks, this.blockSize);
-                
-                if (this.blocks.size() > 0) {
-                    BlockInfo block = this.blocks.get(this.blocks.size() - 1);
-                    if (block.getSize() == this.blockSize) {
-                        blocks.add(MD5.hashEmptyBlock(path, block.getId() + 1));
+                ManifestCache.Manifest manifest = manifestCache != null ? manifestCache.load(path, digestAlgorithm, this.blockSize) : null;
+
+                if (manifest != null) {
+                    this.md5 = manifest.getHash();
+                    this.blocks = new BlockTable(filename, this.size, this.blockSize, manifest.getNumBlocks(), digestAlgorithm);
+                    manifest.copyTo(this.blocks);
+                } else {
+                    // The hash of the whole file is sequential, so it runs alongside the block hashes
+                    ForkJoinTask<String> fileHash = ForkJoinPool.commonPool().submit(() -> digestAlgorithm.hashFile(path));
+                    long numBlocks = calculateNumBlocks(this.size, this.blockSize);
+                    this.blocks = new BlockTable(filename, this.size, this.blockSize, numBlocks, digestAlgorithm);
+                    MD5.hashBlocks(path, this.blocks, false);
+                    this.md5 = fileHash.get();
+
+                    if (manifestCache != null) {
+                        manifestCache.store(path, attributes, digestAlgorithm, this.blockSize, this.md5, this.blocks);
                     }
                 }
                 
                 getPcs().firePropertyChange(PROP_SIZE, oldSize, this.size);
                 getPcs().firePropertyChange(PROP_MD5, oldMd5, this.md5);
                 getPcs().firePropertyChange(PROP_BLOCK_SIZE, oldBlockSize, this.blockSize);
-                getPcs().firePropertyChange(PROP_SIZE, oldBlocks, Collections.unmodifiableList(this.blocks));
-            }catch (IOException ex) {
+                getPcs().firePropertyChange(PROP_BLOCKS, oldBlocks, this.blocks);
+            } catch (IOException | ExecutionException ex) {
                 ERRORS.log(Level.SEVERE, null, ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
         }
     }
     
+    /**
+     * Populates the size, block size, and blocks of this file info without
+     * reading the file, so the MD5 Hash of the file and of its blocks are
+     * left null. If the file does not exist, then nothing is changed.
+     */
+    public void calculateFileLayout() {
+        final Path path = Paths.get(filename);
+        if (Files.exists(path)) {
+            try {
+                long oldSize = this.size;
+                String oldMd5 = this.md5;
+                long oldBlockSize = this.blockSize;
+                BlockTable oldBlocks = this.blocks;
+                this.size = Files.size(path);
+                this.md5 = null;
+                this.blockSize = calculateBlockSize(this.size, MIN_NUM_BLOCKS, BlockInfo.MIN_BLOCK_SIZE, BlockInfo.MAX_BLOCK_SIZE);
+                long numBlocks = calculateNumBlocks(this.size, this.blockSize);
+                this.blocks = new BlockTable(filename, this.size, this.blockSize, numBlocks, digestAlgorithm);
+
+                getPcs().firePropertyChange(PROP_SIZE, oldSize, this.size);
+                getPcs().firePropertyChange(PROP_MD5, oldMd5, this.md5);
+                getPcs().firePropertyChange(PROP_BLOCK_SIZE, oldBlockSize, this.blockSize);
+                getPcs().firePropertyChange(PROP_BLOCKS, oldBlocks, this.blocks);
+            } catch (IOException ex) {
+                ERRORS.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
     /**
      * Get the size for each of the blocks in this file
      * The size of the last block in the file may be less than or equal
@@ -210,6 +318,19 @@ public class FileInfo implements Serializable {
         return answer;
     }
 
+    /**
+     * Calculates the number of blocks that a file of the specified length is sent in. A file
+     * that ends on a block boundary is followed by an empty block, and an empty file has no
+     * blocks at all.
+     *
+     * @param length the length of the file in bytes
+     * @param blockSize the size of the blocks
+     * @return the number of blocks
+     */
+    protected static long calculateNumBlocks(long length, long blockSize) {
+        return length == 0 ? 0 : length / blockSize + 1;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -226,7 +347,7 @@ public class FileInfo implements Serializable {
 
     @Override
     public String toString() {
-        return "FileInfo{" + "filename = " + filename + ", size = " + size + ", md5 = " + md5 + ", blockSize = " + blockSize + ", blocks = " + blocks + '}';
+        return "FileInfo{" + "filename = " + filename + ", size = " + size + ", md5 = " + md5 + ", blockSize = " + blockSize + ", digestAlgorithm = " + digestAlgorithm + ", blocks = " + blocks + '}';
     }
 
     public int getNumBlocks() {
@@ -0,0 +1,59 @@
+/*
+ * File: JdkDigest.java
+ */
+package com.capital7software.network.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A {@link Digest} backed by a {@link MessageDigest} of the platform.
+ *
+ * @author Vincent Palodichuk
+ */
+public class JdkDigest implements Digest {
+    private final DigestAlgorithm algorithm;
+    private final MessageDigest md;
+
+    /**
+     * Initializes a digest of the specified algorithm.
+     *
+     * @param algorithm the algorithm that is reported by this digest
+     * @param name the name of the algorithm on the platform
+     * @throws IllegalStateException if the platform does not support the algorithm
+     */
+    public JdkDigest(DigestAlgorithm algorithm, String name) {
+        this.algorithm = algorithm;
+        try {
+            this.md = MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        md.update(bytes, offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        md.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return md.digest();
+    }
+
+    @Override
+    public void reset() {
+        md.reset();
+    }
+}
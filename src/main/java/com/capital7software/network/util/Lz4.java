@@ -0,0 +1,230 @@
+/*
+ * File: Lz4.java
+ */
+package com.capital7software.network.util;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A compressor and decompressor for the LZ4 block format. The compressor is the greedy single
+ * pass of the reference implementation: a match is looked up in a small hash table of the
+ * positions where four bytes were last seen, and the search speeds up over data that does not
+ * match, so blocks that do not compress are given up on quickly. The output can be read by any
+ * LZ4 block decompressor.
+ * <p>
+ * The decompressor checks every length and offset against the bounds of both arrays, as the
+ * input comes from the network.
+ *
+ * @author Vincent Palodichuk
+ */
+public final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+    private static final int RUN_MASK = 15;
+    private static final ThreadLocal<int[]> TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private Lz4() {
+    }
+
+    /**
+     * Compresses the specified bytes.
+     *
+     * @param src the array that holds the bytes to compress
+     * @param srcOffset the index of the first byte to compress
+     * @param srcLength the number of bytes to compress
+     * @param dst the array that receives the compressed bytes
+     * @param dstOffset the index in the array of the first compressed byte
+     * @param dstLength the most bytes that may be written to the array
+     * @return the number of compressed bytes or -1 if they do not fit in dstLength bytes
+     */
+    public static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) {
+        int[] table = TABLES.get();
+        int srcEnd = srcOffset + srcLength;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int dstEnd = dstOffset + dstLength;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+        int misses = 1 << SKIP_TRIGGER;
+
+        // The positions are kept relative to the start of the input, plus one so that 0 is empty
+        Arrays.fill(table, 0);
+
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int hash = hash(sequence);
+            int ref = srcOffset + table[hash] - 1;
+            table[hash] = ip - srcOffset + 1;
+
+            if (ref < srcOffset || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip += misses++ >>> SKIP_TRIGGER;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength - MIN_MATCH, dst, op, dstEnd);
+            if (op < 0) {
+                return -1;
+            }
+
+            ip += matchLength;
+            anchor = ip;
+            misses = 1 << SKIP_TRIGGER;
+        }
+
+        // The last sequence only has literals
+        int literals = srcEnd - anchor;
+        if (op + 1 + literals / 255 + 1 + literals > dstEnd) {
+            return -1;
+        }
+
+        int token = op++;
+        dst[token] = 0;
+        op = writeLength(dst, op, literals, token, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOffset;
+    }
+
+    /**
+     * Decompresses the specified bytes.
+     *
+     * @param src the array that holds the compressed bytes
+     * @param srcOffset the index of the first compressed byte
+     * @param srcLength the number of compressed bytes
+     * @param dst the array that receives the decompressed bytes
+     * @param dstOffset the index in the array of the first decompressed byte
+     * @param dstLength the most bytes that may be written to the array
+     * @return the number of decompressed bytes
+     * @throws DataFormatException if the bytes are not a valid LZ4 block or decompress to
+     * more than dstLength bytes
+     */
+    public static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws DataFormatException {
+        int srcEnd = srcOffset + srcLength;
+        int dstEnd = dstOffset + dstLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        while (ip < srcEnd) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+
+            if (literals == RUN_MASK) {
+                int next;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new DataFormatException("The LZ4 block ends in a literal length.");
+                    }
+                    next = src[ip++] & 0xFF;
+                    literals += next;
+                } while (next == 255);
+            }
+
+            if (literals > srcEnd - ip || literals > dstEnd - op) {
+                throw new DataFormatException("The literals of the LZ4 block are out of bounds.");
+            }
+
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new DataFormatException("The LZ4 block ends in an offset.");
+            }
+
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+
+            if (offset == 0 || offset > op - dstOffset) {
+                throw new DataFormatException("The offset of a match of the LZ4 block is out of bounds.");
+            }
+
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int next;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new DataFormatException("The LZ4 block ends in a match length.");
+                    }
+                    next = src[ip++] & 0xFF;
+                    matchLength += next;
+                } while (next == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            if (matchLength > dstEnd - op) {
+                throw new DataFormatException("A match of the LZ4 block is out of bounds.");
+            }
+
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+            } else {
+                // The match overlaps the bytes it produces, so it repeats them
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+
+        return op - dstOffset;
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLength,
+                                     byte[] dst, int op, int dstEnd) {
+        if (op + 1 + literals / 255 + 1 + literals + 2 + matchLength / 255 + 1 > dstEnd) {
+            return -1;
+        }
+
+        int token = op++;
+        dst[token] = 0;
+        op = writeLength(dst, op, literals, token, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(dst, op, matchLength, token, 0);
+    }
+
+    /**
+     * Writes a length into its half of the token, and the bytes that extend it when it does not
+     * fit there.
+     */
+    private static int writeLength(byte[] dst, int op, int length, int token, int shift) {
+        if (length < RUN_MASK) {
+            dst[token] |= (byte) (length << shift);
+            return op;
+        }
+
+        dst[token] |= (byte) (RUN_MASK << shift);
+        length -= RUN_MASK;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -9,7 +9,8 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -18,6 +19,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +32,9 @@ import java.util.logging.Logger;
 public class MD5 {
     private static final Logger LOGGER = Logger.getLogger(MD5.class.getName());
     private static final int DEFAULT_BUFFER_SIZE = 32768;
+    private static final int BLOCKS_PER_TASK = 16;
+    private static final ThreadLocal<Digest[]> DIGESTS = ThreadLocal.withInitial(() -> new Digest[DigestAlgorithm.values().length]);
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BlockInfo.MAX_BLOCK_SIZE));
     
     public static String hashFile(Path file) {
         return hashFile(file, false);
@@ -64,7 +71,7 @@ public class MD5 {
     }
 
     @NotNull
-    private static String hashToString(MessageDigest md, boolean output) {
+    public static String hashToString(MessageDigest md, boolean output) {
         var buffer = md.digest();
         var sb = new StringBuilder();
 
@@ -80,6 +87,20 @@ public class MD5 {
         return answer;
     }
 
+    /**
+     * Get a new MD5 digest, for hashes that are built up a piece at a time.
+     *
+     * @return a new MD5 digest
+     * @throws IllegalStateException if the platform does not support MD5
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
     public static String hashByteArray(ByteArrayInputStream is) {
         return hashByteArray(is, false);
     }
@@ -127,60 +148,138 @@ public class MD5 {
     }
     
     public static List<BlockInfo> hashBlocks(Path file, long numberOfBlocks, long blockSize, boolean output) {
-        List<BlockInfo> answer = new ArrayList<>((int)numberOfBlocks);
-        
-        for (int i = 0; i < numberOfBlocks; i++) {
-            try (SeekableByteChannel sbc = Files.newByteChannel(file, StandardOpenOption.READ)) {
-                long size = blockSize;
-                long offset = i * blockSize;
-                if (i + 1 == numberOfBlocks && Files.size(file) % blockSize != 0) {
-                    size = (Files.size(file) % blockSize);
-                }
-                ByteBuffer buffer = ByteBuffer.allocate((int)size);
+        return hashBlocks(file, numberOfBlocks, blockSize, DigestAlgorithm.MD5, output);
+    }
 
-                if (output) {
-                    System.out.printf("Generating Block %d MD5 Hash...%n", i + 1);
-                }
+    /**
+     * Calculates the hash of every block of the specified file.
+     *
+     * @param file the file to hash
+     * @param numberOfBlocks the number of blocks to hash
+     * @param blockSize the size of every block but the last
+     * @param algorithm the algorithm that the blocks are hashed with
+     * @param output if true, outputs information to the system console
+     * @return the blocks, in order, up to the end of the file
+     */
+    public static List<BlockInfo> hashBlocks(Path file, long numberOfBlocks, long blockSize, DigestAlgorithm algorithm, boolean output) {
+        try {
+            BlockTable answer = new BlockTable(file.toString(), Files.size(file), blockSize, numberOfBlocks, algorithm);
+            hashBlocks(file, answer, output);
+            return answer;
+        } catch (IOException | IllegalArgumentException ex) {
+            LOGGER.log(Level.SEVERE, ex.getMessage(), ex);
+            return new ArrayList<>();
+        }
+    }
 
-                sbc.position(offset);
-                
-                long count = sbc.read(buffer);
+    /**
+     * Calculates the hash of every block of the specified table. The blocks are hashed in
+     * parallel on the common fork/join pool, every task reading its blocks from the same channel
+     * with positional reads into a buffer and a digest that are reused by its worker thread, and
+     * writing the hashes straight into the table. A block that starts at the end of the file is
+     * hashed as an empty block.
+     *
+     * @param file the file to hash
+     * @param table the blocks to hash. It is truncated before the first block that could not be read
+     * @param output if true, outputs information to the system console
+     */
+    public static void hashBlocks(Path file, BlockTable table, boolean output) {
+        AtomicInteger end = new AtomicInteger(table.size());
 
-                if (count <= 0) {
-                    break;
-                }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ForkJoinPool.commonPool().invoke(new HashBlocksTask(channel, channel.size(), table, end, 0, table.size(), output));
+        } catch (IOException | UncheckedIOException ex) {
+            LOGGER.log(Level.SEVERE, ex.getMessage(), ex);
+            end.set(0);
+        }
 
-                if (output) {
-                    System.out.printf("Read %d %s from offset %d%n", count, count == 1 ? "byte" : "bytes", i * blockSize);
-                }
-                
-                byte[] byteBuffer = buffer.array();
-                
-                // Shrink the byte array if fewer bytes were read than allocated.
-                // If we don't, then the MD5 hash comparison will fail when
-                // this block is later read from the BlockInfo object.
-                if (byteBuffer.length != count) {
-                    byte[] temp = new byte[(int)count];
-                    System.arraycopy(byteBuffer, 0, temp, 0, (int)count);
-                    byteBuffer = temp;
-                }
+        // A block that could not be read ends the table, just like the end of the file does
+        table.truncate(end.get());
+    }
+    
+    /**
+     * Hashes a range of blocks, splitting it in half until it is small enough to be hashed by a
+     * single task.
+     */
+    private static final class HashBlocksTask extends RecursiveAction {
+        private final FileChannel channel;
+        private final long size;
+        private final BlockTable table;
+        private final AtomicInteger end;
+        private final int from;
+        private final int to;
+        private final boolean output;
 
-                BlockInfo ci = new BlockInfo(file.toString(), i + 1, offset, count,
-                        hashByteArray(new ByteArrayInputStream(byteBuffer)));
+        HashBlocksTask(FileChannel channel, long size, BlockTable table, AtomicInteger end, int from, int to, boolean output) {
+            this.channel = channel;
+            this.size = size;
+            this.table = table;
+            this.end = end;
+            this.from = from;
+            this.to = to;
+            this.output = output;
+        }
 
-                if (output) {
-                    System.out.printf("Block %d MDS Hash: %s%n", i + 1, ci.getMd5());
+        @Override
+        protected void compute() {
+            if (to - from > BLOCKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashBlocksTask(channel, size, table, end, from, middle, output),
+                        new HashBlocksTask(channel, size, table, end, middle, to, output));
+                return;
+            }
+
+            DigestAlgorithm algorithm = table.getAlgorithm();
+            long blockSize = table.getBlockSize();
+            Digest[] digests = DIGESTS.get();
+            Digest md = digests[algorithm.ordinal()];
+
+            if (md == null) {
+                md = algorithm.newDigest();
+                digests[algorithm.ordinal()] = md;
+            }
+            ByteBuffer buffer = BUFFERS.get();
+
+            if (buffer.capacity() < blockSize) {
+                buffer = ByteBuffer.allocate((int) blockSize);
+                BUFFERS.set(buffer);
+            }
+
+            try {
+                for (int i = from; i < to; i++) {
+                    long offset = table.getOffset(i);
+                    int length = (int) Math.max(0, Math.min(blockSize, size - offset));
+
+                    if (output) {
+                        System.out.printf("Generating Block %d %s Hash...%n", i + 1, algorithm);
+                    }
+
+                    buffer.clear().limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) < 0) {
+                            break;
+                        }
+                    }
+
+                    if (buffer.position() < length || length == 0 && offset > size) {
+                        end.accumulateAndGet(i, Math::min);
+                        break;
+                    }
+
+                    buffer.flip();
+                    md.update(buffer);
+                    table.setDigest(i, md.digest());
+
+                    if (output) {
+                        System.out.printf("Block %d %s Hash: %s%n", i + 1, algorithm, table.getHash(i));
+                    }
                 }
-                
-                answer.add(ci);
             } catch (IOException ex) {
-                LOGGER.log(Level.SEVERE, ex.getMessage(), ex);
+                throw new UncheckedIOException(ex);
             }
         }
-        
-        return answer;
     }
-    
+
     /**
      * Used to get the hash and block information for a zero byte block.
      * 
@@ -201,17 +300,29 @@ public class MD5 {
      * @return A BlockInfo instance with the hash
      */
     public static BlockInfo hashEmptyBlock(Path file, int id, boolean output) {
+        return hashEmptyBlock(file, id, DigestAlgorithm.MD5, output);
+    }
+
+    /**
+     * Used to get the hash and block information for a zero byte block.
+     *
+     * @param file The Path that contains the file to hash
+     * @param id The block id
+     * @param algorithm The algorithm that the block is hashed with
+     * @param output If true, outputs information to the system console
+     * @return A BlockInfo instance with the hash
+     */
+    public static BlockInfo hashEmptyBlock(Path file, int id, DigestAlgorithm algorithm, boolean output) {
         BlockInfo answer;
         
         if (output) {
-            System.out.printf("Generating Empty Block %d MD5 Hash...%n", id);
+            System.out.printf("Generating Empty Block %d %s Hash...%n", id, algorithm);
         }
 
-        answer = new BlockInfo(file.toString(), id, 0, 0,
-                        hashByteArray(new ByteArrayInputStream(new byte[0])));
+        answer = new BlockInfo(file.toString(), id, 0, 0, algorithm.newDigest().finish(), algorithm);
 
         if (output) {
-            System.out.printf("Block %d MDS Hash: %s%n", id, answer.getMd5());
+            System.out.printf("Block %d %s Hash: %s%n", id, algorithm, answer.getMd5());
         }
 
         return answer;
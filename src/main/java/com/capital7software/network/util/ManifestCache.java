@@ -0,0 +1,390 @@
+/*
+ * File: ManifestCache.java
+ */
+package com.capital7software.network.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * A directory of manifests, one per file, that record the hash of a file and the hashes of its
+ * blocks so that a file that has not changed since it was last hashed is never read again just
+ * to be hashed.
+ * <p>
+ * A manifest is keyed by the real path of the file, the digest algorithm and the block size, and
+ * is only used while the size, the modification time and the file key, the inode on most
+ * platforms, of the file are the same as when it was hashed. A file that is modified within the
+ * resolution of its modification time could go unnoticed, so files that were modified less than
+ * {@link #RACY_WINDOW_MS} before they were hashed are not recorded.
+ * <p>
+ * Manifests are small binary files that end with a CRC32C of their contents. A manifest that is
+ * truncated, corrupt, of another version or stale is deleted when it is read. Manifests are
+ * written to a temporary file that is then renamed, so a reader never sees half of one, and the
+ * least recently used manifests are deleted once there are more than the maximum.
+ *
+ * @author Vincent Palodichuk
+ */
+public class ManifestCache {
+    private static final Logger ERRORS = Logger.getLogger(ManifestCache.class.getName());
+
+    /**
+     * The directory of the manifests when none is specified
+     */
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".tftp", "manifests");
+
+    /**
+     * The number of manifests that are kept when no maximum is specified
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    /**
+     * Files that were modified less than this many milliseconds before they were hashed are not
+     * recorded, as a change in the same tick of the clock would not change the modification time
+     */
+    public static final long RACY_WINDOW_MS = 2000;
+
+    private static final int MAGIC = 0x54464D46; // TFMF
+    private static final short VERSION = 1;
+    private static final String SUFFIX = ".manifest";
+
+    private final Path directory;
+    private final int maxEntries;
+
+    /**
+     * Initializes a cache in the specified directory, which is created when the first manifest
+     * is written.
+     *
+     * @param directory the directory of the manifests
+     * @param maxEntries the number of manifests that are kept
+     */
+    public ManifestCache(Path directory, int maxEntries) {
+        this.directory = Objects.requireNonNull(directory);
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Get the directory of the manifests
+     *
+     * @return the directory of the manifests
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of manifests that are kept
+     *
+     * @return the number of manifests that are kept
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Reads the manifest of the specified file, if there is one that is still valid.
+     *
+     * @param file the file
+     * @param algorithm the algorithm that the file and its blocks were hashed with
+     * @param blockSize the size of the blocks of the file
+     * @return the manifest or null if the file has to be hashed
+     */
+    public Manifest load(Path file, DigestAlgorithm algorithm, long blockSize) {
+        Path entry = null;
+
+        try {
+            Path real = file.toRealPath();
+            entry = entryOf(real, algorithm, blockSize);
+            byte[] bytes = Files.readAllBytes(entry);
+            Manifest answer = decode(bytes, real, algorithm, blockSize, Files.readAttributes(real, BasicFileAttributes.class));
+
+            if (answer == null) {
+                Files.deleteIfExists(entry);
+            } else {
+                // The modification time of the manifest orders the eviction
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+
+            return answer;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, "Unable to read the manifest " + entry, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Records the hashes of the specified file. Nothing is recorded if the file changed while it
+     * was hashed or was modified too recently to be told apart from a later change.
+     *
+     * @param file the file
+     * @param before the attributes of the file before it was hashed
+     * @param algorithm the algorithm that the file and its blocks were hashed with
+     * @param blockSize the size of the blocks of the file
+     * @param hash the hash of the file
+     * @param blocks the blocks of the file, with their hashes
+     * @return true if the manifest was written
+     */
+    public boolean store(Path file, BasicFileAttributes before, DigestAlgorithm algorithm, long blockSize, String hash, BlockTable blocks) {
+        try {
+            Path real = file.toRealPath();
+            BasicFileAttributes after = Files.readAttributes(real, BasicFileAttributes.class);
+
+            if (!blocks.isHashed() || !sameFile(before, after) || after.lastModifiedTime().toMillis() > System.currentTimeMillis() - RACY_WINDOW_MS) {
+                return false;
+            }
+
+            Files.createDirectories(directory);
+            Path entry = entryOf(real, algorithm, blockSize);
+            Path temp = Files.createTempFile(directory, "tmp", SUFFIX + ".part");
+
+            try {
+                Files.write(temp, encode(real, algorithm, blockSize, after, hash, blocks));
+                try {
+                    Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            evict();
+            return true;
+        } catch (IOException ex) {
+            ERRORS.log(Level.WARNING, "Unable to write the manifest of " + file, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the least recently used manifests until no more than the maximum are left.
+     *
+     * @throws IOException if the directory could not be listed
+     */
+    public void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(entries::add);
+        }
+
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(ManifestCache::lastUsed));
+
+        for (Path entry : entries.subList(0, entries.size() - maxEntries)) {
+            Files.deleteIfExists(entry);
+        }
+    }
+
+    private static long lastUsed(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry).toMillis();
+        } catch (IOException ex) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private Path entryOf(Path real, DigestAlgorithm algorithm, long blockSize) {
+        Digest digest = DigestAlgorithm.XXH64.newDigest();
+        digest.update((real + "|" + algorithm.getValue() + "|" + blockSize).getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(digest.finish() + SUFFIX);
+    }
+
+    private static boolean sameFile(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime()) && Objects.equals(a.fileKey(), b.fileKey());
+    }
+
+    private static String fileKeyOf(BasicFileAttributes attributes) {
+        return attributes.fileKey() == null ? "" : attributes.fileKey().toString();
+    }
+
+    private static byte[] encode(Path real, DigestAlgorithm algorithm, long blockSize, BasicFileAttributes attributes,
+                                 String hash, BlockTable blocks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + blocks.size() * (blocks.getDigestLength() + 1));
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(real.toString());
+        out.writeByte(algorithm.ordinal());
+        out.writeLong(blockSize);
+        out.writeLong(attributes.size());
+        out.writeLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        out.writeUTF(fileKeyOf(attributes));
+        writeHash(out, hash);
+        out.writeInt(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] digest = blocks.getDigest(i);
+            out.writeByte(digest.length);
+            out.write(digest);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static Manifest decode(byte[] bytes, Path real, DigestAlgorithm algorithm, long blockSize,
+                                   BasicFileAttributes attributes) throws IOException {
+        if (bytes.length < Integer.BYTES * 2) {
+            return null;
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - Integer.BYTES);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        if (in.readInt() != MAGIC || in.readShort() != VERSION
+                || (int) crc.getValue() != readTrailingInt(bytes)
+                || !Objects.equals(in.readUTF(), real.toString())
+                || in.readUnsignedByte() != algorithm.ordinal()
+                || in.readLong() != blockSize
+                || in.readLong() != attributes.size()
+                || in.readLong() != attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                || !Objects.equals(in.readUTF(), fileKeyOf(attributes))) {
+            return null;
+        }
+
+        String hash = readHash(in);
+        int numBlocks = in.readInt();
+        int digestLength = algorithm.newDigest().digest().length;
+
+        if (numBlocks < 0 || (long) numBlocks * (digestLength + 1) > bytes.length) {
+            return null;
+        }
+
+        // The hashes of the blocks are packed as they will be kept in the table of the blocks
+        byte[] digests = new byte[numBlocks * digestLength];
+
+        for (int i = 0; i < numBlocks; i++) {
+            if (in.readUnsignedByte() != digestLength) {
+                return null;
+            }
+            in.readFully(digests, i * digestLength, digestLength);
+        }
+
+        return new Manifest(hash, numBlocks, digestLength, digests);
+    }
+
+    private static int readTrailingInt(byte[] bytes) {
+        int end = bytes.length;
+        return (bytes[end - 4] & 0xFF) << 24 | (bytes[end - 3] & 0xFF) << 16 | (bytes[end - 2] & 0xFF) << 8 | (bytes[end - 1] & 0xFF);
+    }
+
+    // Hashes are stored as raw bytes, prefixed with their length. A missing hash has a length of 255
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        if (hash == null) {
+            out.writeByte(0xFF);
+            return;
+        }
+
+        byte[] raw = Digest.fromHex(hash);
+        out.writeByte(raw.length);
+        out.write(raw);
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+
+        if (length == 0xFF) {
+            return null;
+        }
+
+        byte[] raw = new byte[length];
+        in.readFully(raw);
+        return Digest.toHex(raw);
+    }
+
+    /**
+     * The hashes of a file, as they were recorded in its manifest.
+     */
+    public static final class Manifest {
+        private final String hash;
+        private final int numBlocks;
+        private final int digestLength;
+        private final byte[] digests;
+
+        private Manifest(String hash, int numBlocks, int digestLength, byte[] digests) {
+            this.hash = hash;
+            this.numBlocks = numBlocks;
+            this.digestLength = digestLength;
+            this.digests = digests;
+        }
+
+        /**
+         * Get the hash of the file
+         *
+         * @return the hash of the file
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Get the number of blocks of the file
+         *
+         * @return the number of blocks of the file
+         */
+        public int getNumBlocks() {
+            return numBlocks;
+        }
+
+        /**
+         * Get the hash of the block with the specified index
+         *
+         * @param index the index of the block, which is one less than its id
+         * @return the hash of the block
+         */
+        public String getBlockHash(int index) {
+            return Digest.toHex(Arrays.copyOfRange(digests, index * digestLength, (index + 1) * digestLength));
+        }
+
+        /**
+         * Copies the hashes of the blocks into the specified table.
+         *
+         * @param table the table of the blocks of the file, with the same number of blocks
+         */
+        public void copyTo(BlockTable table) {
+            byte[] digest = new byte[digestLength];
+
+            for (int i = 0; i < numBlocks; i++) {
+                System.arraycopy(digests, i * digestLength, digest, 0, digestLength);
+                table.setDigest(i, digest);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestCache{" + "directory = " + directory + ", maxEntries = " + maxEntries + '}';
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * File: MerkleTree.java
+ */
+package com.capital7software.network.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A hash tree over the hashes of the blocks of a file. The leaves are the hashes of the blocks,
+ * in the order of their ids, and every other node is the hash of its two children one after the
+ * other. A node without a sibling is carried up to the next level as it is. Level 0 holds the
+ * leaves and the top level holds the root alone.
+ * <p>
+ * Unlike a hash of the whole file, the tree tells which blocks differ: two trees are compared
+ * from the root down, following only the nodes that differ, until the leaves are reached. The
+ * levels near the leaves are hashed in parallel on the common fork/join pool.
+ *
+ * @author Vincent Palodichuk
+ */
+public class MerkleTree {
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private final DigestAlgorithm algorithm;
+    private final List<byte[][]> levels;
+
+    private MerkleTree(DigestAlgorithm algorithm, List<byte[][]> levels) {
+        this.algorithm = algorithm;
+        this.levels = levels;
+    }
+
+    /**
+     * Builds the tree over the specified leaves.
+     *
+     * @param algorithm the algorithm that the leaves were hashed with and the nodes are hashed with
+     * @param leaves the hashes of the blocks, in the order of their ids. A missing hash is treated
+     * as the hash of an empty block
+     * @return the tree
+     */
+    public static MerkleTree fromLeaves(DigestAlgorithm algorithm, byte[][] leaves) {
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = new byte[Math.max(1, leaves.length)][];
+        byte[] empty = algorithm.newDigest().digest();
+
+        for (int i = 0; i < level.length; i++) {
+            level[i] = i < leaves.length && leaves[i] != null ? leaves[i] : empty;
+        }
+        levels.add(level);
+
+        while (level.length > 1) {
+            byte[][] children = level;
+            byte[][] parents = new byte[(children.length + 1) / 2][];
+            ThreadLocal<Digest> digests = ThreadLocal.withInitial(algorithm::newDigest);
+            IntStream indexes = IntStream.range(0, parents.length);
+
+            (parents.length >= PARALLEL_THRESHOLD ? indexes.parallel() : indexes).forEach(i -> {
+                if (2 * i + 1 < children.length) {
+                    Digest digest = digests.get();
+                    digest.update(children[2 * i]);
+                    digest.update(children[2 * i + 1]);
+                    parents[i] = digest.digest();
+                } else {
+                    parents[i] = children[2 * i];
+                }
+            });
+
+            levels.add(parents);
+            level = parents;
+        }
+
+        return new MerkleTree(algorithm, levels);
+    }
+
+    /**
+     * Builds the tree over the hashes of the specified blocks.
+     *
+     * @param blocks the blocks, with their hashes
+     * @return the tree
+     */
+    public static MerkleTree fromBlocks(BlockTable blocks) {
+        byte[][] leaves = new byte[blocks.size()][];
+
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = blocks.getDigest(i);
+        }
+
+        return fromLeaves(blocks.getAlgorithm(), leaves);
+    }
+
+    /**
+     * Get the algorithm that the nodes of this tree are hashed with
+     *
+     * @return the algorithm of this tree
+     */
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the hash of the root of this tree
+     *
+     * @return the hash of the root as a lowercase hexadecimal string
+     */
+    public String getRoot() {
+        return Digest.toHex(levels.get(levels.size() - 1)[0]);
+    }
+
+    /**
+     * Get the number of levels above the leaves, so the level of the root
+     *
+     * @return the level of the root
+     */
+    public int getHeight() {
+        return levels.size() - 1;
+    }
+
+    /**
+     * Get the number of nodes on the specified level
+     *
+     * @param level the level, 0 for the leaves
+     * @return the number of nodes on the level
+     */
+    public int getWidth(int level) {
+        return levels.get(level).length;
+    }
+
+    /**
+     * Get the hash of the specified node
+     *
+     * @param level the level of the node, 0 for the leaves
+     * @param index the index of the node on its level
+     * @return the hash of the node as a lowercase hexadecimal string
+     */
+    public String getNode(int level, int index) {
+        return Digest.toHex(levels.get(level)[index]);
+    }
+
+    /**
+     * Returns true if the specified node has the specified hash
+     *
+     * @param level the level of the node, 0 for the leaves
+     * @param index the index of the node on its level
+     * @param hash the hash as a hexadecimal string
+     * @return true if the node has the hash
+     */
+    public boolean matches(int level, int index, String hash) {
+        try {
+            return Arrays.equals(levels.get(level)[index], Digest.fromHex(hash));
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleTree{" + "algorithm = " + algorithm + ", leaves = " + getWidth(0) + ", root = " + getRoot() + '}';
+    }
+}
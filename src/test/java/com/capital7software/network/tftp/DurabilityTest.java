@@ -0,0 +1,53 @@
+/*
+ * File: DurabilityTest.java
+ */
+package com.capital7software.network.tftp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class DurabilityTest {
+
+    public DurabilityTest() {
+    }
+
+    /**
+     * Test of fromValue method, of class Durability.
+     */
+    @Test
+    public void testFromValue() {
+        System.out.println("fromValue");
+        assertEquals(Durability.NONE, Durability.fromValue("none"));
+        assertEquals(new Durability(Durability.Mode.ACK, 0), Durability.fromValue("ACK"));
+        assertEquals(new Durability(Durability.Mode.BLOCKS, 64), Durability.fromValue("blocks:64"));
+        assertEquals("bytes:8388608", Durability.fromValue("bytes:8388608").getValue());
+        assertNull(Durability.fromValue("blocks"));
+        assertNull(Durability.fromValue("blocks:0"));
+        assertNull(Durability.fromValue("bytes:many"));
+        assertNull(Durability.fromValue("eof:1"));
+        assertNull(Durability.fromValue("always"));
+        assertNull(Durability.fromValue(null));
+    }
+
+    /**
+     * Test of isDue method, of class Durability.
+     */
+    @Test
+    public void testIsDue() {
+        System.out.println("isDue");
+        Durability blocks = new Durability(Durability.Mode.BLOCKS, 4);
+        assertFalse(blocks.isDue(3, 1_000_000));
+        assertTrue(blocks.isDue(4, 0));
+        Durability bytes = new Durability(Durability.Mode.BYTES, 1024);
+        assertFalse(bytes.isDue(100, 1023));
+        assertTrue(bytes.isDue(1, 1024));
+        assertFalse(new Durability(Durability.Mode.EOF, 0).isDue(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertFalse(Durability.NONE.isForced());
+        assertTrue(new Durability(Durability.Mode.EOF, 0).isForced());
+    }
+}
@@ -3,8 +3,11 @@
  */
 package com.capital7software.network.tftp.messages;
 
+import com.capital7software.network.exception.CorruptMessageException;
 import com.capital7software.network.exception.TftpException;
 import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.util.Compression;
+import java.util.Arrays;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -89,5 +92,106 @@ public class DataMessageTest {
         byte[] result = instance.getBlock();
         assertArrayEquals(null, result);
     }
-    
+
+    /**
+     * Test of fromPayload method, of class DataMessage, with a block of a single byte.
+     */
+    @Test
+    public void testFromPayloadWithOneByteBlock() throws TftpException {
+        System.out.println("fromPayloadWithOneByteBlock");
+        DataMessage expResult = new DataMessage(7);
+        expResult.setBlock(new byte[] {42}, 1);
+        DataMessage result = new DataMessage();
+        result.fromPayload(expResult.getPayload());
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of fromPayload method, of class DataMessage, with a checksum.
+     */
+    @Test
+    public void testFromPayloadWithChecksum() throws TftpException {
+        System.out.println("fromPayloadWithChecksum");
+        DataMessage expResult = new DataMessage(3);
+        expResult.setBlock(new byte[] {1, 2, 3, 4, 5}, 5);
+        expResult.setChecksum(true);
+        byte[] payload = expResult.getPayload();
+        assertEquals(DataMessage.HEADER_SIZE + 5 + DataMessage.CHECKSUM_SIZE, payload.length);
+
+        DataMessage result = new DataMessage();
+        result.setChecksum(true);
+        result.fromPayload(payload);
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test of fromPayload method, of class DataMessage, with a damaged packet.
+     */
+    @Test
+    public void testFromPayloadWithBadChecksum() {
+        DataMessage message = new DataMessage(3);
+        message.setBlock(new byte[] {1, 2, 3, 4, 5}, 5);
+        message.setChecksum(true);
+        byte[] payload = message.getPayload();
+        payload[DataMessage.HEADER_SIZE + 2] ^= 0x10;
+
+        Throwable exception = assertThrows(CorruptMessageException.class, () -> {
+            System.out.println("fromPayloadWithBadChecksum");
+            DataMessage instance = new DataMessage();
+            instance.setChecksum(true);
+            instance.fromPayload(payload);
+        });
+        assertEquals("The checksum of the DATA message does not match.", exception.getMessage());
+    }
+
+    /**
+     * Test of getBlockNumber method, of class DataMessage, with ids from 2^31 on and a rollover.
+     */
+    @Test
+    public void testGetBlockNumberBeyondIntRange() throws TftpException {
+        System.out.println("getBlockNumberBeyondIntRange");
+        long block = 0x80000001L;
+        DataMessage result = new DataMessage();
+        result.fromPayload(new DataMessage(IdableMessage.toId(block)).getPayload());
+        assertEquals(block, result.getBlockNumber(block - 1));
+
+        long rolled = (1L << 32) + 2;
+        result.fromPayload(new DataMessage(IdableMessage.toId(rolled)).getPayload());
+        assertEquals(2, result.getId());
+        assertEquals(rolled, result.getBlockNumber((1L << 32) - 5));
+        assertEquals(rolled - 10, IdableMessage.toBlock(IdableMessage.toId(rolled - 10), rolled));
+    }
+
+
+    /**
+     * Test of fromPayload method, of class DataMessage, with a block that was compressed.
+     */
+    @Test
+    public void testFromPayloadCompressed() throws TftpException {
+        System.out.println("fromPayloadCompressed");
+        byte[] block = new byte[4096];
+        Arrays.fill(block, (byte) 'x');
+        byte[] packet = new byte[DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + block.length];
+        Message.writeOpCodeAndId(9, (short) OpCode.DATA.getValue(), 0, packet);
+        packet[DataMessage.HEADER_SIZE] = (byte) Compression.LZ4.getFlag();
+        int length = Compression.LZ4.compress(block, 0, block.length, packet, DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE, block.length);
+
+        DataMessage instance = new DataMessage();
+        instance.setCompressed(true);
+        instance.fromPayload(packet, 0, DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + length);
+        assertEquals(9, instance.getId());
+        assertArrayEquals(block, instance.getBlock());
+
+        // A raw block round trips through the payload of the message
+        DataMessage raw = new DataMessage(10);
+        raw.setCompressed(true);
+        raw.setBlock(block, 100);
+        DataMessage result = new DataMessage();
+        result.setCompressed(true);
+        result.fromPayload(raw.getPayload());
+        assertEquals(raw, result);
+
+        // A block that was cut short does not decompress
+        assertThrows(CorruptMessageException.class, () -> instance.fromPayload(packet, 0, DataMessage.HEADER_SIZE + DataMessage.FLAG_SIZE + length - 1));
+    }
 }
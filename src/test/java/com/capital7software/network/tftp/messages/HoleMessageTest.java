@@ -0,0 +1,68 @@
+/*
+ * File: HoleMessageTest.java
+ */
+package com.capital7software.network.tftp.messages;
+
+import com.capital7software.network.exception.CorruptMessageException;
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class HoleMessageTest {
+
+    public HoleMessageTest() {
+    }
+
+    /**
+     * Test of getPayload method, of class HoleMessage.
+     */
+    @Test
+    public void testGetPayload() {
+        System.out.println("getPayload");
+        HoleMessage instance = new HoleMessage(3, 2);
+        byte[] expResult = {0, (byte)OpCode.HOLE.getValue(), 0, 0, 0, 3, 0, 0, 0, 2};
+        byte[] result = instance.getPayload();
+        assertArrayEquals(expResult, result);
+    }
+
+    /**
+     * Test of fromPayload method, of class HoleMessage, with a count beyond the range of an int.
+     */
+    @Test
+    public void testFromPayload() throws TftpException {
+        System.out.println("fromPayload");
+        HoleMessage instance = new HoleMessage(7, 1);
+        instance.setCount(0xFFFFFFFEL);
+        HoleMessage result = new HoleMessage();
+        result.fromPayload(instance.getPayload());
+        assertEquals(instance, result);
+        assertEquals(0xFFFFFFFEL, result.getCount());
+        assertThrows(TftpException.class, () -> result.fromPayload(new DataMessage().getPayload()));
+    }
+
+    /**
+     * Test of fromPayload method, of class HoleMessage, with a damaged checksum.
+     */
+    @Test
+    public void testFromPayloadWithChecksum() throws TftpException {
+        System.out.println("fromPayloadWithChecksum");
+        HoleMessage instance = new HoleMessage(5, 40);
+        instance.setChecksum(true);
+        byte[] bytes = instance.getPayload();
+        assertEquals(HoleMessage.HEADER_SIZE + DataMessage.CHECKSUM_SIZE, bytes.length);
+
+        HoleMessage result = new HoleMessage();
+        result.setChecksum(true);
+        result.fromPayload(bytes);
+        assertEquals(instance, result);
+
+        bytes[HoleMessage.HEADER_SIZE - 1] ^= 1;
+        assertThrows(CorruptMessageException.class, () -> result.fromPayload(bytes));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * File: KeepMessageTest.java
+ */
+package com.capital7software.network.tftp.messages;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class KeepMessageTest {
+
+    public KeepMessageTest() {
+    }
+
+    /**
+     * Test of getPayload method, of class KeepMessage.
+     */
+    @Test
+    public void testGetPayload() {
+        System.out.println("getPayload");
+        KeepMessage instance = new KeepMessage(258, 64);
+        byte[] expResult = {0, (byte)OpCode.KEEP.getValue(), 0, 0, 1, 2, 0, 0, 0, 64};
+        byte[] result = instance.getPayload();
+        assertArrayEquals(expResult, result);
+    }
+
+    /**
+     * Test of fromPayload method, of class KeepMessage, which must not accept a HOLE.
+     */
+    @Test
+    public void testFromPayload() throws TftpException {
+        System.out.println("fromPayload");
+        KeepMessage instance = new KeepMessage(9, 3);
+        KeepMessage result = new KeepMessage();
+        result.fromPayload(instance.getPayload());
+        assertEquals(instance, result);
+        assertEquals(3, result.getCount());
+        assertNotEquals(new HoleMessage(9, 3), result);
+        assertEquals(result, MessageFactory.getMessage(instance.getPayload(), 0, KeepMessage.HEADER_SIZE));
+        assertThrows(TftpException.class, () -> result.fromPayload(new HoleMessage(9, 3).getPayload()));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * File: BlockCacheTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockCacheTest {
+
+    @TempDir
+    Path root;
+
+    public BlockCacheTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    private Path file(String name, int pages, int seed) throws IOException {
+        return Files.write(root.resolve(name), data(pages * BlockCache.PAGE_SIZE, seed));
+    }
+
+    /**
+     * Reads the whole of the specified file through the cache, in blocks of the specified size.
+     */
+    private static byte[] read(BlockCache cache, Path path, int blockSize) throws IOException {
+        BlockCache.FileId file = BlockCache.identify(path);
+        ByteBuffer answer = ByteBuffer.allocate((int) file.size());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < file.size(); offset += blockSize) {
+                ByteBuffer block = ByteBuffer.allocate(blockSize);
+                cache.read(file, channel, offset, block);
+                answer.put(block.flip());
+            }
+        }
+
+        return answer.array();
+    }
+
+    /**
+     * Test of read method, of class BlockCache.
+     */
+    @Test
+    public void testRead() throws IOException {
+        System.out.println("read");
+        BlockCache cache = new BlockCache(8L * BlockCache.PAGE_SIZE);
+        byte[] expected = data(3 * BlockCache.PAGE_SIZE + 1234, 1);
+        Path path = Files.write(root.resolve("file.bin"), expected);
+
+        assertArrayEquals(expected, read(cache, path, 1400));
+        assertEquals(4, cache.getReads(), "Every page is read from disk once");
+        assertEquals(4, cache.getMisses());
+
+        // A different block size is served from the same pages
+        assertArrayEquals(expected, read(cache, path, 8192));
+        assertEquals(4, cache.getReads());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(4L * BlockCache.PAGE_SIZE, cache.getSize());
+    }
+
+    /**
+     * Test of read method, of class BlockCache, once the cache is full.
+     */
+    @Test
+    public void testReadEvictsColdestPage() throws IOException {
+        System.out.println("readEvictsColdestPage");
+        BlockCache cache = new BlockCache(2L * BlockCache.PAGE_SIZE);
+        Path first = file("first.bin", 1, 1);
+        Path second = file("second.bin", 1, 2);
+        Path third = file("third.bin", 1, 3);
+
+        read(cache, first, 1024);
+        read(cache, second, 1024);
+        assertEquals(2, cache.getReads());
+        assertEquals(2L * BlockCache.PAGE_SIZE, cache.getSize());
+
+        // The slot of the coldest page is reused
+        assertArrayEquals(Files.readAllBytes(third), read(cache, third, 1024));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2L * BlockCache.PAGE_SIZE, cache.getSize());
+
+        read(cache, second, 1024);
+        assertEquals(3, cache.getReads(), "The page that was read last is still cached");
+        assertArrayEquals(Files.readAllBytes(first), read(cache, first, 1024));
+        assertEquals(4, cache.getReads(), "The coldest page was evicted");
+    }
+
+    /**
+     * Test of read method, of class BlockCache, with a file that is read once and is larger
+     * than the cache.
+     */
+    @Test
+    public void testReadPromotesPagesReadTwice() throws IOException {
+        System.out.println("readPromotesPagesReadTwice");
+        BlockCache cache = new BlockCache(10L * BlockCache.PAGE_SIZE);
+        Path hot = file("hot.bin", 2, 1);
+        Path scan = file("scan.bin", 20, 2);
+
+        read(cache, hot, 512);
+        read(cache, hot, 512);
+        assertEquals(2, cache.getReads());
+
+        assertArrayEquals(Files.readAllBytes(scan), read(cache, scan, 1400));
+        assertEquals(22, cache.getReads());
+        assertTrue(cache.getEvictions() > 0);
+
+        // Only the probation segment was churned by the scan
+        assertArrayEquals(Files.readAllBytes(hot), read(cache, hot, 512));
+        assertEquals(22, cache.getReads(), "The pages that were read twice are protected");
+    }
+
+    /**
+     * Test of preload method, of class BlockCache.
+     */
+    @Test
+    public void testPreload() throws IOException {
+        System.out.println("preload");
+        BlockCache cache = new BlockCache(10L * BlockCache.PAGE_SIZE);
+        Path small = file("small.bin", 3, 1);
+        Path large = file("large.bin", 20, 2);
+
+        assertEquals(3L * BlockCache.PAGE_SIZE, cache.preload(small));
+        assertEquals(3, cache.getReads());
+        assertArrayEquals(Files.readAllBytes(small), read(cache, small, 1400));
+        assertEquals(3, cache.getReads());
+        assertEquals(0, cache.getMisses());
+
+        // Only as much of a file as fits in the protected segment is preloaded
+        assertEquals(8L * BlockCache.PAGE_SIZE, cache.preload(large));
+    }
+
+    /**
+     * Test of read method, of class BlockCache, with concurrent misses on the same page.
+     */
+    @Test
+    public void testReadConcurrentMisses() throws Exception {
+        System.out.println("readConcurrentMisses");
+        BlockCache cache = new BlockCache(4L * BlockCache.PAGE_SIZE);
+        Path path = file("file.bin", 1, 1);
+        byte[] expected = Files.readAllBytes(path);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return read(cache, path, BlockCache.PAGE_SIZE);
+                }));
+            }
+            start.countDown();
+
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, cache.getReads(), "The page is read from disk once");
+        assertEquals(threads, cache.getHits() + cache.getMisses());
+    }
+}
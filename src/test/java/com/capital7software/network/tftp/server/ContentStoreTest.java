@@ -0,0 +1,160 @@
+/*
+ * File: ContentStoreTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+import com.capital7software.network.util.Digest;
+import com.capital7software.network.util.DigestAlgorithm;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class ContentStoreTest {
+
+    @TempDir
+    Path root;
+
+    public ContentStoreTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    private static String md5(byte[] data) {
+        Digest digest = DigestAlgorithm.MD5.newDigest();
+        digest.update(data, 0, data.length);
+        return digest.finish();
+    }
+
+    static void upload(UploadStorage storage, String name, byte[] data) throws IOException {
+        UploadStorage.Upload upload = storage.stage(name, data.length);
+        try (BlockWriter writer = upload.open(data.length, false)) {
+            writer.write(0, data, 0, data.length);
+        }
+        upload.publish(false);
+    }
+
+    // The content is only linked once the upload has been cut into chunks in the background
+    private static void awaitStored(ContentStore store, String name, byte[] data) throws IOException, InterruptedException {
+        for (int i = 0; i < 500 && !store.link(name, data.length, md5(data)); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.link(name, data.length, md5(data)));
+    }
+
+    private long count(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    /**
+     * Test of restore method, of class ContentStore, right after an upload was published and
+     * once it has been stored.
+     */
+    @Test
+    public void testRestore() throws IOException, InterruptedException {
+        System.out.println("restore");
+        byte[] first = data(ContentStore.CHUNK_SIZE * 2 + 100, 1);
+        byte[] second = data(5000, 2);
+        ContentStore store = new ContentStore(root.resolve("store"));
+
+        try {
+            assertNull(store.restore("a.bin"));
+
+            // Downloaded before the background thread got to it
+            upload(store, "a.bin", first);
+            assertArrayEquals(first, Files.readAllBytes(store.restore("a.bin")));
+            awaitStored(store, "a.bin", first);
+            assertArrayEquals(first, Files.readAllBytes(store.restore("a.bin")));
+
+            // The last upload of a filename is the one that is downloaded
+            upload(store, "a.bin", second);
+            assertArrayEquals(second, Files.readAllBytes(store.restore("a.bin")));
+            awaitStored(store, "a.bin", second);
+        } finally {
+            store.close();
+        }
+
+        ContentStore reopened = new ContentStore(root.resolve("store"));
+        try {
+            assertArrayEquals(second, Files.readAllBytes(reopened.restore("a.bin")));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Test of link method, of class ContentStore, and of the chunks shared by the uploads.
+     */
+    @Test
+    public void testDedup() throws IOException, InterruptedException {
+        System.out.println("dedup");
+        byte[] chunk = data(ContentStore.CHUNK_SIZE, 3);
+        byte[] data = new byte[ContentStore.CHUNK_SIZE * 3];
+        System.arraycopy(chunk, 0, data, 0, chunk.length);
+        System.arraycopy(chunk, 0, data, ContentStore.CHUNK_SIZE, chunk.length);
+        Arrays.fill(data, ContentStore.CHUNK_SIZE * 2, data.length, (byte) 7);
+        ContentStore store = new ContentStore(root.resolve("store"));
+
+        try {
+            assertFalse(store.link("b.bin", data.length, md5(data)));
+            upload(store, "b.bin", data);
+            awaitStored(store, "b.bin", data);
+            upload(store, "c.bin", data);
+            awaitStored(store, "c.bin", data);
+
+            assertTrue(store.link("d.bin", data.length, md5(data)), "Content that is stored is linked without a transfer");
+            assertArrayEquals(data, Files.readAllBytes(store.restore("d.bin")));
+            assertEquals(2, count(root.resolve("store").resolve("chunks")));
+            assertEquals(1, count(root.resolve("store").resolve("files")));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test of evict method, of class RestoredFiles.
+     */
+    @Test
+    public void testEvictRestored() throws IOException {
+        System.out.println("evictRestored");
+        Path directory = root.resolve("restored");
+        RestoredFiles busy = new RestoredFiles(directory, 100, 60_000);
+        for (String key : new String[] {"a", "b", "c"}) {
+            busy.put(key, Files.write(root.resolve(key), new byte[60]));
+        }
+        assertEquals(180, busy.getSize(), "Copies that were just handed out are never deleted");
+
+        RestoredFiles files = new RestoredFiles(directory, 100, 0);
+        assertEquals(0, files.getSize(), "The copies are dropped when the cache is opened");
+        files.put("a", Files.write(root.resolve("a"), new byte[60]));
+        Files.setLastModifiedTime(directory.resolve("a"), FileTime.fromMillis(System.currentTimeMillis() - 20_000));
+        files.put("b", Files.write(root.resolve("b"), new byte[30]));
+        Files.setLastModifiedTime(directory.resolve("b"), FileTime.fromMillis(System.currentTimeMillis() - 10_000));
+        assertNotNull(files.get("a"));
+        files.put("c", Files.write(root.resolve("c"), new byte[30]));
+
+        assertNotNull(files.get("a"));
+        assertNull(files.get("b"), "The least recently used copy is deleted");
+        assertNotNull(files.get("c"));
+        assertEquals(90, files.getSize());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * File: FileHashesTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.DigestAlgorithm;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class FileHashesTest {
+
+    @TempDir
+    Path root;
+
+    public FileHashesTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    /**
+     * Test of hash method, of class FileHashes.
+     */
+    @Test
+    public void testHash() throws IOException {
+        System.out.println("hash");
+        FileHashes hashes = new FileHashes();
+        Path file = Files.write(root.resolve("file.bin"), data(100_000, 1));
+        String expected = DigestAlgorithm.MD5.hashFile(file);
+
+        assertEquals(expected, hashes.hash(file, DigestAlgorithm.MD5));
+        assertEquals(expected, hashes.hash(file, DigestAlgorithm.MD5));
+        assertEquals(1, hashes.getPasses(), "The file is only read once while it does not change");
+
+        assertEquals(DigestAlgorithm.XXH64.hashFile(file), hashes.hash(file, DigestAlgorithm.XXH64));
+        assertEquals(2, hashes.getPasses(), "Every algorithm has a hash of its own");
+
+        // Same size, so only the modification time tells the versions apart
+        Files.write(file, data(100_000, 2));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2_000));
+        assertEquals(DigestAlgorithm.MD5.hashFile(file), hashes.hash(file, DigestAlgorithm.MD5));
+        assertEquals(3, hashes.getPasses(), "A file that changed is hashed again");
+    }
+
+    /**
+     * Test of hash method, of class FileHashes, once the cache is full.
+     */
+    @Test
+    public void testHashEvictsLeastRecentlyUsed() throws IOException {
+        System.out.println("hashEvictsLeastRecentlyUsed");
+        FileHashes hashes = new FileHashes(2);
+        Path first = Files.write(root.resolve("first.bin"), data(1000, 1));
+        Path second = Files.write(root.resolve("second.bin"), data(1000, 2));
+        Path third = Files.write(root.resolve("third.bin"), data(1000, 3));
+
+        hashes.hash(first, DigestAlgorithm.MD5);
+        hashes.hash(second, DigestAlgorithm.MD5);
+        hashes.hash(first, DigestAlgorithm.MD5);
+        hashes.hash(third, DigestAlgorithm.MD5);
+        assertEquals(2, hashes.size());
+        assertEquals(3, hashes.getPasses());
+
+        hashes.hash(first, DigestAlgorithm.MD5);
+        assertEquals(3, hashes.getPasses(), "The most recently used hash is kept");
+        hashes.hash(second, DigestAlgorithm.MD5);
+        assertEquals(4, hashes.getPasses(), "The least recently used hash is dropped");
+    }
+
+    /**
+     * Test of hash method, of class FileHashes, with a file that does not exist.
+     */
+    @Test
+    public void testHashMissingFile() {
+        System.out.println("hashMissingFile");
+        FileHashes hashes = new FileHashes();
+
+        assertThrows(IOException.class, () -> hashes.hash(root.resolve("missing.bin"), DigestAlgorithm.MD5));
+        assertEquals(0, hashes.size());
+    }
+}
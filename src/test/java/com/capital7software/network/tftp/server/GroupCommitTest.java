@@ -0,0 +1,265 @@
+/*
+ * File: GroupCommitTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class GroupCommitTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path root;
+
+    public GroupCommitTest() {
+    }
+
+    /**
+     * A writer that counts how many times it is forced and by which thread, waits for the gate
+     * to open before it is forced and fails instead if it is told to.
+     */
+    private static final class CountingWriter extends BlockWriter {
+        private final AtomicInteger forces = new AtomicInteger();
+        private final AtomicReference<Thread> forcedBy = new AtomicReference<>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch gate;
+        private final boolean fail;
+
+        private CountingWriter(Path file, CountDownLatch gate, boolean fail) throws IOException {
+            super(file);
+            this.gate = gate;
+            this.fail = fail;
+        }
+
+        @Override
+        public void force() throws IOException {
+            forces.incrementAndGet();
+            forcedBy.set(Thread.currentThread());
+            entered.countDown();
+            try {
+                if (!gate.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                    throw new IOException("The gate was never opened.");
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            if (fail) {
+                throw new IOException("The device is gone.");
+            }
+            super.force();
+        }
+    }
+
+    private CountingWriter writer(String name, CountDownLatch gate, boolean fail) throws IOException {
+        return new CountingWriter(Files.createFile(root.resolve(name)), gate, fail);
+    }
+
+    /**
+     * Starts a session that asks the coordinator to force the specified writer, recording
+     * whatever it throws.
+     */
+    private static Thread session(GroupCommit commit, BlockWriter writer, List<Throwable> thrown) {
+        Thread answer = new Thread(() -> {
+            try {
+                commit.force(writer);
+            } catch (Throwable ex) {
+                synchronized (thrown) {
+                    thrown.add(ex);
+                }
+            }
+        });
+        answer.start();
+        return answer;
+    }
+
+    private static void joinAll(List<Thread> sessions) throws InterruptedException {
+        for (Thread session : sessions) {
+            session.join(TIMEOUT.toMillis());
+            assertFalse(session.isAlive());
+        }
+    }
+
+    /**
+     * Test of force method, of class GroupCommit, with requests that arrive while a batch is
+     * being forced.
+     */
+    @Test
+    public void testForceBatches() throws Exception {
+        System.out.println("forceBatches");
+        CountDownLatch gate = new CountDownLatch(1);
+        CountingWriter first = writer("first.bin", gate, false);
+        CountingWriter second = writer("second.bin", new CountDownLatch(0), false);
+        CountingWriter third = writer("third.bin", new CountDownLatch(0), false);
+        List<Throwable> thrown = new ArrayList<>();
+        List<Thread> sessions = new ArrayList<>();
+
+        try (GroupCommit commit = new GroupCommit()) {
+            sessions.add(session(commit, first, thrown));
+            assertTrue(first.entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+
+            // These pile up behind the force that is under way
+            for (int i = 0; i < 3; i++) {
+                sessions.add(session(commit, second, thrown));
+            }
+            sessions.add(session(commit, third, thrown));
+            Thread.sleep(200);
+            for (Thread session : sessions) {
+                assertTrue(session.isAlive(), "Every session waits until its file was forced");
+            }
+
+            gate.countDown();
+            joinAll(sessions);
+
+            assertTrue(thrown.isEmpty(), thrown.toString());
+            assertEquals(1, first.forces.get());
+            assertEquals(1, second.forces.get(), "One force serves every request for the same file in a batch");
+            assertEquals(1, third.forces.get());
+            assertEquals(first.forcedBy.get(), second.forcedBy.get(), "The files of a device are forced by its thread");
+            assertNotEquals(sessions.get(1), second.forcedBy.get());
+            assertTrue(commit.toString().contains("requests = 5, forces = 3, batches = 2"), commit.toString());
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    /**
+     * Test of force method, of class GroupCommit, with a file that cannot be forced.
+     */
+    @Test
+    public void testForceFailure() throws Exception {
+        System.out.println("forceFailure");
+        CountDownLatch gate = new CountDownLatch(1);
+        CountingWriter blocker = writer("blocker.bin", gate, false);
+        CountingWriter failing = writer("failing.bin", new CountDownLatch(0), true);
+        CountingWriter healthy = writer("healthy.bin", new CountDownLatch(0), false);
+        List<Throwable> thrown = new ArrayList<>();
+        List<Thread> sessions = new ArrayList<>();
+
+        try (GroupCommit commit = new GroupCommit()) {
+            sessions.add(session(commit, blocker, thrown));
+            assertTrue(blocker.entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+            sessions.add(session(commit, failing, thrown));
+            sessions.add(session(commit, failing, thrown));
+            Thread.sleep(100);
+
+            gate.countDown();
+            joinAll(sessions);
+
+            // Every request for the file that failed is told so, and only them
+            assertEquals(2, thrown.size());
+            for (Throwable ex : thrown) {
+                assertInstanceOf(IOException.class, ex);
+            }
+            assertEquals(1, failing.forces.get());
+
+            assertDoesNotThrow(() -> commit.force(healthy), "A failure does not stop the device");
+        } finally {
+            blocker.close();
+            failing.close();
+            healthy.close();
+        }
+    }
+
+    /**
+     * Test of force method, of class GroupCommit, with a session that is interrupted while it
+     * waits.
+     */
+    @Test
+    public void testForceInterrupted() throws Exception {
+        System.out.println("forceInterrupted");
+        CountDownLatch gate = new CountDownLatch(1);
+        CountingWriter writer = writer("file.bin", gate, false);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicBoolean forced = new AtomicBoolean();
+
+        try (GroupCommit commit = new GroupCommit()) {
+            Thread session = new Thread(() -> {
+                try {
+                    commit.force(writer);
+                    forced.set(gate.getCount() == 0);
+                } catch (Throwable ex) {
+                    thrown.set(ex);
+                }
+                interrupted.set(Thread.currentThread().isInterrupted());
+            });
+            session.start();
+            assertTrue(writer.entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+
+            session.interrupt();
+            Thread.sleep(100);
+            assertTrue(session.isAlive(), "An interrupted session still waits until its file was forced");
+
+            gate.countDown();
+            session.join(TIMEOUT.toMillis());
+            assertFalse(session.isAlive());
+
+            assertNull(thrown.get());
+            assertTrue(forced.get());
+            assertTrue(interrupted.get(), "The interrupt is kept for the session");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Test of close method, of class GroupCommit.
+     */
+    @Test
+    public void testClose() throws Exception {
+        System.out.println("close");
+        CountDownLatch gate = new CountDownLatch(1);
+        CountingWriter blocker = writer("blocker.bin", gate, false);
+        CountingWriter queued = writer("queued.bin", new CountDownLatch(0), false);
+        CountingWriter late = writer("late.bin", new CountDownLatch(0), false);
+        List<Throwable> thrown = new ArrayList<>();
+        List<Thread> sessions = new ArrayList<>();
+        GroupCommit commit = new GroupCommit();
+
+        try {
+            sessions.add(session(commit, blocker, thrown));
+            assertTrue(blocker.entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+            sessions.add(session(commit, queued, thrown));
+            Thread.sleep(100);
+            Thread device = blocker.forcedBy.get();
+
+            commit.close();
+            gate.countDown();
+            joinAll(sessions);
+
+            assertTrue(thrown.isEmpty(), thrown.toString());
+            assertEquals(1, queued.forces.get(), "The requests that were queued are still served");
+            device.join(TIMEOUT.toMillis());
+            assertFalse(device.isAlive(), "The thread of the device stops once its queue is empty");
+
+            commit.force(late);
+            assertEquals(Thread.currentThread(), late.forcedBy.get(), "Once closed every session forces its own file");
+        } finally {
+            blocker.close();
+            queued.close();
+            late.close();
+        }
+    }
+}
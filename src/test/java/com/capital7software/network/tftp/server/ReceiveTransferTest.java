@@ -0,0 +1,199 @@
+/*
+ * File: ReceiveTransferTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.exception.TftpException;
+import com.capital7software.network.tftp.OpCode;
+import com.capital7software.network.tftp.TftpOption;
+import com.capital7software.network.tftp.messages.DataMessage;
+import com.capital7software.network.tftp.messages.FileMessage;
+import com.capital7software.network.tftp.messages.MessageOptionCode;
+import com.capital7software.network.util.BlockInfo;
+import com.capital7software.network.util.Digest;
+import com.capital7software.network.util.DigestAlgorithm;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class ReceiveTransferTest {
+    private static final int BLOCK_SIZE = BlockInfo.DEFAULT_BLOCK_SIZE;
+
+    @TempDir
+    Path root;
+
+    public ReceiveTransferTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    private static String hash(DigestAlgorithm algorithm, byte[] data) {
+        Digest digest = algorithm.newDigest();
+        digest.update(data);
+        return digest.finish();
+    }
+
+    private static DataMessage block(byte[] data, int id) {
+        DataMessage answer = new DataMessage(id);
+        int offset = (id - 1) * BLOCK_SIZE;
+        byte[] block = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + BLOCK_SIZE));
+        answer.setBlock(block, block.length);
+        return answer;
+    }
+
+    /**
+     * Parses a WRQ with the specified options, given as the name of their code and their value.
+     */
+    private static TransferOptions options(String... options) throws TftpException {
+        FileMessage request = new FileMessage(OpCode.WRQ, "file.bin");
+
+        for (int i = 0; i < options.length; i += 2) {
+            request.addOption(new TftpOption(MessageOptionCode.valueOf(options[i]), options[i + 1]));
+        }
+        return TransferOptions.fromRequest(request);
+    }
+
+    private ReceiveTransfer transfer(TransferOptions options) throws IOException {
+        // The sessions create the file before the transfer opens it
+        Path file = Files.createFile(root.resolve("file.bin"));
+        return new ReceiveTransfer(file.toString(), options, new ReceiveSettings(), null, null);
+    }
+
+    /**
+     * Test of write method, of class ReceiveTransfer, with blocks that arrive out of order.
+     */
+    @Test
+    public void testWriteReordered() throws Exception {
+        System.out.println("writeReordered");
+        byte[] expected = data(5 * BLOCK_SIZE + 100, 1);
+        TransferOptions options = options("FILE_SIZE", "" + expected.length, "BLOCK_COUNT", "6", "FILE_MD5", hash(DigestAlgorithm.MD5, expected));
+
+        try (ReceiveTransfer transfer = transfer(options)) {
+            transfer.write(block(expected, 1));
+            assertEquals(2, transfer.getNextBlock());
+
+            // Blocks that arrive ahead of the gap are held
+            transfer.write(block(expected, 3));
+            transfer.write(block(expected, 4));
+            assertEquals(2, transfer.getNextBlock());
+
+            // And written in order once it is filled
+            transfer.write(block(expected, 2));
+            assertEquals(5, transfer.getNextBlock());
+
+            transfer.write(block(expected, 6));
+            assertFalse(transfer.isComplete());
+            transfer.write(block(expected, 5));
+            assertEquals(7, transfer.getNextBlock());
+            assertTrue(transfer.isComplete());
+
+            // The running digest validates the file without reading it back
+            assertTrue(transfer.finish());
+        }
+
+        assertArrayEquals(expected, Files.readAllBytes(root.resolve("file.bin")));
+    }
+
+    /**
+     * Test of accepts method, of class ReceiveTransfer.
+     */
+    @Test
+    public void testAccepts() throws Exception {
+        System.out.println("accepts");
+        byte[] expected = data(20 * BLOCK_SIZE, 2);
+        TransferOptions options = options("FILE_SIZE", "" + expected.length, "BLOCK_COUNT", "21");
+
+        try (ReceiveTransfer transfer = transfer(options)) {
+            transfer.write(block(expected, 1));
+
+            assertFalse(transfer.accepts(1), "A block that was already written");
+            assertTrue(transfer.accepts(2));
+            assertTrue(transfer.accepts(1 + ReceiveTransfer.REORDER_WINDOW));
+            assertFalse(transfer.accepts(2 + ReceiveTransfer.REORDER_WINDOW), "A block past the reorder window");
+            assertThrows(TftpException.class, () -> transfer.write(block(expected, 2 + ReceiveTransfer.REORDER_WINDOW)));
+
+            for (int id = 2; id <= 20; id++) {
+                transfer.write(block(expected, id));
+            }
+            assertTrue(transfer.accepts(21));
+            assertFalse(transfer.accepts(22), "A block past the announced block count");
+        }
+    }
+
+    /**
+     * Test of finish method, of class ReceiveTransfer, with a hash that does not match.
+     */
+    @Test
+    public void testFinishHashMismatch() throws Exception {
+        System.out.println("finishHashMismatch");
+        byte[] expected = data(3 * BLOCK_SIZE + 7, 3);
+        byte[] other = expected.clone();
+        other[BLOCK_SIZE + 1] ^= 1;
+        TransferOptions options = options("FILE_SIZE", "" + expected.length, "BLOCK_COUNT", "4",
+                "DIGEST_ALGORITHM", DigestAlgorithm.XXH64.getValue(), "FILE_HASH", hash(DigestAlgorithm.XXH64, expected));
+
+        try (ReceiveTransfer transfer = transfer(options)) {
+            for (int id = 1; id <= 4; id++) {
+                transfer.write(block(other, id));
+            }
+            assertTrue(transfer.isComplete());
+            assertFalse(transfer.finish());
+        }
+    }
+
+    /**
+     * Test of write method, of class ReceiveTransfer, without a block count, so the transfer
+     * ends with the first block that is not full.
+     */
+    @Test
+    public void testWriteWithoutBlockCount() throws Exception {
+        System.out.println("writeWithoutBlockCount");
+        byte[] expected = data(2 * BLOCK_SIZE, 4);
+
+        try (ReceiveTransfer transfer = transfer(options())) {
+            transfer.write(block(expected, 1));
+            assertFalse(transfer.isComplete());
+            assertEquals(-1, transfer.getLastBlock());
+
+            // The empty block that ends a file of whole blocks arrives ahead of the last full one
+            transfer.write(block(expected, 3));
+            assertEquals(3, transfer.getLastBlock());
+            assertFalse(transfer.isComplete());
+            assertFalse(transfer.accepts(4), "A block past the short block");
+
+            transfer.write(block(expected, 2));
+            assertTrue(transfer.isComplete());
+            assertTrue(transfer.finish());
+        }
+
+        assertArrayEquals(expected, Files.readAllBytes(root.resolve("file.bin")));
+    }
+
+    /**
+     * Test of isComplete method, of class ReceiveTransfer, before any block of a transfer
+     * without a block count has arrived.
+     */
+    @Test
+    public void testIsCompleteWithoutBlocks() throws IOException, TftpException {
+        System.out.println("isCompleteWithoutBlocks");
+
+        try (ReceiveTransfer transfer = transfer(options())) {
+            assertFalse(transfer.isComplete(), "An empty file is not published before its only block arrives");
+        }
+    }
+}
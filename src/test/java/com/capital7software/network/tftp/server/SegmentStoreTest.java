@@ -0,0 +1,189 @@
+/*
+ * File: SegmentStoreTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class SegmentStoreTest {
+
+    @TempDir
+    Path root;
+
+    public SegmentStoreTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    private static void assertRestored(SegmentStore store, Map<String, byte[]> expected) throws IOException {
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            Path file = store.restore(entry.getKey());
+            assertNotNull(file, entry.getKey());
+            assertArrayEquals(entry.getValue(), Files.readAllBytes(file), entry.getKey());
+        }
+    }
+
+    private Path segments() {
+        return root.resolve("segments");
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(segments())) {
+            return files.count();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(segments())) {
+            return files.sorted().reduce((first, second) -> second).orElseThrow();
+        }
+    }
+
+    private Map<String, byte[]> fill(SegmentStore store) throws IOException {
+        Map<String, byte[]> answer = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            String name = "small" + i + ".bin";
+            answer.put(name, data(100 + i * 37, i));
+            ContentStoreTest.upload(store, name, answer.get(name));
+        }
+        // Too large to be packed, so it is kept as a file of its own
+        answer.put("large.bin", data(SegmentStore.MAX_PACKED_SIZE + 1, 99));
+        ContentStoreTest.upload(store, "large.bin", answer.get("large.bin"));
+        return answer;
+    }
+
+    /**
+     * Test of opening a SegmentStore whose active segment ends with a record that was only
+     * partly written.
+     */
+    @Test
+    public void testReopenAfterTornRecord() throws IOException {
+        System.out.println("reopenAfterTornRecord");
+        SegmentStore store = new SegmentStore(root);
+        Map<String, byte[]> expected = fill(store);
+        store.close();
+
+        Path segment = lastSegment();
+        long size = Files.size(segment);
+        // The header of a record and the start of its name, as if the server stopped while appending it
+        ByteBuffer torn = ByteBuffer.allocate(10).putInt(0x54465352).putShort((short) 12).put("torn".getBytes(StandardCharsets.UTF_8));
+        Files.write(segment, torn.array(), StandardOpenOption.APPEND);
+
+        store = new SegmentStore(root);
+        try {
+            assertEquals(size, Files.size(segment), "The segment is truncated before the torn record");
+            assertRestored(store, expected);
+            assertNull(store.restore("torn"));
+
+            // Appending continues where the last whole record ends
+            expected.put("after.bin", data(500, 500));
+            ContentStoreTest.upload(store, "after.bin", expected.get("after.bin"));
+        } finally {
+            store.close();
+        }
+
+        store = new SegmentStore(root);
+        try {
+            assertRestored(store, expected);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test of opening a SegmentStore whose index is missing, corrupt or cut short, in which case
+     * every segment is read from the start.
+     */
+    @Test
+    public void testMissingOrCorruptIndex() throws IOException {
+        System.out.println("missingOrCorruptIndex");
+        SegmentStore store = new SegmentStore(root, 2048);
+        Map<String, byte[]> expected = fill(store);
+        // Uploaded again, so the segments hold an older record of the filename
+        expected.put("small3.bin", data(321, 321));
+        ContentStoreTest.upload(store, "small3.bin", expected.get("small3.bin"));
+        store.close();
+
+        Path index = root.resolve("index.dat");
+        byte[] bytes = Files.readAllBytes(index);
+
+        Files.delete(index);
+        store = new SegmentStore(root, 2048);
+        assertRestored(store, expected);
+        store.close();
+
+        bytes[bytes.length / 2] ^= 0x40;
+        Files.write(index, bytes);
+        store = new SegmentStore(root, 2048);
+        assertRestored(store, expected);
+        store.close();
+
+        Files.write(index, new byte[] {0x54, 0x46, 0x53});
+        store = new SegmentStore(root, 2048);
+        try {
+            assertRestored(store, expected);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test of compact method, of class SegmentStore, and of opening the store afterwards.
+     */
+    @Test
+    public void testCompact() throws IOException {
+        System.out.println("compact");
+        SegmentStore store = new SegmentStore(root, 2048);
+        Map<String, byte[]> expected = fill(store);
+        // Every small file is uploaded again, which leaves the first segments mostly dead
+        for (int i = 0; i < 20; i++) {
+            String name = "small" + i + ".bin";
+            expected.put(name, data(200 + i, 1000 + i));
+            ContentStoreTest.upload(store, name, expected.get(name));
+        }
+        long before = countSegments();
+
+        store.compact();
+        try {
+            assertTrue(countSegments() < before, "The sparse segments are deleted");
+            assertRestored(store, expected);
+        } finally {
+            store.close();
+        }
+
+        store = new SegmentStore(root, 2048);
+        assertRestored(store, expected);
+        store.close();
+
+        // Without the index written by the compaction, the copies are read back from the segments
+        Files.delete(root.resolve("index.dat"));
+        store = new SegmentStore(root, 2048);
+        try {
+            assertRestored(store, expected);
+        } finally {
+            store.close();
+        }
+    }
+}
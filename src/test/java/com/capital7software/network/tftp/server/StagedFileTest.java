@@ -0,0 +1,150 @@
+/*
+ * File: StagedFileTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class StagedFileTest {
+
+    @TempDir
+    Path root;
+
+    private String workingDirectory;
+
+    public StagedFileTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    @BeforeEach
+    public void setUp() {
+        // Uploads are received into the working directory of the server
+        workingDirectory = System.getProperty("user.dir");
+        System.setProperty("user.dir", root.toString());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.setProperty("user.dir", workingDirectory);
+    }
+
+    /**
+     * Test of create method, of class StagedFile.
+     */
+    @Test
+    public void testCreate() throws IOException {
+        System.out.println("create");
+        StagedFile staged = StagedFile.create("file.bin");
+
+        assertNotNull(staged);
+        assertEquals(root.resolve("file_received.bin"), staged.getTarget());
+        assertTrue(Files.exists(Path.of(staged.getFilename())));
+        assertFalse(Files.exists(staged.getTarget()), "The upload is not visible under its real name");
+        assertNull(StagedFile.create("file.bin"), "The file is already being received");
+
+        staged.discard();
+        assertFalse(Files.exists(Path.of(staged.getFilename())));
+
+        StagedFile again = StagedFile.create("file.bin");
+        assertNotNull(again, "A discarded upload can be sent again");
+        again.discard();
+    }
+
+    /**
+     * Test of reserve method, of class StagedFile.
+     */
+    @Test
+    public void testReserve() throws IOException {
+        System.out.println("reserve");
+        long reserved = StagedFile.getReserved();
+        StagedFile staged = StagedFile.create("file.bin");
+        byte[] expected = data(10_000, 1);
+
+        assertTrue(staged.reserve(-1), "Nothing is reserved for an upload of unknown size");
+        assertEquals(reserved, StagedFile.getReserved());
+
+        assertTrue(staged.reserve(expected.length));
+        assertEquals(reserved + expected.length, StagedFile.getReserved());
+
+        try (BlockWriter writer = staged.open(expected.length, false)) {
+            writer.write(0, expected, 0, 4_000);
+            assertEquals(reserved + 6_000, StagedFile.getReserved(), "Only the bytes still to be written are reserved");
+            writer.write(4_000, expected, 4_000, 6_000);
+            assertEquals(reserved, StagedFile.getReserved());
+        }
+
+        staged.discard();
+        assertEquals(reserved, StagedFile.getReserved());
+    }
+
+    /**
+     * Test of reserve method, of class StagedFile, with a file system that does not have room
+     * for the upload.
+     */
+    @Test
+    public void testReserveDiskFull() throws IOException {
+        System.out.println("reserveDiskFull");
+        long reserved = StagedFile.getReserved();
+        StagedFile staged = StagedFile.create("file.bin");
+        long usable = Files.getFileStore(root).getUsableSpace();
+
+        assertFalse(staged.reserve(usable + 1));
+        assertEquals(reserved, StagedFile.getReserved());
+        assertFalse(Files.exists(Path.of(staged.getFilename())), "The staged file is discarded");
+
+        StagedFile first = StagedFile.create("file.bin");
+        assertNotNull(first, "The filename can be uploaded again");
+        StagedFile second = StagedFile.create("other.bin");
+
+        try {
+            // The room that the first upload reserved is not offered to the second one
+            long room = Files.getFileStore(root).getUsableSpace() - StagedFile.getReserved();
+            assertTrue(first.reserve(room / 2 + 1));
+            assertFalse(second.reserve(room / 2 + 1));
+        } finally {
+            first.discard();
+            second.discard();
+        }
+        assertEquals(reserved, StagedFile.getReserved());
+    }
+
+    /**
+     * Test of publish method, of class StagedFile.
+     */
+    @Test
+    public void testPublish() throws IOException {
+        System.out.println("publish");
+        byte[] expected = data(10_000, 2);
+        StagedFile staged = StagedFile.create("file.bin");
+
+        assertTrue(staged.reserve(expected.length));
+        try (BlockWriter writer = staged.open(expected.length + 5_000, false)) {
+            writer.write(0, expected, 0, expected.length);
+        }
+        staged.publish(true);
+
+        assertArrayEquals(expected, Files.readAllBytes(staged.getTarget()), "The preallocated tail is truncated away");
+        assertFalse(Files.exists(Path.of(staged.getFilename())));
+        assertNull(StagedFile.create("file.bin"), "The file already exists");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * File: WriteBehindTest.java
+ */
+package com.capital7software.network.tftp.server;
+
+import com.capital7software.network.util.BlockWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class WriteBehindTest {
+    private static final int BLOCK_SIZE = 100;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    public WriteBehindTest() {
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] answer = new byte[length];
+        new Random(seed).nextBytes(answer);
+        return answer;
+    }
+
+    /**
+     * A writer into a buffer that waits for the gate to open before it writes the block at the
+     * specified offset, and fails instead if it is told to.
+     */
+    private static BlockWriter gatedWriter(int blocks, long gatedOffset, CountDownLatch entered, CountDownLatch gate, boolean fail) {
+        return new BlockWriter(ByteBuffer.allocate(blocks * BLOCK_SIZE)) {
+            @Override
+            public int write(long offset, byte[] data, int index, int count) throws IOException {
+                if (offset == gatedOffset) {
+                    entered.countDown();
+                    try {
+                        if (!gate.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                            throw new IOException("The gate was never opened.");
+                        }
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                    if (fail) {
+                        throw new IOException("The disk is full.");
+                    }
+                }
+                return super.write(offset, data, index, count);
+            }
+        };
+    }
+
+    private static void submitAll(WriteBehind pipeline, byte[] expected, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            pipeline.submit((long) i * BLOCK_SIZE, Arrays.copyOfRange(expected, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE), BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Test of submit method, of class WriteBehind.
+     */
+    @Test
+    public void testSubmit() throws IOException {
+        System.out.println("submit");
+        byte[] expected = data(10 * BLOCK_SIZE, 1);
+        BlockWriter writer = new BlockWriter(ByteBuffer.allocate(expected.length));
+        WriteBehind pipeline = new WriteBehind(writer, 3);
+
+        assertEquals(4, pipeline.getCapacity(), "The depth is rounded up to a power of two");
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            submitAll(pipeline, expected, 10);
+            pipeline.awaitWritten(10);
+            pipeline.awaitForced(10);
+        });
+        pipeline.close();
+
+        assertEquals(0, pipeline.getDepth());
+        assertArrayEquals(expected, writer.getBuffer().array());
+    }
+
+    /**
+     * Test of submit method, of class WriteBehind, with a writer that has fallen behind.
+     */
+    @Test
+    public void testSubmitWaitsForRoom() throws Exception {
+        System.out.println("submitWaitsForRoom");
+        byte[] expected = data(6 * BLOCK_SIZE, 2);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        BlockWriter writer = gatedWriter(6, 0, entered, gate, false);
+        WriteBehind pipeline = new WriteBehind(writer, 2);
+        AtomicInteger submitted = new AtomicInteger();
+
+        Thread network = new Thread(() -> {
+            try {
+                for (int i = 0; i < 6; i++) {
+                    pipeline.submit((long) i * BLOCK_SIZE, Arrays.copyOfRange(expected, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE), BLOCK_SIZE);
+                    submitted.incrementAndGet();
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        });
+        network.start();
+
+        assertTrue(entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        Thread.sleep(200);
+        // The first block is still being written, so only the ring's worth of blocks was taken
+        assertEquals(2, submitted.get());
+        assertTrue(network.isAlive(), "The network thread waits for room in the ring");
+
+        gate.countDown();
+        network.join(TIMEOUT.toMillis());
+        assertFalse(network.isAlive());
+        pipeline.close();
+
+        assertEquals(6, submitted.get());
+        assertTrue(pipeline.getStalls() > 0);
+        assertEquals(2, pipeline.getMaxDepth());
+        assertArrayEquals(expected, writer.getBuffer().array());
+    }
+
+    /**
+     * Test of awaitWritten method, of class WriteBehind, with a writer that fails.
+     */
+    @Test
+    public void testAwaitWrittenFailure() throws Exception {
+        System.out.println("awaitWrittenFailure");
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        WriteBehind pipeline = new WriteBehind(gatedWriter(3, BLOCK_SIZE, entered, gate, true), 4);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+
+        submitAll(pipeline, data(3 * BLOCK_SIZE, 3), 3);
+        assertTrue(entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+
+        Thread waiter = new Thread(() -> {
+            try {
+                pipeline.awaitForced(3);
+            } catch (Throwable ex) {
+                thrown.set(ex);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive(), "The waiter waits while the block is being written");
+
+        gate.countDown();
+        waiter.join(TIMEOUT.toMillis());
+        // A block that will never be written releases everybody that waits on it
+        assertFalse(waiter.isAlive());
+        assertInstanceOf(IOException.class, thrown.get());
+
+        assertThrows(IOException.class, () -> pipeline.submit(3L * BLOCK_SIZE, new byte[BLOCK_SIZE], BLOCK_SIZE));
+        assertThrows(IOException.class, pipeline::close);
+    }
+
+    /**
+     * Test of close method, of class WriteBehind.
+     */
+    @Test
+    public void testClose() throws Exception {
+        System.out.println("close");
+        byte[] expected = data(8 * BLOCK_SIZE, 4);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        BlockWriter writer = gatedWriter(8, 0, entered, gate, false);
+        WriteBehind pipeline = new WriteBehind(writer, 8);
+
+        submitAll(pipeline, expected, 8);
+        assertTrue(entered.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertEquals(8, pipeline.getDepth());
+
+        Thread closer = new Thread(() -> {
+            try {
+                pipeline.close();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        });
+        closer.start();
+        Thread.sleep(100);
+        assertTrue(closer.isAlive(), "Closing waits for the blocks that were submitted");
+
+        gate.countDown();
+        closer.join(TIMEOUT.toMillis());
+        assertFalse(closer.isAlive());
+
+        assertEquals(0, pipeline.getDepth());
+        assertArrayEquals(expected, writer.getBuffer().array());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * File: BlockTableTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockTableTest {
+
+    public BlockTableTest() {
+    }
+
+    /**
+     * Test of getOffset and getLength methods, of class BlockTable, with an empty last block.
+     */
+    @Test
+    public void testLayout() {
+        System.out.println("layout");
+        BlockTable instance = new BlockTable("test.bin", 1024, 512, 3, DigestAlgorithm.MD5);
+
+        assertEquals(3, instance.size());
+        assertEquals(512, instance.getOffset(1));
+        assertEquals(512, instance.getLength(1));
+        assertEquals(1024, instance.getOffset(2));
+        assertEquals(0, instance.getLength(2));
+        assertFalse(instance.isHashed());
+        assertNull(instance.get(0).getMd5());
+        assertThrows(IndexOutOfBoundsException.class, () -> instance.getOffset(3));
+    }
+
+    /**
+     * Test of setDigest method, of class BlockTable.
+     */
+    @Test
+    public void testSetDigest() {
+        System.out.println("setDigest");
+        BlockTable instance = new BlockTable("test.bin", 1000, 512, 2, DigestAlgorithm.XXH64);
+        Digest digest = DigestAlgorithm.XXH64.newDigest();
+        byte[] empty = digest.digest();
+
+        instance.setDigest(1, empty);
+
+        assertTrue(instance.isHashed());
+        assertEquals(Digest.toHex(empty), instance.getHash(1));
+        assertEquals(new BlockInfo("test.bin", 2, 512, 488, Digest.toHex(empty), DigestAlgorithm.XXH64), instance.get(1));
+        assertThrows(IllegalArgumentException.class, () -> instance.setDigest(0, new byte[3]));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * File: BlockWriterTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class BlockWriterTest {
+
+    public BlockWriterTest() {
+    }
+
+    private static byte[] data(int length) {
+        byte[] answer = new byte[length];
+        new Random(25).nextBytes(answer);
+        return answer;
+    }
+
+    // Under the build directory rather than the temporary directory, which is often tmpfs and refuses direct I/O
+    private static Path file() throws IOException {
+        return Files.createTempFile(Files.createDirectories(Path.of("build", "tmp")), "direct", ".bin");
+    }
+
+    /**
+     * Test of write method, of class BlockWriter, with direct I/O and blocks that are not
+     * aligned to the file system.
+     */
+    @Test
+    public void testWriteDirect() throws IOException {
+        System.out.println("writeDirect");
+        int blockSize = 1428;
+        byte[] expected = data(BlockWriter.DIRECT_BUFFER_SIZE * 2 + 12345);
+        Path file = file();
+
+        try {
+            try (BlockWriter writer = new BlockWriter(file, expected.length, true)) {
+                writer.preallocate(expected.length);
+                for (int offset = 0; offset < expected.length; offset += blockSize) {
+                    int count = Math.min(blockSize, expected.length - offset);
+                    writer.write(offset, expected, offset, count);
+                    if (offset == blockSize * 800) {
+                        // A block that was sent again
+                        writer.write(offset, expected, offset, count);
+                    }
+                }
+                assertFalse(writer.isMapped());
+            }
+            assertArrayEquals(expected, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Test of finish and close methods, of class BlockWriter, with direct I/O when the transfer
+     * ends early and when a block is not written in order.
+     */
+    @Test
+    public void testCloseDirect() throws IOException {
+        System.out.println("closeDirect");
+        byte[] expected = data(5000);
+        Path file = file();
+
+        try {
+            try (BlockWriter writer = new BlockWriter(file, 1_000_000, true)) {
+                writer.preallocate(1_000_000);
+                writer.write(0, expected, 0, 512);
+                writer.write(1024, expected, 1024, 3976);
+                writer.write(512, expected, 512, 512);
+                writer.force();
+                assertTrue(writer.finish());
+                writer.force();
+                assertEquals(expected.length, Files.size(file), "The padding is not written again after the file is finished");
+            }
+            assertArrayEquals(expected, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Test of write method, of class BlockWriter, with direct I/O across a hole, after which
+     * the blocks are gathered again from the next aligned offset.
+     */
+    @Test
+    public void testWriteDirectAcrossHole() throws IOException {
+        System.out.println("writeDirectAcrossHole");
+        int blockSize = 1428;
+        int holeStart = blockSize * 300;
+        int holeEnd = blockSize * 700;
+        byte[] expected = data(BlockWriter.DIRECT_BUFFER_SIZE * 3 + 777);
+        Arrays.fill(expected, holeStart, holeEnd, (byte) 0);
+        Path file = file();
+
+        try {
+            try (BlockWriter writer = new BlockWriter(file, expected.length, true)) {
+                assumeTrue(writer.isDirect(), "The file system does not support direct I/O");
+                writer.preallocate(expected.length);
+                for (int offset = 0; offset < expected.length; offset += blockSize) {
+                    if (offset >= holeStart && offset < holeEnd) {
+                        continue;
+                    }
+                    int count = Math.min(blockSize, expected.length - offset);
+                    writer.write(offset, expected, offset, count);
+                    if (offset == blockSize * 1500) {
+                        // A block that was sent again
+                        writer.write(offset, expected, offset, count);
+                    }
+                }
+                assertTrue(writer.finish());
+                writer.force();
+
+                // Only the bytes up to the first aligned offset after the hole go through the page cache
+                long written = expected.length - (holeEnd - holeStart);
+                assertTrue(writer.getDirectLength() > written - 64 * 1024, "The blocks after the hole are written with direct I/O");
+                assertTrue(writer.getDirectLength() <= written);
+            }
+            assertArrayEquals(expected, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
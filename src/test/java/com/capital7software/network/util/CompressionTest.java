@@ -0,0 +1,88 @@
+/*
+ * File: CompressionTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class CompressionTest {
+
+    public CompressionTest() {
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "interface eth0 address 10.0.0.1 netmask 255.255.255.0 mtu 1500\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] answer = new byte[length];
+        for (int i = 0; i < length; i++) {
+            answer[i] = line[i % line.length];
+        }
+        // A few changes so that not every match is the same
+        for (int i = 100; i < length; i += 977) {
+            answer[i] = (byte) ('a' + i % 26);
+        }
+        return answer;
+    }
+
+    /**
+     * Test of compress and decompress methods, of class Compression, for every codec.
+     */
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        System.out.println("roundTrip");
+        byte[] block = text(65464);
+
+        for (Compression compression : Compression.values()) {
+            byte[] compressed = new byte[block.length + 3];
+            int length = compression.compress(block, 0, block.length, compressed, 3, block.length);
+            assertTrue(length > 0 && length < block.length / 3, compression + " compressed to " + length);
+
+            byte[] result = new byte[block.length];
+            assertEquals(block.length, compression.decompress(compressed, 3, length, result, 0, result.length));
+            assertArrayEquals(block, result);
+            assertEquals(compression, Compression.fromFlag(compression.getFlag()));
+            assertEquals(compression, Compression.fromValue(compression.getValue().toUpperCase()));
+        }
+    }
+
+    /**
+     * Test of compress method, of class Compression, with a block that does not compress.
+     */
+    @Test
+    public void testIncompressible() {
+        System.out.println("incompressible");
+        byte[] block = new byte[8192];
+        new Random(42).nextBytes(block);
+
+        for (Compression compression : Compression.values()) {
+            assertEquals(-1, compression.compress(block, 0, block.length, new byte[block.length], 0, block.length - 1));
+        }
+    }
+
+    /**
+     * Test of decompress method, of class Compression, with blocks that are damaged or too
+     * large for the output.
+     */
+    @Test
+    public void testDecompressInvalid() {
+        System.out.println("decompressInvalid");
+        byte[] block = text(4096);
+        byte[] compressed = new byte[block.length];
+        int length = Compression.LZ4.compress(block, 0, block.length, compressed, 0, compressed.length);
+
+        assertThrows(DataFormatException.class, () -> Compression.LZ4.decompress(compressed, 0, length, new byte[block.length - 1], 0, block.length - 1));
+        assertThrows(DataFormatException.class, () -> Compression.LZ4.decompress(new byte[] { 0x10, 'a', 5, 0 }, 0, 4, new byte[64], 0, 64));
+        assertThrows(DataFormatException.class, () -> Compression.DEFLATE.decompress(compressed, 0, length, new byte[block.length], 0, block.length));
+        assertNull(Compression.fromFlag(Compression.RAW));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * File: DigestAlgorithmTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class DigestAlgorithmTest {
+
+    public DigestAlgorithmTest() {
+    }
+
+    private static String hash(DigestAlgorithm algorithm, String input) {
+        Digest digest = algorithm.newDigest();
+        digest.update(input.getBytes(StandardCharsets.US_ASCII));
+        return digest.finish();
+    }
+
+    /**
+     * Test of newDigest method, of class DigestAlgorithm, against known hashes.
+     */
+    @Test
+    public void testKnownHashes() {
+        System.out.println("knownHashes");
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", hash(DigestAlgorithm.MD5, ""));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash(DigestAlgorithm.SHA256, "abc"));
+        assertEquals("e3069283", hash(DigestAlgorithm.CRC32C, "123456789"));
+        assertEquals("ef46db3751d8e999", hash(DigestAlgorithm.XXH64, ""));
+        assertEquals("44bc2cf5ad770999", hash(DigestAlgorithm.XXH64, "abc"));
+    }
+
+    /**
+     * Test of update method, of class XxHash64, with the input split across calls.
+     */
+    @Test
+    public void testXxHash64InPieces() {
+        System.out.println("xxHash64InPieces");
+        byte[] input = new byte[1000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) (i * 31 + 7);
+        }
+
+        Digest digest = DigestAlgorithm.XXH64.newDigest();
+        digest.update(input);
+        String expResult = digest.finish();
+
+        int[] pieces = { 1, 3, 31, 32, 33, 64, 100 };
+        int offset = 0;
+        for (int i = 0; offset < input.length; i++) {
+            int length = Math.min(pieces[i % pieces.length], input.length - offset);
+            digest.update(ByteBuffer.wrap(input, offset, length));
+            offset += length;
+        }
+
+        assertEquals(expResult, digest.finish());
+    }
+
+    /**
+     * Test of fromValue method, of class DigestAlgorithm.
+     */
+    @Test
+    public void testFromValue() {
+        System.out.println("fromValue");
+        assertEquals(DigestAlgorithm.CRC32C, DigestAlgorithm.fromValue("CRC32C"));
+        assertNull(DigestAlgorithm.fromValue("sha1"));
+    }
+}
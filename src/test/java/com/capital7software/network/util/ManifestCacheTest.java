@@ -0,0 +1,179 @@
+/*
+ * File: ManifestCacheTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class ManifestCacheTest {
+    private static final long BLOCK_SIZE = 512;
+
+    @TempDir
+    Path directory;
+
+    public ManifestCacheTest() {
+    }
+
+    // A file that was last modified well outside of the racy window
+    private Path file(String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        Path answer = Files.write(directory.resolve(name), data);
+        Files.setLastModifiedTime(answer, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        return answer;
+    }
+
+    private static BlockTable hash(Path file) throws IOException {
+        long size = Files.size(file);
+        BlockTable answer = new BlockTable(file.toString(), size, BLOCK_SIZE, size / BLOCK_SIZE + 1, DigestAlgorithm.MD5);
+        MD5.hashBlocks(file, answer, false);
+        return answer;
+    }
+
+    private static boolean store(ManifestCache cache, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return cache.store(file, attributes, DigestAlgorithm.MD5, BLOCK_SIZE, DigestAlgorithm.MD5.hashFile(file), hash(file));
+    }
+
+    private static List<Path> entries(ManifestCache cache) throws IOException {
+        List<Path> answer = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cache.getDirectory(), "*.manifest")) {
+            stream.forEach(answer::add);
+        }
+        return answer;
+    }
+
+    /**
+     * Test of store and load methods, of class ManifestCache, and of the layout of a manifest.
+     */
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        System.out.println("storeAndLoad");
+        ManifestCache cache = new ManifestCache(directory.resolve("manifests"), 8);
+        Path file = file("a.bin", 5000);
+        BlockTable expected = hash(file);
+
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertTrue(store(cache, file));
+
+        ManifestCache.Manifest manifest = cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE);
+        assertNotNull(manifest);
+        assertEquals(DigestAlgorithm.MD5.hashFile(file), manifest.getHash());
+        assertEquals(expected.size(), manifest.getNumBlocks());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getHash(i), manifest.getBlockHash(i));
+        }
+
+        // Another algorithm or block size is another manifest
+        assertNull(cache.load(file, DigestAlgorithm.SHA256, BLOCK_SIZE));
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE * 2));
+
+        // The manifest starts with its magic and version and ends with a CRC32C of the rest
+        byte[] bytes = Files.readAllBytes(entries(cache).get(0));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertEquals(0x54464D46, in.readInt());
+        assertEquals(1, in.readShort());
+        assertEquals(file.toRealPath().toString(), in.readUTF());
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - Integer.BYTES);
+        in.skipBytes(bytes.length - Integer.BYTES - (2 + 4 + 2 + file.toRealPath().toString().length()));
+        assertEquals((int) crc.getValue(), in.readInt());
+    }
+
+    /**
+     * Test of load method, of class ManifestCache, with a manifest that does not match its
+     * CRC32C or has been cut short.
+     */
+    @Test
+    public void testCorruptManifest() throws IOException {
+        System.out.println("corruptManifest");
+        ManifestCache cache = new ManifestCache(directory.resolve("manifests"), 8);
+        Path file = file("b.bin", 3000);
+        assertTrue(store(cache, file));
+
+        Path entry = entries(cache).get(0);
+        byte[] bytes = Files.readAllBytes(entry);
+        // A block hash near the end, which the fields of the header would not catch
+        bytes[bytes.length - 10] ^= 0x01;
+        Files.write(entry, bytes);
+
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertFalse(Files.exists(entry), "A corrupt manifest is deleted when it is read");
+
+        assertTrue(store(cache, file));
+        Files.write(entry, new byte[] {0x54, 0x46});
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertFalse(Files.exists(entry));
+    }
+
+    /**
+     * Test of store and load methods, of class ManifestCache, with a file that was modified
+     * too recently and a file that changed after its manifest was written.
+     */
+    @Test
+    public void testRacyAndStale() throws IOException {
+        System.out.println("racyAndStale");
+        ManifestCache cache = new ManifestCache(directory.resolve("manifests"), 8);
+        Path file = file("c.bin", 4000);
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ManifestCache.RACY_WINDOW_MS / 2));
+        assertFalse(store(cache, file), "A file modified within the racy window is not recorded");
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ManifestCache.RACY_WINDOW_MS * 2));
+        assertTrue(store(cache, file));
+        assertNotNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+
+        // Same size, new modification time
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ManifestCache.RACY_WINDOW_MS * 3));
+        assertNull(cache.load(file, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertTrue(entries(cache).isEmpty(), "A stale manifest is deleted when it is read");
+    }
+
+    /**
+     * Test of evict method, of class ManifestCache.
+     */
+    @Test
+    public void testEvict() throws IOException {
+        System.out.println("evict");
+        ManifestCache cache = new ManifestCache(directory.resolve("manifests"), 2);
+        Path first = file("d1.bin", 1000);
+        Path second = file("d2.bin", 2000);
+        Path third = file("d3.bin", 3000);
+
+        assertTrue(store(cache, first));
+        assertTrue(store(cache, second));
+        long now = System.currentTimeMillis();
+        for (Path entry : entries(cache)) {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(now - 10_000));
+        }
+        // Reading a manifest makes it the most recently used one
+        assertNotNull(cache.load(first, DigestAlgorithm.MD5, BLOCK_SIZE));
+
+        assertTrue(store(cache, third));
+        assertEquals(2, entries(cache).size());
+        assertNotNull(cache.load(first, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertNull(cache.load(second, DigestAlgorithm.MD5, BLOCK_SIZE));
+        assertNotNull(cache.load(third, DigestAlgorithm.MD5, BLOCK_SIZE));
+    }
+}
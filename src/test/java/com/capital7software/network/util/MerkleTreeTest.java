@@ -0,0 +1,62 @@
+/*
+ * File: MerkleTreeTest.java
+ */
+package com.capital7software.network.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author Vincent Palodichuk
+ */
+public class MerkleTreeTest {
+
+    public MerkleTreeTest() {
+    }
+
+    private static byte[] hash(byte[]... parts) {
+        Digest digest = DigestAlgorithm.SHA256.newDigest();
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Test of fromLeaves method, of class MerkleTree, with a node that has no sibling.
+     */
+    @Test
+    public void testFromLeaves() {
+        System.out.println("fromLeaves");
+        byte[] a = hash("a".getBytes(StandardCharsets.US_ASCII));
+        byte[] b = hash("b".getBytes(StandardCharsets.US_ASCII));
+        byte[] c = hash("c".getBytes(StandardCharsets.US_ASCII));
+
+        MerkleTree instance = MerkleTree.fromLeaves(DigestAlgorithm.SHA256, new byte[][] { a, b, c });
+
+        assertEquals(2, instance.getHeight());
+        assertEquals(3, instance.getWidth(0));
+        assertEquals(2, instance.getWidth(1));
+        assertEquals(Digest.toHex(c), instance.getNode(1, 1));
+        assertEquals(Digest.toHex(hash(hash(a, b), c)), instance.getRoot());
+    }
+
+    /**
+     * Test of matches method, of class MerkleTree.
+     */
+    @Test
+    public void testMatches() {
+        System.out.println("matches");
+        byte[] a = hash("a".getBytes(StandardCharsets.US_ASCII));
+        MerkleTree instance = MerkleTree.fromLeaves(DigestAlgorithm.SHA256, new byte[][] { a });
+
+        assertEquals(0, instance.getHeight());
+        assertTrue(instance.matches(0, 0, Digest.toHex(a).toUpperCase()));
+        assertFalse(instance.matches(0, 1, Digest.toHex(a)));
+        assertFalse(instance.matches(0, 0, "not a hash"));
+    }
+}